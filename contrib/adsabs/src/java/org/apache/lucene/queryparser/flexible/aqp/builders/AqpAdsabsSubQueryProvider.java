@@ -34,11 +34,14 @@ import org.apache.lucene.search.SecondOrderCollector;
 import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
 import org.apache.lucene.search.SecondOrderCollectorAdsClassicScoringFormula;
 import org.apache.lucene.search.SolrCacheWrapper;
+import org.apache.lucene.search.SecondOrderCollectorCitationsK;
 import org.apache.lucene.search.SecondOrderCollectorCitedBy;
 import org.apache.lucene.search.SecondOrderCollectorCites;
 import org.apache.lucene.search.SecondOrderCollectorCitesRAM;
 import org.apache.lucene.search.SecondOrderCollectorCitingTheMostCited;
 import org.apache.lucene.search.SecondOrderCollectorOperatorExpertsCiting;
+import org.apache.lucene.search.SecondOrderCollectorRandomWalk;
+import org.apache.lucene.search.SecondOrderCollectorSharedNeighbours;
 import org.apache.lucene.search.SecondOrderCollectorTopN;
 import org.apache.lucene.search.SecondOrderQuery;
 import org.apache.lucene.search.TermQuery;
@@ -95,6 +98,14 @@ AqpFunctionQueryBuilderProvider {
 	//TODO: make configurable
 	static String[] citationSearchIdField = new String[]{"bibcode", "alternate_bibcode"};
 	static String citationSearchRefField = "reference";
+	
+	// threads (including the request thread) that collect the hits of
+	// citations() and references(); 0 or 1 = the request thread only
+	static String citationSearchThreadsParam = "aqp.threads";
+	
+	// classic_relevance() inside topn(N, ...) keeps only the best N hits
+	// in one pass (less memory, but approximate ranking)
+	static String classicRelevanceBoundedParam = "aqp.classic_relevance.bounded";
 
 	static {
 		
@@ -383,7 +394,7 @@ AqpFunctionQueryBuilderProvider {
 
 		/* @api.doc
 		 * 
-		 * def classic_relevance(query, ratio=0.5):
+		 * def classic_relevance(query, ratio=0.5, boost='cite_read_boost'):
 		 * 		"""
 		 *    Toy-implementation of the ADS Classic relevance score
 		 *    algorithm. You can wrap any query and obtain the 
@@ -419,15 +430,23 @@ AqpFunctionQueryBuilderProvider {
 		 *                  	```norm_reads``` are normalized values for 
 		 *                    reads over the past two years
 		 *                    
+		 *    With boost='pagerank' the PageRank of the paper in the
+		 *    citation network is used instead of cite_read_boost; it 
+		 *    is computed by the citation cache in the background (the
+		 *    cache must have pageRank="true", else it is an error). 
+		 *    Until it is ready, the ranks computed for the previous 
+		 *    searcher are used; cite_read_boost only if there are none
+		 *    (after a restart).
 		 *                    
 		 *     
 		 *    @experimental
 		 *    @synonym cr()
 		 *    @since 40.2.2.0
 		 *    @since 40.3.0.1 - added parameter to configure ratio
+		 *    @since 48.1.0.0 - added the 'pagerank' boost
 		 * 		
 		 * 		"""
-		 *    return "classic_relevance(%s, %0.2f)" % (query,ratio)
+		 *    return "classic_relevance(%s, %0.2f, %s)" % (query,ratio,boost)
 		 */
 		parsers.put("classic_relevance", new AqpSubqueryParserFull() {
 			public Query parse(FunctionQParser fp) throws SyntaxError {
@@ -438,16 +457,34 @@ AqpFunctionQueryBuilderProvider {
 					ratio = fp.parseFloat();
 				}
 				
+				String boost = "cite_read_boost";
+				if (fp.hasMoreArguments()) {
+					boost = fp.parseId();
+				}
+				
 				if (ratio < 0 || ratio > 1.0f) {
 					throw new SyntaxError("The ratio must be in the range 0.0-1.0");
 				}
+				if (!boost.equals("cite_read_boost") && !boost.equals("pagerank")) {
+					throw new SyntaxError("The boost must be either 'cite_read_boost' or 'pagerank'");
+				}
 				
 				@SuppressWarnings("unchecked")
-				SolrCacheWrapper<CitationLRUCache<Object, Integer>> citationsWrapper = new SolrCacheWrapper.CitationsCache(
-						(CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache"));
+				CitationLRUCache<Object, Integer> cache = (CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache");
+				SolrCacheWrapper<CitationLRUCache<Object, Integer>> citationsWrapper = new SolrCacheWrapper.CitationsCache(cache);
 				
-				LuceneCacheWrapper<Floats> boostWrapper = LuceneCacheWrapper.getFloatCache("cite_read_boost", 
+				if (boost.equals("pagerank") && (cache == null || !cache.hasPageRank())) {
+					throw new SyntaxError("classic_relevance() with pagerank needs pageRank=\"true\" in the citations-cache");
+				}
+				
+				LuceneCacheWrapper<Floats> boostWrapper;
+				if (boost.equals("pagerank") && cache.getPageRank() != null) {
+					boostWrapper = LuceneCacheWrapper.getPageRankCache(cache);
+				}
+				else {
+					boostWrapper = LuceneCacheWrapper.getFloatCache("cite_read_boost", 
 						fp.getReq().getSearcher().getAtomicReader());
+				}
 				
 				return new SecondOrderQuery(innerQuery, null, 
 						new SecondOrderCollectorAdsClassicScoringFormula(citationsWrapper, boostWrapper, ratio));
@@ -527,6 +564,7 @@ AqpFunctionQueryBuilderProvider {
 
 
 				if (sortOrRank.equals("score")) {
+					boundClassicRelevance(fp, innerQuery, topN);
 					return new SecondOrderQuery(innerQuery, null, 
 							new SecondOrderCollectorTopN(topN));
 				}
@@ -550,12 +588,17 @@ AqpFunctionQueryBuilderProvider {
 
 		/* @api.doc
 		 * 
-		 * def citations(query):
+		 * def citations(query, from_year=None, to_year=None):
 		 * 		"""
 		 *    Finds set of papers that have **P** in their reference list
 		 *    
 		 *    'P' is the set of papers that will be selected by the query
 		 *    
+		 *    @param from_year, to_year
+		 *      - integers; only the papers published in these years (inclusive)
+		 *        are returned, eg. ```citations(P, 2010, 2014)```; requires the
+		 *        yearField of the citations-cache (since 48.1.0.0)
+		 *    
 		 *    Example: 
 		 *    
 		 *    	```citations(title:hubble)``` returns papers (potentionally
@@ -575,6 +618,11 @@ AqpFunctionQueryBuilderProvider {
 		 *    (but less than 10s, since that is the speed the old desktop
 		 *    did it)
 		 *    
+		 *    With the request parameter aqp.threads=N the papers P are
+		 *    collected by N threads in parallel (one index segment at a
+		 *    time); the threads are shared by all requests, so under load
+		 *    the query may run in the request thread only
+		 *    
 		 *    
 		 *    @since 40.1.0.0
 		 *    """
@@ -586,11 +634,28 @@ AqpFunctionQueryBuilderProvider {
 				Query innerQuery = fp.parseNestedQuery();
 				
 				@SuppressWarnings("unchecked")
-				SolrCacheWrapper<CitationLRUCache<Object, Integer>> citationsWrapper = new SolrCacheWrapper.CitationsCache(
-						(CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache"));
+				CitationLRUCache<Object, Integer> cache = (CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache");
+				SolrCacheWrapper<CitationLRUCache<Object, Integer>> citationsWrapper = new SolrCacheWrapper.CitationsCache(cache);
+				
+				if (fp.hasMoreArguments()) {
+					int fromYear, toYear;
+					try {
+						fromYear = fp.parseInt();
+						toYear = fp.parseInt();
+					}
+					catch (NumberFormatException e) {
+						throw new SyntaxError("The function signature is citations(query, [int, int]). Error: " + e.getMessage());
+					}
+					if (fromYear > toYear) {
+						throw new SyntaxError("The years of citations() must be in order: " + fromYear + ", " + toYear);
+					}
+					if (cache == null || !cache.hasYearIndex()) {
+						throw new SyntaxError("citations() with years needs the yearField of the citations-cache");
+					}
+					return threadedQuery(fp, innerQuery, new SecondOrderCollectorCitedBy(citationsWrapper, fromYear, toYear));
+				}
 								
-				return new SecondOrderQuery(innerQuery, null, 
-						new SecondOrderCollectorCitedBy(citationsWrapper), false);
+				return threadedQuery(fp, innerQuery, new SecondOrderCollectorCitedBy(citationsWrapper));
 			}
 		});
 
@@ -633,8 +698,245 @@ AqpFunctionQueryBuilderProvider {
 						(CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache"));
 				
 				
+				return threadedQuery(fp, innerQuery, new SecondOrderCollectorCitesRAM(referencesWrapper));
+			}
+		});
+
+		/* @api.doc
+		 * 
+		 * def citations_k(query, depth, direction='citations'):
+		 * 		"""
+		 *    Finds papers that are up to **depth** hops away from **P**
+		 *    in the citation network
+		 *    
+		 *    @param query
+		 *      - query object (P)
+		 *    @param depth
+		 *      - integer, 1-10; the number of hops
+		 *    @param direction
+		 *      - str, 'citations' (follow papers that cite P), 
+		 *        'references' (follow papers cited by P) or 'both'
+		 *    
+		 *    Example: 
+		 *    
+		 *    	```citations_k(author:huchra, 2)``` returns papers that 
+		 *         cite huchra and papers citing those papers; ie. the 
+		 *         same as citations(author:huchra) OR 
+		 *         citations(citations(author:huchra))
+		 *         
+		 *    Technical note:
+		 *    
+		 *    This is a breadth first search over the citation cache, 
+		 *    every paper is visited only once. Papers closer to P get
+		 *    higher scores (1/distance for every link that leads to 
+		 *    them, normalized to 0-1)
+		 *    
+		 *    @since 48.1.0.0
+		 *    """
+		 *    return "citations_k(%s, %d, %s)" % (query, depth, direction)
+		 *    
+		 */
+		parsers.put("citations_k", new AqpSubqueryParserFull() {
+			public Query parse(FunctionQParser fp) throws SyntaxError {    		  
+				Query innerQuery = fp.parseNestedQuery();
+				
+				int depth;
+				try {
+					depth = fp.parseInt();
+				}
+				catch (NumberFormatException e) {
+					throw new SyntaxError("The function signature is citations_k(query, int, [direction]). Error: " + e.getMessage());
+				}
+				if (depth < 1 || depth > 10) {
+					throw new SyntaxError("The depth of citations_k() must be in the range 1-10");
+				}
+				
+				String direction = "citations";
+				if (fp.hasMoreArguments()) {
+					direction = fp.parseId().toLowerCase();
+				}
+				
+				@SuppressWarnings("unchecked")
+				CitationLRUCache<Object, Integer> cache = (CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache");
+				
+				SolrCacheWrapper[] caches;
+				if (direction.equals("citations")) {
+					caches = new SolrCacheWrapper[] {new SolrCacheWrapper.CitationsCache(cache)};
+				}
+				else if (direction.equals("references")) {
+					caches = new SolrCacheWrapper[] {new SolrCacheWrapper.ReferencesCache(cache)};
+				}
+				else if (direction.equals("both")) {
+					caches = new SolrCacheWrapper[] {new SolrCacheWrapper.CitationsCache(cache), 
+							new SolrCacheWrapper.ReferencesCache(cache)};
+				}
+				else {
+					throw new SyntaxError("Unknown direction: " + direction + " (use citations, references or both)");
+				}
+				
+				return new SecondOrderQuery(innerQuery, null, 
+						new SecondOrderCollectorCitationsK(caches, depth, direction), false);
+			}
+		});
+
+		/* @api.doc
+		 * 
+		 * def cocitation(query, score='raw', max_fanout=1000):
+		 * 		"""
+		 *    Finds papers that are **cited together** with **P**
+		 *    
+		 *    @param query
+		 *      - query object (P)
+		 *    @param score
+		 *      - str, 'raw' (the number of papers that cite both) or 
+		 *        'normalized' (divided by sqrt(citations of P * citations
+		 *        of the paper))
+		 *    @param max_fanout
+		 *      - integer; at most this many citations of every paper of P
+		 *        are followed and the citing papers with more references
+		 *        than this are skipped
+		 *    
+		 *    Example: 
+		 *    
+		 *    	```cocitation(bibcode:1998ApJ...500..525S)``` returns papers
+		 *         that appear in the same reference lists as the paper, the
+		 *         most often cited together first
+		 *         
+		 *    Technical note:
+		 *    
+		 *    Unlike references(citations(P)) the strength of the relation
+		 *    is kept and the intermediate papers are never collected; the
+		 *    same caveats as citations() apply to P
+		 *    
+		 *    @since 48.1.0.0
+		 *    """
+		 *    return "cocitation(%s, %s, %d)" % (query, score, max_fanout)
+		 *    
+		 */
+		parsers.put("cocitation", new AqpSubqueryParserFull() {
+			public Query parse(FunctionQParser fp) throws SyntaxError {    		  
+				Query innerQuery = fp.parseNestedQuery();
+				
+				@SuppressWarnings("unchecked")
+				CitationLRUCache<Object, Integer> cache = (CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache");
+				
+				return sharedNeighboursQuery(fp, "cocitation", innerQuery, 
+						new SolrCacheWrapper.CitationsCache(cache), new SolrCacheWrapper.ReferencesCache(cache));
+			}
+		});
+
+		/* @api.doc
+		 * 
+		 * def coupling(query, score='raw', max_fanout=1000):
+		 * 		"""
+		 *    Finds papers that **share references** with **P** 
+		 *    (bibliographic coupling)
+		 *    
+		 *    @param query
+		 *      - query object (P)
+		 *    @param score
+		 *      - str, 'raw' (the number of the shared references) or 
+		 *        'normalized' (divided by sqrt(references of P * references
+		 *        of the paper))
+		 *    @param max_fanout
+		 *      - integer; at most this many references of every paper of P
+		 *        are followed and the references with more citations than
+		 *        this are skipped
+		 *    
+		 *    Example: 
+		 *    
+		 *    	```coupling(bibcode:1998ApJ...500..525S, normalized)``` 
+		 *         returns papers with similar reference lists
+		 *         
+		 *    Technical note:
+		 *    
+		 *    The same as cocitation(), in the other direction
+		 *    
+		 *    @since 48.1.0.0
+		 *    """
+		 *    return "coupling(%s, %s, %d)" % (query, score, max_fanout)
+		 *    
+		 */
+		parsers.put("coupling", new AqpSubqueryParserFull() {
+			public Query parse(FunctionQParser fp) throws SyntaxError {    		  
+				Query innerQuery = fp.parseNestedQuery();
+				
+				@SuppressWarnings("unchecked")
+				CitationLRUCache<Object, Integer> cache = (CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache");
+				
+				return sharedNeighboursQuery(fp, "coupling", innerQuery, 
+						new SolrCacheWrapper.ReferencesCache(cache), new SolrCacheWrapper.CitationsCache(cache));
+			}
+		});
+
+		/* @api.doc
+		 * 
+		 * def similar_graph(query, steps=10000, restart=0.15, seed=0):
+		 * 		"""
+		 *    Finds papers **related** to **P** through the citation graph
+		 *    
+		 *    @param query
+		 *      - query object (P)
+		 *    @param steps
+		 *      - integer; the length of the random walk (at most 1000000)
+		 *    @param restart
+		 *      - float; the probability of jumping back to P at every step
+		 *    @param seed
+		 *      - integer; the seed of the random generator
+		 *    
+		 *    Example: 
+		 *    
+		 *    	```similar_graph(bibcode:1998ApJ...500..525S)``` returns 
+		 *         papers close to the paper in the network of citations
+		 *         and references
+		 *         
+		 *    Technical note:
+		 *    
+		 *    The walk starts from the 200 best papers of P, follows the
+		 *    citations and references and restarts from P; the papers
+		 *    are scored by the share of the steps spent in them (the 
+		 *    personalized PageRank). The same arguments always give the
+		 *    same results; the papers of P are not returned
+		 *    
+		 *    @since 48.1.0.0
+		 *    """
+		 *    return "similar_graph(%s, %d, %f, %d)" % (query, steps, restart, seed)
+		 *    
+		 */
+		parsers.put("similar_graph", new AqpSubqueryParserFull() {
+			public Query parse(FunctionQParser fp) throws SyntaxError {    		  
+				Query innerQuery = fp.parseNestedQuery();
+				
+				int steps = SecondOrderCollectorRandomWalk.DEFAULT_STEPS;
+				float restart = SecondOrderCollectorRandomWalk.DEFAULT_RESTART;
+				int seed = 0;
+				try {
+					if (fp.hasMoreArguments()) {
+						steps = fp.parseInt();
+					}
+					if (fp.hasMoreArguments()) {
+						restart = fp.parseFloat();
+					}
+					if (fp.hasMoreArguments()) {
+						seed = fp.parseInt();
+					}
+				}
+				catch (NumberFormatException e) {
+					throw new SyntaxError("The function signature is similar_graph(query, [int], [float], [int]). Error: " + e.getMessage());
+				}
+				if (steps < 1 || steps > SecondOrderCollectorRandomWalk.MAX_STEPS) {
+					throw new SyntaxError("The steps of similar_graph() must be between 1 and " + SecondOrderCollectorRandomWalk.MAX_STEPS);
+				}
+				if (restart <= 0.0f || restart >= 1.0f) {
+					throw new SyntaxError("The restart probability of similar_graph() must be between 0 and 1");
+				}
+				
+				@SuppressWarnings("unchecked")
+				CitationLRUCache<Object, Integer> cache = (CitationLRUCache<Object, Integer>) fp.getReq().getSearcher().getCache("citations-cache");
+				
 				return new SecondOrderQuery(innerQuery, null, 
-						new SecondOrderCollectorCitesRAM(referencesWrapper), false);
+						new SecondOrderCollectorRandomWalk(new SolrCacheWrapper.CitationsCache(cache), 
+								new SolrCacheWrapper.ReferencesCache(cache), steps, restart, seed));
 			}
 		});
 
@@ -722,10 +1024,11 @@ AqpFunctionQueryBuilderProvider {
 				LuceneCacheWrapper<Floats> boostWrapper = LuceneCacheWrapper.getFloatCache("cite_read_boost", 
 						fp.getReq().getSearcher().getAtomicReader());
 				
+				SecondOrderQuery classicQuery = new SecondOrderQuery(innerQuery, // classic_relevance
+						new SecondOrderCollectorAdsClassicScoringFormula(referencesWrapper, boostWrapper));
+				boundClassicRelevance(fp, classicQuery, 200);
 				SecondOrderQuery outerQuery = new SecondOrderQuery( // references
-						new SecondOrderQuery( // topn
-								new SecondOrderQuery(innerQuery, // classic_relevance
-										new SecondOrderCollectorAdsClassicScoringFormula(referencesWrapper, boostWrapper)), 
+						new SecondOrderQuery(classicQuery, // topn
 										new SecondOrderCollectorTopN(200)),
 										new SecondOrderCollectorCitesRAM(referencesWrapper));
 				outerQuery.getcollector().setFinalValueType(FinalValueType.ABS_COUNT_NORM);
@@ -799,10 +1102,11 @@ AqpFunctionQueryBuilderProvider {
 				
 				LuceneCacheWrapper<Floats> boostWrapper = LuceneCacheWrapper.getFloatCache("cite_read_boost", fp.getReq().getSearcher().getAtomicReader());
 				
+				SecondOrderQuery classicQuery = new SecondOrderQuery(innerQuery, // classic_relevance
+						new SecondOrderCollectorAdsClassicScoringFormula(citationsWrapper, boostWrapper));
+				boundClassicRelevance(fp, classicQuery, 200);
 				SecondOrderQuery outerQuery = new SecondOrderQuery( // citations
-						new SecondOrderQuery( // topn
-								new SecondOrderQuery(innerQuery, // classic_relevance
-										new SecondOrderCollectorAdsClassicScoringFormula(citationsWrapper, boostWrapper)), 
+						new SecondOrderQuery(classicQuery, // topn
 										new SecondOrderCollectorTopN(200)),
 										new SecondOrderCollectorCitedBy(citationsWrapper));
 				outerQuery.getcollector().setFinalValueType(FinalValueType.ABS_COUNT);
@@ -1051,6 +1355,65 @@ AqpFunctionQueryBuilderProvider {
 
 	}
 
+	/*
+	 * Second-order query which collects the first-order hits in the threaded
+	 * mode when the request asks for it (and there are threads to spare)
+	 */
+	private static SecondOrderQuery threadedQuery(FunctionQParser fp, Query innerQuery, 
+			SecondOrderCollector collector) {
+		int threads = fp.getParams() != null ? fp.getParams().getInt(citationSearchThreadsParam, 0) : 0;
+		SecondOrderQuery q = new SecondOrderQuery(innerQuery, null, collector, threads > 1);
+		q.setMaxThreads(threads);
+		return q;
+	}
+
+	/*
+	 * The optional arguments of cocitation() and coupling(): the score
+	 * (raw|normalized) and the max fanout
+	 */
+	private static SecondOrderQuery sharedNeighboursQuery(FunctionQParser fp, String name, Query innerQuery, 
+			SolrCacheWrapper firstHop, SolrCacheWrapper secondHop) throws SyntaxError {
+		boolean normalized = false;
+		int maxFanout = SecondOrderCollectorSharedNeighbours.DEFAULT_MAX_FANOUT;
+		if (fp.hasMoreArguments()) {
+			String score = fp.parseId().toLowerCase();
+			if (score.equals("normalized")) {
+				normalized = true;
+			}
+			else if (!score.equals("raw")) {
+				throw new SyntaxError("Unknown score: " + score + " (use raw or normalized)");
+			}
+		}
+		if (fp.hasMoreArguments()) {
+			try {
+				maxFanout = fp.parseInt();
+			}
+			catch (NumberFormatException e) {
+				throw new SyntaxError("The function signature is " + name + "(query, [raw|normalized], [int]). Error: " + e.getMessage());
+			}
+			if (maxFanout < 1) {
+				throw new SyntaxError("The max fanout of " + name + "() must be a positive number");
+			}
+		}
+		return threadedQuery(fp, innerQuery, 
+				new SecondOrderCollectorSharedNeighbours(name, firstHop, secondHop, normalized, maxFanout));
+	}
+
+	/*
+	 * Inside topn(N, classic_relevance(Q)) the classic relevance needs to
+	 * keep only N hits; if the request allows it (the ranking is then
+	 * approximate, see SecondOrderCollectorAdsClassicScoringFormula)
+	 */
+	private static void boundClassicRelevance(FunctionQParser fp, Query query, int topN) {
+		if (fp.getParams() == null || !fp.getParams().getBool(classicRelevanceBoundedParam, false)) {
+			return;
+		}
+		if (query instanceof SecondOrderQuery 
+				&& ((SecondOrderQuery) query).getcollector() instanceof SecondOrderCollectorAdsClassicScoringFormula) {
+			((SecondOrderCollectorAdsClassicScoringFormula) ((SecondOrderQuery) query).getcollector()).setTopN(topN);
+		}
+	}
+
 	/*
 	private void getSpan(QueryNode node, Integer[] span) {
 		List<QueryNode> children = node.getChildren();
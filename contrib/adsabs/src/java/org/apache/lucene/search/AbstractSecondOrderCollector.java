@@ -1,37 +1,40 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.lucene.util.Bits;
+
 
 public abstract class AbstractSecondOrderCollector extends Collector implements
-SecondOrderCollector {
+SecondOrderCollector, Cloneable {
 
 	
 	
 	protected Scorer scorer;
 	protected int docBase;
-	protected List<CollectorDoc> hits;
+	protected SecondOrderHits hits;
 	protected volatile boolean organized = false;
 	protected Lock lock = null;
-	private Integer lastPos = null;
 	protected float ensureCapacityRatio = 0.25f;
 	protected boolean firstOrderScorerOutOfOrder = false;
 	protected FinalValueType compactingType = FinalValueType.MAX_VALUE;
+	protected int maxDoc = 0;
+	private SecondOrderAccumulator accumulator = null;
+	protected Bits targetFilter = null; // top-level docids, null = all
+	int capacityLimit = Integer.MAX_VALUE; // of the pre-allocated buffer, see SecondOrderBudget
+	SecondOrderBudget.Tracker tracker = null; // of the current execution, null = no limits
 
 	public AbstractSecondOrderCollector() {
 		lock = new ReentrantLock();
-		hits = new ArrayList<CollectorDoc>();
+		hits = new SecondOrderHits();
 	}
 
 	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
 		// this is pretty arbitrary, but 2nd order queries may return many hits...
-		((ArrayList<CollectorDoc>) hits).ensureCapacity((int) (searcher.getIndexReader().maxDoc() * ensureCapacityRatio));
+		maxDoc = searcher.getIndexReader().maxDoc();
+		hits.ensureCapacity((int) Math.min(maxDoc * ensureCapacityRatio, capacityLimit));
 		if (firstOrderWeight != null)
 			firstOrderScorerOutOfOrder = firstOrderWeight.scoresDocsOutOfOrder();
 		return true;
@@ -43,13 +46,11 @@ SecondOrderCollector {
 
 	}
 
-	public List<CollectorDoc> getSubReaderResults(int rangeStart, int rangeEnd) {
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
 
 		if (hits.size() == 0)
 			return null;
 
-		int i = -1;
-
 		lock.lock();
 		try {
 			if (!organized) {
@@ -60,162 +61,78 @@ SecondOrderCollector {
 			lock.unlock();
 		}
 
-		i = findClosestIndex(rangeStart, rangeEnd, 0, hits.size()-1);
-		if (i == -1 || i+1 > hits.size())
-			return null;
-
-
-		ArrayList<CollectorDoc> results = new ArrayList<CollectorDoc>();
-		for (;i<hits.size() && hits.get(i).doc < rangeEnd;i++) {
-			results.add(hits.get(i));
-		}
-		return results;
+		return hits.slice(rangeStart, rangeEnd);
 
 	}
 
-	private int findClosestIndex(int rangeStart, int rangeEnd, int low, int high) {
-
-		int latest = -1;
-		while (low <= high) {
-			int mid = (low + high) >>> 1;
-		int midVal = hits.get(mid).doc;
-
-		if (midVal < rangeStart) {
-			low = mid + 1;
-			if (midVal >= rangeStart && midVal <= rangeEnd)
-				latest = mid;
-		} else if (midVal > rangeStart) {
-			high = mid - 1;
-			if (midVal >= rangeStart && midVal <= rangeEnd)
-				latest = mid;
-		} else {
-			return mid; // key found
-		}
-		}
-		//if (low > 0 && low < hits.size() && hits.get(low).doc >= rangeStart && hits.get(low).doc <= rangeEnd)
-		//	return low;
-		if (latest > -1) return latest;
-
-		return -1;  // key not found
-	}
-
-	// a very naive implementation (TODO: search faster)
-	@SuppressWarnings("unused")
-  private Integer[] findRange(int startDoc, Integer lastDoc) {
-		int low = 0;
-		int high = hits.size();
-		Integer[] out = new Integer[]{0,0};
-
-		if (lastPos  != null) {
-			if (lastPos+1 <= hits.size()) {
-				return out;
-			}
-			ScoreDoc previous = hits.get(lastPos);
-			ScoreDoc next = hits.get(lastPos+1);
-			if (previous.doc < startDoc && next.doc >= startDoc) {
-				low = lastPos+1;
-			}
-		}
-
-		int i=low;
-		while (i<high) {
-			int d = hits.get(i).doc;
-			if (d >= startDoc && d<=lastDoc) {
-				i++;
-			}
-			else {
-				break;
-			}
-		}
-
-		lastPos = i;
-
-		out[0] = low;
-		out[1] = lastPos;
+	protected void organizeResults() {
 
-		return out;
+		accumulateHits();
+		finishScores();
 
 	}
-
-	@SuppressWarnings("unused")
-  private int findClosestInclusive(int low, int high, int valToSearch) {
-		int i;
-		for (i=low;i<high;i++) {
-			int d = hits.get(i).doc;
-			if (d == valToSearch) {
-				return i;
-			}
-			else if (d > valToSearch) {
-				return i-1;
-			}
-		}
-		return -1;
-	}
-
-	@SuppressWarnings("unused")
-  private int binarySearch(int low, int high, int valToSearch) {
-		while (low <= high) {
-			int mid = (low + high) >>> 1;
-			int midVal = hits.get(mid).doc;
-
-			if (midVal < valToSearch)
-				low = mid + 1;
-			else if (midVal > valToSearch)
-				high = mid - 1;
-			else
-				return mid; // key found
-		}
-		return low-1;  // key not found, get closest
+	
+	/*
+	 * Called once the first-order hits were collected (by the query, 
+	 * under its budget); the collectors which expand their results
+	 * lazily do it here, so that the limits apply to the expansion too
+	 */
+	protected void finishCollection() {
 	}
-
-	protected void organizeResults() {
-
-		sortHits();
-		compactHits();
-
+	
+	/*
+	 * True while the expansion stays within the budget of the query (if
+	 * any); 'edges' and 'memory' are what the expansion holds so far. When
+	 * it returns false, the expansion should stop and keep what it found
+	 */
+	protected final boolean withinBudget(long edges, long memory) {
+		return tracker == null || tracker.allows(edges, memory);
 	}
 	
 	
 	public void setFinalValueType(FinalValueType type) {
 		compactingType = type;
 	}
+
+	public FinalValueType getFinalValueType() {
+		return compactingType;
+	}
 	
-	protected void compactHits() {
+	/*
+	 * Replaces the collected hits (one per edge, in any order) with
+	 * one hit per document, sorted by docid; the scores are merged
+	 * as the compactingType says
+	 */
+	protected void accumulateHits() {
+		int size = hits.size();
+		if (size == 0)
+			return;
+		
+		if (accumulator == null || !accumulator.fits(compactingType, maxDoc, size)) {
+			accumulator = SecondOrderAccumulator.create(compactingType, maxDoc, size);
+		}
+		for (int i=0; i<size; i++) {
+			int doc = hits.doc(i);
+			if (doc < 0)
+				continue; // unresolved
+			accumulator.add(doc, hits.score(i));
+		}
+		hits.clear();
+		accumulator.emit(hits);
+	}
+	
+	protected void finishScores() {
 		switch (compactingType) {
 			case GEOM_MEAN_NORM:
-				compactHitsGeomMean();
-				normalizeScores();
-				break;
 			case ARITHM_MEAN_NORM:
-			  compactHitsArithmMean();
-			  normalizeScores();
-				break;
-			case GEOM_MEAN:
-				compactHitsGeomMean();
-				break;
-			case ARITHM_MEAN:
-				compactHitsArithmMean();
-				break;
-			case ABS_COUNT:
-				compactHitsAbsCount();
-				break;
 			case ABS_COUNT_NORM:
-				compactHitsAbsCount();
 				normalizeScores();
 				break;
-			case MAX_VALUE:
-				compactHitsMaxValue();
-				break;
-			case MIN_VALUE:
-				compactHitsMinValue();
-				break;
 			case AGRESTI_COULL:
-				compactHitsArithmMean();
 				normalizeScores();
 				applyAgrestiCoull();
 				break;
 			default:
-				compactHitsMaxValue();
 				break;
 		}
 	}
@@ -228,8 +145,9 @@ SecondOrderCollector {
 		// add 2 upvotes and 2 downvotes to each result
 		// plus penalize the ones that have only few
 		// hits
-		for (CollectorDoc d: hits) {
-			d.score = ((d.score + 2.001f) / (d.freq + 4)) - (1.0f/(d.freq+0.001f));
+		for (int i=0; i<hits.size(); i++) {
+			float freq = hits.freq(i);
+			hits.setScore(i, ((hits.score(i) + 2.001f) / (freq + 4)) - (1.0f/(freq+0.001f)));
 		}
   }
 
@@ -237,191 +155,17 @@ SecondOrderCollector {
 		if (hits.size() < 1)
 			return;
 		// find the max value
-		float maxV = hits.get(0).score;
-		for (CollectorDoc d: hits) {
-			if (d.score > maxV)
-				maxV = d.score;
+		float maxV = hits.score(0);
+		for (int i=0; i<hits.size(); i++) {
+			if (hits.score(i) > maxV)
+				maxV = hits.score(i);
 		}
 		// normalize the scores
-		for (CollectorDoc d: hits) {
-			d.score = d.score / maxV;
+		for (int i=0; i<hits.size(); i++) {
+			hits.setScore(i, hits.score(i) / maxV);
 		}
 	}
 	
-	protected void compactHitsMinValue() {
-		ArrayList<CollectorDoc> newHits = new ArrayList<CollectorDoc>(new Float(
-				(hits.size() * 0.75f)).intValue());
-
-		if (hits.size() < 1)
-			return;
-		
-		CollectorDoc currDoc = hits.get(0);
-		
-		float seenTimes = 1.0f;
-		for (CollectorDoc d : hits) {
-			if (d.doc == currDoc.doc) {
-				if (d.score < currDoc.score) {
-					currDoc.score = d.score;
-				}
-				currDoc.freq = seenTimes++;
-				continue;
-			}
-			newHits.add(currDoc);
-			currDoc = d;
-			seenTimes = 1.0f;
-		}
-		
-		if (newHits.size() == 0 || newHits.get(newHits.size()-1).doc != currDoc.doc) {
-			newHits.add(currDoc);
-		}
-		hits = newHits;
-	}
-	
-	protected void compactHitsMaxValue() {
-		ArrayList<CollectorDoc> newHits = new ArrayList<CollectorDoc>(new Float(
-				(hits.size() * 0.75f)).intValue());
-
-		if (hits.size() < 1)
-			return;
-		
-		CollectorDoc currDoc = hits.get(0);
-		
-		float seenTimes = 1.0f;
-		for (CollectorDoc d : hits) {
-			if (d.doc == currDoc.doc) {
-				if (d.score > currDoc.score) {
-					currDoc.score = d.score;
-				}
-				currDoc.freq = seenTimes++;
-				continue;
-			}
-			newHits.add(currDoc);
-			currDoc = d;
-			seenTimes = 1.0f;
-		}
-		
-		if (newHits.size() == 0 || newHits.get(newHits.size()-1).doc != currDoc.doc) {
-			newHits.add(currDoc);
-		}
-		hits = newHits;
-	}
-	
-	protected void compactHitsAbsCount() {
-		ArrayList<CollectorDoc> newHits = new ArrayList<CollectorDoc>(new Float(
-				(hits.size() * 0.75f)).intValue());
-
-		if (hits.size() < 1)
-			return;
-		
-		CollectorDoc currDoc = hits.get(0);
-		float seenTimes = 0.0f;
-
-		for (CollectorDoc d : hits) {
-			if (d.doc == currDoc.doc) {
-				seenTimes += 1.0f;
-				continue;
-			}
-			currDoc.freq = seenTimes;
-			currDoc.score = seenTimes;
-			newHits.add(currDoc);
-			currDoc = d;
-			seenTimes = 1.0f;
-		}
-		
-		if (newHits.size() == 0 || newHits.get(newHits.size()-1).doc != currDoc.doc) {
-			currDoc.score = seenTimes;
-			currDoc.freq = seenTimes;
-			newHits.add(currDoc);
-		}
-		hits = newHits;
-	}
-	
-	protected void compactHitsArithmMean() {
-		ArrayList<CollectorDoc> newHits = new ArrayList<CollectorDoc>(new Float(
-				(hits.size() * 0.75f)).intValue());
-
-		if (hits.size() < 1)
-			return;
-		
-		CollectorDoc currDoc = hits.get(0);
-		float seenTimes = 0.0f;
-		float score = 0.0f;
-
-		for (CollectorDoc d : hits) {
-			if (d.doc == currDoc.doc) {
-				score += d.score;
-				seenTimes += 1;
-				continue;
-			}
-			if (seenTimes > 1) {
-				currDoc.score = (float) score/seenTimes;
-				currDoc.freq = seenTimes;
-			}
-			newHits.add(currDoc);
-			currDoc = d;
-			seenTimes = 1;
-			score = currDoc.score;
-		}
-
-		if (newHits.size() == 0 || newHits.get(newHits.size()-1).doc != currDoc.doc) {
-			currDoc.score = (float) score/seenTimes;
-			currDoc.freq = seenTimes;
-		}
-		newHits.add(currDoc);
-		hits = newHits;
-	}
-	
-	protected void compactHitsGeomMean() {
-		ArrayList<CollectorDoc> newHits = new ArrayList<CollectorDoc>(new Float(
-				(hits.size() * 0.75f)).intValue());
-
-		if (hits.size() < 1)
-			return;
-
-		CollectorDoc currDoc = hits.get(0);
-		float seenTimes = 0.0f;
-		float score = 1.0f;
-
-		for (CollectorDoc d : hits) {
-			//System.out.println("seen=" + seenTimes + " score=" + score + " currDoc " + currDoc.toString() + " d " + d.toString());
-			if (d.doc == currDoc.doc) {
-				score *= d.score;
-				seenTimes += 1f;
-				continue;
-			}
-			// compute geometric mean (not arithmetic, as that is not good for comparison
-			// of normalized values
-
-			if (seenTimes > 1) {
-				currDoc.score = (float) Math.pow(score, 1.0f/seenTimes);
-				currDoc.freq = seenTimes;
-			}
-			//System.out.println("adding " + currDoc.toString());
-			newHits.add(currDoc);
-			currDoc = d;
-			seenTimes = 1;
-			score = currDoc.score;
-		}
-
-		if (newHits.size() == 0 || newHits.get(newHits.size()-1).doc != currDoc.doc) {
-			currDoc.score = (float) Math.pow(score, 1.0f/seenTimes);
-			currDoc.freq = seenTimes;
-		}
-		newHits.add(currDoc);
-
-		hits = newHits;
-	}
-
-	protected void sortHits() {
-
-		Collections.sort(hits, new Comparator<ScoreDoc>() {
-			public int compare(ScoreDoc o1, ScoreDoc o2) {
-				return o1.doc - o2.doc;
-			}
-		});
-
-	}
-
 	/** Returns true iff <code>o</code> is equal to this. */
 	public boolean equals(Object o) {
 		if (o instanceof SecondOrderCollector) {
@@ -431,10 +175,64 @@ SecondOrderCollector {
 		return false;
 	}
 
+	/*
+	 * True if the collector drops the (second-order) hits which the 
+	 * targetFilter rejects; the subclasses that do must override it
+	 * and consult the filter before they add a hit. The filter is never
+	 * used when the final scores are normalized over all the hits.
+	 */
+	public boolean acceptsTargetFilter() {
+		return false;
+	}
+	
+	void setTargetFilter(Bits filter) {
+		this.targetFilter = filter;
+	}
+	
+	/* the target is not in the results (it must be a valid docid) */
+	protected final boolean isFilteredOut(int docid) {
+		return targetFilter != null && !targetFilter.get(docid);
+	}
+	
 	public void reset() {
 		hits.clear();
 		organized = false;
 	}
+	
+	/*
+	 * Returns a collector for one thread of the threaded mode; it collects
+	 * (some segments) into its own buffer which is then merged back with
+	 * mergeWorker(). Returns null if the collector cannot be split, which
+	 * is the default - the subclasses that can must override it.
+	 */
+	protected AbstractSecondOrderCollector newWorker() {
+		return null;
+	}
+	
+	/* adds the hits of the worker (they are organized together with ours) */
+	protected void mergeWorker(AbstractSecondOrderCollector worker) {
+		hits.addAll(worker.hits);
+		organized = false;
+	}
+	
+	/*
+	 * A shallow copy (sharing the caches and the settings) with a private
+	 * buffer, for the implementations of newWorker()
+	 */
+	protected AbstractSecondOrderCollector copy() {
+		AbstractSecondOrderCollector c;
+		try {
+			c = (AbstractSecondOrderCollector) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		c.scorer = null;
+		c.lock = new ReentrantLock();
+		c.hits = new SecondOrderHits();
+		c.organized = false;
+		c.accumulator = null;
+		return c;
+	}
 
 	protected String fieldsToStr(String[] fields) {
 		StringBuilder out = new StringBuilder();
@@ -0,0 +1,159 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.search.FieldCache.Floats;
+
+/**
+ * The best N hits by their ADS Classic score
+ *
+ *   score = lucenePart * (lucene score / highest lucene score) + adsPart * boost
+ *
+ * kept in a bounded priority queue, ie. O(N) memory. The highest lucene
+ * score is known only after all hits were seen; while collecting, the
+ * hits are ranked against the running maximum and the queue is re-ranked
+ * (lazily, once the maximum grows by more than {@link #RERANK_RATIO}).
+ *
+ * When the highest score is given in advance ({@link #setHighestScore})
+ * the result is exact. Otherwise a hit rejected before the maximum grew
+ * is not reconsidered: its score was lower by at most
+ * lucenePart * (1 - maximum at that time / highest score).
+ */
+final class ClassicRelevanceQueue {
+
+	/* the queue is re-ranked when the running maximum grows by 1% */
+	static final float RERANK_RATIO = 1.01f;
+
+	private final float lucenePart;
+	private final float adsPart;
+	private final LuceneCacheWrapper<Floats> boostCache;
+
+	private final int[] docs;
+	private final float[] luceneScores;
+	private final float[] boosts;
+	private final float[] keys; // the classic score with 'rankedBy' as the maximum
+	private int size = 0;
+
+	private float highest = 0.0f;
+	private float rankedBy = 0.0f;
+	private boolean fixed = false;
+
+	ClassicRelevanceQueue(int maxSize, float lucenePart, float adsPart, LuceneCacheWrapper<Floats> boostCache) {
+		assert maxSize > 0;
+		this.lucenePart = lucenePart;
+		this.adsPart = adsPart;
+		this.boostCache = boostCache;
+		docs = new int[maxSize];
+		luceneScores = new float[maxSize];
+		boosts = new float[maxSize];
+		keys = new float[maxSize];
+	}
+
+	/* the highest lucene score is known (the ranking is exact) */
+	void setHighestScore(float highest) {
+		this.highest = rankedBy = highest;
+		fixed = true;
+	}
+
+	float getHighestScore() {
+		return highest;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void add(int doc, float luceneScore) {
+		if (luceneScore > highest && !fixed) {
+			highest = luceneScore;
+			if (highest > rankedBy * RERANK_RATIO) {
+				rerank();
+			}
+		}
+
+		float boost = boostCache.getFloat(doc);
+		float key = score(luceneScore, boost, rankedBy);
+		if (size < docs.length) {
+			set(size, doc, luceneScore, boost, key);
+			up(size++);
+		}
+		else if (worse(0, doc, key)) {
+			set(0, doc, luceneScore, boost, key);
+			down(0);
+		}
+	}
+
+	/* writes the hits with their final scores (in any order) */
+	void emit(SecondOrderHits out) {
+		out.ensureCapacity(out.size() + size);
+		for (int i=0; i<size; i++) {
+			out.add(docs[i], score(luceneScores[i], boosts[i], highest));
+		}
+	}
+
+	void clear() {
+		size = 0;
+		if (!fixed) {
+			highest = rankedBy = 0.0f;
+		}
+	}
+
+	private float score(float luceneScore, float boost, float max) {
+		return (max > 0.0f ? lucenePart * luceneScore / max : 0.0f) + adsPart * boost;
+	}
+
+	private void rerank() {
+		rankedBy = highest;
+		for (int i=0; i<size; i++) {
+			keys[i] = score(luceneScores[i], boosts[i], rankedBy);
+		}
+		for (int i=(size >>> 1) - 1; i>=0; i--) {
+			down(i);
+		}
+	}
+
+	/* the same order as the lucene HitQueue: by score, then the lower docid */
+	private boolean worse(int i, int doc, float key) {
+		return keys[i] == key ? docs[i] > doc : keys[i] < key;
+	}
+
+	private boolean worse(int i, int j) {
+		return worse(i, docs[j], keys[j]);
+	}
+
+	private void set(int i, int doc, float luceneScore, float boost, float key) {
+		docs[i] = doc;
+		luceneScores[i] = luceneScore;
+		boosts[i] = boost;
+		keys[i] = key;
+	}
+
+	private void swap(int i, int j) {
+		int d = docs[i]; docs[i] = docs[j]; docs[j] = d;
+		float s = luceneScores[i]; luceneScores[i] = luceneScores[j]; luceneScores[j] = s;
+		float b = boosts[i]; boosts[i] = boosts[j]; boosts[j] = b;
+		float k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+	}
+
+	private void up(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!worse(i, parent))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void down(int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && worse(child + 1, child))
+				child++;
+			if (!worse(child, i))
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+}
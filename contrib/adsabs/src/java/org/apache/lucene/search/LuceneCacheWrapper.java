@@ -9,6 +9,7 @@ import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.search.FieldCache.Floats;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.search.CitationLRUCache;
 
 public class LuceneCacheWrapper<T> implements CacheWrapper {
 	
@@ -110,5 +111,39 @@ public class LuceneCacheWrapper<T> implements CacheWrapper {
 		
 	}
 	
+	/*
+	 * PageRank computed by the citation cache; the scores are taken
+	 * when the wrapper is created (so one query sees the same values),
+	 * until the cache finishes the computation they are the ranks of
+	 * the previous searcher (see CitationLRUCache#getPageRank) - the 
+	 * description has the generation of the ranks, the queries over the 
+	 * previous ranks are not served from the solr caches later
+	 */
+	public static LuceneCacheWrapper<Floats> getPageRankCache(final CitationLRUCache citationCache)  {
+		
+		final long generation = citationCache.getPageRankGeneration();
+		float[] pr = citationCache.getPageRank();
+		final float[] scores = pr != null ? pr : new float[0];
+		final Floats data = new Floats() {
+			@Override
+			public float get(int docid) {
+				return docid < scores.length ? scores[docid] : 0.0f;
+			}
+		};
+		
+		final String cName = citationCache.name();
+		LuceneCacheWrapper<Floats> newCache = new LuceneCacheWrapper<Floats>(new SoftReference<Floats>(data)) {
+			@Override
+		  public String internalToString() {
+				return "float[] pagerank(" + cName + ", generation=" + generation + ")";
+		  }
+			@Override
+			public float getFloat(int docid) {
+				return data.get(docid); // strong reference, it is only a view of the array
+			}
+		};
+		
+		return newCache;
+	}
 	
 }
@@ -0,0 +1,273 @@
+package org.apache.lucene.search;
+
+import java.util.Arrays;
+
+import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Merges the hits of the second-order collectors (one per visited
+ * edge) into one hit per target document in a single pass. For every
+ * target it keeps one value (max, min, sum or product of the scores -
+ * depending on the {@link FinalValueType}) and the number of hits.
+ *
+ * There are two implementations:
+ * <ul>
+ *   <li>dense: arrays indexed by docid, for large result sets</li>
+ *   <li>sparse: open addressing hash table, for small ones</li>
+ * </ul>
+ *
+ * Both write the results in docid order; after that, the accumulator
+ * is empty and can be used again.
+ */
+abstract class SecondOrderAccumulator {
+
+	/*
+	 * Dense arrays are used when there are at least maxDoc/DENSE_RATIO
+	 * hits. They cost 8*maxDoc + maxDoc/8 bytes whatever the number of
+	 * the hits, the hash table 12 bytes per slot - at most 0.75 full,
+	 * ie. 16-32 bytes per distinct document. The two meet at maxDoc/4
+	 * to maxDoc/2 distinct documents; the hits are fewer or as many
+	 */
+	static final int DENSE_RATIO = 2;
+
+	private enum Operation {
+		MAX, MIN, SUM, PRODUCT, COUNT
+	}
+
+	private final FinalValueType type;
+	private final Operation operation;
+
+	SecondOrderAccumulator(FinalValueType type) {
+		this.type = type;
+		switch (type) {
+			case MIN_VALUE:
+				operation = Operation.MIN;
+				break;
+			case ARITHM_MEAN:
+			case ARITHM_MEAN_NORM:
+			case AGRESTI_COULL:
+				operation = Operation.SUM;
+				break;
+			case GEOM_MEAN:
+			case GEOM_MEAN_NORM:
+				operation = Operation.PRODUCT;
+				break;
+			case ABS_COUNT:
+			case ABS_COUNT_NORM:
+				operation = Operation.COUNT;
+				break;
+			default:
+				operation = Operation.MAX;
+				break;
+		}
+	}
+
+	static SecondOrderAccumulator create(FinalValueType type, int maxDoc, int numHits) {
+		if (isDense(maxDoc, numHits)) {
+			return new Dense(type, maxDoc);
+		}
+		return new Sparse(type, numHits);
+	}
+
+	static boolean isDense(int maxDoc, int numHits) {
+		return maxDoc > 0 && numHits >= maxDoc / DENSE_RATIO;
+	}
+	
+	/* memory (in bytes) of the accumulator that create() would return */
+	static long ramBytesUsed(int maxDoc, int numHits) {
+		if (isDense(maxDoc, numHits)) {
+			return 8L * maxDoc + maxDoc / 8;
+		}
+		return 12L * Sparse.tableSize(numHits);
+	}
+
+	/*
+	 * True if this accumulator can be reused for the given hits
+	 */
+	abstract boolean fits(FinalValueType type, int maxDoc, int numHits);
+
+	abstract void add(int doc, float score);
+
+	/*
+	 * Writes the accumulated hits (sorted by docid) into 'out' which
+	 * must be empty; the freq of every hit is the number of hits that
+	 * were merged
+	 */
+	abstract void emit(SecondOrderHits out);
+
+	FinalValueType getType() {
+		return type;
+	}
+
+	final float combine(float value, float score) {
+		switch (operation) {
+			case MIN:
+				return score < value ? score : value;
+			case SUM:
+				return value + score;
+			case PRODUCT:
+				return value * score;
+			case COUNT:
+				return value;
+			default:
+				return score > value ? score : value;
+		}
+	}
+
+	final float finish(float value, int count) {
+		switch (operation) {
+			case SUM:
+				return value / count;
+			case PRODUCT:
+				// geometric mean (not arithmetic, as that is not good for comparison
+				// of normalized values)
+				return count > 1 ? (float) Math.pow(value, 1.0f/count) : value;
+			case COUNT:
+				return count;
+			default:
+				return value;
+		}
+	}
+
+
+	static final class Dense extends SecondOrderAccumulator {
+
+		private final int maxDoc;
+		private final float[] values;
+		private final int[] counts;
+		private final FixedBitSet docs;
+
+		Dense(FinalValueType type, int maxDoc) {
+			super(type);
+			this.maxDoc = maxDoc;
+			values = new float[maxDoc];
+			counts = new int[maxDoc];
+			docs = new FixedBitSet(maxDoc);
+		}
+
+		@Override
+		boolean fits(FinalValueType type, int maxDoc, int numHits) {
+			return type == getType() && maxDoc == this.maxDoc && isDense(maxDoc, numHits);
+		}
+
+		@Override
+		void add(int doc, float score) {
+			if (counts[doc]++ == 0) {
+				values[doc] = score;
+				docs.set(doc);
+			}
+			else {
+				values[doc] = combine(values[doc], score);
+			}
+		}
+
+		@Override
+		void emit(SecondOrderHits out) {
+			for (int doc = docs.nextSetBit(0); doc != -1;
+					doc = doc+1 < maxDoc ? docs.nextSetBit(doc+1) : -1) {
+				out.add(doc, finish(values[doc], counts[doc]), counts[doc]);
+				counts[doc] = 0;
+			}
+			docs.clear(0, maxDoc);
+		}
+	}
+
+
+	static final class Sparse extends SecondOrderAccumulator {
+
+		private static final float LOAD_FACTOR = 0.75f;
+
+		private int[] keys; // -1 = empty
+		private float[] values;
+		private int[] counts;
+		private int size = 0;
+
+		Sparse(FinalValueType type, int numHits) {
+			super(type);
+			// many hits usually point to the same docs
+			allocate(tableSize(numHits / 4));
+		}
+
+		@Override
+		boolean fits(FinalValueType type, int maxDoc, int numHits) {
+			return type == getType() && !isDense(maxDoc, numHits);
+		}
+
+		@Override
+		void add(int doc, float score) {
+			int mask = keys.length - 1;
+			int slot = mix(doc) & mask;
+			while (keys[slot] != -1) {
+				if (keys[slot] == doc) {
+					values[slot] = combine(values[slot], score);
+					counts[slot]++;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = doc;
+			values[slot] = score;
+			counts[slot] = 1;
+			if (++size > keys.length * LOAD_FACTOR) {
+				rehash();
+			}
+		}
+
+		@Override
+		void emit(SecondOrderHits out) {
+			for (int slot=0; slot<keys.length; slot++) {
+				if (keys[slot] != -1) {
+					out.add(keys[slot], finish(values[slot], counts[slot]), counts[slot]);
+					keys[slot] = -1;
+				}
+			}
+			size = 0;
+			out.sortByDoc(); // only the distinct docs are sorted
+		}
+
+		private void rehash() {
+			int[] oldKeys = keys;
+			float[] oldValues = values;
+			int[] oldCounts = counts;
+			allocate(oldKeys.length * 2);
+			int mask = keys.length - 1;
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i] != -1) {
+					int slot = mix(oldKeys[i]) & mask;
+					while (keys[slot] != -1) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
+
+		private void allocate(int tableSize) {
+			keys = new int[tableSize];
+			Arrays.fill(keys, -1);
+			values = new float[tableSize];
+			counts = new int[tableSize];
+		}
+
+		static int tableSize(int expected) {
+			int size = 16;
+			while (size * LOAD_FACTOR < expected) {
+				size <<= 1;
+			}
+			return size;
+		}
+
+		/* finalizer of the murmur3 hash, spreads the bits of the docid */
+		private static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReaderContext;
+
+/**
+ * Limits of the execution of a {@link SecondOrderQuery}: the (wall clock)
+ * deadline, the number of the collected edges and the memory of the
+ * buffered hits (including the accumulator that merges them). One query
+ * like citations(*:*) may otherwise walk the whole citation graph.
+ *
+ * The limits are checked while the first-order hits are collected, every
+ * {@link #CHECK_INTERVAL} documents (and at every segment), so they may
+ * be exceeded by the edges of those documents. The collectors which expand
+ * their hits only after the collection (eg. citations_k, cocitation or the
+ * random walk) check them as they go, per seed or every CHECK_INTERVAL
+ * steps. When a limit is reached, the collection stops; the query then
+ * either returns what was collected (partial results) or fails.
+ *
+ * The same budget may be shared by the nested queries (of one request):
+ * the queries executed while another one is running (the nested ones
+ * are executed when the outer query creates its weight) count against
+ * the totals of the outermost query, so the limits apply to the whole
+ * chain, not to every level.
+ */
+public class SecondOrderBudget {
+
+	/* the limits are checked after this many first-order documents */
+	public static final int CHECK_INTERVAL = 256;
+
+	private final long deadline;
+	private final long maxEdges;
+	private final long maxMemory;
+	private final boolean partialResults;
+	
+	// the totals of the running (outermost) execution
+	private Tracker active = null;
+	private int depth = 0;
+
+	/**
+	 * @param deadline
+	 *            time (System.currentTimeMillis()) when the collection
+	 *            stops, 0 = no limit
+	 * @param maxEdges
+	 *            maximum number of the collected hits (one per edge), 0 = no limit
+	 * @param maxMemory
+	 *            maximum memory (bytes) of the hits and their accumulator, 0 = no limit
+	 * @param partialResults
+	 *            return the hits collected so far (or fail) when a limit is reached
+	 */
+	public SecondOrderBudget(long deadline, long maxEdges, long maxMemory, boolean partialResults) {
+		this.deadline = deadline > 0 ? deadline : Long.MAX_VALUE;
+		this.maxEdges = maxEdges > 0 ? maxEdges : Long.MAX_VALUE;
+		this.maxMemory = maxMemory > 0 ? maxMemory : Long.MAX_VALUE;
+		this.partialResults = partialResults;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public long getMaxEdges() {
+		return maxEdges;
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	public boolean allowsPartialResults() {
+		return partialResults;
+	}
+
+	/*
+	 * The buffer of the collector should not be pre-allocated beyond this
+	 * (the number of hits); it is only a quarter of the memory limit, the
+	 * buffer grows by oversizing and the accumulator needs some memory too
+	 */
+	int getCapacityLimit() {
+		return (int) Math.min(Integer.MAX_VALUE,
+				Math.min(maxEdges, maxMemory / SecondOrderHits.BYTES_PER_HIT / 4));
+	}
+
+	@Override
+	public String toString() {
+		return "SecondOrderBudget(deadline=" + deadline + ", maxEdges=" + maxEdges
+				+ ", maxMemory=" + maxMemory + ", partialResults=" + partialResults + ")";
+	}
+
+	/*
+	 * The running totals of one execution (of all its threads and of the
+	 * queries nested in it); every start() must be followed by finish()
+	 */
+	synchronized Tracker start(int maxDoc) {
+		if (active == null) {
+			active = new Tracker(maxDoc);
+		}
+		depth++;
+		return active;
+	}
+	
+	synchronized void finish(Tracker tracker) {
+		assert tracker == active;
+		if (--depth == 0) {
+			active = null; // the next execution (eg. on another searcher) starts from zero
+		}
+	}
+
+	final class Tracker {
+		private final int maxDoc;
+		private final AtomicLong edges = new AtomicLong();
+		private final AtomicLong memory = new AtomicLong();
+		private volatile String exceeded = null;
+
+		private Tracker(int maxDoc) {
+			this.maxDoc = maxDoc;
+		}
+
+		/* the collector which checks the limits */
+		Collector guard(AbstractSecondOrderCollector collector) {
+			return new Guard(this, collector);
+		}
+
+		/* which limit was reached, or null */
+		String getExceeded() {
+			return exceeded;
+		}
+
+		private void check(Guard guard) {
+			// only the collected hits count, not the (oversized) capacity of the buffer
+			int size = guard.collector.hits.size();
+			long ram = (long) size * SecondOrderHits.BYTES_PER_HIT;
+			long totalEdges = edges.addAndGet(size - guard.edges);
+			long totalMemory = memory.addAndGet(ram - guard.memory);
+			guard.edges = size;
+			guard.memory = ram;
+
+			if (exceeded == null) {
+				exceeded = exceeds(totalEdges, totalMemory);
+			}
+			if (exceeded != null) {
+				throw new ExceededException(exceeded);
+			}
+		}
+
+		/*
+		 * For the collectors which expand their hits after the collection
+		 * (see AbstractSecondOrderCollector#finishCollection): 'expansionEdges'
+		 * and 'expansionMemory' are what the expansion holds so far, on top
+		 * of the collected hits; false when a limit was reached
+		 */
+		boolean allows(long expansionEdges, long expansionMemory) {
+			if (exceeded == null) {
+				exceeded = exceeds(edges.get() + expansionEdges, memory.get() + expansionMemory);
+			}
+			return exceeded == null;
+		}
+
+		/* the limit reached by the totals, or null */
+		private String exceeds(long totalEdges, long totalMemory) {
+			if (totalEdges > maxEdges) {
+				return "maxEdges=" + maxEdges;
+			}
+			if (totalMemory + SecondOrderAccumulator.ramBytesUsed(maxDoc,
+					(int) Math.min(Integer.MAX_VALUE, totalEdges)) > maxMemory) {
+				return "maxMemory=" + maxMemory;
+			}
+			if (deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline) {
+				return "timeAllowed";
+			}
+			return null;
+		}
+	}
+
+	/* thrown by the collectors to stop the search */
+	static final class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = -2393546471187924375L;
+
+		ExceededException(String limit) {
+			super("The second-order query exceeded its limit: " + limit);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this; // only a signal
+		}
+	}
+
+	private static final class Guard extends Collector {
+		private final Tracker tracker;
+		private final AbstractSecondOrderCollector collector;
+		private int countdown = CHECK_INTERVAL;
+		private long edges = 0; // reported to the tracker
+		private long memory = 0;
+
+		Guard(Tracker tracker, AbstractSecondOrderCollector collector) {
+			this.tracker = tracker;
+			this.collector = collector;
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) throws IOException {
+			collector.setScorer(scorer);
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			collector.collect(doc);
+			if (--countdown == 0) {
+				countdown = CHECK_INTERVAL;
+				tracker.check(this);
+			}
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			tracker.check(this);
+			collector.setNextReader(context);
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+			return collector.acceptsDocsOutOfOrder();
+		}
+	}
+}
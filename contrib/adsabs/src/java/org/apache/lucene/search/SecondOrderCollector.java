@@ -1,7 +1,6 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.List;
 
 public interface SecondOrderCollector {
 
@@ -30,15 +29,15 @@ public interface SecondOrderCollector {
 
 
 	/**
-	 * Returns the sorted list of ScoreDoc hits that belong only
-	 * to this particular subreader. The range of subreaders is
+	 * Returns the hits (sorted by docid) that belong only
+	 * to this particular subreader, or null if there are none. The range of subreaders is
 	 * known to the collector because we have inspected the searcher
 	 * before @see {@link SecondOrderCollector#searcherInitialization(Searcher)}
 	 * 
 	 * @param reader
 	 * @return
 	 */
-	public List<CollectorDoc> getSubReaderResults(int docBase, int docBaseEnd);
+	public SecondOrderHits getSubReaderResults(int docBase, int docBaseEnd);
 
 
 
@@ -69,4 +68,6 @@ public interface SecondOrderCollector {
 	 */
 	public void setFinalValueType(FinalValueType type);
 
+	public FinalValueType getFinalValueType();
+
 }
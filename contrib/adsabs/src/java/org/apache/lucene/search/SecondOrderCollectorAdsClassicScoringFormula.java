@@ -1,8 +1,6 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
@@ -28,6 +26,10 @@ import org.apache.lucene.search.FieldCache.Floats;
  *                        
  *                  crb = citations * normalized(reads)
  *
+ * With setTopN(N) only the best N hits are kept (in one pass, see
+ * {@link ClassicRelevanceQueue}); that is enough inside topn(N, ...)
+ * and the memory is O(N) instead of O(hits), but the ranking is
+ * approximate.
  */
 
 public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecondOrderCollector {
@@ -38,6 +40,8 @@ public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecond
 	private float adsPart;
 	private CacheWrapper cache;
 	private LuceneCacheWrapper<Floats> boostCache;
+	private int topN = 0;
+	private ClassicRelevanceQueue queue;
 
 	public SecondOrderCollectorAdsClassicScoringFormula(SolrCacheWrapper cache, LuceneCacheWrapper<Floats> boostCache, float ratio) {
 		this.cache = cache;
@@ -60,8 +64,36 @@ public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecond
 
 	}
 
+	/*
+	 * Keep only the best N hits (0 = all of them, the default)
+	 */
+	public void setTopN(int topN) {
+		this.topN = topN;
+	}
+	
+	public int getTopN() {
+		return topN;
+	}
+	
+	@Override
+	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
+		if (topN > 0) {
+			maxDoc = searcher.getIndexReader().maxDoc();
+			if (firstOrderWeight != null)
+				firstOrderScorerOutOfOrder = firstOrderWeight.scoresDocsOutOfOrder();
+			queue = new ClassicRelevanceQueue(Math.max(1, Math.min(topN, maxDoc)), lucenePart, adsPart, boostCache);
+			return true;
+		}
+		return super.searcherInitialization(searcher, firstOrderWeight);
+	}
+
 	@Override
 	public void collect(int doc) throws IOException {
+			if (queue != null) {
+				queue.add(doc+docBase, scorer.score());
+				return;
+			}
+			
 			float s = scorer.score();
 			
 			// we must collect everything and then we can normalize
@@ -72,7 +104,7 @@ public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecond
 				highestLuceneScore = s;
 				
 			
-			hits.add(new CollectorDoc(doc+docBase, s, -1, scorer.freq()));
+			hits.add(doc+docBase, s, scorer.freq());
 
 	}
 
@@ -89,7 +121,19 @@ public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecond
 	}
 	
 	@Override
-	public List<CollectorDoc> getSubReaderResults(int rangeStart, int rangeEnd) {
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
+		
+		lock.lock();
+		try {
+			if (queue != null && !organized && hits.size() == 0) {
+				queue.emit(hits); // already with the final scores
+				queue.clear();
+				return super.getSubReaderResults(rangeStart, rangeEnd);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
 		
 		if (hits.size() == 0)
 			return null;
@@ -97,8 +141,8 @@ public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecond
 		lock.lock();
 		try {
 			if (!organized) {
-				for (CollectorDoc hit: hits) {
-					hit.score = (this.lucenePart * hit.score / highestLuceneScore) + (this.adsPart * getClassicBoostFactor(hit.doc));
+				for (int i=0; i<hits.size(); i++) {
+					hits.setScore(i, (this.lucenePart * hits.score(i) / highestLuceneScore) + (this.adsPart * getClassicBoostFactor(hits.doc(i))));
 				}
 			}
 		}
@@ -113,12 +157,24 @@ public class SecondOrderCollectorAdsClassicScoringFormula extends AbstractSecond
 	private float getClassicBoostFactor(int doc) {
 	  return boostCache.getFloat(doc);
   }
+	
+	LuceneCacheWrapper<Floats> getBoostCache() {
+		return boostCache;
+	}
+	
+	float getLucenePart() {
+		return lucenePart;
+	}
+	
+	float getAdsPart() {
+		return adsPart;
+	}
 
 	@Override
 	public String toString() {
 		return this.getClass().getSimpleName() + "(cache=" + cache.toString() + ", boost=" + boostCache.toString() 
 		+ ", outOfOrder=" + this.acceptsDocsOutOfOrder() 
-		+ ", lucene=" + this.lucenePart + ", adsPart=" + this.adsPart + ")";
+		+ ", lucene=" + this.lucenePart + ", adsPart=" + this.adsPart + (topN > 0 ? ", topN=" + topN : "") + ")";
 	}
 
 }
@@ -0,0 +1,203 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+/**
+ * Expands the results of the search by following the citation network
+ * up to 'depth' hops (breadth first); it returns all papers found at
+ * the distance 1...depth (ie. citations(Q) + citations(citations(Q)) + ...)
+ *
+ * Every paper is visited only once (at its shortest distance); the
+ * frontiers and the visited papers are bitsets, the scores are kept
+ * in one dense array. A paper found at the level 'l' receives 1/l
+ * from every paper (of the previous level) that points to it; at
+ * the end, the scores are normalized into 0...1
+ *
+ * The first-order results are the level 0; they are returned only
+ * if they are reachable from the other results of the first-order
+ * query.
+ */
+public class SecondOrderCollectorCitationsK extends AbstractSecondOrderCollector {
+
+	private SolrCacheWrapper[] caches;
+	private int depth;
+	private String direction;
+
+	private FixedBitSet seeds;
+	private FixedBitSet visited;
+	private float[] scores;
+	private RelationshipsCursor cursor;
+
+	/*
+	 * 'caches' are the relationships to follow (citations, references or both)
+	 */
+	public SecondOrderCollectorCitationsK(SolrCacheWrapper[] caches, int depth, String direction) {
+		super();
+		assert caches != null && caches.length > 0;
+		this.caches = caches;
+		this.depth = depth;
+		this.direction = direction;
+	}
+
+	@Override
+	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
+		// we don't need the list of hits, the results are in the bitset
+		if (firstOrderWeight != null)
+			firstOrderScorerOutOfOrder = firstOrderWeight.scoresDocsOutOfOrder();
+		int maxDoc = searcher.getIndexReader().maxDoc();
+		if (seeds == null || seeds.length() != maxDoc) {
+			seeds = new FixedBitSet(maxDoc);
+		}
+		return true;
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		seeds.set(doc+docBase);
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext context) throws IOException {
+		this.docBase = context.docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	@Override
+	protected void finishCollection() {
+		if (seeds == null)
+			return;
+
+		lock.lock();
+		try {
+			if (!organized) {
+				expand();
+				organized = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
+		if (seeds == null)
+			return null;
+
+		finishCollection();
+
+		if (visited == null)
+			return null;
+
+		int end = Math.min(rangeEnd, visited.length());
+		if (rangeStart >= end)
+			return null;
+
+		SecondOrderHits results = new SecondOrderHits();
+		for (int i = visited.nextSetBit(rangeStart); i != -1 && i < end;
+				i = i+1 < visited.length() ? visited.nextSetBit(i+1) : -1) {
+			results.add(i, scores[i]);
+		}
+		return results.size() > 0 ? results : null;
+	}
+
+	/*
+	 * The breadth first search; it runs once, after the collection (or
+	 * when the first segment asks for the results). Over the budget, it
+	 * stops and keeps the papers found so far
+	 */
+	private void expand() {
+		if (seeds.cardinality() == 0)
+			return;
+
+		int maxDoc = seeds.length();
+		FixedBitSet frontier = seeds.clone();
+		FixedBitSet next = new FixedBitSet(maxDoc);
+		visited = new FixedBitSet(maxDoc);
+		scores = new float[maxDoc];
+		float maxScore = 0.0f;
+		// the bitsets and the scores, the edges are counted as they are followed
+		long memory = 4L * maxDoc + 3L * (maxDoc / 8);
+		long edges = 0;
+		boolean stopped = false;
+
+		for (int level=1; level<=depth && !stopped; level++) {
+			float weight = 1.0f / level;
+			for (int doc = frontier.nextSetBit(0); doc != -1;
+					doc = doc+1 < maxDoc ? frontier.nextSetBit(doc+1) : -1) {
+				if (!withinBudget(edges, memory)) {
+					stopped = true;
+					break;
+				}
+				for (SolrCacheWrapper cache: caches) {
+					cursor = cache.iterateLuceneDocIds(doc, cursor);
+					edges += cursor.size();
+					while (cursor.hasNext()) {
+						int related = cursor.next();
+						if (related < 0 || related >= maxDoc)
+							continue;
+						if (visited.get(related) && !next.get(related))
+							continue; // found on some previous level
+						if (!next.get(related)) {
+							next.set(related);
+							visited.set(related);
+						}
+						scores[related] += weight;
+						if (scores[related] > maxScore) {
+							maxScore = scores[related];
+						}
+					}
+				}
+			}
+
+			if (stopped || next.cardinality() == 0)
+				break;
+
+			// swap frontiers
+			FixedBitSet tmp = frontier;
+			frontier = next;
+			next = tmp;
+			next.clear(0, maxDoc);
+		}
+
+		if (maxScore > 0.0f) {
+			for (int doc = visited.nextSetBit(0); doc != -1;
+					doc = doc+1 < maxDoc ? visited.nextSetBit(doc+1) : -1) {
+				scores[doc] = scores[doc] / maxScore;
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		if (seeds != null)
+			seeds.clear(0, seeds.length());
+		visited = null;
+		scores = null;
+	}
+
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "(cache=" + caches[0].toString() + ", depth=" + depth
+				+ ", direction=" + direction + ")";
+	}
+
+	/** Returns a hash code value for this object. */
+	public int hashCode() {
+		int h = 5413987 ^ direction.hashCode() ^ (depth * 31);
+		for (SolrCacheWrapper cache: caches) {
+			h = h ^ cache.hashCode();
+		}
+		return h;
+	}
+
+}
@@ -2,16 +2,23 @@ package org.apache.lucene.search;
 
 import java.io.IOException;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
 
 /**
  * // citations(P) - set of papers that have P in their reference list
  * 
  * see: http://labs.adsabs.harvard.edu/trac/ads-invenio/ticket/221
  * 
+ * With a range of years only the citing papers published in these
+ * years are collected; the cache keeps them ordered by the year, so
+ * only the slice of the years is read.
  */
 public class SecondOrderCollectorCitedBy extends AbstractSecondOrderCollector {
 
 	private SolrCacheWrapper cache;
+	private RelationshipsCursor cursor;
+	private int fromYear = Integer.MIN_VALUE;
+	private int toYear = Integer.MAX_VALUE;
 
 
 	public SecondOrderCollectorCitedBy(SolrCacheWrapper cache) {
@@ -20,6 +27,12 @@ public class SecondOrderCollectorCitedBy extends AbstractSecondOrderCollector {
 		this.cache = cache;
 	}
 	
+	public SecondOrderCollectorCitedBy(SolrCacheWrapper cache, int fromYear, int toYear) {
+		this(cache);
+		this.fromYear = fromYear;
+		this.toYear = toYear;
+	}
+	
 	
 	@Override
 	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
@@ -35,12 +48,20 @@ public class SecondOrderCollectorCitedBy extends AbstractSecondOrderCollector {
 
 	@Override
 	public void collect(int doc) throws IOException {
-		int[] v = cache.getLuceneDocIds(doc+docBase);
-		if (v == null) return;
+		if (hasYearRange()) {
+			cursor = cache.iterateLuceneDocIds(doc+docBase, fromYear, toYear, cursor);
+		}
+		else {
+			cursor = cache.iterateLuceneDocIds(doc+docBase, cursor);
+		}
+		if (cursor.size() == 0) return;
 		float s = scorer.score();
-		float freq = (float) v.length;
-		for (int citingDoc: v) {
-			hits.add(new CollectorDoc(citingDoc, s, -1, freq));
+		float freq = (float) cursor.size();
+		while (cursor.hasNext()) {
+			int docid = cursor.next();
+			if (docid == -1 || isFilteredOut(docid))
+				continue;
+			hits.add(docid, s, freq);
 		}
 		
 	}
@@ -51,15 +72,36 @@ public class SecondOrderCollectorCitedBy extends AbstractSecondOrderCollector {
 		return true;
 	}
 	
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
+	
 	
+	SolrCacheWrapper getCache() {
+		return cache;
+	}
+	
+	boolean hasYearRange() {
+		return fromYear != Integer.MIN_VALUE || toYear != Integer.MAX_VALUE;
+	}
+	
+	@Override
+	protected AbstractSecondOrderCollector newWorker() {
+		SecondOrderCollectorCitedBy worker = (SecondOrderCollectorCitedBy) copy();
+		worker.cursor = null;
+		return worker;
+	}
+
 	@Override
 	public String toString() {
-		return this.getClass().getSimpleName() + "(cache:" + cache.toString() + ")";
+		return this.getClass().getSimpleName() + "(cache:" + cache.toString() 
+				+ (hasYearRange() ? ", years=" + fromYear + "-" + toYear : "") + ")";
 	}
 	
 	/** Returns a hash code value for this object. */
 	public int hashCode() {
-		return 8959545 ^ cache.hashCode();
+		return 8959545 ^ cache.hashCode() ^ (hasYearRange() ? (fromYear * 31) ^ (toYear * 17) : 0);
 	}
 	
 	/** Returns true iff <code>o</code> is equal to this. */
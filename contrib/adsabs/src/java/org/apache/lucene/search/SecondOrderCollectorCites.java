@@ -1,20 +1,21 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SortedSetDocValues;
 
 /*
  *    references(P) - set of papers that are in the reference list of P
  *    see: http://labs.adsabs.harvard.edu/trac/ads-invenio/ticket/221
  *    
- *    This implementation reads data directly from the indexed field
+ *    This implementation reads data directly from the indexed field:
+ *    the terms of the field (per segment, as ordinals) are translated
+ *    into lucene docids by a table which the cache builds on the first
+ *    use (and drops on warmup) - no stored fields are loaded and no
+ *    values looked up one by one
  *    
  *    @see: SecondOrderCollectorCitesRAM for the implementation that
  *          uses un-inverted cache stored in RAM
@@ -28,8 +29,12 @@ import org.apache.lucene.index.IndexReader;
 public class SecondOrderCollectorCites extends AbstractSecondOrderCollector {
 
   Set<String> fieldsToLoad;
+	private String[] fields;
 	private SolrCacheWrapper cache;
-	private IndexReader reader;
+	
+	// per segment, one for every field
+	private SortedSetDocValues[] ords;
+	private int[][] targets;
 	
 	public SecondOrderCollectorCites(SolrCacheWrapper cache, String[] referenceFields) {
 		super();
@@ -40,18 +45,12 @@ public class SecondOrderCollectorCites extends AbstractSecondOrderCollector {
 	  	fieldsToLoad.add(f);
 	  }
 	  assert fieldsToLoad.size() > 0;
+	  fields = fieldsToLoad.toArray(new String[fieldsToLoad.size()]);
 	}
 	
 	
 	
 	
-	@SuppressWarnings("unchecked")
-  @Override
-	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
-		reader = searcher.getIndexReader();
-		return super.searcherInitialization(searcher, firstOrderWeight);
-	}
-	
 
 	@Override
 	public void setScorer(Scorer scorer) throws IOException {
@@ -61,19 +60,26 @@ public class SecondOrderCollectorCites extends AbstractSecondOrderCollector {
 
 	@Override
 	public void collect(int doc) throws IOException {
-		//if (reader.isDeleted(doc)) return;
-		
-		Document document = reader.document(doc, fieldsToLoad);
 		float s = scorer.score();
 		
-		for (String f: fieldsToLoad) {
-			String[] vals = document.getValues(f); 
-			for (String v: vals) {
-				v = v.toLowerCase();
-				int docid = cache.getLuceneDocId(doc+docBase, v);
-				if (docid == -1)
+		for (int i=0; i<fields.length; i++) {
+			SortedSetDocValues values = ords[i];
+			values.setDocument(doc);
+			int freq = 0;
+			while (values.nextOrd() != SortedSetDocValues.NO_MORE_ORDS) {
+				freq++;
+			}
+			if (freq == 0)
+				continue;
+			
+			int[] t = targets[i];
+			values.setDocument(doc);
+			long ord;
+			while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+				int docid = t[(int) ord];
+				if (docid == -1 || isFilteredOut(docid))
 					continue;
-				hits.add(new CollectorDoc(docid, s, -1, vals.length));
+				hits.add(docid, s, freq);
 			}
 		}
 	}
@@ -81,8 +87,14 @@ public class SecondOrderCollectorCites extends AbstractSecondOrderCollector {
 	@Override
 	public void setNextReader(AtomicReaderContext context)
 			throws IOException {
-		this.reader = context.reader();
 		this.docBase = context.docBase;
+		// new arrays, the workers (copies) must not share them
+		ords = new SortedSetDocValues[fields.length];
+		targets = new int[fields.length][];
+		for (int i=0; i<fields.length; i++) {
+			ords[i] = FieldCache.DEFAULT.getDocTermOrds(context.reader(), fields[i]);
+			targets[i] = cache.getOrdinalTargets(context.reader(), fields[i], ords[i]);
+		}
 	}
 
 	@Override
@@ -90,7 +102,17 @@ public class SecondOrderCollectorCites extends AbstractSecondOrderCollector {
 		return true;
 	}
 	
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
+	
 	
+	@Override
+	protected AbstractSecondOrderCollector newWorker() {
+		return copy(); // the ordinals are set for every segment
+	}
+
 	@Override
 	public String toString() {
 		return this.getClass().getSimpleName() + "(cache:" + cache.toString() + ", field:" + fieldsToLoad + ")";
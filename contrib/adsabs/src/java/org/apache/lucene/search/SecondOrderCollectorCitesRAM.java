@@ -6,6 +6,7 @@ import java.util.Map;
 
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
 
 /*
  *    // references(P) - set of papers that are in the reference list of P
@@ -14,6 +15,7 @@ import org.apache.lucene.index.AtomicReaderContext;
 public class SecondOrderCollectorCitesRAM extends AbstractSecondOrderCollector {
 
   private SolrCacheWrapper cache;
+  private RelationshipsCursor cursor;
 	
   public SecondOrderCollectorCitesRAM(SolrCacheWrapper cache) {
     super();
@@ -37,16 +39,17 @@ public class SecondOrderCollectorCitesRAM extends AbstractSecondOrderCollector {
 
 	@Override
 	public void collect(int doc) throws IOException {
-		int[] citations = cache.getLuceneDocIds(doc+docBase);
-		if (citations == null) {
+		cursor = cache.iterateLuceneDocIds(doc+docBase, cursor);
+		if (cursor.size() == 0) {
 			return;
 		}
-		float freq = citations.length;
+		float freq = cursor.size();
 		float s = scorer.score();
-		for (int docid: citations) {
-			if (docid == -1)
+		while (cursor.hasNext()) {
+			int docid = cursor.next();
+			if (docid == -1 || isFilteredOut(docid))
 				continue;
-			hits.add(new CollectorDoc(docid, s, -1, freq));
+			hits.add(docid, s, freq);
 		}
 		
 	}
@@ -62,7 +65,23 @@ public class SecondOrderCollectorCitesRAM extends AbstractSecondOrderCollector {
 		return true;
 	}
 	
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
 	
+	
+	SolrCacheWrapper getCache() {
+		return cache;
+	}
+	
+	@Override
+	protected AbstractSecondOrderCollector newWorker() {
+		SecondOrderCollectorCitesRAM worker = (SecondOrderCollectorCitesRAM) copy();
+		worker.cursor = null;
+		return worker;
+	}
+
 	@Override
 	public String toString() {
 		return this.getClass().getSimpleName() + "(cache:" + cache.toString() + ")";
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
 
 /**
  * Find the papers that are citing results of the search
@@ -19,6 +20,7 @@ public class SecondOrderCollectorCitingTheMostCited extends AbstractSecondOrderC
   
   private SolrCacheWrapper cache;
 	private LuceneCacheWrapper boostCache;
+	private RelationshipsCursor cursor;
 
 
   public SecondOrderCollectorCitingTheMostCited(SolrCacheWrapper cache, LuceneCacheWrapper boostCache) {
@@ -38,9 +40,9 @@ public class SecondOrderCollectorCitingTheMostCited extends AbstractSecondOrderC
 
   @Override
   public void collect(int doc) throws IOException {
-  	int[] related = cache.getLuceneDocIds(doc+docBase);
+  	cursor = cache.iterateLuceneDocIds(doc+docBase, cursor);
   	
-    if (related == null) return;
+    if (cursor.size() == 0) return;
     //float s = scorer.score();
     float s = 0.5f; // lucene score doesn't make sense for us;
     
@@ -52,15 +54,16 @@ public class SecondOrderCollectorCitingTheMostCited extends AbstractSecondOrderC
 			s = s + bc;
 		}
     
-    float freq = (float) related.length;
+    float freq = (float) cursor.size();
     
     // find docs that are citing us and set their score to the score of the paper they cite
     // later it will get turned into arithmetic mean 
-    for (int docid: related) {
-    	if (docid < 0)
+    while (cursor.hasNext()) {
+    	int docid = cursor.next();
+    	if (docid < 0 || isFilteredOut(docid))
     		continue;
-    	//System.out.println("expert: doc=" + (doc+docBase) + "(score:" + s + ") adding=" + docid + " (score:" + (s + boostCache[docid]) + ")" + " freq=" + related.length) ;
-      hits.add(new CollectorDoc(docid, s, -1, 1));
+    	//System.out.println("expert: doc=" + (doc+docBase) + "(score:" + s + ") adding=" + docid + " (score:" + (s + boostCache[docid]) + ")" + " freq=" + cursor.size()) ;
+      hits.add(docid, s, 1);
     }
     
   }
@@ -71,7 +74,19 @@ public class SecondOrderCollectorCitingTheMostCited extends AbstractSecondOrderC
     return true;
   }
   
+  @Override
+  public boolean acceptsTargetFilter() {
+    return true;
+  }
+  
   
+  @Override
+  protected AbstractSecondOrderCollector newWorker() {
+    SecondOrderCollectorCitingTheMostCited worker = (SecondOrderCollectorCitingTheMostCited) copy();
+    worker.cursor = null;
+    return worker;
+  }
+
   @Override
   public String toString() {
   	return this.getClass().getSimpleName() + "(cache=" + cache.toString() + ", boost=" + boostCache.toString() + ")";
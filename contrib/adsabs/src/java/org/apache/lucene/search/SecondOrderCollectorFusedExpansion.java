@@ -0,0 +1,181 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.FieldCache.Floats;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+/**
+ * The chain
+ *
+ *   references(topn(N, classic_relevance(Q)))  - useful(Q)
+ *   citations(topn(N, classic_relevance(Q)))   - reviews(Q)
+ *
+ * executed as one collector: the hits of Q are scored by the ADS Classic
+ * formula (the same as {@link SecondOrderCollectorAdsClassicScoringFormula}),
+ * the best N of them are selected with a bounded heap and these are
+ * expanded over the citation graph (the same as the
+ * {@link SecondOrderCollectorCitesRAM} and {@link SecondOrderCollectorCitedBy}).
+ * The nested queries sort and organize the hits of every level and
+ * search them again; here only the (docid, score) pairs of Q are kept -
+ * the classic score is normalized by the highest lucene score, which is
+ * known after the collection. In the 'bounded' mode not even these are
+ * kept, the best N are collected in one pass (see
+ * {@link ClassicRelevanceQueue} - the ranking is then approximate).
+ *
+ * BenchmarkFusedExpansion (in the tests) compares the latency of the
+ * two executions.
+ *
+ * The chains are recognized by {@link SecondOrderPlanner}.
+ */
+public class SecondOrderCollectorFusedExpansion extends AbstractSecondOrderCollector {
+
+	private SolrCacheWrapper cache;
+	private LuceneCacheWrapper<Floats> boostCache;
+	private float lucenePart;
+	private float adsPart;
+	private int topN;
+
+	private boolean bounded;
+
+	private SecondOrderHits firstOrder;
+	private float highestLuceneScore = 0.0f;
+	private ClassicRelevanceQueue queue;
+	private RelationshipsCursor cursor;
+	private boolean expanded = false;
+
+	public SecondOrderCollectorFusedExpansion(SolrCacheWrapper cache, LuceneCacheWrapper<Floats> boostCache,
+			float lucenePart, float adsPart, int topN, boolean bounded) {
+		super();
+		assert cache != null;
+		this.cache = cache;
+		this.boostCache = boostCache;
+		this.lucenePart = lucenePart;
+		this.adsPart = adsPart;
+		this.topN = topN;
+		this.bounded = bounded;
+		this.firstOrder = new SecondOrderHits();
+	}
+
+	@Override
+	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
+		// the expanded hits are few (N times the avg number of citations)
+		maxDoc = searcher.getIndexReader().maxDoc();
+		if (bounded && queue == null) {
+			queue = new ClassicRelevanceQueue(Math.max(1, Math.min(topN, maxDoc)), lucenePart, adsPart, boostCache);
+		}
+		return true;
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		float s = scorer.score();
+		if (bounded) {
+			queue.add(doc+docBase, s);
+			return;
+		}
+		if (s > highestLuceneScore)
+			highestLuceneScore = s;
+		firstOrder.add(doc+docBase, s);
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext context) throws IOException {
+		this.docBase = context.docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true; // the heap breaks ties by docid
+	}
+	
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
+
+	@Override
+	protected void finishCollection() {
+		lock.lock();
+		try {
+			if (!expanded && (firstOrder.size() > 0 || (queue != null && queue.size() > 0))) {
+				expandTopN();
+				expanded = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
+		finishCollection();
+		return super.getSubReaderResults(rangeStart, rangeEnd);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		firstOrder.clear();
+		highestLuceneScore = 0.0f;
+		expanded = false;
+		if (queue != null && bounded) {
+			queue.clear();
+		}
+	}
+
+	/*
+	 * Selects the N best papers by their classic score and adds their
+	 * citations (or references) into the hits; over the budget, it stops
+	 * and keeps the hits of the papers expanded so far
+	 */
+	private void expandTopN() {
+		if (!bounded) {
+			queue = new ClassicRelevanceQueue(Math.min(topN, firstOrder.size()), lucenePart, adsPart, boostCache);
+			queue.setHighestScore(highestLuceneScore);
+			for (int i=0; i<firstOrder.size(); i++) {
+				queue.add(firstOrder.doc(i), firstOrder.score(i));
+			}
+			firstOrder.clear();
+		}
+
+		// in docid order, as the nested queries would do
+		SecondOrderHits best = new SecondOrderHits(queue.size());
+		queue.emit(best);
+		best.sortByDoc();
+		queue.clear();
+		if (!bounded) {
+			queue = null;
+		}
+
+		for (int i=0; i<best.size(); i++) {
+			if (!withinBudget(hits.size(), (long) hits.size() * SecondOrderHits.BYTES_PER_HIT))
+				break;
+			cursor = cache.iterateLuceneDocIds(best.doc(i), cursor);
+			if (cursor.size() == 0)
+				continue;
+			float s = best.score(i);
+			float freq = (float) cursor.size();
+			while (cursor.hasNext()) {
+				int docid = cursor.next();
+				if (docid == -1 || isFilteredOut(docid))
+					continue;
+				hits.add(docid, s, freq);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "(cache=" + cache.toString() + ", boost=" + boostCache.toString()
+				+ ", direction=" + (cache instanceof SolrCacheWrapper.CitationsCache ? "citations" : "references")
+				+ ", lucene=" + lucenePart + ", adsPart=" + adsPart + ", topN=" + topN + (bounded ? ", bounded" : "") + ")";
+	}
+
+	/** Returns a hash code value for this object. */
+	public int hashCode() {
+		return 5784313 ^ cache.hashCode() ^ boostCache.hashCode() ^ topN;
+	}
+}
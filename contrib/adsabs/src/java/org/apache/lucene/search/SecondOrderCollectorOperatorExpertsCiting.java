@@ -7,6 +7,7 @@ import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.FieldCache.Floats;
 import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
 
 /**
  * Finds papers that are cited by our search. And then adjusts the score so that
@@ -21,6 +22,7 @@ public class SecondOrderCollectorOperatorExpertsCiting extends AbstractSecondOrd
 	protected String boostField;
 	private SolrCacheWrapper<CitationLRUCache<Object, Integer>> cache;
 	private LuceneCacheWrapper<Floats> boostCache;
+	private RelationshipsCursor cursor;
 	
 	public SecondOrderCollectorOperatorExpertsCiting(SolrCacheWrapper<CitationLRUCache<Object, Integer>> cache, LuceneCacheWrapper<Floats> boostWrapper) {
 		super();
@@ -36,9 +38,9 @@ public class SecondOrderCollectorOperatorExpertsCiting extends AbstractSecondOrd
 	public void collect(int doc) throws IOException {
 		
     // find references froum our doc 
-		int[] references = cache.getLuceneDocIds(doc+docBase);
+		cursor = cache.iterateLuceneDocIds(doc+docBase, cursor);
 		
-		if (references == null) {
+		if (cursor.size() == 0) {
 			return;
 		}
 		
@@ -72,10 +74,11 @@ public class SecondOrderCollectorOperatorExpertsCiting extends AbstractSecondOrd
 		
 
 		//s = s / (vals.length + 100); // this would contribute only a part of the score to each citation
-		for (int docid: references) {
-			if (docid > 0) {
-				//System.out.println("expert: doc=" + (doc+docBase) + "(score:" + s + ") adding=" + docid + " (score:" + (s + boostCache[docid]) + ")" + " freq=" + references.length) ;
-				hits.add(new CollectorDoc(docid, s + boostCache.getFloat(docid), -1, 1));
+		while (cursor.hasNext()) {
+			int docid = cursor.next();
+			if (docid > 0 && !isFilteredOut(docid)) {
+				//System.out.println("expert: doc=" + (doc+docBase) + "(score:" + s + ") adding=" + docid + " (score:" + (s + boostCache[docid]) + ")" + " freq=" + cursor.size()) ;
+				hits.add(docid, s + boostCache.getFloat(docid), 1);
 			}
 		}
 	}
@@ -91,7 +94,19 @@ public class SecondOrderCollectorOperatorExpertsCiting extends AbstractSecondOrd
 		return true;
 	}
 	
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
+	
 	
+	@Override
+	protected AbstractSecondOrderCollector newWorker() {
+		SecondOrderCollectorOperatorExpertsCiting worker = (SecondOrderCollectorOperatorExpertsCiting) copy();
+		worker.cursor = null;
+		return worker;
+	}
+
 	@Override
 	public String toString() {
 		return this.getClass().getSimpleName() + "(cache=" + cache.toString() + ", boost=" + boostCache.toString() + ")";
@@ -0,0 +1,216 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+/**
+ * Finds papers related to the results of the search by a random walk
+ * with restart over the citation graph (both the citations and the
+ * references are followed): the walk starts from one of the best
+ * first-order hits (at most {@link #MAX_SEEDS}, picked in proportion to
+ * their scores), moves to a random neighbour and with the probability
+ * 'restart' jumps back to a seed. The score of a paper is the share of
+ * the steps spent in it - a Monte-Carlo approximation of the personalized
+ * PageRank. The seeds themselves are not in the results.
+ *
+ * The number of the steps is the budget of the walk, it does not depend
+ * on the size of the graph (a step reads only the chosen neighbour, not
+ * the whole row); the random generator is seeded, so the same query
+ * returns the same results.
+ */
+public class SecondOrderCollectorRandomWalk extends AbstractSecondOrderCollector {
+
+	public static final int MAX_SEEDS = 200;
+	public static final int DEFAULT_STEPS = 10000;
+	public static final int MAX_STEPS = 1000000;
+	public static final float DEFAULT_RESTART = 0.15f;
+
+	private SolrCacheWrapper citations;
+	private SolrCacheWrapper references;
+	private int steps;
+	private float restart;
+	private long randomSeed;
+
+	private HitQueue queue;
+	private ScoreDoc queueTop;
+	private boolean walked = false;
+	private RelationshipsCursor citing;
+	private RelationshipsCursor cited;
+
+	public SecondOrderCollectorRandomWalk(SolrCacheWrapper citations, SolrCacheWrapper references,
+			int steps, float restart, long randomSeed) {
+		super();
+		assert citations != null && references != null;
+		this.citations = citations;
+		this.references = references;
+		this.steps = steps;
+		this.restart = restart;
+		this.randomSeed = randomSeed;
+	}
+
+	@Override
+	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
+		// the hits are only the visited papers, the seeds are in the queue
+		maxDoc = searcher.getIndexReader().maxDoc();
+		if (queue == null) {
+			queue = new HitQueue(MAX_SEEDS, true);
+			queueTop = queue.top();
+		}
+		return true;
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		// in order, so the lower docid wins the ties (as in TopScoreDocCollector)
+		float score = scorer.score();
+		if (score > queueTop.score) {
+			queueTop.doc = doc + docBase;
+			queueTop.score = score;
+			queueTop = queue.updateTop();
+		}
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext context) throws IOException {
+		this.docBase = context.docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return false;
+	}
+
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
+
+	@Override
+	protected void finishCollection() {
+		lock.lock();
+		try {
+			if (!walked && queue != null) {
+				walk();
+				walked = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
+		finishCollection();
+		return super.getSubReaderResults(rangeStart, rangeEnd);
+	}
+
+	@Override
+	protected void organizeResults() {
+		// walk() wrote one hit per paper already
+		finishScores();
+	}
+
+	private void walk() {
+		// the seeds (sorted by docid) and their cumulative weights
+		int numSeeds = 0;
+		ScoreDoc[] best = new ScoreDoc[MAX_SEEDS];
+		while (queue.size() > 0) {
+			ScoreDoc sd = queue.pop();
+			if (sd.score != Float.NEGATIVE_INFINITY) // the sentinels
+				best[numSeeds++] = sd;
+		}
+		queue = null;
+		if (numSeeds == 0)
+			return;
+		Arrays.sort(best, 0, numSeeds, new java.util.Comparator<ScoreDoc>() {
+			public int compare(ScoreDoc a, ScoreDoc b) {
+				return a.doc - b.doc;
+			}
+		});
+		int[] seeds = new int[numSeeds];
+		double[] weights = new double[numSeeds];
+		double total = 0.0d;
+		for (int i=0; i<numSeeds; i++) {
+			seeds[i] = best[i].doc;
+			total += Math.max(0.0f, best[i].score);
+			weights[i] = total;
+		}
+		if (total <= 0.0d) { // uniform
+			for (int i=0; i<numSeeds; i++) {
+				weights[i] = i + 1;
+			}
+			total = numSeeds;
+		}
+
+		Random random = new Random(randomSeed);
+		SecondOrderAccumulator visits = SecondOrderAccumulator.create(FinalValueType.ABS_COUNT, maxDoc,
+				Math.min(maxDoc, steps));
+		int current = seeds[pick(weights, total, random)];
+
+		// over the budget, the walk is shorter (the scores are shares of the steps done)
+		int done = 0;
+		for (int i=0; i<steps; i++, done++) {
+			if (i % SecondOrderBudget.CHECK_INTERVAL == 0 && !withinBudget(i, 0))
+				break;
+			if (random.nextFloat() < restart) {
+				current = seeds[pick(weights, total, random)];
+				continue;
+			}
+			citing = citations.iterateLuceneDocIds(current, citing);
+			cited = references.iterateLuceneDocIds(current, cited);
+			int degree = citing.size() + cited.size();
+			if (degree == 0) { // dead end
+				current = seeds[pick(weights, total, random)];
+				continue;
+			}
+			int n = random.nextInt(degree);
+			int next = n < citing.size() ? citing.get(n) : cited.get(n - citing.size());
+			if (next < 0) { // not in the index
+				current = seeds[pick(weights, total, random)];
+				continue;
+			}
+			current = next;
+			if (Arrays.binarySearch(seeds, next) < 0 && !isFilteredOut(next)) {
+				visits.add(next, 1.0f);
+			}
+		}
+
+		visits.emit(hits); // score = the number of visits
+		for (int i=0; i<hits.size(); i++) {
+			hits.setScore(i, hits.score(i) / Math.max(1, done));
+		}
+	}
+
+	/* index of the seed, in proportion to its weight */
+	private static int pick(double[] weights, double total, Random random) {
+		double r = random.nextDouble() * total;
+		int i = Arrays.binarySearch(weights, r);
+		i = i >= 0 ? i + 1 : -i - 1;
+		return Math.min(i, weights.length - 1);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		walked = false;
+		queue = null;
+	}
+
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "(cache=" + citations.toString() + ", steps=" + steps
+				+ ", restart=" + restart + ", seed=" + randomSeed + ")";
+	}
+
+	/** Returns a hash code value for this object. */
+	public int hashCode() {
+		return 8129563 ^ citations.hashCode() ^ (references.hashCode() * 31) ^ steps
+				^ Float.floatToIntBits(restart) ^ (int) (randomSeed ^ (randomSeed >>> 32));
+	}
+}
@@ -0,0 +1,203 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+/**
+ * Finds papers that share neighbours with the results of the search,
+ * two hops over the citation network:
+ *
+ *   cocitation(Q) - papers cited together with Q: first hop = citations,
+ *                   second hop = references
+ *   coupling(Q)   - papers sharing references with Q: first hop =
+ *                   references, second hop = citations
+ *
+ * The score is the overlap strength: the number of the shared neighbours
+ * (summed over the papers of Q) or, normalized, the overlap divided by
+ * sqrt(neighbours of Q * neighbours of the paper) - ie. Salton's cosine
+ * when Q is one paper. The papers of Q are not related to themselves.
+ *
+ * The first-order results are only marked in a bitset, the graph is
+ * walked once (when the first segment asks for the results) and the
+ * overlaps are counted in a {@link SecondOrderAccumulator}; no list of
+ * paths is materialized. To keep it interactive for the heavily cited
+ * papers, a paper of Q contributes at most 'maxFanout' neighbours (the
+ * first ones of its list) and the neighbours with more than 'maxFanout'
+ * links of their own (hubs, eg. big reviews) are skipped.
+ */
+public class SecondOrderCollectorSharedNeighbours extends AbstractSecondOrderCollector {
+
+	public static final int DEFAULT_MAX_FANOUT = 1000;
+
+	private String name;
+	private SolrCacheWrapper firstHop;
+	private SolrCacheWrapper secondHop;
+	private boolean normalized;
+	private int maxFanout;
+
+	private FixedBitSet seeds;
+	private boolean expanded = false;
+	private RelationshipsCursor cursor;
+	private RelationshipsCursor hopCursor;
+
+	/*
+	 * 'name' is the operator (cocitation, coupling), 'firstHop' and
+	 * 'secondHop' the relationships to follow
+	 */
+	public SecondOrderCollectorSharedNeighbours(String name, SolrCacheWrapper firstHop, SolrCacheWrapper secondHop,
+			boolean normalized, int maxFanout) {
+		super();
+		assert firstHop != null && secondHop != null;
+		this.name = name;
+		this.firstHop = firstHop;
+		this.secondHop = secondHop;
+		this.normalized = normalized;
+		this.maxFanout = maxFanout > 0 ? maxFanout : DEFAULT_MAX_FANOUT;
+	}
+
+	@Override
+	public boolean searcherInitialization(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
+		// the hits are only the results, the seeds are in the bitset
+		if (firstOrderWeight != null)
+			firstOrderScorerOutOfOrder = firstOrderWeight.scoresDocsOutOfOrder();
+		maxDoc = searcher.getIndexReader().maxDoc();
+		if (seeds == null || seeds.length() != maxDoc) {
+			seeds = new FixedBitSet(maxDoc);
+		}
+		return true;
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		seeds.set(doc+docBase);
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext context) throws IOException {
+		this.docBase = context.docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	@Override
+	public boolean acceptsTargetFilter() {
+		return true;
+	}
+
+	@Override
+	protected void finishCollection() {
+		lock.lock();
+		try {
+			if (!expanded && seeds != null) {
+				expand();
+				expanded = true;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
+		finishCollection();
+		return super.getSubReaderResults(rangeStart, rangeEnd);
+	}
+
+	@Override
+	protected void organizeResults() {
+		// expand() wrote one hit per paper already
+		finishScores();
+	}
+
+	/*
+	 * Walks two hops from every seed and counts the shared neighbours;
+	 * over the budget, it stops and keeps the overlaps of the seeds seen
+	 */
+	private void expand() {
+		int numSeeds = seeds.cardinality();
+		if (numSeeds == 0)
+			return;
+
+		SecondOrderAccumulator overlaps = SecondOrderAccumulator.create(FinalValueType.ABS_COUNT, maxDoc,
+				(int) Math.min(maxDoc, (long) numSeeds * maxFanout));
+		long neighbours = 0;
+		long edges = 0;
+
+		for (int seed = seeds.nextSetBit(0); seed != -1;
+				seed = seed+1 < maxDoc ? seeds.nextSetBit(seed+1) : -1) {
+			if (!withinBudget(edges, 0))
+				break;
+			cursor = firstHop.iterateLuceneDocIds(seed, cursor);
+			int taken = 0;
+			while (cursor.hasNext() && taken < maxFanout) {
+				int neighbour = cursor.next();
+				if (neighbour < 0)
+					continue;
+				taken++;
+				hopCursor = secondHop.iterateLuceneDocIds(neighbour, hopCursor);
+				if (hopCursor.size() > maxFanout)
+					continue; // hub
+				while (hopCursor.hasNext()) {
+					int related = hopCursor.next();
+					if (related < 0 || related == seed || isFilteredOut(related))
+						continue;
+					overlaps.add(related, 1.0f);
+					edges++;
+				}
+			}
+			neighbours += taken;
+		}
+
+		overlaps.emit(hits); // score = freq = the overlap
+
+		if (normalized) {
+			for (int i=0; i<hits.size(); i++) {
+				cursor = firstHop.iterateLuceneDocIds(hits.doc(i), cursor);
+				hits.setScore(i, hits.score(i) / (float) Math.sqrt((double) neighbours * Math.max(1, cursor.size())));
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		expanded = false;
+		if (seeds != null)
+			seeds.clear(0, seeds.length());
+	}
+
+	@Override
+	protected AbstractSecondOrderCollector newWorker() {
+		SecondOrderCollectorSharedNeighbours worker = (SecondOrderCollectorSharedNeighbours) copy();
+		worker.seeds = new FixedBitSet(maxDoc);
+		worker.cursor = null;
+		worker.hopCursor = null;
+		return worker;
+	}
+
+	@Override
+	protected void mergeWorker(AbstractSecondOrderCollector worker) {
+		seeds.or(((SecondOrderCollectorSharedNeighbours) worker).seeds);
+		organized = false;
+	}
+
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "(" + name + ", cache=" + firstHop.toString()
+				+ (normalized ? ", normalized" : "") + ", maxFanout=" + maxFanout + ")";
+	}
+
+	/** Returns a hash code value for this object. */
+	public int hashCode() {
+		return 7324541 ^ name.hashCode() ^ firstHop.hashCode() ^ (secondHop.hashCode() * 31)
+				^ (maxFanout * 17) ^ (normalized ? 1 : 0);
+	}
+}
@@ -1,9 +1,6 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import org.apache.lucene.search.DocIdSetIterator;
 
 import org.apache.lucene.index.AtomicReaderContext;
 
@@ -52,7 +49,7 @@ public class SecondOrderCollectorTopN extends AbstractSecondOrderCollector {
 	}
 	
 	@Override
-	public List<CollectorDoc> getSubReaderResults(int rangeStart, int rangeEnd) {
+	public SecondOrderHits getSubReaderResults(int rangeStart, int rangeEnd) {
 
 		if (topCollector.totalHits == 0)
 			return null;
@@ -60,9 +57,10 @@ public class SecondOrderCollectorTopN extends AbstractSecondOrderCollector {
 		lock.lock();
 		try {
 			if (!organized) {
-				((ArrayList) hits).ensureCapacity(topCollector.totalHits);
-				for (ScoreDoc d: topCollector.topDocs().scoreDocs) {
-					hits.add(new CollectorDoc(d.doc, d.score));
+				ScoreDoc[] topDocs = topCollector.topDocs().scoreDocs;
+				hits.ensureCapacity(topDocs.length);
+				for (ScoreDoc d: topDocs) {
+					hits.add(d.doc, d.score);
 				}
 					
 			}
@@ -75,6 +73,15 @@ public class SecondOrderCollectorTopN extends AbstractSecondOrderCollector {
 		
   }
 	
+	int getTopN() {
+		return topN;
+	}
+	
+	/* true if the hits are ranked by their score (not sorted by a field) */
+	boolean isRankedByScore() {
+		return detail == null;
+	}
+	
 	@Override
 	public String toString() {
 		return this.getClass().getSimpleName() + "(" + topN + ", outOfOrder=" + this.acceptsDocsOutOfOrder() + (detail!=null ? ", info=" + detail : "") + ")";
@@ -0,0 +1,253 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntroSorter;
+
+/**
+ * Hits of the second-order collectors kept in three parallel
+ * (growable) arrays: docids, scores and frequencies. Adding a hit
+ * does not create any object; the arrays are reused when the
+ * collector is reset.
+ *
+ * A slice (the hits of one segment) shares the arrays with the
+ * buffer it was taken from, positions 0...size()-1 are relative
+ * to the start of the slice.
+ */
+public class SecondOrderHits {
+	
+	/* memory of one hit (docid, score and freq) */
+	public static final int BYTES_PER_HIT = 12;
+
+	private int[] docs;
+	private float[] scores;
+	private float[] freqs;
+	private final int start;
+	private int end;
+	// of the first-order weight that produced the hits (kept with the cached hits)
+	private float valueForNormalization = 1.0f;
+
+	public SecondOrderHits() {
+		this(16);
+	}
+
+	public SecondOrderHits(int initialCapacity) {
+		initialCapacity = Math.max(initialCapacity, 1);
+		docs = new int[initialCapacity];
+		scores = new float[initialCapacity];
+		freqs = new float[initialCapacity];
+		start = end = 0;
+	}
+
+	private SecondOrderHits(int[] docs, float[] scores, float[] freqs, int start, int end) {
+		this.docs = docs;
+		this.scores = scores;
+		this.freqs = freqs;
+		this.start = start;
+		this.end = end;
+	}
+
+	public void add(int doc, float score, float freq) {
+		if (end == docs.length) {
+			ensureCapacity(end + 1);
+		}
+		docs[end] = doc;
+		scores[end] = score;
+		freqs[end] = freq;
+		end++;
+	}
+
+	public void add(int doc, float score) {
+		add(doc, score, 1.0f);
+	}
+
+	/* appends all hits of the other buffer */
+	public void addAll(SecondOrderHits other) {
+		int size = other.size();
+		ensureCapacity(end + size);
+		System.arraycopy(other.docs, other.start, docs, end, size);
+		System.arraycopy(other.scores, other.start, scores, end, size);
+		System.arraycopy(other.freqs, other.start, freqs, end, size);
+		end += size;
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > docs.length) {
+			docs = ArrayUtil.grow(docs, capacity);
+			scores = ArrayUtil.grow(scores, docs.length);
+			freqs = ArrayUtil.grow(freqs, docs.length);
+		}
+	}
+
+	public int size() {
+		return end - start;
+	}
+	
+	/* memory (in bytes) of the arrays - their capacity, not the size */
+	public long ramBytesUsed() {
+		return (long) BYTES_PER_HIT * docs.length;
+	}
+
+	public int doc(int i) {
+		return docs[start+i];
+	}
+
+	public float score(int i) {
+		return scores[start+i];
+	}
+
+	public float freq(int i) {
+		return freqs[start+i];
+	}
+
+	public void setScore(int i, float score) {
+		scores[start+i] = score;
+	}
+
+	public void setFreq(int i, float freq) {
+		freqs[start+i] = freq;
+	}
+
+	/* overwrites the hit at the position i (used when compacting) */
+	public void set(int i, int doc, float score, float freq) {
+		docs[start+i] = doc;
+		scores[start+i] = score;
+		freqs[start+i] = freq;
+	}
+
+	/*
+	 * Weight#getValueForNormalization() of the first-order query; a cached 
+	 * result must report the same value as the executed query, it is a
+	 * part of the queryNorm of the enclosing query
+	 */
+	public float getValueForNormalization() {
+		return valueForNormalization;
+	}
+
+	public void setValueForNormalization(float value) {
+		valueForNormalization = value;
+	}
+
+	/* keeps only the first 'size' hits */
+	public void truncate(int size) {
+		assert size <= size();
+		end = start + size;
+	}
+
+	public void clear() {
+		end = start;
+	}
+
+	/* a copy (trimmed to size) that does not share the arrays */
+	public SecondOrderHits copy() {
+		int size = size();
+		SecondOrderHits c = new SecondOrderHits(size);
+		System.arraycopy(docs, start, c.docs, 0, size);
+		System.arraycopy(scores, start, c.scores, 0, size);
+		System.arraycopy(freqs, start, c.freqs, 0, size);
+		c.end = size;
+		c.valueForNormalization = valueForNormalization;
+		return c;
+	}
+
+	public void sortByDoc() {
+		new IntroSorter() {
+			private int pivot;
+
+			@Override
+			protected int compare(int i, int j) {
+				return compareInts(docs[i], docs[j]);
+			}
+
+			@Override
+			protected void swap(int i, int j) {
+				int d = docs[i]; docs[i] = docs[j]; docs[j] = d;
+				float s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+				float f = freqs[i]; freqs[i] = freqs[j]; freqs[j] = f;
+			}
+
+			@Override
+			protected void setPivot(int i) {
+				pivot = docs[i];
+			}
+
+			@Override
+			protected int comparePivot(int j) {
+				return compareInts(pivot, docs[j]);
+			}
+		}.sort(start, end);
+	}
+
+	private static int compareInts(int a, int b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/*
+	 * Hits with rangeStart &lt;= doc &lt; rangeEnd, or null if there are none;
+	 * the hits must be sorted by doc
+	 */
+	public SecondOrderHits slice(int rangeStart, int rangeEnd) {
+		int from = lowerBound(rangeStart);
+		int to = lowerBound(rangeEnd);
+		if (from >= to) {
+			return null;
+		}
+		return new SecondOrderHits(docs, scores, freqs, from, to);
+	}
+
+	/*
+	 * The first position &gt;= from with doc &gt;= target (or size() if
+	 * there is none); exponential search followed by a binary search,
+	 * so the cost depends on the distance and not on the size
+	 */
+	public int gallop(int from, int target) {
+		int low = start + from;
+		int high = low;
+		int bound = 1;
+		while (high < end && docs[high] < target) {
+			low = high + 1;
+			high = low + bound;
+			bound <<= 1;
+		}
+		high = Math.min(high, end);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (docs[mid] < target) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low - start;
+	}
+
+	/* the first position (absolute) with doc >= target */
+	private int lowerBound(int target) {
+		int low = start;
+		int high = end;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (docs[mid] < target) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append('[');
+		for (int i=0; i<size(); i++) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			out.append("doc=").append(doc(i)).append(" score=").append(score(i)).append(" freq=").append(freq(i));
+		}
+		out.append(']');
+		return out.toString();
+	}
+}
@@ -1,36 +1,37 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.List;
 
+import org.apache.lucene.util.Bits;
 
+
+/**
+ * Iterates over the (sorted) second-order hits of one segment;
+ * advance() gallops over the hits, so the conjunctions with
+ * selective clauses do not have to visit every hit.
+ */
 public class SecondOrderListOfDocsScorer extends Scorer {
-	private List<CollectorDoc> hits;
-	private Iterator<CollectorDoc> iterator = null;
+	private SecondOrderHits hits;
+	private Bits acceptDocs;
+	private int pos = -1;
 	private int doc = -1;
 	private float score;
 	private int docBase = 0;
 
-    public SecondOrderListOfDocsScorer(Weight weight, List<CollectorDoc> hits, int docBase) throws IOException {
+    public SecondOrderListOfDocsScorer(Weight weight, SecondOrderHits hits, int docBase) throws IOException {
+      this(weight, hits, docBase, null);
+    }
+    
+    public SecondOrderListOfDocsScorer(Weight weight, SecondOrderHits hits, int docBase, Bits acceptDocs) throws IOException {
       super(weight);
-      if (hits.size()>0) {
-    	  this.hits = hits;
-    	  iterator = hits.iterator();
-      }
+      this.hits = hits;
       this.docBase = docBase;
+      this.acceptDocs = acceptDocs;
     }
 
     @Override
     public int nextDoc() throws IOException {
-    	if (iterator != null && iterator.hasNext()) {
-    		ScoreDoc hit = iterator.next();
-    		score = hit.score;
-    		return doc = hit.doc - docBase;
-    	}
-    	else {
-    		return doc = NO_MORE_DOCS;
-    	}
+    	return moveTo(pos + 1);
     }
     
     @Override
@@ -46,9 +47,22 @@ public class SecondOrderListOfDocsScorer extends Scorer {
 
     @Override
     public int advance(int target) throws IOException {
-    	while ((doc = nextDoc()) < target) {
-		}
-		return doc;
+    	return moveTo(hits.gallop(pos + 1, target + docBase));
+    }
+    
+    /* positions the scorer on the first accepted hit at or after 'next' */
+    private int moveTo(int next) {
+    	int size = hits.size();
+    	pos = next;
+    	while (pos < size) {
+    		int d = hits.doc(pos) - docBase;
+    		if (acceptDocs == null || acceptDocs.get(d)) {
+    			score = hits.score(pos);
+    			return doc = d;
+    		}
+    		pos++;
+    	}
+    	return doc = NO_MORE_DOCS;
     }
     
     @Override
@@ -58,10 +72,7 @@ public class SecondOrderListOfDocsScorer extends Scorer {
 
     @Override
     public long cost() {
-      if (this.hits != null) {
-        return this.hits.size();
-      }
-      return 0;
+      return hits.size(); // hits of this segment only
     }
     
   }
@@ -0,0 +1,159 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.AtomicReaderContext;
+
+/**
+ * The threaded mode of the {@link SecondOrderQuery}: the first-order
+ * query is executed over the index segments by several workers, each
+ * of them collects into its own buffer; at the end, the buffers are
+ * merged into the collector and organized (accumulated) as usual.
+ *
+ * The calling thread is always one of the workers. The other threads
+ * are limited per request (maxThreads) and for the whole JVM - all
+ * queries share one permit per cpu; when there are no permits left,
+ * the query runs on the calling thread only (as if it was not threaded)
+ * so that the heavy queries can use idle cores, but do not starve the
+ * other requests. The threads come from one pool of the same size
+ * (daemons, they go away when idle); the permits are the admission
+ * control, so a task never waits in the queue of the pool.
+ */
+final class SecondOrderParallelSearch {
+
+	private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final Semaphore permits = new Semaphore(NUM_THREADS);
+	private static final ExecutorService pool = createPool();
+
+	private SecondOrderParallelSearch() {}
+
+	/*
+	 * Returns false (without searching) if the search cannot run in parallel:
+	 * a single segment, no free permits or a collector which cannot be split.
+	 * When the budget (tracker, may be null) is exceeded, all the workers stop
+	 * and their hits are merged as usual
+	 */
+	static boolean search(final IndexSearcher searcher, Query query, Filter filter,
+			AbstractSecondOrderCollector collector, int maxThreads, 
+			final SecondOrderBudget.Tracker tracker) throws IOException {
+
+		final List<AtomicReaderContext> leaves = new ArrayList<AtomicReaderContext>(searcher.getIndexReader().leaves());
+		int wanted = Math.min(maxThreads > 0 ? maxThreads : Integer.MAX_VALUE, leaves.size()) - 1;
+		if (wanted < 1) {
+			return false;
+		}
+
+		List<AbstractSecondOrderCollector> workers = new ArrayList<AbstractSecondOrderCollector>(wanted);
+		int acquired = 0;
+		while (acquired < wanted && permits.tryAcquire()) {
+			AbstractSecondOrderCollector worker = collector.newWorker();
+			if (worker == null) {
+				permits.release(acquired + 1);
+				return false;
+			}
+			workers.add(worker);
+			acquired++;
+		}
+		if (acquired == 0) {
+			return false;
+		}
+
+		// the largest segments first, the small ones balance the end
+		Collections.sort(leaves, new Comparator<AtomicReaderContext>() {
+			public int compare(AtomicReaderContext a, AtomicReaderContext b) {
+				return b.reader().maxDoc() - a.reader().maxDoc();
+			}
+		});
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(acquired);
+		try {
+			final Weight weight = searcher.createNormalizedWeight(searcher.wrapFilter(query, filter));
+			final AtomicInteger next = new AtomicInteger(0);
+
+			for (final AbstractSecondOrderCollector worker: workers) {
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						collect(searcher, leaves, weight, guard(worker, tracker), next);
+						return null;
+					}
+				}));
+			}
+			collect(searcher, leaves, weight, guard(collector, tracker), next);
+
+			for (Future<Void> f: futures) {
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while collecting the second-order hits", e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+			}
+		}
+		finally {
+			for (Future<Void> f: futures) {
+				f.cancel(true); // only after a failure, the others are done
+			}
+			permits.release(acquired);
+		}
+
+		for (AbstractSecondOrderCollector worker: workers) {
+			collector.mergeWorker(worker);
+		}
+		return true;
+	}
+
+	/* the workers take the segments one by one until there are none left */
+	private static void collect(IndexSearcher searcher, List<AtomicReaderContext> leaves,
+			Weight weight, Collector worker, AtomicInteger next) throws IOException {
+		int i;
+		try {
+			while ((i = next.getAndIncrement()) < leaves.size()) {
+				searcher.search(Collections.singletonList(leaves.get(i)), weight, worker);
+			}
+		}
+		catch (SecondOrderBudget.ExceededException e) {
+			// the tracker knows, the other workers stop at their next check
+		}
+	}
+	
+	private static Collector guard(AbstractSecondOrderCollector worker, SecondOrderBudget.Tracker tracker) {
+		return tracker != null ? tracker.guard(worker) : worker;
+	}
+	
+	private static ExecutorService createPool() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "secondOrderQuery-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
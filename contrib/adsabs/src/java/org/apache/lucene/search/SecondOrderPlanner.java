@@ -0,0 +1,86 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
+
+/**
+ * Recognizes the chains of nested second-order queries that can be
+ * executed in one pass; {@link SecondOrderQuery#rewrite} replaces them
+ * with a single query. Currently these are (useful() and reviews()):
+ *
+ *   references(topn(N, classic_relevance(Q)))
+ *   citations(topn(N, classic_relevance(Q)))
+ *
+ * which become Q collected by {@link SecondOrderCollectorFusedExpansion}.
+ * The chain is fused only if the nested levels do not change the scores
+ * (no filters, boosts or other final value types); the results are the
+ * same as those of the nested queries.
+ */
+final class SecondOrderPlanner {
+
+	private SecondOrderPlanner() {}
+
+	/* the fused query, or null if the query is not one of the known chains */
+	static SecondOrderQuery fuse(SecondOrderQuery query) {
+		if (query.getFilter() != null) {
+			return null;
+		}
+
+		SecondOrderCollector expansion = query.getcollector();
+		SolrCacheWrapper cache;
+		if (expansion.getClass() == SecondOrderCollectorCitesRAM.class) {
+			cache = ((SecondOrderCollectorCitesRAM) expansion).getCache();
+		}
+		else if (expansion.getClass() == SecondOrderCollectorCitedBy.class
+				&& !((SecondOrderCollectorCitedBy) expansion).hasYearRange()) {
+			cache = ((SecondOrderCollectorCitedBy) expansion).getCache();
+		}
+		else {
+			return null;
+		}
+
+		SecondOrderQuery topQuery = nested(query.getQuery(), SecondOrderCollectorTopN.class);
+		if (topQuery == null) {
+			return null;
+		}
+		SecondOrderCollectorTopN top = (SecondOrderCollectorTopN) topQuery.getcollector();
+		if (!top.isRankedByScore()) {
+			return null;
+		}
+
+		SecondOrderQuery classicQuery = nested(topQuery.getQuery(), SecondOrderCollectorAdsClassicScoringFormula.class);
+		if (classicQuery == null) {
+			return null;
+		}
+		SecondOrderCollectorAdsClassicScoringFormula classic =
+				(SecondOrderCollectorAdsClassicScoringFormula) classicQuery.getcollector();
+
+		SecondOrderCollectorFusedExpansion fused = new SecondOrderCollectorFusedExpansion(cache,
+				classic.getBoostCache(), classic.getLucenePart(), classic.getAdsPart(), top.getTopN(), 
+				classic.getTopN() > 0);
+		fused.setFinalValueType(expansion.getFinalValueType());
+
+		SecondOrderQuery result = new SecondOrderQuery(classicQuery.getQuery(), null, fused);
+		result.setBoost(query.getBoost());
+		result.setTargetFilters(query.getTargetFilters());
+		result.setBudget(query.getBudget());
+		return result;
+	}
+
+	/*
+	 * The query if it is a second-order query with the given collector
+	 * which passes the scores unchanged
+	 */
+	private static SecondOrderQuery nested(Query query, Class<? extends SecondOrderCollector> collectorClass) {
+		if (!(query instanceof SecondOrderQuery)) {
+			return null;
+		}
+		SecondOrderQuery q = (SecondOrderQuery) query;
+		if (q.getcollector().getClass() != collectorClass
+				|| q.getFilter() != null
+				|| q.getBoost() != 1.0f
+				|| q.getcollector().getFinalValueType() != FinalValueType.MAX_VALUE) {
+			return null;
+		}
+		return q;
+	}
+}
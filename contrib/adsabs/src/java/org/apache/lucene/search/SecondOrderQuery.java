@@ -1,17 +1,30 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.ToStringUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
 
 
 /**
@@ -24,11 +37,29 @@ import org.apache.lucene.util.ToStringUtils;
 public class SecondOrderQuery extends Query {
 
 	private static final long serialVersionUID = -5670377581753190942L;
+	
+	/**
+	 * Name of the (optional) solr user cache which keeps the results
+	 * of the second-order queries; eg.
+	 * 
+	 * &lt;cache name="second-order-cache" class="solr.LRUCache" size="256"
+	 *     regenerator="org.apache.lucene.search.SecondOrderQuery$ResultRegenerator"/&gt;
+	 *     
+	 * When the cache is not configured, every query is executed.
+	 */
+	public static final String RESULT_CACHE = "second-order-cache";
+	
 	Query firstOrderQuery;
 	Filter filter = null;
 	private SecondOrderCollector secondOrderCollector;
 	private boolean threaded;
-	private boolean alreadyExecuted;
+	private int maxThreads = 0;
+	// the reader the collector has the hits for (solr re-runs the same
+	// query objects on the new searcher when it autowarms queryResultCache)
+	private WeakReference<IndexReader> executedOn = null;
+	private List<Query> targetFilters = null;
+	private SecondOrderBudget budget = null;
+	private volatile boolean partialResults = false;
 
 	/**
 	 * Constructs a new query which applies a filter to the results of the
@@ -46,7 +77,6 @@ public class SecondOrderQuery extends Query {
 		this.filter = filter;
 		this.secondOrderCollector = collector;
 		this.threaded = threaded;
-		this.alreadyExecuted = false;
 		
 		if (collector == null) {
 			throw new IllegalStateException("Collector must not be null");
@@ -87,40 +117,223 @@ public class SecondOrderQuery extends Query {
 	 * first-order query
 	 */
 	public Weight createWeight(final IndexSearcher searcher) throws IOException {
-	    
-		if (threaded) {
+		
+		SolrCache resultCache = getResultCache(searcher);
+		if (resultCache != null) {
+			ResultKey key = new ResultKey(this, 
+					((SolrIndexSearcher) searcher).getIndexReader().getVersion());
+			SecondOrderHits results = (SecondOrderHits) resultCache.get(key);
+			if (results != null) {
+				// the inner weight is not needed (nor created, it may execute a nested query)
+				return new SecondOrderWeight(firstOrderQuery, results);
+			}
+			Weight firstOrderWeight = firstOrderQuery.createWeight(searcher);
+			// the hits are cached only by the first execution: a query re-run on
+			// another searcher (autowarming) has its collectors bound to the caches
+			// of the searcher it was parsed for
+			boolean firstExecution = executedOn == null;
+			if (!execute(searcher, firstOrderWeight)) {
+				return new SecondOrderWeight(firstOrderWeight, secondOrderCollector);
+			}
+			results = secondOrderCollector.getSubReaderResults(0, searcher.getIndexReader().maxDoc());
+			results = results != null ? results.copy() : new SecondOrderHits(1);
+			results.setValueForNormalization(firstOrderWeight.getValueForNormalization());
+			if (firstExecution && !partialResults) {
+				resultCache.put(key, results);
+			}
+			return new SecondOrderWeight(firstOrderWeight, results);
+		}
+		
+		Weight firstOrderWeight = firstOrderQuery.createWeight(searcher);
+		
+		//System.out.println("preparing: " + this.secondOrderCollector);
+		
+		execute(searcher, firstOrderWeight);
+		
+		//System.out.println("done:" + this.secondOrderCollector);
+		
+		// no logging, we are basic lucene class
+		return new SecondOrderWeight(firstOrderWeight, secondOrderCollector);
+	}
+	
+	private boolean isExecutedOn(IndexReader reader) {
+		return executedOn != null && executedOn.get() == reader;
+	}
+	
+	/*
+	 * Collects the first-order hits; returns false if the collector 
+	 * could not be initialized (nothing was searched then)
+	 */
+	private boolean execute(IndexSearcher searcher, Weight firstOrderWeight) throws IOException {
+		
+		// TODO: can we avoid being called (initialized) in a loop?
+		// this looks like a bad design (on my side) if it happens
+		// it happens when 2nd order operators are nested
+		if (isExecutedOn(searcher.getIndexReader())) {
+			return true;
+		}
+		if (executedOn != null) {
+			// the hits are docids of another reader
+			secondOrderCollector.reset();
+			partialResults = false;
+			executedOn = null;
+		}
+		
+		SecondOrderBudget.Tracker tracker = null;
+		if (budget != null && secondOrderCollector instanceof AbstractSecondOrderCollector) {
+			((AbstractSecondOrderCollector) secondOrderCollector).capacityLimit = budget.getCapacityLimit();
+			tracker = budget.start(searcher.getIndexReader().maxDoc());
+		}
+		if (secondOrderCollector instanceof AbstractSecondOrderCollector) {
+			((AbstractSecondOrderCollector) secondOrderCollector).tracker = tracker;
+		}
+		try {
+			return execute(searcher, firstOrderWeight, tracker);
+		}
+		finally {
+			if (tracker != null) {
+				budget.finish(tracker);
+			}
+		}
+	}
+	
+	private boolean execute(IndexSearcher searcher, Weight firstOrderWeight, 
+			SecondOrderBudget.Tracker tracker) throws IOException {
+		
+		// conduct search only if initialization of necessary caches went well
+		if (!secondOrderCollector.searcherInitialization(searcher, firstOrderWeight)) {
+			return false;
+		}
+		
+		if (secondOrderCollector instanceof AbstractSecondOrderCollector) {
+			((AbstractSecondOrderCollector) secondOrderCollector).setTargetFilter(getTargetBits(searcher));
+		}
+		
+		try {
+			if (!threaded || !(secondOrderCollector instanceof AbstractSecondOrderCollector)
+					|| !SecondOrderParallelSearch.search(searcher, firstOrderQuery, filter, 
+							(AbstractSecondOrderCollector) secondOrderCollector, maxThreads, tracker)) {
+				searcher.search(firstOrderQuery, filter, tracker != null 
+						? tracker.guard((AbstractSecondOrderCollector) secondOrderCollector) 
+						: (Collector) secondOrderCollector);
+			}
+		}
+		catch (SecondOrderBudget.ExceededException e) {
+			// the tracker knows which limit it was
+		}
+		if (secondOrderCollector instanceof AbstractSecondOrderCollector) {
+			// the lazy expansions (they stop by themselves when over the budget)
+			((AbstractSecondOrderCollector) secondOrderCollector).finishCollection();
+		}
+		executedOn = new WeakReference<IndexReader>(searcher.getIndexReader());
+		
+		if (tracker != null && tracker.getExceeded() != null) {
+			budgetExceeded(tracker.getExceeded());
+		}
+		else if (hasPartialResults(firstOrderQuery)) {
+			partialResults = true; // the nested query reported it already
+		}
+		return true;
+	}
+	
+	/*
+	 * The collected hits are what we return (and the response says so)
+	 * or the request fails
+	 */
+	private void budgetExceeded(String limit) {
+		partialResults = true;
+		if (!budget.allowsPartialResults()) {
+			throw new SolrException(ErrorCode.BAD_REQUEST, 
+					"The query was stopped, it exceeded the limit " + limit + ": " + toString());
+		}
+		SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+		if (info != null && info.getRsp() != null) {
+			NamedList<Object> header = info.getRsp().getResponseHeader();
+			if (header != null && header.get("partialResults") == null) {
+				header.add("partialResults", Boolean.TRUE);
+			}
+		}
+	}
+	
+	private static boolean hasPartialResults(Query query) {
+		if (query instanceof SecondOrderQuery) {
+			return ((SecondOrderQuery) query).isPartialResults();
+		}
+		if (query instanceof BooleanQuery) {
+			for (BooleanClause c: ((BooleanQuery) query).clauses()) {
+				if (hasPartialResults(c.getQuery())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * The documents matched by all the target filters; null if there are
+	 * none or the collector cannot use them (the final scores normalized
+	 * over all the hits would change)
+	 */
+	private Bits getTargetBits(IndexSearcher searcher) throws IOException {
+		if (targetFilters == null 
+				|| !((AbstractSecondOrderCollector) secondOrderCollector).acceptsTargetFilter()) {
 			return null;
 		}
-		else {
-			
-			Weight firstOrderWeight = firstOrderQuery.createWeight(searcher);
-			
-			//System.out.println("preparing: " + this.secondOrderCollector);
-			
-			// conduct search only if initialization of necessary caches went well
-			if (!alreadyExecuted && secondOrderCollector.searcherInitialization(searcher, firstOrderWeight)) {
-				//System.out.println("Executing: " + firstOrderQuery.toString());
-				searcher.search(firstOrderQuery, filter, (Collector) secondOrderCollector);
-				
-				//System.out.println("  searching: " + this.secondOrderCollector);
-				
-				// TODO: can we avoid being called (initialized) in a loop?
-				// this looks like a bad design (on my side) if it happens
-				// it happens when 2nd order operators are nested
-				alreadyExecuted = true;
-				
-			}
-			
-			//System.out.println("done:" + this.secondOrderCollector);
-			
-			// no logging, we are basic lucene class
-			return new SecondOrderWeight(firstOrderWeight, secondOrderCollector);
+		switch (secondOrderCollector.getFinalValueType()) {
+			case GEOM_MEAN_NORM:
+			case ARITHM_MEAN_NORM:
+			case ABS_COUNT_NORM:
+			case AGRESTI_COULL:
+				return null;
+			default:
+				break;
+		}
+		
+		final int maxDoc = searcher.getIndexReader().maxDoc();
+		if (searcher instanceof SolrIndexSearcher) {
+			// the filter cache has them already (or will need them anyway)
+			final DocSet docs = ((SolrIndexSearcher) searcher).getDocSet(targetFilters);
+			return new Bits() {
+				public boolean get(int index) {
+					return docs.exists(index);
+				}
+				public int length() {
+					return maxDoc;
+				}
+			};
+		}
+		
+		BooleanQuery all = new BooleanQuery();
+		for (Query f: targetFilters) {
+			all.add(f, BooleanClause.Occur.MUST);
 		}
+		final FixedBitSet bits = new FixedBitSet(maxDoc);
+		searcher.search(new ConstantScoreQuery(all), new Collector() {
+			private int docBase;
+			public void setScorer(Scorer scorer) {}
+			public void collect(int doc) {
+				bits.set(docBase + doc);
+			}
+			public void setNextReader(AtomicReaderContext context) {
+				docBase = context.docBase;
+			}
+			public boolean acceptsDocsOutOfOrder() {
+				return true;
+			}
+		});
+		return bits;
 	}
 	
 
-	/** Rewrites the wrapped query. */
+	/** 
+	 * Rewrites the wrapped query; the known chains of nested second-order
+	 * queries are replaced by one query, see {@link SecondOrderPlanner}
+	 */
 	public Query rewrite(IndexReader reader) throws IOException {
+		SecondOrderQuery fused = SecondOrderPlanner.fuse(this);
+		if (fused != null) {
+			return fused;
+		}
 		Query rewritten = firstOrderQuery.rewrite(reader);
 		if (rewritten != firstOrderQuery) {
 			SecondOrderQuery clone = (SecondOrderQuery) this.clone();
@@ -143,6 +356,77 @@ public class SecondOrderQuery extends Query {
 		return secondOrderCollector;
 	}
 	
+	public boolean isThreaded() {
+		return threaded;
+	}
+	
+	/**
+	 * Maximum number of threads (including the calling one) that collect 
+	 * the first-order hits in the threaded mode; 0 = as many as there are
+	 * segments. All queries together never use more than one extra thread
+	 * per cpu.
+	 */
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+	
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+	
+	/**
+	 * Restricts the results to the documents matched by all the filters
+	 * (eg. the filter queries of the request): the collector drops the
+	 * other documents already while it expands the first-order hits, 
+	 * instead of buffering them for the filter which is applied later.
+	 * The filters become part of the query (equals, the result cache);
+	 * the query must not be nested inside another second-order query.
+	 * 
+	 * Returns false (and nothing changes) if the collector cannot filter
+	 * its hits; the filters are also ignored when the final scores are
+	 * normalized (they would change).
+	 */
+	public boolean setTargetFilters(List<Query> filters) {
+		if (!(secondOrderCollector instanceof AbstractSecondOrderCollector)
+				|| !((AbstractSecondOrderCollector) secondOrderCollector).acceptsTargetFilter()) {
+			return false;
+		}
+		targetFilters = filters == null || filters.size() == 0 ? null : new ArrayList<Query>(filters);
+		return true;
+	}
+	
+	public List<Query> getTargetFilters() {
+		return targetFilters;
+	}
+	
+	/**
+	 * Limits the time, the number of the collected edges and the memory
+	 * of the execution, see {@link SecondOrderBudget}. The budget is not
+	 * part of the query (equals); null = no limits.
+	 */
+	public void setBudget(SecondOrderBudget budget) {
+		this.budget = budget;
+	}
+	
+	public SecondOrderBudget getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * True if the execution was stopped by the budget (of this query or
+	 * of a nested one) and the results are incomplete
+	 */
+	public boolean isPartialResults() {
+		return partialResults;
+	}
+	
+	private SolrCache getResultCache(IndexSearcher searcher) {
+		if (searcher instanceof SolrIndexSearcher) {
+			return ((SolrIndexSearcher) searcher).getCache(RESULT_CACHE);
+		}
+		return null;
+	}
+	
 	/**
 	 * Recursively sets the implemantation type of the
 	 * final score (down the wrapped queries, if they
@@ -167,18 +451,40 @@ public class SecondOrderQuery extends Query {
 		buffer.append(firstOrderQuery.toString(s));
 		buffer.append(", filter=" + (filter!=null ? filter.toString() : "null"));
 		buffer.append(", collector=" + (secondOrderCollector!=null ? secondOrderCollector.toString() : "null"));
+		if (targetFilters != null) {
+			buffer.append(", targets=" + targetFilters);
+		}
 		buffer.append(")");
 		buffer.append(ToStringUtils.boost(getBoost()));
 		return buffer.toString();
 	}
 
-	/** Returns true iff <code>o</code> is equal to this. */
+	/*
+	 * The operator is identified by its description (the collectors
+	 * print their caches, incl. the direction, fields and parameters) - 
+	 * the same operator applied to the same query returns the same results
+	 */
+	private String getOperatorKey() {
+		return secondOrderCollector.getClass().getName() + ":" + secondOrderCollector.toString();
+	}
+
+	/** 
+	 * Returns true iff <code>o</code> is equal to this. The partial results
+	 * do not change the equality (the queries are keys of solr caches); 
+	 * they are not put into the result cache and the parser tells solr not
+	 * to cache the queries which may return them.
+	 */
 	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
 		if (o instanceof SecondOrderQuery) {
 			SecondOrderQuery fq = (SecondOrderQuery) o;
 			return (firstOrderQuery.equals(fq.firstOrderQuery) 
-					&& (filter != null ? filter.equals(fq.filter) : true)
-					&& secondOrderCollector.equals(fq.secondOrderCollector)
+					&& (filter != null ? filter.equals(fq.filter) : fq.filter == null)
+					&& secondOrderCollector.getFinalValueType() == fq.secondOrderCollector.getFinalValueType()
+					&& getOperatorKey().equals(fq.getOperatorKey())
+					&& (targetFilters != null ? targetFilters.equals(fq.targetFilters) : fq.targetFilters == null)
 					&& getBoost() == fq.getBoost());
 		}
 		return false;
@@ -186,15 +492,141 @@ public class SecondOrderQuery extends Query {
 
 	/** Returns a hash code value for this object. */
 	public int hashCode() {
+		int h = firstOrderQuery.hashCode() ^ getOperatorKey().hashCode() 
+				^ secondOrderCollector.getFinalValueType().hashCode();
 		if (filter != null) {
-			return firstOrderQuery.hashCode() ^ filter.hashCode() ^ secondOrderCollector.hashCode()
-				+ Float.floatToRawIntBits(getBoost());
+			h ^= filter.hashCode();
+		}
+		if (targetFilters != null) {
+			h ^= 31 * targetFilters.hashCode();
+		}
+		return h + Float.floatToRawIntBits(getBoost());
+	}
+	
+	
+	/**
+	 * Key of the result cache: the query (its operator, final value type,
+	 * the first-order query, the filter and the target filters) and the version of the index
+	 * it was executed against. The boost is not part of the key, it does
+	 * not change the collected hits.
+	 * 
+	 * The nested second-order queries are replaced by their (detached) 
+	 * keys: the query objects keep the hits of their collectors, which 
+	 * must not stay in the cache with the results.
+	 */
+	static final class ResultKey {
+		private final String operator;
+		private final FinalValueType type;
+		private final Object query;
+		private final Filter filter;
+		private final List<Query> targetFilters;
+		private final long indexVersion;
+		private final int hash;
+		
+		ResultKey(SecondOrderQuery q, long indexVersion) {
+			this.operator = q.getOperatorKey();
+			this.type = q.secondOrderCollector.getFinalValueType();
+			this.query = detach(q.firstOrderQuery, indexVersion);
+			this.filter = q.filter;
+			this.targetFilters = q.targetFilters;
+			this.indexVersion = indexVersion;
+			int h = operator.hashCode() ^ query.hashCode() ^ type.hashCode();
+			if (filter != null) {
+				h ^= filter.hashCode();
+			}
+			if (targetFilters != null) {
+				h ^= 31 * targetFilters.hashCode();
+			}
+			this.hash = 31 * h + (int) (indexVersion ^ (indexVersion >>> 32));
+		}
+		
+		long getIndexVersion() {
+			return indexVersion;
+		}
+		
+		/*
+		 * The query, or its description if it contains second-order queries
+		 * (their boost changes the hits of the outer query)
+		 */
+		private static Object detach(Query query, long indexVersion) {
+			if (query instanceof SecondOrderQuery) {
+				return Arrays.<Object>asList(new ResultKey((SecondOrderQuery) query, indexVersion), 
+						query.getBoost());
+			}
+			if (query instanceof BooleanQuery && hasSecondOrderQuery(query)) {
+				BooleanQuery bq = (BooleanQuery) query;
+				List<Object> parts = new ArrayList<Object>();
+				parts.add(bq.getBoost());
+				parts.add(bq.getMinimumNumberShouldMatch());
+				parts.add(bq.isCoordDisabled());
+				for (BooleanClause c: bq.clauses()) {
+					parts.add(c.getOccur());
+					parts.add(detach(c.getQuery(), indexVersion));
+				}
+				return parts;
+			}
+			return query;
+		}
+		
+		private static boolean hasSecondOrderQuery(Query query) {
+			if (query instanceof SecondOrderQuery) {
+				return true;
+			}
+			if (query instanceof BooleanQuery) {
+				for (BooleanClause c: ((BooleanQuery) query).clauses()) {
+					if (hasSecondOrderQuery(c.getQuery())) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
 		}
 		
-		return firstOrderQuery.hashCode() ^ secondOrderCollector.hashCode()
-				+ Float.floatToRawIntBits(getBoost());
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ResultKey)) return false;
+			ResultKey k = (ResultKey) o;
+			return hash == k.hash && indexVersion == k.indexVersion
+					&& type == k.type
+					&& operator.equals(k.operator)
+					&& query.equals(k.query)
+					&& (filter != null ? filter.equals(k.filter) : k.filter == null)
+					&& (targetFilters != null ? targetFilters.equals(k.targetFilters) : k.targetFilters == null);
+		}
+		
+		@Override
+		public String toString() {
+			return operator + "(" + query + ", filter=" + filter + ", targets=" + targetFilters + ", type=" + type + ", version=" + indexVersion + ")";
+		}
 	}
 	
 	
+	/**
+	 * Autowarming of the result cache. The docids (and the citation
+	 * caches the operators were using) belong to the old searcher, so 
+	 * the entries survive only when the index did not change (ie. the
+	 * new searcher was opened over the same commit point). Re-executing
+	 * the queries is not possible, the collectors are bound to the 
+	 * caches of the old searcher.
+	 */
+	public static class ResultRegenerator implements CacheRegenerator {
+		@Override
+		public boolean regenerateItem(SolrIndexSearcher newSearcher, 
+				SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) 
+				throws IOException {
+			if (oldKey instanceof ResultKey 
+					&& ((ResultKey) oldKey).getIndexVersion() == newSearcher.getIndexReader().getVersion()) {
+				newCache.put(oldKey, oldVal);
+				return true;
+			}
+			// all entries come from the same searcher; no point to continue
+			return false;
+		}
+	}
 	
 }
@@ -1,7 +1,6 @@
 package org.apache.lucene.search;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.index.AtomicReaderContext;
@@ -11,40 +10,67 @@ public class SecondOrderWeight extends Weight {
 
   private static final long serialVersionUID = 1999318155593404879L;
   private final Weight innerWeight;
+  private final Query query;
   private SecondOrderCollector secondOrderCollector;
+  private SecondOrderHits results;
   private Map<Integer, Integer> docStarts;
 
   public SecondOrderWeight(Weight weight,
       SecondOrderCollector collector) throws IOException {
     this.innerWeight = weight;
+    this.query = weight.getQuery();
     this.secondOrderCollector = collector;
 
   }
 
+  /**
+   * Serves the (cached) hits of the whole index, sorted by docid; the
+   * first-order query is not executed again
+   */
+  public SecondOrderWeight(Weight weight, SecondOrderHits results) throws IOException {
+    this.innerWeight = weight;
+    this.query = weight.getQuery();
+    this.results = results;
+  }
+
+  /**
+   * As above, but without the weight of the first-order query (on a hit
+   * of the result cache, creating it would run a nested second-order query)
+   */
+  public SecondOrderWeight(Query query, SecondOrderHits results) throws IOException {
+    this.innerWeight = null;
+    this.query = query;
+    this.results = results;
+  }
+
 
   @Override
   public Query getQuery() {
-    return innerWeight.getQuery();
+    return query;
   }
 
 
   @Override
   public float getValueForNormalization() throws IOException {
-    return innerWeight.getValueForNormalization();
+    // the cached hits keep the value of the weight which produced them
+    return innerWeight != null ? innerWeight.getValueForNormalization() 
+        : results.getValueForNormalization();
   }
 
   @Override
   public void normalize(float norm, float topLevelBoost) {
-    innerWeight.normalize(norm, topLevelBoost);
+    if (innerWeight != null)
+      innerWeight.normalize(norm, topLevelBoost);
   }
 
   @Override
   public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
     int docBase = context.docBase;
     int maxRange = docBase + context.reader().maxDoc();
-    List<CollectorDoc> hits = secondOrderCollector.getSubReaderResults(docBase, maxRange);
+    SecondOrderHits hits = results != null ? results.slice(docBase, maxRange)
+        : secondOrderCollector.getSubReaderResults(docBase, maxRange);
     if (hits == null || hits.size() == 0) return null;
-    return new SecondOrderListOfDocsScorer(innerWeight, hits, docBase);
+    return new SecondOrderListOfDocsScorer(innerWeight != null ? innerWeight : this, hits, docBase, acceptDocs);
   }
 
   @Override
@@ -56,6 +82,14 @@ public class SecondOrderWeight extends Weight {
   @Override
   public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
     //TODO: modify
+    if (innerWeight == null) {
+      int docid = context.docBase + doc;
+      SecondOrderHits hits = results.slice(docid, docid + 1);
+      if (hits == null || hits.size() == 0) {
+        return new ComplexExplanation(false, 0.0f, "not in the (cached) second-order results");
+      }
+      return new ComplexExplanation(true, hits.score(0), "the (cached) second-order score");
+    }
     return innerWeight.explain(context, doc);
   }
 }
\ No newline at end of file
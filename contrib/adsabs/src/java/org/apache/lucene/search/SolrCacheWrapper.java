@@ -3,7 +3,10 @@ package org.apache.lucene.search;
 import java.lang.ref.SoftReference;
 
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
 import org.apache.solr.search.SolrCache;
 
 public abstract class SolrCacheWrapper<T extends SolrCache<?,?>> implements CacheWrapper {
@@ -40,6 +43,30 @@ public abstract class SolrCacheWrapper<T extends SolrCache<?,?>> implements Cach
   public int[] getLuceneDocIds(int sourceDocid, Object sourceValue) {
 		throw new NotImplementedException();
   }
+  
+  /*
+   * Same as getLuceneDocIds(int) but the values are decoded while
+   * iterating; the 'reuse' cursor (may be null) is recycled
+   */
+  public RelationshipsCursor iterateLuceneDocIds(int sourceDocid, RelationshipsCursor reuse) {
+  	throw new NotImplementedException();
+  }
+  
+  /*
+   * Same as iterateLuceneDocIds(int, RelationshipsCursor), only the
+   * documents published in the years fromYear...toYear
+   */
+  public RelationshipsCursor iterateLuceneDocIds(int sourceDocid, int fromYear, int toYear, RelationshipsCursor reuse) {
+  	throw new NotImplementedException();
+  }
+  
+  /*
+   * Lucene docids of the documents identified by the terms (ordinals)
+   * of the field in the given segment; -1 = not in the index
+   */
+  public int[] getOrdinalTargets(AtomicReader reader, String field, SortedSetDocValues ords) {
+  	throw new NotImplementedException();
+  }
 	
 	@Override
 	public String toString() {
@@ -71,18 +98,30 @@ public abstract class SolrCacheWrapper<T extends SolrCache<?,?>> implements Cach
 	    super(cache);
     }
 		
+		@Override
+	  public String internalToString() {
+	    return super.internalToString() + ":references";
+	  }
+		
 		@Override
 	  public int[] getLuceneDocIds(int sourceDocid) {
 		  return cache.get().getReferences(sourceDocid);
 	  }
 		
+		@Override
+		public RelationshipsCursor iterateLuceneDocIds(int sourceDocid, RelationshipsCursor reuse) {
+			return cache.get().getReferences(sourceDocid, reuse);
+		}
+		
     @Override
 		public int getLuceneDocId(int sourceDocid, Object sourceValue) {
-    	Object v = cache.get().get(sourceValue);
-    	if (v == null)
-    		return -1;
-    	return (Integer) v;
+    	return cache.get().getDocId(sourceValue);
 	  }
+		
+		@Override
+		public int[] getOrdinalTargets(AtomicReader reader, String field, SortedSetDocValues ords) {
+			return cache.get().getOrdinalTargets(reader, field, ords);
+		}
 	}
 	
 	public static class CitationsCache extends SolrCacheWrapper<CitationLRUCache<Object, Integer>> {
@@ -91,17 +130,34 @@ public abstract class SolrCacheWrapper<T extends SolrCache<?,?>> implements Cach
 	    super(cache);
     }
 		
+		@Override
+	  public String internalToString() {
+	    return super.internalToString() + ":citations";
+	  }
+		
 		@Override
 	  public int[] getLuceneDocIds(int sourceDocid) {
 		  return cache.get().getCitations(sourceDocid);
 	  }
 		
+		@Override
+		public RelationshipsCursor iterateLuceneDocIds(int sourceDocid, RelationshipsCursor reuse) {
+			return cache.get().getCitations(sourceDocid, reuse);
+		}
+		
+		@Override
+		public RelationshipsCursor iterateLuceneDocIds(int sourceDocid, int fromYear, int toYear, RelationshipsCursor reuse) {
+			return cache.get().getCitations(sourceDocid, fromYear, toYear, reuse);
+		}
+		
 		@Override
 		public int getLuceneDocId(int sourceDocid, Object sourceValue) {
-    	Object v = cache.get().get(sourceValue);
-    	if (v == null)
-    		return -1;
-    	return (Integer) v;
+    	return cache.get().getDocId(sourceValue);
 	  }
+		
+		@Override
+		public int[] getOrdinalTargets(AtomicReader reader, String field, SortedSetDocValues ords) {
+			return cache.get().getOrdinalTargets(reader, field, ords);
+		}
 	}
 }
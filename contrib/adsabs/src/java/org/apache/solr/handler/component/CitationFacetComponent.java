@@ -0,0 +1,187 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+
+/**
+ * Range facets over the number of citations, taken from the citation
+ * cache (the live degrees, not the indexed citation_count):
+ *
+ *   citations        - the documents of the result set by the number
+ *                      of their citations
+ *   cited_by_results - the documents by the number of the citations
+ *                      coming from the result set itself
+ *
+ * The bins are given by their lower bounds (citation_facet.bins), by
+ * default on the log scale: 0, 1-9, 10-99, ... 10000+. Both facets are
+ * counted in one pass over the DocSet and the citations of its documents.
+ *
+ * Params:
+ *   citation_facet=true   - enables the component
+ *   citation_facet.bins   - the lower bounds (0,1,10,100,1000,10000)
+ *   citation_facet.cache  - the citation cache (citations-cache)
+ */
+public class CitationFacetComponent extends SearchComponent {
+
+  public static final String COMPONENT_NAME = "citation_facet";
+
+  public static final String BINS = COMPONENT_NAME + ".bins";
+  public static final String CACHE = COMPONENT_NAME + ".cache";
+
+  public static final int[] DEFAULT_BINS = new int[] {0, 1, 10, 100, 1000, 10000};
+
+  @Override
+  public void prepare(ResponseBuilder rb) throws IOException {
+    if (rb.req.getParams().getBool(COMPONENT_NAME, false)) {
+      rb.setNeedDocSet(true);
+    }
+  }
+
+  @Override
+  public void process(ResponseBuilder rb) throws IOException {
+    SolrParams params = rb.req.getParams();
+    if (!params.getBool(COMPONENT_NAME, false)) {
+      return;
+    }
+
+    DocSet docs = rb.getResults() != null ? rb.getResults().docSet : null;
+    if (docs == null) {
+      return;
+    }
+
+    String cacheName = params.get(CACHE, "citations-cache");
+    SolrCache<?, ?> solrCache = rb.req.getSearcher().getCache(cacheName);
+    if (!(solrCache instanceof CitationLRUCache)) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "Unknown citation cache: " + cacheName);
+    }
+    CitationLRUCache<?, ?> cache = (CitationLRUCache<?, ?>) solrCache;
+    int[] bins = parseBins(params.get(BINS));
+
+    int[] citations = new int[bins.length];
+    int[] citedByResults = new int[bins.length];
+    long internal = 0;
+
+    RelationshipsCursor cursor = null;
+    DocIterator it = docs.iterator();
+    while (it.hasNext()) {
+      cursor = cache.getCitations(it.nextDoc(), cursor);
+      int degree = 0;
+      int fromResults = 0;
+      while (cursor.hasNext()) {
+        int c = cursor.next();
+        if (c < 0)
+          continue;
+        degree++;
+        if (docs.exists(c))
+          fromResults++;
+      }
+      citations[bin(bins, degree)]++;
+      citedByResults[bin(bins, fromResults)]++;
+      internal += fromResults;
+    }
+
+    NamedList<Object> out = new SimpleOrderedMap<Object>();
+    out.add("citations", toNamedList(bins, citations));
+    out.add("cited_by_results", toNamedList(bins, citedByResults));
+    out.add("citations_within_results", internal);
+    rb.rsp.add(COMPONENT_NAME, out);
+  }
+
+  /* ascending distinct lower bounds, the first one is 0 */
+  static int[] parseBins(String value) {
+    if (value == null || value.trim().length() == 0) {
+      return DEFAULT_BINS;
+    }
+    List<String> parts = StrUtils.splitSmart(value, ',');
+    int[] bins = new int[parts.size()];
+    try {
+      for (int i=0; i<bins.length; i++) {
+        bins[i] = Integer.parseInt(parts.get(i).trim());
+      }
+    }
+    catch (NumberFormatException e) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "Wrong " + BINS + ": " + value);
+    }
+    Arrays.sort(bins);
+    if (bins[0] < 0) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "Wrong " + BINS + ": " + value);
+    }
+    int[] distinct = new int[bins.length + 1];
+    int n = 0;
+    if (bins[0] > 0) {
+      distinct[n++] = 0;
+    }
+    for (int b: bins) {
+      if (n == 0 || distinct[n-1] != b) {
+        distinct[n++] = b;
+      }
+    }
+    return Arrays.copyOf(distinct, n);
+  }
+
+  /* the bin of the value (the last lower bound <= value) */
+  private static int bin(int[] bins, int value) {
+    int i = Arrays.binarySearch(bins, value);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /* "0", "1-9", ..., "10000+" */
+  private static NamedList<Object> toNamedList(int[] bins, int[] counts) {
+    NamedList<Object> out = new SimpleOrderedMap<Object>();
+    for (int i=0; i<bins.length; i++) {
+      String label;
+      if (i == bins.length - 1) {
+        label = bins[i] + "+";
+      }
+      else if (bins[i+1] - 1 == bins[i]) {
+        label = Integer.toString(bins[i]);
+      }
+      else {
+        label = bins[i] + "-" + (bins[i+1] - 1);
+      }
+      out.add(label, counts[i]);
+    }
+    return out;
+  }
+
+  @Override
+  public String getDescription() {
+    return "range facets over the number of citations from the citation cache";
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+}
@@ -0,0 +1,369 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Computes the citation indicators of all the documents found by the
+ * query (the DocSet, not only the returned page):
+ *
+ *   h-index   - h papers have at least h citations
+ *   g-index   - the g most cited papers have at least g^2 citations
+ *   i10-index - papers with at least 10 citations
+ *   tori      - citations weighted by 1/(references of the citing paper)
+ *               and divided by the number of the authors of the paper
+ *   riq       - 1000 * sqrt(tori) / (years between the first and the
+ *               last paper + 1)
+ *
+ * The numbers of citations are the degrees from the citation cache, so
+ * no document is loaded. With metrics.self=true the same indicators are
+ * computed from the citations without self-citations (the citing paper
+ * shares an author with the cited one) and with metrics.histograms=true
+ * the papers and citations are counted per year; all in one pass over
+ * the documents. The authors and years are read per index segment (from
+ * the field cache entries of the segments); the authors only of the
+ * cited papers and, for metrics.self, of the citing ones.
+ *
+ * Params:
+ *   metrics=true           - enables the component
+ *   metrics.cache          - the citation cache (citations-cache)
+ *   metrics.self           - also exclude the self-citations (false)
+ *   metrics.histograms     - per-year counts (false)
+ *   metrics.author_field   - the authors, one term per author (author_norm)
+ *   metrics.year_field     - the year of publication (year)
+ */
+public class CitationMetricsComponent extends SearchComponent {
+
+  public static final String COMPONENT_NAME = "metrics";
+
+  public static final String CACHE = COMPONENT_NAME + ".cache";
+  public static final String SELF = COMPONENT_NAME + ".self";
+  public static final String HISTOGRAMS = COMPONENT_NAME + ".histograms";
+  public static final String AUTHOR_FIELD = COMPONENT_NAME + ".author_field";
+  public static final String YEAR_FIELD = COMPONENT_NAME + ".year_field";
+
+  @Override
+  public void prepare(ResponseBuilder rb) throws IOException {
+    if (rb.req.getParams().getBool(COMPONENT_NAME, false)) {
+      rb.setNeedDocSet(true);
+    }
+  }
+
+  @Override
+  public void process(ResponseBuilder rb) throws IOException {
+    SolrParams params = rb.req.getParams();
+    if (!params.getBool(COMPONENT_NAME, false)) {
+      return;
+    }
+
+    DocSet docs = rb.getResults() != null ? rb.getResults().docSet : null;
+    if (docs == null) {
+      return;
+    }
+
+    SolrIndexSearcher searcher = rb.req.getSearcher();
+    String cacheName = params.get(CACHE, "citations-cache");
+    SolrCache<?, ?> cache = searcher.getCache(cacheName);
+    if (!(cache instanceof CitationLRUCache)) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "Unknown citation cache: " + cacheName);
+    }
+
+    boolean self = params.getBool(SELF, false);
+    boolean histograms = params.getBool(HISTOGRAMS, false);
+
+    Metrics metrics = new Metrics((CitationLRUCache<?, ?>) cache, docs.size(), self, histograms,
+        fieldOrds(searcher, params.get(AUTHOR_FIELD, "author_norm")),
+        fieldOrds(searcher, params.get(YEAR_FIELD, "year")));
+    DocIterator it = docs.iterator();
+    while (it.hasNext()) {
+      metrics.add(it.nextDoc());
+    }
+
+    rb.rsp.add(COMPONENT_NAME, metrics.toNamedList());
+  }
+
+  /* terms of the field, null if not indexed */
+  private SegmentOrds fieldOrds(SolrIndexSearcher searcher, String field) {
+    if (searcher.getAtomicReader().getFieldInfos().fieldInfo(field) == null) {
+      return null;
+    }
+    return new SegmentOrds(searcher.getTopReaderContext().leaves(), field);
+  }
+
+
+  /*
+   * The terms of a field by the top-level docid, read from the segment
+   * of the document; the field cache entry of a segment is taken when
+   * the first document of the segment asks for it
+   */
+  static class SegmentOrds {
+
+    private final List<AtomicReaderContext> leaves;
+    private final String field;
+    private final SortedSetDocValues[] values;
+
+    SegmentOrds(List<AtomicReaderContext> leaves, String field) {
+      this.leaves = leaves;
+      this.field = field;
+      this.values = new SortedSetDocValues[leaves.size()];
+    }
+
+    /* the ordinals (of its segment) of the document, see SortedSetDocValues.nextOrd() */
+    SortedSetDocValues setDocument(int docid) throws IOException {
+      int i = ReaderUtil.subIndex(docid, leaves);
+      if (values[i] == null) {
+        values[i] = FieldCache.DEFAULT.getDocTermOrds(leaves.get(i).reader(), field);
+      }
+      values[i].setDocument(docid - leaves.get(i).docBase);
+      return values[i];
+    }
+  }
+
+
+  /*
+   * Accumulates the counts of the documents; the indicators are computed
+   * at the end (they need the counts sorted)
+   */
+  static class Metrics {
+
+    private final CitationLRUCache<?, ?> cache;
+    private final boolean self;
+    private final boolean histograms;
+    private final SegmentOrds authors;
+    private final SegmentOrds years;
+
+    private int numPapers = 0;
+    private int[] citations;
+    private int[] nonSelf;
+    private double tori = 0.0d;
+    private double nonSelfTori = 0.0d;
+    private int firstYear = Integer.MAX_VALUE;
+    private int lastYear = Integer.MIN_VALUE;
+    private TreeMap<Integer, int[]> perYear = new TreeMap<Integer, int[]>(); // papers, citations, non-self
+
+    private RelationshipsCursor citing;
+    private RelationshipsCursor refs;
+    private BytesRef[] paperAuthors = new BytesRef[0];
+    private BytesRef term = new BytesRef();
+
+    Metrics(CitationLRUCache<?, ?> cache, int size, boolean self, boolean histograms,
+        SegmentOrds authors, SegmentOrds years) {
+      this.cache = cache;
+      this.self = self && authors != null;
+      this.histograms = histograms;
+      this.authors = authors;
+      this.years = years;
+      this.citations = new int[size];
+      this.nonSelf = this.self ? new int[size] : null;
+    }
+
+    void add(int docid) throws IOException {
+      int numAuthors = -1; // loaded with the first citation
+      int numCitations = 0;
+      int numNonSelf = 0;
+      double paperTori = 0.0d;
+      double paperNonSelfTori = 0.0d;
+
+      citing = cache.getCitations(docid, citing);
+      while (citing.hasNext()) {
+        int c = citing.next();
+        if (c < 0)
+          continue;
+        numCitations++;
+        if (numAuthors < 0) {
+          numAuthors = loadAuthors(docid);
+        }
+        refs = cache.getReferences(c, refs);
+        double weight = 1.0d / Math.max(1, refs.size());
+        paperTori += weight;
+        if (self && !sharesAuthor(c, numAuthors)) {
+          numNonSelf++;
+          paperNonSelfTori += weight;
+        }
+      }
+
+      citations[numPapers] = numCitations;
+      if (numCitations > 0) {
+        tori += paperTori / Math.max(1, numAuthors);
+      }
+      if (self) {
+        nonSelf[numPapers] = numNonSelf;
+        if (numNonSelf > 0) {
+          nonSelfTori += paperNonSelfTori / Math.max(1, numAuthors);
+        }
+      }
+      numPapers++;
+
+      int year = getYear(docid);
+      if (year != Integer.MIN_VALUE) {
+        firstYear = Math.min(firstYear, year);
+        lastYear = Math.max(lastYear, year);
+        if (histograms) {
+          int[] counts = perYear.get(year);
+          if (counts == null) {
+            counts = new int[3];
+            perYear.put(year, counts);
+          }
+          counts[0]++;
+          counts[1] += numCitations;
+          counts[2] += numNonSelf;
+        }
+      }
+    }
+
+    /*
+     * The authors of the paper (sorted, the ordinals are in the order of
+     * the terms); returns their number. The terms are copied, the citing
+     * papers may come from other segments (with other ordinals)
+     */
+    private int loadAuthors(int docid) throws IOException {
+      if (authors == null)
+        return 0;
+      SortedSetDocValues values = authors.setDocument(docid);
+      int n = 0;
+      long ord;
+      while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+        if (n == paperAuthors.length) {
+          paperAuthors = Arrays.copyOf(paperAuthors, Math.max(16, n * 2));
+        }
+        if (paperAuthors[n] == null) {
+          paperAuthors[n] = new BytesRef();
+        }
+        values.lookupOrd(ord, term);
+        paperAuthors[n++].copyBytes(term);
+      }
+      return n;
+    }
+
+    private boolean sharesAuthor(int docid, int numAuthors) throws IOException {
+      if (numAuthors == 0)
+        return false;
+      SortedSetDocValues values = authors.setDocument(docid);
+      long ord;
+      while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+        values.lookupOrd(ord, term);
+        if (Arrays.binarySearch(paperAuthors, 0, numAuthors, term) >= 0)
+          return true;
+      }
+      return false;
+    }
+
+    /* the first four digits of the (first) year value */
+    private int getYear(int docid) throws IOException {
+      if (years == null)
+        return Integer.MIN_VALUE;
+      SortedSetDocValues values = years.setDocument(docid);
+      long ord = values.nextOrd();
+      if (ord == SortedSetDocValues.NO_MORE_ORDS)
+        return Integer.MIN_VALUE;
+      values.lookupOrd(ord, term);
+      String value = term.utf8ToString();
+      try {
+        return Integer.parseInt(value.length() > 4 ? value.substring(0, 4) : value);
+      }
+      catch (NumberFormatException e) {
+        return Integer.MIN_VALUE;
+      }
+    }
+
+    NamedList<Object> toNamedList() {
+      NamedList<Object> out = new SimpleOrderedMap<Object>();
+      out.add("papers", numPapers);
+      indicators(out, citations, tori);
+      if (self) {
+        NamedList<Object> ns = new SimpleOrderedMap<Object>();
+        indicators(ns, nonSelf, nonSelfTori);
+        out.add("nonself", ns);
+      }
+      if (histograms) {
+        NamedList<Object> hist = new SimpleOrderedMap<Object>();
+        for (Entry<Integer, int[]> e: perYear.entrySet()) {
+          NamedList<Object> y = new SimpleOrderedMap<Object>();
+          y.add("papers", e.getValue()[0]);
+          y.add("citations", e.getValue()[1]);
+          if (self) {
+            y.add("nonself_citations", e.getValue()[2]);
+          }
+          hist.add(Integer.toString(e.getKey()), y);
+        }
+        out.add("histograms", hist);
+      }
+      return out;
+    }
+
+    private void indicators(NamedList<Object> out, int[] counts, double tori) {
+      int[] sorted = Arrays.copyOf(counts, numPapers);
+      Arrays.sort(sorted); // ascending, the most cited is the last
+
+      long total = 0;
+      int h = 0, g = 0, i10 = 0;
+      for (int rank=1; rank<=numPapers; rank++) {
+        int c = sorted[numPapers - rank];
+        total += c;
+        if (c >= rank)
+          h = rank;
+        if (total >= (long) rank * rank)
+          g = rank;
+        if (c >= 10)
+          i10++;
+      }
+
+      out.add("citations", total);
+      out.add("h", h);
+      out.add("g", g);
+      out.add("i10", i10);
+      out.add("tori", (float) tori);
+      if (firstYear <= lastYear) {
+        out.add("riq", (int) (1000.0d * Math.sqrt(tori) / (lastYear - firstYear + 1)));
+      }
+    }
+  }
+
+  @Override
+  public String getDescription() {
+    return "h-index, g-index, i10, tori and riq of the search results";
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+}
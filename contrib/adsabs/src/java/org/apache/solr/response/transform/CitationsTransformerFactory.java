@@ -192,33 +192,17 @@ class CitationsTransform extends DocTransformer
 	  return data;
   }
 
+	// the counts were computed when the cache was built (unresolved refs excluded)
 	private int getCitationCount(SolrDocument doc, int docid) {
-		int[] v = cache.getCitations(docid);
-		if (v != null) {
-			return _count(v);
-		}
-		else {
-			return 0;
-		}
+		return _count(cache.getCitationCounts(), docid);
   }
 
-	private int _count(int[] v) {
-		int res = 0;
-		for (int x: v) {
-			if (x >= 0)
-				res++;
-		}
-		return res;
+	private int _count(int[] counts, int docid) {
+		return docid < counts.length ? counts[docid] : 0;
   }
 
 	private int getReferenceCount(SolrDocument doc, int docid) {
-		int[] v = cache.getReferences(docid);
-		if (v != null) {
-			return _count(v);
-		}
-		else {
-			return 0;
-		}
+		return _count(cache.getReferenceCounts(), docid);
   }
   
   
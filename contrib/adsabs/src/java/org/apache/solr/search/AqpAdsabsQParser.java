@@ -2,7 +2,9 @@ package org.apache.solr.search;
 
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -25,7 +27,11 @@ import org.apache.lucene.queryparser.flexible.aqp.config.AqpAdsabsQueryConfigHan
 import org.apache.lucene.queryparser.flexible.aqp.config.AqpRequestParams;
 import org.apache.lucene.queryparser.flexible.aqp.config.AqpAdsabsQueryConfigHandler.ConfigurationKeys;
 import org.apache.lucene.queryparser.flexible.aqp.parser.AqpStandardQueryConfigHandler;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SecondOrderBudget;
+import org.apache.lucene.search.SecondOrderQuery;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
@@ -51,6 +57,30 @@ public class AqpAdsabsQParser extends QParser {
 
 	public static final Logger log = LoggerFactory
 	.getLogger(AqpAdsabsQParser.class);
+	
+	/**
+	 * Request parameter; when true (default), the filter queries (fq) of
+	 * the request are passed down to the second-order queries of the main
+	 * query, see {@link SecondOrderQuery#setTargetFilters(List)}
+	 */
+	public static final String FILTER_PUSHDOWN = "aqp.filter_pushdown";
+	
+	/**
+	 * Limits of the second-order queries (see {@link SecondOrderBudget}),
+	 * they can be set in the parser defaults (solrconfig.xml) or in the 
+	 * request: the maximum number of the collected edges, the maximum
+	 * memory (MB) of the collected hits, the time (ms) - the request 
+	 * parameter timeAllowed has precedence - and whether to return the
+	 * partial results (default) or fail when a limit is reached
+	 */
+	public static final String MAX_EDGES = "aqp.second_order.max_edges";
+	public static final String MAX_MEMORY = "aqp.second_order.max_memory";
+	public static final String TIME_ALLOWED = "aqp.second_order.time_allowed";
+	public static final String PARTIAL_RESULTS = "aqp.second_order.partial_results";
+	
+	// set (in the request context) while a query is parsed, the nested
+	// queries (eg. citations(...)) are parsed by other instances
+	private static final String PARSING = "aqp.parsing";
 
 	private AqpQueryParser qParser;
 
@@ -248,7 +278,23 @@ public class AqpAdsabsQParser extends QParser {
 			//  QueryConfigHandler config = qParser.getQueryConfigHandler();
 			//  return qParser.parse(getString() + config.get(AqpAdsabsQueryConfigHandler.ConfigurationKeys.DUMMY_VALUE), null);
 			//}
-			return qParser.parse(getString(), null);
+			boolean nested = getReq().getContext().containsKey(PARSING);
+			if (!nested) {
+				getReq().getContext().put(PARSING, Boolean.TRUE);
+			}
+			try {
+				Query query = qParser.parse(getString(), null);
+				pushDownFilters(query);
+				if (applyBudget(query) && !nested) {
+					return uncached(query);
+				}
+				return query;
+			}
+			finally {
+				if (!nested) {
+					getReq().getContext().remove(PARSING);
+				}
+			}
 		} catch (QueryNodeException e) {
 		  throw new SyntaxError(e);
 		}
@@ -256,8 +302,146 @@ public class AqpAdsabsQParser extends QParser {
 		  throw new SyntaxError(e1);
 		}
 	}
+	
+	/*
+	 * The query may return partial results (the budget is known only 
+	 * while it runs), solr must not keep them in queryResultCache nor
+	 * filterCache - the query itself stays equal to the complete one
+	 */
+	private static Query uncached(Query query) {
+		WrappedQuery wrapped = new WrappedQuery(query);
+		wrapped.setCache(false);
+		return wrapped;
+	}
 
 	public AqpQueryParser getParser() {
 		return qParser;
 	}
+	
+	/*
+	 * The second-order queries of the main query (q) drop the documents 
+	 * which the filter queries would remove anyway. Only the queries that
+	 * are not nested inside other second-order queries can do that, the 
+	 * nested ones feed the outer query with their (unfiltered) results.
+	 * 
+	 * Tagged filters are not pushed down: a facet may exclude them
+	 * ({!ex=tag}) and count over the results of q alone. Neither are the
+	 * filters which solr does not cache (cache=false, post filters) - they
+	 * are meant to run after the main query, over its results only.
+	 */
+	private void pushDownFilters(Query query) throws SyntaxError {
+		SolrParams reqParams = getReq().getParams();
+		String[] fqs = reqParams.getParams(CommonParams.FQ);
+		if (fqs == null || fqs.length == 0 || !reqParams.getBool(FILTER_PUSHDOWN, true)) {
+			return;
+		}
+		String mainQuery = reqParams.get(CommonParams.Q);
+		String thisQuery = stringIncludingLocalParams != null ? stringIncludingLocalParams : getString();
+		if (mainQuery == null || !mainQuery.equals(thisQuery) 
+				|| getReq().getContext().containsKey(FILTER_PUSHDOWN)) {
+			return;
+		}
+		
+		List<SecondOrderQuery> targets = new ArrayList<SecondOrderQuery>();
+		findTopSecondOrderQueries(query, targets);
+		if (targets.size() == 0) {
+			return;
+		}
+		
+		// the filters may use this parser too (even the same string)
+		List<Query> filters = new ArrayList<Query>(fqs.length);
+		getReq().getContext().put(FILTER_PUSHDOWN, Boolean.TRUE);
+		try {
+			for (String fq: fqs) {
+				if (fq == null || fq.trim().length() == 0) {
+					continue;
+				}
+				SolrParams localParams = QueryParsing.getLocalParams(fq, reqParams);
+				if (localParams != null && localParams.get(CommonParams.TAG) != null) {
+					continue;
+				}
+				Query f = QParser.getParser(fq, null, getReq()).getQuery();
+				if (f == null || f instanceof PostFilter
+						|| (f instanceof ExtendedQuery && !((ExtendedQuery) f).getCache())) {
+					continue;
+				}
+				filters.add(f);
+			}
+		}
+		finally {
+			getReq().getContext().remove(FILTER_PUSHDOWN);
+		}
+		
+		if (filters.size() == 0) {
+			return;
+		}
+		for (SecondOrderQuery q: targets) {
+			q.setTargetFilters(filters);
+		}
+	}
+	
+	/*
+	 * All the second-order queries (including the nested ones) share one 
+	 * budget: the edges and the memory of the nested levels add up (see
+	 * SecondOrderBudget#start) and the time is counted from the start of
+	 * the request. Returns true if the queries may return partial results
+	 */
+	private boolean applyBudget(Query query) {
+		Map<String, String> namedParams = qParser.getQueryConfigHandler().get(
+				AqpStandardQueryConfigHandler.ConfigurationKeys.NAMED_PARAMETER);
+		long timeAllowed = getReq().getParams().getInt(CommonParams.TIME_ALLOWED, -1);
+		if (timeAllowed <= 0) {
+			timeAllowed = getLong(namedParams, TIME_ALLOWED);
+		}
+		long maxEdges = getLong(namedParams, MAX_EDGES);
+		long maxMemory = getLong(namedParams, MAX_MEMORY) * 1024 * 1024;
+		if (timeAllowed <= 0 && maxEdges <= 0 && maxMemory <= 0) {
+			return false;
+		}
+		boolean partialResults = !namedParams.containsKey(PARTIAL_RESULTS) 
+				|| Boolean.parseBoolean(namedParams.get(PARTIAL_RESULTS));
+		
+		return setBudget(query, new SecondOrderBudget(timeAllowed > 0 ? getReq().getStartTime() + timeAllowed : 0, 
+				maxEdges, maxMemory, partialResults)) && partialResults;
+	}
+	
+	private static long getLong(Map<String, String> namedParams, String name) {
+		String v = namedParams.get(name);
+		if (v == null || v.trim().length() == 0) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(v.trim());
+		} catch (NumberFormatException e) {
+			throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+					"The parameter " + name + " must be a number: " + v);
+		}
+	}
+	
+	/* returns true if there was a second-order query */
+	private static boolean setBudget(Query query, SecondOrderBudget budget) {
+		boolean found = false;
+		if (query instanceof SecondOrderQuery) {
+			((SecondOrderQuery) query).setBudget(budget);
+			setBudget(((SecondOrderQuery) query).getQuery(), budget);
+			found = true;
+		}
+		else if (query instanceof BooleanQuery) {
+			for (BooleanClause c: ((BooleanQuery) query).clauses()) {
+				found |= setBudget(c.getQuery(), budget);
+			}
+		}
+		return found;
+	}
+	
+	private void findTopSecondOrderQueries(Query query, List<SecondOrderQuery> targets) {
+		if (query instanceof SecondOrderQuery) {
+			targets.add((SecondOrderQuery) query);
+		}
+		else if (query instanceof BooleanQuery) {
+			for (BooleanClause c: ((BooleanQuery) query).clauses()) {
+				findTopSecondOrderQueries(c.getQuery(), targets);
+			}
+		}
+	}
 }
@@ -423,7 +423,11 @@ public class BitSetQParserPlugin extends QParserPlugin {
 						sourceValue = ((String) sourceValue).toLowerCase().trim();
 					}
 					
-				  Object v = cache.get().get(sourceValue);
+				  SolrCache<Object, Integer> c = cache.get();
+				  if (c instanceof CitationLRUCache) {
+				  	return ((CitationLRUCache<Object, Integer>) c).getDocId(sourceValue);
+				  }
+				  Object v = c.get(sourceValue);
 				  if (v == null)
 				  	return -1;
 				  return (Integer) v;
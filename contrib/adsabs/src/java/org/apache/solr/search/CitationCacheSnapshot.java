@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.solr.search.CitationLRUCache.CompressedSparseRows;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+import org.apache.solr.search.CitationLRUCache.RelationshipsSnapshot;
+
+/**
+ * Binary snapshot of the {@link CitationLRUCache}: the mapping from
+ * identifiers to lucene docids and the citation network (in the CSR
+ * layout). The snapshot is written next to the index and it is valid
+ * only for the index version (and segments generation) from which it
+ * was created.
+ *
+ * The file is read through memory mapping; the int arrays are copied
+ * in bulk, so loading is bound by the disk speed only. The rows are
+ * written straight from the storage of the cache (through the cursors),
+ * a compressed network is not expanded into a CSR copy first.
+ *
+ * The file ends with the CRC32 of everything before it; the checksum
+ * and the bounds of the rows are verified when the file is read, so a
+ * damaged snapshot is never used by the queries.
+ *
+ * Layout (big endian):
+ *
+ * <pre>
+ *   header: magic, format, version, generation, maxDoc, signature,
+ *           treatIdentifiersAsText, numIds
+ *   references: present, [numOffsets, offsets..., numEdges, edges...]
+ *   citations:  present, [numOffsets, offsets..., numEdges, edges...]
+ *   identifiers: numIds x (type, [length, utf8 bytes | int], docid)
+ *   footer: crc32 (long)
+ * </pre>
+ */
+final class CitationCacheSnapshot {
+
+	static final int MAGIC = 0x43495443; // CITC
+	static final int FORMAT = 2;
+	static final String SUFFIX = ".snapshot";
+
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+	private static final int FOOTER_SIZE = 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte TYPE_STRING = 0;
+	private static final byte TYPE_INT = 1;
+
+	final boolean treatIdentifiersAsText;
+	final Object[] keys;
+	final int[] docids;
+	final CompressedSparseRows references; // may be null
+	final CompressedSparseRows citations; // may be null
+
+	CitationCacheSnapshot(boolean treatIdentifiersAsText, Object[] keys, int[] docids,
+			CompressedSparseRows references, CompressedSparseRows citations) {
+		this.treatIdentifiersAsText = treatIdentifiersAsText;
+		this.keys = keys;
+		this.docids = docids;
+		this.references = references;
+		this.citations = citations;
+	}
+
+	static File getFile(File dir, String cacheName, long generation) {
+		return new File(dir, cacheName.replaceAll("[^a-zA-Z0-9_\\-]", "_") + "_" + generation + SUFFIX);
+	}
+
+	/*
+	 * Returns null if the file does not exist or if it was created
+	 * from a different index (or different cache configuration); 
+	 * throws CorruptedException if the file is damaged
+	 */
+	static CitationCacheSnapshot read(File file, long version, long generation,
+			int maxDoc, int signature) throws IOException {
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Input input = new Input(in.getChannel());
+			ByteBuffer header = input.map(HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != FORMAT
+					|| header.getLong() != version || header.getLong() != generation
+					|| header.getInt() != maxDoc || header.getInt() != signature) {
+				return null;
+			}
+			boolean treatIdentifiersAsText = header.getInt() == 1;
+			int numIds = header.getInt();
+			input.verifyChecksum();
+
+			CompressedSparseRows references = input.readRows(maxDoc);
+			CompressedSparseRows citations = input.readRows(maxDoc);
+
+			if (numIds < 0) {
+				throw new CorruptedException("Wrong number of identifiers: " + numIds);
+			}
+			Object[] keys = new Object[numIds];
+			int[] docids = new int[numIds];
+			ByteBuffer ids = input.map(input.remaining());
+			byte[] bytes = new byte[64];
+			for (int i=0; i<numIds; i++) {
+				if (ids.get() == TYPE_STRING) {
+					int length = ids.getInt();
+					if (length < 0 || length > ids.remaining()) {
+						throw new CorruptedException("Wrong length of an identifier: " + length);
+					}
+					if (length > bytes.length) {
+						bytes = new byte[length];
+					}
+					ids.get(bytes, 0, length);
+					keys[i] = new String(bytes, 0, length, UTF8);
+				}
+				else {
+					keys[i] = ids.getInt();
+				}
+				docids[i] = ids.getInt();
+				if (docids[i] < 0 || docids[i] >= maxDoc) {
+					throw new CorruptedException("Docid of an identifier out of bounds: " + docids[i]);
+				}
+			}
+
+			return new CitationCacheSnapshot(treatIdentifiersAsText, keys, docids, references, citations);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Writes into a temporary file first, so that a crash never
+	 * leaves a partial snapshot behind
+	 */
+	static void write(File file, long version, long generation, int maxDoc, int signature,
+			boolean treatIdentifiersAsText, Object[] keys, int[] docids, 
+			RelationshipsSnapshot relationships) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		CheckedOutputStream checked = new CheckedOutputStream(new FileOutputStream(tmp), new CRC32());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(version);
+			out.writeLong(generation);
+			out.writeInt(maxDoc);
+			out.writeInt(signature);
+			out.writeInt(treatIdentifiersAsText ? 1 : 0);
+			out.writeInt(keys.length);
+
+			writeRows(out, relationships, true);
+			writeRows(out, relationships, false);
+
+			for (int i=0; i<keys.length; i++) {
+				if (keys[i] instanceof Integer) {
+					out.writeByte(TYPE_INT);
+					out.writeInt((Integer) keys[i]);
+				}
+				else {
+					byte[] bytes = keys[i].toString().getBytes(UTF8);
+					out.writeByte(TYPE_STRING);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				out.writeInt(docids[i]);
+			}
+			
+			out.flush();
+			out.writeLong(checked.getChecksum().getValue());
+		}
+		finally {
+			out.close();
+		}
+
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+	}
+
+	/* in the CSR layout: the offsets from the sizes of the rows, then the edges */
+	private static void writeRows(DataOutputStream out, RelationshipsSnapshot relationships, 
+			boolean references) throws IOException {
+		int numRows = relationships.size();
+		if (numRows == 0) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(1);
+
+		RelationshipsCursor cursor = null;
+		int numEdges = 0;
+		out.writeInt(numRows + 1);
+		out.writeInt(0);
+		for (int row=0; row<numRows; row++) {
+			cursor = references ? relationships.getReferences(row, cursor) : relationships.getCitations(row, cursor);
+			numEdges += cursor.size();
+			out.writeInt(numEdges);
+		}
+
+		out.writeInt(numEdges);
+		for (int row=0; row<numRows; row++) {
+			cursor = references ? relationships.getReferences(row, cursor) : relationships.getCitations(row, cursor);
+			while (cursor.hasNext()) {
+				out.writeInt(cursor.next());
+			}
+		}
+	}
+
+	/*
+	 * The file is damaged (truncated, wrong checksum, values out of 
+	 * bounds); it would fail again, the cache deletes it
+	 */
+	static final class CorruptedException extends IOException {
+		private static final long serialVersionUID = 3406741893150621733L;
+
+		CorruptedException(String message) {
+			super(message);
+		}
+	}
+
+	/*
+	 * Maps consecutive regions of the file (without the footer); one
+	 * region can not be bigger than 2GB
+	 */
+	private static class Input {
+		private final FileChannel channel;
+		private final long end;
+		private long position = 0;
+
+		Input(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.end = channel.size() - FOOTER_SIZE;
+		}
+
+		long remaining() {
+			return end - position;
+		}
+
+		ByteBuffer map(long length) throws IOException {
+			if (length < 0 || length > remaining() || length > Integer.MAX_VALUE) {
+				throw new CorruptedException("Truncated or corrupted snapshot");
+			}
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, position, length);
+			position += length;
+			return buffer;
+		}
+
+		/* the CRC32 of the whole file (without the footer) */
+		void verifyChecksum() throws IOException {
+			CRC32 crc = new CRC32();
+			byte[] chunk = new byte[1 << 16];
+			for (long start=0; start<end; start+=Integer.MAX_VALUE) {
+				ByteBuffer buffer = channel.map(MapMode.READ_ONLY, start, Math.min(end - start, Integer.MAX_VALUE));
+				while (buffer.hasRemaining()) {
+					int length = Math.min(chunk.length, buffer.remaining());
+					buffer.get(chunk, 0, length);
+					crc.update(chunk, 0, length);
+				}
+			}
+			if (channel.map(MapMode.READ_ONLY, end, FOOTER_SIZE).getLong() != crc.getValue()) {
+				throw new CorruptedException("Wrong checksum of the snapshot");
+			}
+		}
+
+		int[] readInts() throws IOException {
+			int length = map(4).getInt();
+			if (length < 0) {
+				throw new CorruptedException("Wrong length of an array: " + length);
+			}
+			int[] values = new int[length];
+			map(4L * length).asIntBuffer().get(values);
+			return values;
+		}
+
+		/*
+		 * The rows of all the documents: the offsets start at 0, never 
+		 * decrease and end at the number of the edges; the edges are 
+		 * docids or -1 (unresolved)
+		 */
+		CompressedSparseRows readRows(int maxDoc) throws IOException {
+			if (map(4).getInt() == 0) {
+				return null;
+			}
+			int[] offsets = readInts();
+			int[] edges = readInts();
+			if (offsets.length != maxDoc + 1 || offsets[0] != 0 || offsets[maxDoc] != edges.length) {
+				throw new CorruptedException("Wrong offsets of the rows");
+			}
+			for (int i=1; i<offsets.length; i++) {
+				if (offsets[i] < offsets[i-1]) {
+					throw new CorruptedException("Wrong offsets of the rows");
+				}
+			}
+			for (int i=0; i<edges.length; i++) {
+				if (edges[i] < -1 || edges[i] >= maxDoc) {
+					throw new CorruptedException("Edge out of bounds: " + edges[i]);
+				}
+			}
+			return new CompressedSparseRows(offsets, edges);
+		}
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.search.CitationLRUCache.CompressedSparseRows;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+/**
+ * Compressed storage of one direction of the citation network. Values of
+ * every row (document) are sorted and stored as deltas (the first value
+ * is stored as value+1, so that the unresolved -1 costs nothing), either:
+ *
+ * <ul>
+ *   <li>vbyte: one variable-length int per delta (7 bits per byte)</li>
+ *   <li>for: frame of reference; blocks of {@link #BLOCK_SIZE} deltas
+ *       packed with the number of bits needed by the biggest of them</li>
+ * </ul>
+ *
+ * Every row starts with the number of its values (vbyte). A row with more
+ * than {@link #BLOCK_SIZE} values continues with a skip table: for every
+ * block of BLOCK_SIZE values but the first one the length (in bytes) of the
+ * preceding block and the value before the block (+1); so a value at some
+ * position is found by decoding only its block (see {@link Cursor#get(int)}).
+ * Rows are read through a {@link RelationshipsCursor} which decodes values
+ * on the fly; {@link #get(int)} is there only for the callers that need an array.
+ */
+final class CitationCompressedRows {
+
+	static final int BLOCK_SIZE = 128;
+
+	private final boolean frameOfReference;
+	private final byte[] data;
+	private final int[] offsets; // row i is data[offsets[i]...offsets[i+1]-1]
+	private final long numEdges;
+
+	private CitationCompressedRows(boolean frameOfReference, byte[] data, int[] offsets, long numEdges) {
+		this.frameOfReference = frameOfReference;
+		this.data = data;
+		this.offsets = offsets;
+		this.numEdges = numEdges;
+	}
+
+	/*
+	 * 'compression' is either 'vbyte' or 'for'
+	 */
+	public static CitationCompressedRows compress(CompressedSparseRows rows, String compression) {
+		boolean frameOfReference = "for".equals(compression);
+		int numRows = rows.numRows();
+		int[] offsets = new int[numRows+1];
+		Output out = new Output(rows.edges.length + numRows);
+		Output blocks = new Output(BLOCK_SIZE * 4);
+		int[] values = new int[16];
+		int[] deltas = new int[16];
+		int[] blockEnds = new int[16];
+		long numEdges = 0;
+
+		for (int row=0; row<numRows; row++) {
+			int size = rows.size(row);
+			if (size > 0) {
+				values = ArrayUtil.grow(values, size);
+				deltas = ArrayUtil.grow(deltas, size);
+				System.arraycopy(rows.edges, rows.start(row), values, 0, size);
+				Arrays.sort(values, 0, size);
+
+				// deltas, the first one is relative to -1
+				int previous = -1;
+				for (int i=0; i<size; i++) {
+					deltas[i] = values[i] - previous;
+					previous = values[i];
+				}
+
+				out.writeVInt(size);
+				if (size <= BLOCK_SIZE) {
+					writeBlock(out, frameOfReference, deltas, 0, size);
+				}
+				else {
+					// the blocks are written aside, the skip table needs their lengths
+					int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+					blockEnds = ArrayUtil.grow(blockEnds, numBlocks);
+					blocks.length = 0;
+					for (int b=0; b<numBlocks; b++) {
+						int start = b * BLOCK_SIZE;
+						writeBlock(blocks, frameOfReference, deltas, start, Math.min(BLOCK_SIZE, size - start));
+						blockEnds[b] = blocks.length;
+					}
+					for (int b=1; b<numBlocks; b++) {
+						out.writeVInt(blockEnds[b-1] - (b > 1 ? blockEnds[b-2] : 0));
+						out.writeVInt(values[b * BLOCK_SIZE - 1] + 1);
+					}
+					out.writeBytes(blocks.bytes, blocks.length);
+				}
+				numEdges += size;
+			}
+			offsets[row+1] = out.length;
+		}
+
+		return new CitationCompressedRows(frameOfReference,
+				Arrays.copyOf(out.bytes, out.length), offsets, numEdges);
+	}
+
+	/* deltas of one block, frame of reference or one vbyte each */
+	private static void writeBlock(Output out, boolean frameOfReference, int[] deltas, int start, int n) {
+		if (frameOfReference) {
+			out.writeBlock(deltas, start, n);
+		}
+		else {
+			for (int i=start; i<start+n; i++) {
+				out.writeVInt(deltas[i]);
+			}
+		}
+	}
+
+	public int numRows() {
+		return offsets.length - 1;
+	}
+
+	public long numEdges() {
+		return numEdges;
+	}
+
+	public int size(int row) {
+		if (row >= numRows() || offsets[row] == offsets[row+1]) {
+			return 0;
+		}
+		int pos = offsets[row];
+		byte b = data[pos++];
+		int i = b & 0x7F;
+		for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+			b = data[pos++];
+			i |= (b & 0x7F) << shift;
+		}
+		return i;
+	}
+
+	/*
+	 * Decoded (sorted) values of the row or null if the row is empty
+	 */
+	public int[] get(int row) {
+		Cursor cursor = cursor(row, null);
+		if (cursor.size() == 0) {
+			return null;
+		}
+		int[] out = new int[cursor.size()];
+		for (int i=0; cursor.hasNext(); i++) {
+			out[i] = cursor.next();
+		}
+		return out;
+	}
+
+	public Cursor cursor(int row, RelationshipsCursor reuse) {
+		Cursor cursor;
+		if (reuse instanceof Cursor && ((Cursor) reuse).rows() == this) {
+			cursor = (Cursor) reuse;
+		}
+		else {
+			cursor = new Cursor();
+		}
+		cursor.reset(row);
+		return cursor;
+	}
+
+	public CompressedSparseRows toCSR() {
+		int numRows = numRows();
+		int[] csrOffsets = new int[numRows+1];
+		int[] edges = new int[(int) numEdges];
+		Cursor cursor = new Cursor();
+		for (int row=0; row<numRows; row++) {
+			cursor.reset(row);
+			int j = csrOffsets[row];
+			while (cursor.hasNext()) {
+				edges[j++] = cursor.next();
+			}
+			csrOffsets[row+1] = j;
+		}
+		return new CompressedSparseRows(csrOffsets, edges);
+	}
+
+	public long ramBytesUsed() {
+		return RamUsageEstimator.sizeOf(data) + RamUsageEstimator.sizeOf(offsets);
+	}
+
+	/**
+	 * Decodes values of one row as they are being read
+	 */
+	final class Cursor extends RelationshipsCursor {
+		private int pos;
+		private int skipTable; // position of the skip table (if any) of the row
+		private int blocksStart;
+		private int previous;
+		private final int[] block = frameOfReference ? new int[BLOCK_SIZE] : null;
+		private int blockPos = 0;
+		private int blockSize = 0;
+
+		CitationCompressedRows rows() {
+			return CitationCompressedRows.this;
+		}
+
+		void reset(int row) {
+			previous = -1;
+			blockPos = blockSize = 0;
+			if (row >= numRows() || offsets[row] == offsets[row+1]) {
+				size = remaining = 0;
+				return;
+			}
+			pos = offsets[row];
+			size = remaining = readVInt();
+			skipTable = pos;
+			for (int b=1; b<(size + BLOCK_SIZE - 1) / BLOCK_SIZE; b++) {
+				readVInt();
+				readVInt();
+			}
+			blocksStart = pos;
+		}
+
+		/*
+		 * Only the block of the value is decoded, the blocks before it
+		 * are skipped; the cursor continues after the value
+		 */
+		@Override
+		public int get(int n) {
+			int block = n / BLOCK_SIZE;
+			int start = blocksStart;
+			previous = -1;
+			pos = skipTable;
+			for (int b=0; b<block; b++) {
+				start += readVInt();
+				previous = readVInt() - 1;
+			}
+			pos = start;
+			blockPos = blockSize = 0;
+			remaining = size - block * BLOCK_SIZE;
+			int value = previous;
+			for (int i=block*BLOCK_SIZE; i<=n; i++) {
+				value = next();
+			}
+			return value;
+		}
+
+		@Override
+		public int next() {
+			remaining--;
+			if (frameOfReference) {
+				if (blockPos == blockSize) {
+					readBlock(Math.min(BLOCK_SIZE, remaining + 1));
+				}
+				previous += block[blockPos++];
+			}
+			else {
+				previous += readVInt();
+			}
+			return previous;
+		}
+
+		private int readVInt() {
+			byte b = data[pos++];
+			int i = b & 0x7F;
+			for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+				b = data[pos++];
+				i |= (b & 0x7F) << shift;
+			}
+			return i;
+		}
+
+		private void readBlock(int n) {
+			int bits = data[pos++];
+			long mask = (1L << bits) - 1;
+			long acc = 0;
+			int available = 0;
+			for (int i=0; i<n; i++) {
+				while (available < bits) {
+					acc |= (data[pos++] & 0xFFL) << available;
+					available += 8;
+				}
+				block[i] = (int) (acc & mask);
+				acc >>>= bits;
+				available -= bits;
+			}
+			blockPos = 0;
+			blockSize = n;
+		}
+	}
+
+	/* growable byte array */
+	private static final class Output {
+		byte[] bytes;
+		int length = 0;
+
+		Output(int initialCapacity) {
+			bytes = new byte[Math.max(initialCapacity, 16)];
+		}
+
+		void writeByte(byte b) {
+			if (length == bytes.length) {
+				bytes = ArrayUtil.grow(bytes, length + 1);
+			}
+			bytes[length++] = b;
+		}
+
+		void writeBytes(byte[] b, int n) {
+			if (length + n > bytes.length) {
+				bytes = ArrayUtil.grow(bytes, length + n);
+			}
+			System.arraycopy(b, 0, bytes, length, n);
+			length += n;
+		}
+
+		void writeVInt(int i) {
+			while ((i & ~0x7F) != 0) {
+				writeByte((byte) ((i & 0x7F) | 0x80));
+				i >>>= 7;
+			}
+			writeByte((byte) i);
+		}
+
+		/* number of bits, then the values packed (lowest bits first) */
+		void writeBlock(int[] values, int start, int n) {
+			int max = 0;
+			for (int i=start; i<start+n; i++) {
+				max |= values[i];
+			}
+			int bits = 32 - Integer.numberOfLeadingZeros(max);
+			writeByte((byte) bits);
+			long acc = 0;
+			int used = 0;
+			for (int i=start; i<start+n; i++) {
+				acc |= (values[i] & 0xFFFFFFFFL) << used;
+				used += bits;
+				while (used >= 8) {
+					writeByte((byte) acc);
+					acc >>>= 8;
+					used -= 8;
+				}
+			}
+			if (used > 0) {
+				writeByte((byte) acc);
+			}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * Mapping of identifiers (bibcodes, or int ids) to lucene docids used
+ * by the {@link CitationLRUCache}. String identifiers are kept as utf8
+ * bytes in one big array with an open addressing hash table on top of it;
+ * int identifiers have their own int-&gt;int table. There is no object
+ * per entry and a lookup does not allocate anything.
+ *
+ * Lookups do not modify the map, so any number of threads can read it
+ * at the same time; writes must be synchronized by the caller (and must
+ * not run concurrently with the reads).
+ */
+final class CitationIdentifierMap {
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	// string identifiers: the entry i is bytes[starts[i]...starts[i+1]-1]
+	private byte[] bytes = new byte[0];
+	private int[] starts = new int[]{0};
+	private int[] docids = new int[0];
+	private int numStrings = 0;
+	private int[] stringSlots; // entry+1, 0 = empty
+
+	// int identifiers
+	private int[] intKeys;
+	private int[] intValues; // -1 = empty
+	private int numInts = 0;
+
+	// one per thread for all the maps (the lookups are done by many threads)
+	private static final ThreadLocal<BytesRef> SCRATCH = new ThreadLocal<BytesRef>() {
+		@Override
+		protected BytesRef initialValue() {
+			return new BytesRef(32);
+		}
+	};
+
+	CitationIdentifierMap(int initialSize) {
+		stringSlots = new int[tableSize(initialSize)];
+		intKeys = new int[tableSize(0)];
+		intValues = newIntValues(intKeys.length);
+	}
+
+	/* returns -1 if the identifier is unknown */
+	public int get(Object key) {
+		if (key instanceof Integer) {
+			return getInt((Integer) key);
+		}
+		BytesRef term = toBytes(key);
+		int slot = findString(term.bytes, term.offset, term.length, hash(term.bytes, term.offset, term.length));
+		return stringSlots[slot] == 0 ? -1 : docids[stringSlots[slot]-1];
+	}
+
+	/* 
+	 * returns the previous docid (or -1); the docid must not be negative
+	 * (-1 marks the empty slots of the int table and the unknown keys)
+	 */
+	public int put(Object key, int docid) {
+		if (docid < 0) {
+			throw new IllegalArgumentException("Not a docid: " + docid + " (" + key + ")");
+		}
+		if (key instanceof Integer) {
+			return putInt((Integer) key, docid);
+		}
+		BytesRef term = toBytes(key);
+		int h = hash(term.bytes, term.offset, term.length);
+		int slot = findString(term.bytes, term.offset, term.length, h);
+		if (stringSlots[slot] != 0) {
+			int previous = docids[stringSlots[slot]-1];
+			docids[stringSlots[slot]-1] = docid;
+			return previous;
+		}
+
+		int end = starts[numStrings] + term.length;
+		bytes = ArrayUtil.grow(bytes, end);
+		System.arraycopy(term.bytes, term.offset, bytes, starts[numStrings], term.length);
+		starts = ArrayUtil.grow(starts, numStrings + 2);
+		starts[numStrings+1] = end;
+		docids = ArrayUtil.grow(docids, numStrings + 1);
+		docids[numStrings] = docid;
+		numStrings++;
+		stringSlots[slot] = numStrings;
+
+		if (numStrings > stringSlots.length * LOAD_FACTOR) {
+			rehashStrings();
+		}
+		return -1;
+	}
+
+	public int size() {
+		return numStrings + numInts;
+	}
+
+	public void clear() {
+		bytes = new byte[0];
+		starts = new int[]{0};
+		docids = new int[0];
+		numStrings = 0;
+		stringSlots = new int[tableSize(0)];
+		intKeys = new int[tableSize(0)];
+		intValues = newIntValues(intKeys.length);
+		numInts = 0;
+	}
+
+	/*
+	 * All identifiers (strings first), in the same order as
+	 * returned by getDocIds()
+	 */
+	public Object[] getKeys() {
+		Object[] out = new Object[size()];
+		for (int i=0; i<numStrings; i++) {
+			out[i] = new BytesRef(bytes, starts[i], starts[i+1] - starts[i]).utf8ToString();
+		}
+		int j = numStrings;
+		for (int i=0; i<intKeys.length; i++) {
+			if (intValues[i] != -1) {
+				out[j++] = intKeys[i];
+			}
+		}
+		return out;
+	}
+
+	public int[] getDocIds() {
+		int[] out = new int[size()];
+		System.arraycopy(docids, 0, out, 0, numStrings);
+		int j = numStrings;
+		for (int i=0; i<intKeys.length; i++) {
+			if (intValues[i] != -1) {
+				out[j++] = intValues[i];
+			}
+		}
+		return out;
+	}
+
+	public long ramBytesUsed() {
+		return RamUsageEstimator.sizeOf(bytes) + RamUsageEstimator.sizeOf(starts)
+				+ RamUsageEstimator.sizeOf(docids) + RamUsageEstimator.sizeOf(stringSlots)
+				+ RamUsageEstimator.sizeOf(intKeys) + RamUsageEstimator.sizeOf(intValues);
+	}
+
+	private BytesRef toBytes(Object key) {
+		BytesRef term = SCRATCH.get();
+		String s = key.toString();
+		UnicodeUtil.UTF16toUTF8(s, 0, s.length(), term);
+		return term;
+	}
+
+	/*
+	 * Linear probing; returns the slot with the identifier or
+	 * the empty slot where it should be inserted
+	 */
+	private int findString(byte[] term, int offset, int length, int h) {
+		int mask = stringSlots.length - 1;
+		int slot = h & mask;
+		while (stringSlots[slot] != 0) {
+			int entry = stringSlots[slot] - 1;
+			if (equals(entry, term, offset, length)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private boolean equals(int entry, byte[] term, int offset, int length) {
+		int start = starts[entry];
+		if (starts[entry+1] - start != length) {
+			return false;
+		}
+		for (int i=0; i<length; i++) {
+			if (bytes[start+i] != term[offset+i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehashStrings() {
+		int[] newSlots = new int[stringSlots.length * 2];
+		int mask = newSlots.length - 1;
+		for (int entry=0; entry<numStrings; entry++) {
+			int slot = hash(bytes, starts[entry], starts[entry+1] - starts[entry]) & mask;
+			while (newSlots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			newSlots[slot] = entry + 1;
+		}
+		stringSlots = newSlots;
+	}
+
+	private int getInt(int key) {
+		int mask = intKeys.length - 1;
+		int slot = mix(key) & mask;
+		while (intValues[slot] != -1) {
+			if (intKeys[slot] == key) {
+				return intValues[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int putInt(int key, int docid) {
+		int mask = intKeys.length - 1;
+		int slot = mix(key) & mask;
+		while (intValues[slot] != -1) {
+			if (intKeys[slot] == key) {
+				int previous = intValues[slot];
+				intValues[slot] = docid;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		intKeys[slot] = key;
+		intValues[slot] = docid;
+		numInts++;
+
+		if (numInts > intKeys.length * LOAD_FACTOR) {
+			int[] oldKeys = intKeys;
+			int[] oldValues = intValues;
+			intKeys = new int[oldKeys.length * 2];
+			intValues = newIntValues(intKeys.length);
+			numInts = 0;
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldValues[i] != -1) {
+					putInt(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int[] newIntValues(int size) {
+		int[] values = new int[size];
+		Arrays.fill(values, -1);
+		return values;
+	}
+
+	private static int tableSize(int expected) {
+		int size = 16;
+		while (size * LOAD_FACTOR < expected) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private static int hash(byte[] term, int offset, int length) {
+		int h = 0;
+		for (int i=offset; i<offset+length; i++) {
+			h = 31 * h + term[i];
+		}
+		return mix(h);
+	}
+
+	/* finalizer of the murmur3 hash, spreads the bits of the key */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
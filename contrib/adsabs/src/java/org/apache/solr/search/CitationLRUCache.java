@@ -17,34 +17,52 @@
 
 package org.apache.solr.search;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.lucene.document.SortedBytesDocValuesField;
 import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.DocTermOrds;
 import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.FieldCache.CacheEntry;
 import org.apache.lucene.search.FieldCache.Ints;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.util.NamedList;
@@ -56,6 +74,7 @@ import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.StrField;
 import org.apache.solr.schema.TextField;
 import org.apache.solr.schema.TrieIntField;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 
 
 /**
@@ -80,25 +99,42 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
    * of an LRUCache at the same time.  Make sure everything is thread safe.
    */
   private static class CumulativeStats {
-    AtomicLong lookups = new AtomicLong();
-    AtomicLong hits = new AtomicLong();
+    StripedCounter lookups = new StripedCounter();
+    StripedCounter hits = new StripedCounter();
     AtomicLong inserts = new AtomicLong();
     AtomicLong evictions = new AtomicLong();
   }
 
   private CumulativeStats stats;
 
-  // per instance stats.  The synchronization used for the map will also be
-  // used for updating these statistics (and hence they are not AtomicLongs
-  private long lookups;
-  private long hits;
+  // per instance stats.  The write lock of the identifiers is used for
+  // updating inserts/evictions; lookups happen concurrently (under
+  // the read lock or without any lock) and hence they are atomic
+  private final StripedCounter lookups = new StripedCounter();
+  private final StripedCounter hits = new StripedCounter();
   private long inserts;
   private long evictions;
 
   private long warmupTime = 0;
 
-  private LinkedHashMap<K,V> map;
+  // identifiers -> lucene docids; lookups do not change the map (there is
+  // no LRU order to maintain), so they only need the shared (read) lock
+  private CitationIdentifierMap identifiers;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  
+  // number of identifiers and memory used by them, per identifier field
+  private final Map<String, long[]> identifierFieldStats = new LinkedHashMap<String, long[]>();
+  
+  // builds the citation network during warmup
+  private RelationshipsBuilder builder;
+  
+  // immutable data, replaced (never modified) by every warmup
+  private volatile RelationshipsSnapshot relationships = RelationshipsSnapshot.EMPTY;
   private String description="Citation LRU Cache";
+  
+  // term ordinals -> lucene docids, per segment (core key) and field; built
+  // on the first use by the queries, see getOrdinalTargets()
+  private final ConcurrentHashMap<List<Object>, int[]> ordinalTargets = new ConcurrentHashMap<List<Object>, int[]>();
 
 	private String[] referenceFields;
 	private String[] citationFields;
@@ -108,16 +144,66 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 
 	// If we detect that you are mixing int and text fields
 	// we'll treat all values (mappings) as text values
-	private boolean treatIdentifiersAsText = false;
+	private volatile boolean treatIdentifiersAsText = false;
 	
-	// TODO: i'm planning to add the ability to build the cache
-	// incrementally (ie per index segment), but it may
-	// not be necessary as we are going to denormalize 
-	// citation data outside solr and prepare everything there...
+	// build the cache per index segment, reusing data of the segments
+	// that were already read by the previous cache (see warmIncrementally)
 	private boolean incremental = false;
+	
+	// data of the segments (by their core cache key) used by the incremental warmup
+	private volatile Map<Object, SegmentData> segments = Collections.emptyMap();
+	// the multi-valued reference fields, in the order of the ordinals of SegmentData
+	private volatile List<String> segmentReferenceFields = Collections.emptyList();
+	private ExecutorService segmentsExecutor = null; // reads them after a snapshot load
+	private int segmentsReused = 0;
+	private int segmentsRead = 0;
+	
+	// keep a snapshot of the cache on disk (next to the index); when the
+	// index did not change, the cache is loaded from it instead of being built
+	private boolean snapshot = false;
+	private boolean snapshotLoaded = false;
+	private ExecutorService snapshotExecutor = null;
+	
+	// number of threads reading the index during the warmup (segments
+	// and fields are read in parallel), 1 = read everything sequentially
+	private int buildThreads = 1;
+	
+	// the references/citations of every document can be kept sorted and 
+	// delta-encoded; 'vbyte', 'for' (frame of reference) or 'none'
+	private String compression = "none";
 
 	private boolean reuseCache;
 	
+	// how the references/citations are kept in memory; 'lists' = one
+	// growable array per document, 'csr' = compressed sparse rows (two
+	// int[] arrays per direction)
+	private String storage = "lists";
+	
+	// time (ms) spent building the relationships during the last warmup
+	private long relationshipsBuildTime = 0;
+	
+	// pagerank of the papers, computed in the background after every
+	// warmup; the scores stay null until the computation finishes
+	private boolean pageRank = false;
+	private float pageRankDamping = 0.85f;
+	private double pageRankTolerance = 1e-6;
+	private int pageRankMaxIterations = 100;
+	private volatile float[] pageRankScores = null;
+	private volatile CitationPageRank pageRankRun = null;
+	private volatile String pageRankStatus = "disabled";
+	private volatile boolean pageRankStale = false; // the scores are of the previous searcher
+	// changes with every new pageRankScores (unique over all the caches), 
+	// the queries using the ranks are told apart by it in the solr caches
+	private volatile long pageRankGeneration = 0;
+	private static final AtomicLong pageRankGenerations = new AtomicLong();
+	private ExecutorService pageRankExecutor = null;
+	
+	// the citations ordered by the year of the citing paper (read from
+	// this field), for the queries limited to a range of years; built
+	// after the relationships at every warmup, null = disabled
+	private String yearField = null;
+	private volatile CitationYearIndex yearIndex = null;
+	
 
 
   @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -131,6 +217,46 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     
     incremental  = "true".equals(((String)args.get("incremental")));
     reuseCache  = "true".equals(((String)args.get("reuseCache")));
+    snapshot  = "true".equals(((String)args.get("snapshot")));
+    
+    if (args.containsKey("compression")) {
+    	compression = ((String)args.get("compression")).trim().toLowerCase();
+    	if (!compression.equals("none") && !compression.equals("vbyte") && !compression.equals("for")) {
+    		throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown compression: " + compression + " (use 'none', 'vbyte' or 'for')");
+    	}
+    }
+    
+    if (args.containsKey("buildThreads")) {
+    	buildThreads = Integer.parseInt(((String)args.get("buildThreads")).trim());
+    	if (buildThreads <= 0) {
+    		buildThreads = Runtime.getRuntime().availableProcessors();
+    	}
+    }
+    
+    pageRank = "true".equals(((String)args.get("pageRank")));
+    if (args.containsKey("pageRankDamping")) {
+    	pageRankDamping = Float.parseFloat(((String)args.get("pageRankDamping")).trim());
+    	if (pageRankDamping <= 0.0f || pageRankDamping >= 1.0f) {
+    		throw new SolrException(ErrorCode.SERVER_ERROR, "pageRankDamping must be between 0 and 1");
+    	}
+    }
+    if (args.containsKey("pageRankTolerance")) {
+    	pageRankTolerance = Double.parseDouble(((String)args.get("pageRankTolerance")).trim());
+    }
+    if (args.containsKey("pageRankMaxIterations")) {
+    	pageRankMaxIterations = Integer.parseInt(((String)args.get("pageRankMaxIterations")).trim());
+    }
+    
+    if (args.containsKey("yearField") && ((String)args.get("yearField")).trim().length() > 0) {
+    	yearField = ((String)args.get("yearField")).trim();
+    }
+    
+    if (args.containsKey("storage")) {
+    	storage = ((String)args.get("storage")).trim().toLowerCase();
+    	if (!storage.equals("lists") && !storage.equals("csr")) {
+    		throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown storage type: " + storage + " (use 'lists' or 'csr')");
+    	}
+    }
     
     citationFields = new String[0];
     referenceFields = new String[0];
@@ -156,8 +282,8 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     final int initialSize = Math.min(str==null ? 1024 : Integer.parseInt(str), limit);
     description = generateDescription(limit, initialSize);
 
-    map = new RelationshipLinkedHashMap<K,V>(initialSize, 0.75f, true, 
-    		limit, sizeInPercent);
+    identifiers = new CitationIdentifierMap(initialSize);
+    builder = new RelationshipsBuilder("csr".equals(storage));
 
     if (persistence==null) {
       // must be the first time a cache of this type is being created
@@ -174,7 +300,7 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
    * @return Returns the description of this cache. 
    */
   private String generateDescription(int limit, int initialSize) {
-    String description = "CitationLRU Cache(maxSize=" + limit + ", initialSize=" + initialSize;
+    String description = "CitationLRU Cache(maxSize=" + limit + ", initialSize=" + initialSize + ", storage=" + storage + ", buildThreads=" + buildThreads + ", compression=" + compression + (pageRank ? ", pageRank=true" : "") + (yearField != null ? ", yearField=" + yearField : "");
     if (isAutowarmingOn()) {
       description += ", " + getAutowarmDescription();
     }
@@ -183,18 +309,24 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
   }
 
   public int size() {
-    synchronized(map) {
-      return map.size();
-    }
+  	lock.readLock().lock();
+  	try {
+  		return identifiers.size();
+  	}
+  	finally {
+  		lock.readLock().unlock();
+  	}
   }
 
   public boolean treatsIdentifiersAsText() {
   	return treatIdentifiersAsText;
   }
   
+  @SuppressWarnings("unchecked")
   public V put(K key, V value) {
   	//System.out.println("put(" + key + "," + value+")");
-    synchronized (map) {
+  	lock.writeLock().lock();
+  	try {
       if (getState() == State.LIVE) {
         stats.inserts.incrementAndGet();
       }
@@ -202,136 +334,239 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
       // increment local inserts regardless of state???
       // it does make it more consistent with the current size...
       inserts++;
-      return map.put(key,value);
-    }
+      int previous = identifiers.put(key, (Integer) value);
+      return previous == -1 ? null : (V) (Integer) previous;
+  	}
+  	finally {
+  		lock.writeLock().unlock();
+  	}
   }
 
+  @SuppressWarnings("unchecked")
   public V get(K key) {
-    synchronized (map) {
-      V val = map.get(key);
-      if (getState() == State.LIVE) {
-        // only increment lookups and hits if we are live.
-        lookups++;
-        stats.lookups.incrementAndGet();
-        if (val!=null) {
-          hits++;
-          stats.hits.incrementAndGet();
-        }
-      }
-      return val;
-    }
+  	int docid = getDocId(key);
+  	return docid == -1 ? null : (V) (Integer) docid;
+  }
+  
+  /*
+   * The same as get(), but without boxing of the lucene docid;
+   * returns -1 if the identifier is unknown
+   */
+  public int getDocId(Object key) {
+  	int docid = lookupDocId(key);
+  	countLookup(docid == -1 ? null : key);
+  	return docid;
+  }
+  
+  private int lookupDocId(Object key) {
+  	lock.readLock().lock();
+  	try {
+  		return identifiers.get(key);
+  	}
+  	finally {
+  		lock.readLock().unlock();
+  	}
   }
   
   /*
    * This method should be used only for very specific purposes of
    * dumping the citation cache (or accessing all elements of 
-   * the cache). Access to the map is not synchronized, but you
+   * the cache). Access to the data is not synchronized, but you
    * are iterating over a copy of data - so yo cannot change it
    * 
    * The first comes references, the second are citations
    */
   public  Iterator<int[][]> getCitationsIterator() {
-  	return ((RelationshipLinkedHashMap<K,V>) map).getRelationshipsIterator();
+  	return relationships.iterator();
   }
   
   public int getCitationsIteratorSize() {
-  	synchronized (map) {
-  		return ((RelationshipLinkedHashMap<K,V>) map).relationshipsDataSize();
-  	}
+  	return relationships.size();
   }
   
   public int[] getCitations(K key) {
-  	synchronized (map) {
-  		V val = map.get(key);
-  		if (val==null)
-  			return null;
-  		
-      RelationshipLinkedHashMap<K,V> relMap = (RelationshipLinkedHashMap<K,V>) map;
-      int[] values = relMap.getCitations((Integer)val);
-      
-      if (getState() == State.LIVE) {
-        // only increment lookups and hits if we are live.
-        lookups++;
-        stats.lookups.incrementAndGet();
-        if (values!=null) {
-          hits++;
-          stats.hits.incrementAndGet();
-        }
-      }
-      return values;
-    }
+  	int docid = lookupDocId(key);
+  	if (docid == -1)
+  		return null;
+  	return countLookup(relationships.getCitations(docid));
   }
   
   /*
    * This is a helper method allowing you to retrieve
-   * what we have directly using lucene docid
+   * what we have directly using lucene docid; it is
+   * not synchronized (reads the published snapshot)
    */
   public int[] getCitations(int docid) {
-    synchronized (map) {
-      RelationshipLinkedHashMap<K,V> relMap = (RelationshipLinkedHashMap<K,V>) map;
-      int[] val = relMap.getCitations(docid);
-      
-      if (getState() == State.LIVE) {
-        // only increment lookups and hits if we are live.
-        lookups++;
-        stats.lookups.incrementAndGet();
-        if (val!=null) {
-          hits++;
-          stats.hits.incrementAndGet();
-        }
-      }
-      return val;
-    }
+  	return countLookup(relationships.getCitations(docid));
   }
   
   public int[] getReferences(K key) {
-  	synchronized (map) {
-  		V val = map.get(key);
-  		if (val==null)
-  			return null;
-  		
-      RelationshipLinkedHashMap<K,V> relMap = (RelationshipLinkedHashMap<K,V>) map;
-      int[] values = relMap.getReferences((Integer)val);
-      
-      if (getState() == State.LIVE) {
-        // only increment lookups and hits if we are live.
-        lookups++;
-        stats.lookups.incrementAndGet();
-        if (values!=null) {
-          hits++;
-          stats.hits.incrementAndGet();
-        }
-      }
-      return values;
-    }
+  	int docid = lookupDocId(key);
+  	if (docid == -1)
+  		return null;
+  	return countLookup(relationships.getReferences(docid));
   }
   
   /*
    * This is a helper method allowing you to retrieve
-   * what we have directly using lucene docid
+   * what we have directly using lucene docid; it is
+   * not synchronized (reads the published snapshot)
    */
   public int[] getReferences(int docid) {
-    synchronized (map) {
-      RelationshipLinkedHashMap<K,V> relMap = (RelationshipLinkedHashMap<K,V>) map;
-      int[] val = relMap.getReferences(docid);
-      
-      if (getState() == State.LIVE) {
-        // only increment lookups and hits if we are live.
-        lookups++;
-        stats.lookups.incrementAndGet();
-        if (val!=null) {
-          hits++;
-          stats.hits.incrementAndGet();
-        }
+  	return countLookup(relationships.getReferences(docid));
+  }
+  
+  /*
+   * Iterates over the citations without materializing them
+   * into an array; pass the previous cursor to have it reused
+   * (so that collectors do not allocate anything per document)
+   */
+  public RelationshipsCursor getCitations(int docid, RelationshipsCursor reuse) {
+  	return countCursorLookup(relationships.getCitations(docid, reuse));
+  }
+  
+  public RelationshipsCursor getReferences(int docid, RelationshipsCursor reuse) {
+  	return countCursorLookup(relationships.getReferences(docid, reuse));
+  }
+  
+  /*
+   * Number of resolved citations of every document (indexed by lucene
+   * docid), precomputed when the cache was built; the array is shared,
+   * callers must not modify it
+   */
+  public int[] getCitationCounts() {
+  	return relationships.citationCounts;
+  }
+  
+  public int[] getReferenceCounts() {
+  	return relationships.referenceCounts;
+  }
+  
+  /* true if the cache computes the pagerank of the papers (pageRank) */
+  public boolean hasPageRank() {
+  	return pageRank;
+  }
+  
+  /* true if the citations can be limited to a range of years (yearField) */
+  public boolean hasYearIndex() {
+  	return yearField != null;
+  }
+  
+  /*
+   * The citations of the document from the papers published in the years
+   * fromYear...toYear (inclusive), found by a binary search; the citing
+   * papers come in the order of their year. Requires the yearField.
+   */
+  public RelationshipsCursor getCitations(int docid, int fromYear, int toYear, RelationshipsCursor reuse) {
+  	return countCursorLookup(getYearIndex().getCitations(docid, fromYear, toYear, reuse));
+  }
+  
+  /* the number of the citations from the years fromYear...toYear, in O(log n) */
+  public int countCitations(int docid, int fromYear, int toYear) {
+  	return getYearIndex().countCitations(docid, fromYear, toYear);
+  }
+  
+  private CitationYearIndex getYearIndex() {
+  	if (yearField == null) {
+  		throw new SolrException(ErrorCode.BAD_REQUEST, "The cache (" + name() + ") has no yearField");
+  	}
+  	CitationYearIndex index = yearIndex;
+  	return index != null ? index : CitationYearIndex.EMPTY; // not warmed yet
+  }
+  
+  /*
+   * Translates the term ordinals of a (text) field of the segment into the
+   * lucene docids of the documents they identify (-1 = unknown), so that
+   * the values do not have to be read and looked up one by one. The table
+   * is built on the first call and kept until the next warmup; for the
+   * reference fields of the incremental cache it is a slice of the targets
+   * which the warmup resolved already (see SegmentData). 'ords' are the
+   * ordinals of the field in the segment (eg. from FieldCache.getDocTermOrds)
+   */
+  public int[] getOrdinalTargets(AtomicReader reader, String field, SortedSetDocValues ords) {
+  	List<Object> key = Arrays.asList(reader.getCoreCacheKey(), field);
+  	int[] targets = ordinalTargets.get(key);
+  	if (targets != null) {
+  		return targets;
+  	}
+  	targets = segmentTargets(reader, field, ords);
+  	if (targets == null) {
+  		targets = resolveOrdinals(ords);
+  	}
+  	int[] previous = ordinalTargets.putIfAbsent(key, targets);
+  	return previous != null ? previous : targets;
+  }
+  
+  /*
+   * The targets of the field from the data of the segment, or null: the
+   * ordinals of SegmentData run through the terms of all the multi-valued
+   * reference fields, the field starts after the terms of the previous ones
+   */
+  private int[] segmentTargets(AtomicReader reader, String field, SortedSetDocValues ords) {
+  	SegmentData sd = segments.get(reader.getCoreCacheKey());
+  	if (sd == null || sd.referenceTargets == null) {
+  		return null;
+  	}
+  	try {
+  		long offset = 0;
+  		for (String f: segmentReferenceFields) {
+  			Terms terms = reader.terms(f);
+  			long size = terms == null ? 0 : terms.size();
+  			if (size < 0) {
+  				return null; // the codec does not know
+  			}
+  			if (f.equals(field)) {
+  				if (size != ords.getValueCount() || offset + size > sd.referenceTargets.length) {
+  					return null;
+  				}
+  				return Arrays.copyOfRange(sd.referenceTargets, (int) offset, (int) (offset + size));
+  			}
+  			offset += size;
+  		}
+  	}
+  	catch (IOException e) {
+  		log.warn("Cannot read the terms of " + field + ", the ordinals are resolved again", e);
+  	}
+  	return null;
+  }
+  
+  private int[] resolveOrdinals(SortedSetDocValues ords) {
+  	int[] targets = new int[(int) ords.getValueCount()];
+  	BytesRef term = new BytesRef();
+  	for (int ord=0; ord<targets.length; ord++) {
+  		ords.lookupOrd(ord, term);
+  		targets[ord] = lookupDocId(term.utf8ToString());
+  	}
+  	return targets;
+  }
+  
+  private RelationshipsCursor countCursorLookup(RelationshipsCursor cursor) {
+  	countLookup(cursor.size() > 0 ? cursor : null);
+  	return cursor;
+  }
+  
+  private <T> T countLookup(T value) {
+    if (getState() == State.LIVE) {
+      // only increment lookups and hits if we are live.
+      lookups.increment();
+      stats.lookups.increment();
+      if (value!=null) {
+        hits.increment();
+        stats.hits.increment();
       }
-      return val;
     }
+    return value;
   }
 
   public void clear() {
-    synchronized(map) {
-      map.clear();
-    }
+  	lock.writeLock().lock();
+  	try {
+  		identifiers.clear();
+  		ordinalTargets.clear();
+  	}
+  	finally {
+  		lock.writeLock().unlock();
+  	}
   }
   
   private boolean isWarming = false;
@@ -343,50 +578,443 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
   
   public void warm(SolrIndexSearcher searcher, SolrCache<K,V> old) {
   	isWarming = true;
+  	ordinalTargets.clear();
   	try {
   		log.info("Warming cache (" + name() + "): " + searcher);
-	  	if (this.incremental ) {
-	  		warmIncrementally(searcher, old);
-	  	}
-	  	else {
-	      warmRebuildEverything(searcher, old);
-	  	}
-	  	log.info("Warming cache done (# entries:" + map.size() + "): " + searcher);
+  		segmentReferenceFields = multiValuedFields(getFields(searcher, this.referenceFields));
+  		snapshotLoaded = this.snapshot && loadSnapshot(searcher);
+  		if (snapshotLoaded && this.incremental) {
+  			startSegmentsRead(searcher);
+  		}
+  		if (!snapshotLoaded) {
+  			if (this.incremental ) {
+  				warmIncrementally(searcher, old);
+  			}
+  			else {
+  				warmRebuildEverything(searcher, old);
+  			}
+  			if (this.snapshot) {
+  				startSnapshotWrite(searcher);
+  			}
+  		}
+	  	log.info("Warming cache done (# entries:" + size() + "): " + searcher);
   	} 
   	catch (IOException e) {
     	throw new SolrException(ErrorCode.SERVER_ERROR, "Failed to generate initial IDMapping", e);
     }
   	sourceReaderHashCode = searcher.hashCode();
+  	
+  	if (yearField != null) {
+  		buildYearIndex(searcher);
+  	}
+  	
+  	if (pageRank) {
+  		startPageRank(carryOverPageRank(old, searcher.maxDoc()));
+  	}
+  }
+  
+  private void buildYearIndex(SolrIndexSearcher searcher) {
+  	long startTime = System.currentTimeMillis();
+  	SchemaField field = searcher.getSchema().getFieldOrNull(yearField);
+  	if (field == null) {
+  		throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown yearField of the cache (" + name() + "): " + yearField);
+  	}
+  	try {
+  		yearIndex = CitationYearIndex.build(relationships, searcher.getTopReaderContext().leaves(), 
+  				searcher.maxDoc(), yearField, field.getType());
+  	}
+  	catch (IOException e) {
+  		throw new SolrException(ErrorCode.SERVER_ERROR, "Failed to read the years of the cache (" + name() + ")", e);
+  	}
+  	log.info("Year index of the cache (" + name() + ") built in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+  
+  /*
+   * Computes the pagerank in a background thread, the new searcher
+   * does not wait for it; until it finishes, getPageRank() returns the
+   * 'previous' scores (or null)
+   */
+  private synchronized void startPageRank(float[] previous) {
+  	if (pageRankExecutor != null) {
+  		pageRankExecutor.shutdownNow(); // cancel the computation for the old searcher
+  	}
+  	pageRankScores = previous;
+  	pageRankStale = previous != null;
+  	pageRankGeneration = pageRankGenerations.incrementAndGet();
+  	pageRankStatus = "running";
+  	final CitationPageRank run = new CitationPageRank(relationships, pageRankDamping, 
+  			pageRankTolerance, pageRankMaxIterations, buildThreads);
+  	pageRankRun = run;
+  	pageRankExecutor = Executors.newSingleThreadExecutor(new DefaultSolrThreadFactory("citationCachePageRank"));
+  	pageRankExecutor.execute(new Runnable() {
+  		public void run() {
+  			try {
+  				float[] scores = run.compute();
+  				if (pageRankRun == run) {
+  					pageRankScores = scores;
+  					pageRankStale = false;
+  					pageRankGeneration = pageRankGenerations.incrementAndGet();
+  					pageRankStatus = "done";
+  				}
+  				log.info("PageRank of the cache (" + name() + ") computed in " + run.time + "ms, iterations=" 
+  						+ run.iterations + ", delta=" + run.delta);
+  			}
+  			catch (InterruptedException e) {
+  				if (pageRankRun == run) {
+  					pageRankStatus = "cancelled";
+  				}
+  			}
+  			catch (RuntimeException e) {
+  				if (pageRankRun == run) {
+  					pageRankStatus = "failed";
+  				}
+  				log.error("Failed to compute pagerank of the cache (" + name() + ")", e);
+  			}
+  		}
+  	});
+  	pageRankExecutor.shutdown(); // the thread goes away when the task is done
+  }
+  
+  /*
+   * PageRank of the documents (indexed by lucene docid) scaled into
+   * 0...1; null when disabled or not yet computed. While it is being
+   * computed, the scores of the previous searcher are returned (the
+   * new documents get 0). The array is shared, callers must not modify it.
+   */
+  public float[] getPageRank() {
+  	return pageRankScores;
+  }
+  
+  /*
+   * Identifies the scores returned by getPageRank(): the previous ranks
+   * (served during the computation) and the new ones have different 
+   * generations. Read it before getPageRank(), the scores are set first.
+   */
+  public long getPageRankGeneration() {
+  	return pageRankGeneration;
+  }
+  
+  /*
+   * The scores of the previous cache (computed or carried over by it)
+   * moved to the docids of this one: the documents are matched by their
+   * identifiers, so they keep their scores when the segments are merged
+   */
+  @SuppressWarnings("unchecked")
+  private float[] carryOverPageRank(SolrCache<K,V> old, int maxDoc) {
+  	if (!(old instanceof CitationLRUCache)) {
+  		return null;
+  	}
+  	CitationLRUCache<K,V> oldCache = (CitationLRUCache<K,V>) old;
+  	float[] oldScores = oldCache.pageRankScores;
+  	if (oldScores == null) {
+  		return null;
+  	}
+  	Object[] keys;
+  	int[] docids;
+  	lock.readLock().lock();
+  	try {
+  		keys = identifiers.getKeys();
+  		docids = identifiers.getDocIds();
+  	}
+  	finally {
+  		lock.readLock().unlock();
+  	}
+  	float[] scores = new float[maxDoc];
+  	oldCache.lock.readLock().lock();
+  	try {
+  		for (int i=0; i<keys.length; i++) {
+  			int oldDocid = oldCache.identifiers.get(keys[i]);
+  			if (oldDocid >= 0 && oldDocid < oldScores.length && docids[i] < maxDoc) {
+  				scores[docids[i]] = oldScores[oldDocid];
+  			}
+  		}
+  	}
+  	finally {
+  		oldCache.lock.readLock().unlock();
+  	}
+  	return scores;
+  }
+  
+  /*
+   * Blocks until the background computation finishes (used by tests);
+   * returns false if the pagerank is still not available
+   */
+  public boolean waitForPageRank(long timeoutMs) throws InterruptedException {
+  	ExecutorService executor;
+  	synchronized (this) {
+  		executor = pageRankExecutor;
+  	}
+  	if (executor != null) {
+  		executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+  	}
+  	return pageRankScores != null && !pageRankStale;
+  }
+  
+  /*
+   * Returns false if there is no snapshot for the current index
+   * version (or it cannot be read) - the cache must then be built
+   */
+  @SuppressWarnings("unchecked")
+  private boolean loadSnapshot(SolrIndexSearcher searcher) {
+  	long startTime = System.currentTimeMillis();
+  	CitationCacheSnapshot data;
+  	try {
+  		DirectoryReader reader = searcher.getIndexReader();
+  		long generation = reader.getIndexCommit().getGeneration();
+  		data = CitationCacheSnapshot.read(getSnapshotFile(searcher, generation), 
+  				reader.getVersion(), generation, searcher.maxDoc(), getSnapshotSignature());
+  	}
+  	catch (CitationCacheSnapshot.CorruptedException e) {
+  		return dropSnapshot(searcher, e);
+  	}
+  	catch (IOException e) {
+  		log.warn("Cannot read snapshot of the cache (" + name() + "), it will be rebuilt", e);
+  		return false;
+  	}
+  	catch (RuntimeException e) {
+  		// a corrupted file the checks did not catch; it would fail again
+  		return dropSnapshot(searcher, e);
+  	}
+  	if (data == null) {
+  		return false;
+  	}
+  	
+  	try {
+  		treatIdentifiersAsText = data.treatIdentifiersAsText;
+  		for (int i=0; i<data.keys.length; i++) {
+  			put((K) data.keys[i], (V) (Integer) data.docids[i]);
+  		}
+  		if (data.references != null && data.citations != null) {
+  			if (!"none".equals(compression)) {
+  				relationships = new RelationshipsSnapshot(
+  						CitationCompressedRows.compress(data.references, compression), 
+  						CitationCompressedRows.compress(data.citations, compression));
+  			}
+  			else if ("csr".equals(storage)) {
+  				relationships = new RelationshipsSnapshot(data.references, data.citations);
+  			}
+  			else {
+  				relationships = new RelationshipsSnapshot(data.references.toLists(), data.citations.toLists());
+  			}
+  		}
+  	}
+  	catch (RuntimeException e) {
+  		clear();
+  		relationships = RelationshipsSnapshot.EMPTY;
+  		return dropSnapshot(searcher, e);
+  	}
+  	warmupTime = System.currentTimeMillis() - startTime;
+  	log.info("Loaded snapshot of the cache (" + name() + ") in " + warmupTime + "ms");
+  	return true;
+  }
+  
+  /* deletes the unreadable snapshot, the cache is rebuilt (and written again) */
+  private boolean dropSnapshot(SolrIndexSearcher searcher, Exception e) {
+  	File file = getSnapshotFile(searcher, searcher.getIndexReader().getIndexCommit().getGeneration());
+  	log.warn("Corrupted snapshot of the cache (" + name() + "), it will be deleted and rebuilt: " + file, e);
+  	file.delete();
+  	return false;
+  }
+  
+  /*
+   * A cache loaded from the snapshot knows nothing about the segments, so the
+   * next incremental warmup would read the whole index; the segments are read
+   * in the background instead (the next warmup waits for them)
+   */
+  private synchronized void startSegmentsRead(SolrIndexSearcher searcher) {
+  	final Map<String, List<String>> refFields = getFields(searcher, this.referenceFields);
+  	final Map<String, List<String>> citFields = getFields(searcher, this.citationFields);
+  	final List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+  	segmentsExecutor = Executors.newSingleThreadExecutor(new DefaultSolrThreadFactory("citationCacheSegments"));
+  	segmentsExecutor.execute(new Runnable() {
+  		public void run() {
+  			try {
+  				Map<Object, SegmentData> data = new HashMap<Object, SegmentData>();
+  				for (AtomicReaderContext leaf: leaves) {
+  					AtomicReader reader = leaf.reader();
+  					CompressedSparseRows refOrds = readOrds(reader, multiValuedFields(refFields));
+  					CompressedSparseRows citOrds = readOrds(reader, multiValuedFields(citFields));
+  					lock.readLock().lock(); // the cache is live already
+  					try {
+  						data.put(reader.getCoreCacheKey(), new SegmentData(leaf.docBase, reader.maxDoc(), 
+  								refOrds, refOrds != null ? resolveOrds(reader, refFields) : null, 
+  								citOrds, citOrds != null ? resolveOrds(reader, citFields) : null));
+  					}
+  					finally {
+  						lock.readLock().unlock();
+  					}
+  				}
+  				segments = data;
+  			}
+  			catch (IOException e) {
+  				log.warn("Cannot read the segments of the cache (" + name() + "), the next warmup reads everything", e);
+  			}
+  			catch (RuntimeException e) {
+  				log.warn("Cannot read the segments of the cache (" + name() + "), the next warmup reads everything", e);
+  			}
+  		}
+  	});
+  	segmentsExecutor.shutdown(); // the thread goes away when the task is done
+  }
+  
+  /* the data of the segments, once the background read (if any) is done */
+  private Map<Object, SegmentData> getSegments() {
+  	ExecutorService executor;
+  	synchronized (this) {
+  		executor = segmentsExecutor;
+  	}
+  	if (executor != null) {
+  		try {
+  			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  		}
+  		catch (InterruptedException e) {
+  			Thread.currentThread().interrupt();
+  		}
+  	}
+  	return segments;
+  }
+  
+  /*
+   * Writes the snapshot in a background thread, the new searcher does
+   * not wait for it; the cache does not change after its warmup, so the
+   * thread reads the same data
+   */
+  private synchronized void startSnapshotWrite(SolrIndexSearcher searcher) throws IOException {
+  	DirectoryReader reader = searcher.getIndexReader();
+  	final long version = reader.getVersion();
+  	final long generation = reader.getIndexCommit().getGeneration();
+  	final int maxDoc = searcher.maxDoc();
+  	final File file = getSnapshotFile(searcher, generation);
+  	snapshotExecutor = Executors.newSingleThreadExecutor(new DefaultSolrThreadFactory("citationCacheSnapshot"));
+  	snapshotExecutor.execute(new Runnable() {
+  		public void run() {
+  			writeSnapshot(file, version, generation, maxDoc);
+  		}
+  	});
+  	snapshotExecutor.shutdown(); // the thread goes away when the task is done
+  }
+  
+  /*
+   * Blocks until the snapshot is written (used by tests); returns
+   * false if the write is still running
+   */
+  public boolean waitForSnapshot(long timeoutMs) throws InterruptedException {
+  	ExecutorService executor;
+  	synchronized (this) {
+  		executor = snapshotExecutor;
+  	}
+  	return executor == null || executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+  
+  /*
+   * Failure to write the snapshot is not fatal, the cache
+   * will be built (again) on the next start
+   */
+  private void writeSnapshot(File file, long version, long generation, int maxDoc) {
+  	long startTime = System.currentTimeMillis();
+  	try {
+  		file.getParentFile().mkdirs();
+  		
+  		Object[] keys;
+  		int[] docids;
+  		lock.readLock().lock();
+  		try {
+  			keys = identifiers.getKeys();
+  			docids = identifiers.getDocIds();
+  		}
+  		finally {
+  			lock.readLock().unlock();
+  		}
+  		
+  		CitationCacheSnapshot.write(file, version, generation, maxDoc, getSnapshotSignature(),
+  				treatIdentifiersAsText, keys, docids, relationships);
+  		
+  		// snapshots of the older commits are useless now; the caches of the
+  		// (overlapping) searchers write concurrently, so a newer snapshot
+  		// may be there already - it must stay
+  		File[] others = file.getParentFile().listFiles();
+  		String prefix = file.getName().substring(0, file.getName().lastIndexOf('_') + 1);
+  		if (others != null) {
+  			for (File f: others) {
+  				String name = f.getName();
+  				if (!name.startsWith(prefix) || !name.endsWith(CitationCacheSnapshot.SUFFIX)) {
+  					continue;
+  				}
+  				long g;
+  				try {
+  					g = Long.parseLong(name.substring(prefix.length(), name.length() - CitationCacheSnapshot.SUFFIX.length()));
+  				}
+  				catch (NumberFormatException e) {
+  					continue; // a cache with a longer name
+  				}
+  				if (g < generation) {
+  					f.delete();
+  				}
+  			}
+  		}
+  	}
+  	catch (IOException e) {
+  		log.warn("Cannot write snapshot of the cache (" + name() + ")", e);
+  		return;
+  	}
+  	catch (RuntimeException e) {
+  		log.warn("Cannot write snapshot of the cache (" + name() + ")", e);
+  		return;
+  	}
+  	log.info("Wrote snapshot of the cache (" + name() + ") in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+  
+  private File getSnapshotFile(SolrIndexSearcher searcher, long generation) {
+  	return CitationCacheSnapshot.getFile(new File(searcher.getCore().getDataDir(), "citation-cache"), 
+  			name(), generation);
+  }
+  
+  /* snapshot of a differently configured cache must not be used */
+  private int getSnapshotSignature() {
+  	return (Arrays.toString(identifierFields) + Arrays.toString(referenceFields) 
+  			+ Arrays.toString(citationFields)).hashCode();
   }
   
   private void warmRebuildEverything(SolrIndexSearcher searcher, SolrCache<K,V> old) throws IOException {
   	
   	Map<String, List<String>> fields = getFields(searcher, this.identifierFields);
   	if (fields.get("textFields").size() > 0 || fields.get("textFieldsMV").size() > 0) {
-  		synchronized (map) {
-  			treatIdentifiersAsText  = true;
-      }
+  		treatIdentifiersAsText  = true;
   	}
 
   	// builds the mapping from document ID's to lucene docids
-  	unInvertedTheDamnThing(searcher.getAtomicReader(), fields,
-  			null,
-  			new KVSetter() {
-	  		@Override
-	  		@SuppressWarnings({ "unchecked" })
-	      public void set (int docbase, int docid, Object value) {
-	    		put((K) value, (V) (Integer) (docbase+docid));
-	    	}
-	  	}
-  	);
+  	synchronized (identifierFieldStats) {
+  		identifierFieldStats.clear();
+  	}
+  	
+  	if (buildThreads > 1) {
+  		warmRebuildInParallel(searcher, fields);
+  		return;
+  	}
+  	
+  	for (Map<String, List<String>> field: splitFields(fields)) {
+  		int sizeBefore = size();
+  		long ramBefore = identifiers.ramBytesUsed();
+	  	unInvertedTheDamnThing(searcher.getAtomicReader(), field,
+	  			null,
+	  			new KVSetter() {
+		  		@Override
+		  		@SuppressWarnings({ "unchecked" })
+		      public void set (int docbase, int docid, Object value) {
+		    		put((K) value, (V) (Integer) (docbase+docid));
+		    	}
+		  	}
+	  	);
+	  	countIdentifiers(field, sizeBefore, ramBefore);
+  	}
   	
   	if (this.referenceFields.length == 0 && this.citationFields.length == 0) {
   		return;
   	}
   	
   	if (this.referenceFields.length > 0 || this.citationFields.length > 0) {
-	  	@SuppressWarnings("rawtypes")
-      final RelationshipLinkedHashMap relMap = (RelationshipLinkedHashMap) map;
+	  	final RelationshipsBuilder relMap = builder;
+	  	long buildStartTime = System.currentTimeMillis();
 	  	relMap.initializeCitationCache(searcher.maxDoc());
 	  	
 	  	
@@ -395,9 +1023,7 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 	  			new KVSetter() {
 			  		@Override
 			      public void set (int docbase, int docid, Object value) {
-			  			synchronized (relMap) {
-			  				relMap.addReference(docbase+docid, value);
-	            }
+			  			relMap.addReference(docbase+docid, value);
 			    	}
 			  	}
 	  	);
@@ -407,9 +1033,7 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 	  			new KVSetter() {
 			  		@Override
 			      public void set (int docbase, int docid, Object value) {
-			  			synchronized (relMap) {
-			  				relMap.addCitation(docbase+docid, value);
-	            }
+			  			relMap.addCitation(docbase+docid, value);
 			    	}
 			  	}
 	  	);
@@ -420,150 +1044,562 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 	  	else if (this.citationFields.length > 0  && this.referenceFields.length == 0) {
 	  		relMap.inferReferencesFromCitations();
 	  	}
+	  	
+	  	relationships = relMap.freeze();
+	  	relationshipsBuildTime = System.currentTimeMillis() - buildStartTime;
   	}
   	
   	
   }
   
+  /*
+   * Builds the cache segment by segment: the (ordinals of the) references/citations
+   * are read only from the segments that the previous cache has not seen. The
+   * identifiers are read from all the segments (without the deleted documents)
+   * and added field by field, segment by segment - exactly as the full rebuild
+   * adds them, so the same document wins when two documents share an
+   * identifier, and when the winner is deleted the identifier falls back to the
+   * other document. The old segments keep only the ordinals of their references
+   * with the docids they resolved to; those are shifted and only the ordinals
+   * whose target was deleted, merged away or lost one of its identifiers to
+   * another document (or was unknown, when new segments came) are looked up again.
+   */
+  @SuppressWarnings("unchecked")
   private void warmIncrementally(SolrIndexSearcher searcher, SolrCache<K,V> old) throws IOException {
-    if (regenerator==null) return;
     
-    //System.out.println("regenerator: " + regenerator);
+    long warmingStartTime = System.currentTimeMillis();
     
     Map<String, List<String>> fields = getFields(searcher, this.identifierFields);
-    if (fields.get("textClasses").size() > 0 || fields.get("textClassesMV").size() > 0) {
-  		synchronized (map) {
-  			treatIdentifiersAsText  = true;
-      }
+    if (fields.get("textFields").size() > 0 || fields.get("textFieldsMV").size() > 0) {
+  		treatIdentifiersAsText  = true;
   	}
-
-    
-    long warmingStartTime = System.currentTimeMillis();
-    CitationLRUCache<K,V> other = (CitationLRUCache<K,V>)old;
-
-    // collect ids of documents that need to be reloaded/regenerated during this
-    // warmup run
-    //System.out.println("searcher: " + searcher.toString());
-    //System.out.println("maxDoc: " + searcher.getIndexReader().maxDoc());
-    FixedBitSet toRefresh = new FixedBitSet(searcher.getIndexReader().maxDoc());
-    
-    //System.out.println("version=" + searcher.getIndexReader().getVersion());
-    //try {
-	    //System.out.println("commit=" + searcher.getIndexReader().getIndexCommit());
-    //} catch (IOException e2) {
-	    // TODO Auto-generated catch block
-	    //e2.printStackTrace();
-    //}
-    
-//    for (IndexReaderContext c : searcher.getTopReaderContext().children()) {
-//    	//System.out.println("context=" + c.reader().getCombinedCoreAndDeletesKey());
-//    }
-    
-//    for (IndexReaderContext l : searcher.getIndexReader().leaves()) {
-//    	//System.out.println(l);
-//    }
-    
-    Bits liveDocs = searcher.getAtomicReader().getLiveDocs();
-    //System.out.println(liveDocs == null ? "liveDocs=" + null : "liveDocs=" + liveDocs.length());
-    //System.out.println("numDeletes=" + searcher.getAtomicReader().numDeletedDocs());
-    
+    List<Map<String, List<String>>> idFields = splitFields(fields);
+    Map<String, List<String>> refFields = getFields(searcher, this.referenceFields);
+    Map<String, List<String>> citFields = getFields(searcher, this.citationFields);
     
+    CitationLRUCache<K,V> oldCache = null;
+    Map<Object, SegmentData> previous = Collections.emptyMap();
+    if (old instanceof CitationLRUCache) {
+    	oldCache = (CitationLRUCache<K,V>) old;
+    	previous = oldCache.getSegments();
+    }
     
-    if (liveDocs == null) { // everything is new, this could be fresh index or merged/optimized index too
-    	
-    	//searcher.getAtomicReader().getContext().children().size()
-    	
-      //other.map.clear(); // force regeneration
-      toRefresh.set(0, toRefresh.length());
-      
-      // Build the mapping from indexed values into lucene ids
-      // this must always be available, so we build it no matter what...
-      // XXX: make it update only the necessary IDs (not the whole index)
-      unInvertedTheDamnThing(searcher.getAtomicReader(), fields, liveDocs, new KVSetter() {
-	  		@SuppressWarnings("unchecked")
-        @Override
-	      public void set (int docbase, int docid, Object value) {
-	    		put((K) value, (V) (Integer) (docbase+docid));
-	    	}
-	  	}
-  	);
-      
+    List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    DocRemap remap = new DocRemap(previous, leaves);
+    SegmentData[] reused = new SegmentData[leaves.size()];
+    SegmentRead[] read = new SegmentRead[leaves.size()];
+    List<Callable<SegmentRead>> toRead = new ArrayList<Callable<SegmentRead>>();
+    for (int i=0; i<leaves.size(); i++) {
+    	final AtomicReader reader = leaves.get(i).reader();
+    	reused[i] = previous.get(reader.getCoreCacheKey());
+    	// the identifiers are read from every segment, the ordinals only from the new ones
+    	final List<Map<String, List<String>>> idf = idFields;
+    	final Map<String, List<String>> rf = reused[i] == null ? refFields : null;
+    	final Map<String, List<String>> cf = reused[i] == null ? citFields : null;
+    	toRead.add(new Callable<SegmentRead>() {
+    		@Override
+    		public SegmentRead call() throws IOException {
+    			return readSegment(reader, idf, rf, cf);
+    		}
+    	});
     }
-    else if (liveDocs != null) {
-    	
-    	Integer luceneId;
-      for (V v: other.map.values()) {
-      	luceneId = ((Integer) v);
-      	if (luceneId <= liveDocs.length() && !liveDocs.get(luceneId)) { // doc was either deleted or updated
-      		//System.out.println("Found deleted: " + luceneId);
-      		// retrieve all citations/references for this luceneId and mark these docs to be refreshed
-      	}
-      }
-      
-      for (int i = 0; i < toRefresh.length(); i++) {
-        if (liveDocs.get(i)) {
-          toRefresh.set(i);
-        }
-      }
+    List<SegmentRead> results = runTasks(toRead);
+    segmentsRead = 0;
+    for (int i=0; i<results.size(); i++) {
+    	read[i] = results.get(i);
+    	if (reused[i] == null) {
+    		segmentsRead++;
+    	}
     }
+    segmentsReused = leaves.size() - segmentsRead;
     
+    // field by field, segment by segment - ie. in the same order in
+    // which the whole index is read
+    synchronized (identifierFieldStats) {
+    	identifierFieldStats.clear();
+    }
+    for (int f=0; f<idFields.size(); f++) {
+    	int sizeBefore = size();
+    	long ramBefore = identifiers.ramBytesUsed();
+    	for (int i=0; i<leaves.size(); i++) {
+    		int docBase = leaves.get(i).docBase;
+    		Bits liveDocs = leaves.get(i).reader().getLiveDocs();
+    		Object[] values = read[i].idValues[f];
+    		int[] docs = read[i].idDocs[f];
+    		for (int j=0; j<docs.length; j++) {
+    			if (liveDocs != null && !liveDocs.get(docs[j]))
+    				continue;
+    			put((K) values[j], (V) (Integer) (docBase + docs[j]));
+    		}
+    		read[i].idValues[f] = null;
+    		read[i].idDocs[f] = null;
+    	}
+    	countIdentifiers(idFields.get(f), sizeBefore, ramBefore);
+    }
     
+    // the (surviving) documents that lost an identifier to another document;
+    // the targets that point to them may have to point elsewhere now
+    FixedBitSet displaced = new FixedBitSet(searcher.maxDoc());
+    if (oldCache != null && segmentsReused > 0) {
+    	Object[] keys;
+    	int[] docids;
+    	oldCache.lock.readLock().lock();
+    	try {
+    		keys = oldCache.identifiers.getKeys();
+    		docids = oldCache.identifiers.getDocIds();
+    	}
+    	finally {
+    		oldCache.lock.readLock().unlock();
+    	}
+    	for (int j=0; j<keys.length; j++) {
+    		int docid = remap.map(docids[j]);
+    		if (docid >= 0 && identifiers.get(keys[j]) != docid) {
+    			displaced.set(docid);
+    		}
+    	}
+    }
     
-
-    
+    // the targets of the ordinals, the identifiers are complete now
+    boolean newSegments = segmentsRead > 0;
+    Map<Object, SegmentData> current = new HashMap<Object, SegmentData>();
+    for (int i=0; i<leaves.size(); i++) {
+    	AtomicReaderContext leaf = leaves.get(i);
+    	AtomicReader reader = leaf.reader();
+    	SegmentData sd;
+    	if (reused[i] != null) {
+    		SegmentData prev = reused[i];
+    		sd = new SegmentData(leaf.docBase, reader.maxDoc(), 
+    				prev.referenceOrds, updateTargets(reader, refFields, prev.referenceTargets, remap, newSegments, displaced),
+    				prev.citationOrds, updateTargets(reader, citFields, prev.citationTargets, remap, newSegments, displaced));
+    	}
+    	else {
+    		CompressedSparseRows refOrds = read[i].referenceOrds;
+    		CompressedSparseRows citOrds = read[i].citationOrds;
+    		sd = new SegmentData(leaf.docBase, reader.maxDoc(), 
+    				refOrds, refOrds != null ? resolveOrds(reader, refFields) : null,
+    				citOrds, citOrds != null ? resolveOrds(reader, citFields) : null);
+    	}
+    	current.put(reader.getCoreCacheKey(), sd);
+    	reused[i] = sd;
+    }
+    segments = current;
     
-    // warm entries
-    if (isAutowarmingOn()) {
-      Object[] keys,vals = null;
-      
-      // Don't do the autowarming in the synchronized block, just pull out the keys and values.
-      synchronized (other.map) {
-        
-        int sz = autowarm.getWarmCount(other.map.size());
-        
-        keys = new Object[sz];
-        vals = new Object[sz];
-
-        Iterator<Map.Entry<K, V>> iter = other.map.entrySet().iterator();
-
-        // iteration goes from oldest (least recently used) to most recently used,
-        // so we need to skip over the oldest entries.
-        int skip = other.map.size() - sz;
-        for (int i=0; i<skip; i++) iter.next();
-
-
-        for (int i=0; i<sz; i++) {
-          Map.Entry<K,V> entry = iter.next();
-          keys[i]=entry.getKey();
-          vals[i]=entry.getValue();
-        }
-      }
-
-      
-      
-      // autowarm from the oldest to the newest entries so that the ordering will be
-      // correct in the new cache.
-      for (int i=0; i<keys.length; i++) {
-        try {
-          boolean continueRegen = true;
-          if (isModified(liveDocs, keys[i], vals[i])) {
-            toRefresh.set((Integer) keys[i]);
-          }
-          else {
-            continueRegen = regenerator.regenerateItem(searcher, this, old, keys[i], vals[i]);
-          }
-          if (!continueRegen) break;
-        }
-        catch (Throwable e) {
-          SolrException.log(log,"Error during auto-warming of key:" + keys[i], e);
-        }
-      }
+    if (this.referenceFields.length > 0 || this.citationFields.length > 0) {
+	  	final RelationshipsBuilder relMap = builder;
+	  	long buildStartTime = System.currentTimeMillis();
+	  	relMap.initializeCitationCache(searcher.maxDoc());
+	  	
+	  	for (int i=0; i<leaves.size(); i++) {
+	  		AtomicReaderContext leaf = leaves.get(i);
+	  		final int docBase = leaf.docBase;
+	  		Bits liveDocs = leaf.reader().getLiveDocs();
+	  		SegmentData sd = reused[i];
+	  		
+	  		if (sd.referenceOrds != null) {
+	  			int[] targets = sd.referenceTargets;
+	  			CompressedSparseRows rows = sd.referenceOrds;
+	  			for (int doc=0; doc<rows.numRows(); doc++) {
+	  				if (liveDocs != null && !liveDocs.get(doc))
+	  					continue;
+	  				for (int j=rows.start(doc); j<rows.end(doc); j++) {
+	  					relMap.addReference(docBase+doc, targets[rows.edge(j)]);
+	  				}
+	  			}
+	  		}
+	  		if (sd.citationOrds != null) {
+	  			int[] targets = sd.citationTargets;
+	  			CompressedSparseRows rows = sd.citationOrds;
+	  			for (int doc=0; doc<rows.numRows(); doc++) {
+	  				if (liveDocs != null && !liveDocs.get(doc))
+	  					continue;
+	  				for (int j=rows.start(doc); j<rows.end(doc); j++) {
+	  					relMap.addCitation(docBase+doc, targets[rows.edge(j)]);
+	  				}
+	  			}
+	  		}
+	  		
+	  		// single valued fields are cached by lucene (per segment)
+	  		unInvertedTheDamnThing(leaf.reader(), singleValuedFields(refFields), null,
+	  				new KVSetter() {
+	  			@Override
+	  			public void set (int docbase, int docid, Object value) {
+	  				relMap.addReference(docBase+docbase+docid, value);
+	  			}
+	  		}, false);
+	  		unInvertedTheDamnThing(leaf.reader(), singleValuedFields(citFields), null,
+	  				new KVSetter() {
+	  			@Override
+	  			public void set (int docbase, int docid, Object value) {
+	  				relMap.addCitation(docBase+docbase+docid, value);
+	  			}
+	  		}, false);
+	  	}
+	  	
+	  	if (this.citationFields.length == 0 && this.referenceFields.length > 0) {
+	  		relMap.inferCitationsFromReferences();
+	  	}
+	  	else if (this.citationFields.length > 0  && this.referenceFields.length == 0) {
+	  		relMap.inferReferencesFromCitations();
+	  	}
+	  	
+	  	relationships = relMap.freeze();
+	  	relationshipsBuildTime = System.currentTimeMillis() - buildStartTime;
     }
 
     warmupTime = System.currentTimeMillis() - warmingStartTime;
   }
-
   
+  /*
+   * The same as warmRebuildEverything(), but the index is read per segment
+   * and per field, by a pool of threads. Every task collects values into its
+   * own buffer; the buffers are merged by this thread in the order in which
+   * the sequential code reads them, so the result is the same and there is
+   * no locking per value. 
+   * 
+   * Unlike the sequential build, the field cache entries of the segments 
+   * are never purged (they are shared with the sorting).
+   */
+  @SuppressWarnings("unchecked")
+  private void warmRebuildInParallel(SolrIndexSearcher searcher, 
+  		Map<String, List<String>> fields) throws IOException {
+  	
+  	List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+  	List<Map<String, List<String>>> idFields = splitFields(fields);
+  	
+  	List<Callable<ValueBuffer>> idTasks = new ArrayList<Callable<ValueBuffer>>();
+  	for (final Map<String, List<String>> field: idFields) {
+  		for (final AtomicReaderContext leaf: leaves) {
+  			idTasks.add(new Callable<ValueBuffer>() {
+  				@Override
+  				public ValueBuffer call() throws IOException {
+  					final ValueBuffer buffer = new ValueBuffer();
+  					unInvertedTheDamnThing(leaf.reader(), field, null, new KVSetter() {
+  						@Override
+  						public void set (int docbase, int docid, Object value) {
+  							buffer.add(value, leaf.docBase+docbase+docid);
+  						}
+  					}, false);
+  					return buffer;
+  				}
+  			});
+  		}
+  	}
+  	
+  	List<ValueBuffer> idResults = runTasks(idTasks);
+  	int t = 0;
+  	for (Map<String, List<String>> field: idFields) {
+  		int sizeBefore = size();
+  		long ramBefore = identifiers.ramBytesUsed();
+  		for (int i=0; i<leaves.size(); i++) {
+  			ValueBuffer buffer = idResults.get(t);
+  			idResults.set(t++, null);
+  			for (int j=0; j<buffer.docids.size(); j++) {
+  				put((K) buffer.values.get(j), (V) (Integer) buffer.docids.get(j));
+  			}
+  		}
+  		countIdentifiers(field, sizeBefore, ramBefore);
+  	}
+  	
+  	if (this.referenceFields.length == 0 && this.citationFields.length == 0) {
+  		return;
+  	}
+  	
+  	RelationshipsBuilder relMap = builder;
+  	long buildStartTime = System.currentTimeMillis();
+  	relMap.initializeCitationCache(searcher.maxDoc());
+  	
+  	// the identifiers are complete (and not modified anymore), the
+  	// tasks can translate values into docids concurrently
+  	List<Callable<EdgeBuffer>> refTasks = edgeTasks(leaves, splitFields(getFields(searcher, this.referenceFields)));
+  	List<Callable<EdgeBuffer>> citTasks = edgeTasks(leaves, splitFields(getFields(searcher, this.citationFields)));
+  	List<Callable<EdgeBuffer>> edgeTasks = new ArrayList<Callable<EdgeBuffer>>(refTasks);
+  	edgeTasks.addAll(citTasks);
+  	List<EdgeBuffer> edges = runTasks(edgeTasks);
+  	
+  	for (int i=0; i<edges.size(); i++) {
+  		if (i < refTasks.size()) {
+  			relMap.addReferences(edges.get(i));
+  		}
+  		else {
+  			relMap.addCitations(edges.get(i));
+  		}
+  		edges.set(i, null);
+  	}
+  	
+  	if (this.citationFields.length == 0 && this.referenceFields.length > 0) {
+  		relMap.inferCitationsFromReferences();
+  	}
+  	else if (this.citationFields.length > 0  && this.referenceFields.length == 0) {
+  		relMap.inferReferencesFromCitations();
+  	}
+  	
+  	relationships = relMap.freeze();
+  	relationshipsBuildTime = System.currentTimeMillis() - buildStartTime;
+  }
+  
+  /* one task per field and segment (field by field) */
+  private List<Callable<EdgeBuffer>> edgeTasks(List<AtomicReaderContext> leaves, 
+  		List<Map<String, List<String>>> fields) {
+  	List<Callable<EdgeBuffer>> tasks = new ArrayList<Callable<EdgeBuffer>>();
+  	for (final Map<String, List<String>> field: fields) {
+  		for (final AtomicReaderContext leaf: leaves) {
+  			tasks.add(new Callable<EdgeBuffer>() {
+  				@Override
+  				public EdgeBuffer call() throws IOException {
+  					final EdgeBuffer buffer = new EdgeBuffer(leaf.reader().maxDoc());
+  					unInvertedTheDamnThing(leaf.reader(), field, null, new KVSetter() {
+  						@Override
+  						public void set (int docbase, int docid, Object value) {
+  							buffer.add(leaf.docBase+docbase+docid, identifiers.get(value));
+  						}
+  					}, false);
+  					return buffer;
+  				}
+  			});
+  		}
+  	}
+  	return tasks;
+  }
+  
+  /*
+   * Runs the tasks using buildThreads threads (or in the calling
+   * thread); the results are in the same order as the tasks
+   */
+  private <T> List<T> runTasks(List<Callable<T>> tasks) throws IOException {
+  	List<T> out = new ArrayList<T>(tasks.size());
+  	if (buildThreads <= 1 || tasks.size() <= 1) {
+  		for (Callable<T> task: tasks) {
+  			try {
+  				out.add(task.call());
+  			}
+  			catch (IOException e) {
+  				throw e;
+  			}
+  			catch (Exception e) {
+  				throw new SolrException(ErrorCode.SERVER_ERROR, "Failed to build the cache", e);
+  			}
+  		}
+  		return out;
+  	}
+  	
+  	ForkJoinPool pool = new ForkJoinPool(Math.min(buildThreads, tasks.size()));
+  	try {
+  		for (Future<T> f: pool.invokeAll(tasks)) {
+  			out.add(f.get());
+  		}
+  	}
+  	catch (InterruptedException e) {
+  		Thread.currentThread().interrupt();
+  		throw new SolrException(ErrorCode.SERVER_ERROR, "Interrupted while building the cache", e);
+  	}
+  	catch (ExecutionException e) {
+  		if (e.getCause() instanceof IOException) {
+  			throw (IOException) e.getCause();
+  		}
+  		throw new SolrException(ErrorCode.SERVER_ERROR, "Failed to build the cache", e.getCause());
+  	}
+  	finally {
+  		pool.shutdownNow();
+  	}
+  	return out;
+  }
+  
+  /* identifiers (and their docids) read by one task */
+  private static final class ValueBuffer {
+  	final ArrayList<Object> values = new ArrayList<Object>();
+  	final ArrayIntList docids = new ArrayIntList(16);
+  	
+  	void add(Object value, int docid) {
+  		values.add(value);
+  		docids.add(docid);
+  	}
+  }
+  
+  /*
+   * Reads one segment; deleted documents are included (they are
+   * skipped only when the data is used). The ordinals are not read
+   * when the fields are null.
+   */
+  private SegmentRead readSegment(AtomicReader reader, List<Map<String, List<String>>> idFields,
+  		Map<String, List<String>> refFields, Map<String, List<String>> citFields) throws IOException {
+  	
+  	Bits allDocs = new Bits.MatchAllBits(reader.maxDoc());
+  	Object[][] idValues = new Object[idFields.size()][];
+  	int[][] idDocs = new int[idFields.size()][];
+  	
+  	for (int f=0; f<idFields.size(); f++) {
+  		final ArrayList<Object> values = new ArrayList<Object>();
+  		final ArrayIntList docs = new ArrayIntList(16);
+  		unInvertedTheDamnThing(reader, idFields.get(f), allDocs, new KVSetter() {
+  			@Override
+  			public void set (int docbase, int docid, Object value) {
+  				values.add(value);
+  				docs.add(docbase+docid);
+  			}
+  		}, false);
+  		idValues[f] = values.toArray();
+  		idDocs[f] = docs.getElements();
+  	}
+  	
+  	return new SegmentRead(idValues, idDocs, 
+  			refFields != null ? readOrds(reader, multiValuedFields(refFields)) : null, 
+  			citFields != null ? readOrds(reader, multiValuedFields(citFields)) : null);
+  }
+  
+  /*
+   * For every document of the segment, collect ordinals of the terms
+   * (counted across all the fields); returns null if there is nothing
+   * to read
+   */
+  private static CompressedSparseRows readOrds(AtomicReader reader, List<String> fields) throws IOException {
+  	if (fields.size() == 0) {
+  		return null;
+  	}
+  	EdgeBuffer buffer = new EdgeBuffer(reader.maxDoc());
+  	int ord = 0;
+  	DocsEnum docs = null;
+  	for (String field: fields) {
+  		Terms terms = reader.terms(field);
+  		if (terms == null) {
+  			continue;
+  		}
+  		TermsEnum termsEnum = terms.iterator(null);
+  		while (termsEnum.next() != null) {
+  			docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE); // deletions are applied later
+  			int d;
+  			while ((d = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+  				buffer.add(d, ord);
+  			}
+  			ord++;
+  		}
+  	}
+  	return CompressedSparseRows.build(buffer, reader.maxDoc());
+  }
+  
+  /*
+   * Translates the term ordinals (as collected by readOrds) into
+   * the lucene docids of the current searcher (-1 = unknown)
+   */
+  private int[] resolveOrds(AtomicReader reader, Map<String, List<String>> fields) throws IOException {
+  	return resolveOrds(reader, fields, new int[16], null, Integer.MAX_VALUE);
+  }
+  
+  /*
+   * Resolves only the ordinals marked as stale (all if stale is null) and
+   * stops after the ordinal 'last'; the other targets are kept
+   */
+  private int[] resolveOrds(AtomicReader reader, Map<String, List<String>> fields, 
+  		int[] targets, FixedBitSet stale, int last) throws IOException {
+  	int ord = 0;
+  	for (String field: multiValuedFields(fields)) {
+  		Terms terms = reader.terms(field);
+  		if (terms == null) {
+  			continue;
+  		}
+  		boolean isInt = fields.get("intFieldsMV").contains(field);
+  		TermsEnum termsEnum = terms.iterator(null);
+  		BytesRef term;
+  		while (ord <= last && (term = termsEnum.next()) != null) {
+  			if (stale != null && !stale.get(ord)) {
+  				ord++;
+  				continue;
+  			}
+  			Object value;
+  			if (isInt) {
+  				int t = FieldCache.DEFAULT_INT_PARSER.parseInt(term);
+  				value = treatIdentifiersAsText ? Integer.toString(t) : (Object) t;
+  			}
+  			else {
+  				value = term.utf8ToString();
+  			}
+  			targets = ArrayUtil.grow(targets, ord+1);
+  			targets[ord++] = identifiers.get(value);
+  		}
+  	}
+  	return targets;
+  }
+  
+  /*
+   * The targets of a segment that was seen by the previous cache: the
+   * docids are shifted to the new searcher; a target must be looked up
+   * again only if its document is gone (deleted, or merged into a new
+   * segment), if it was unknown and there are new segments (which
+   * may contain it), or if a new segment took over its identifier
+   */
+  private int[] updateTargets(AtomicReader reader, Map<String, List<String>> fields, 
+  		int[] previous, DocRemap remap, boolean newSegments, FixedBitSet displaced) throws IOException {
+  	if (previous == null) {
+  		return null;
+  	}
+  	int[] targets = new int[previous.length];
+  	FixedBitSet stale = new FixedBitSet(previous.length);
+  	int last = -1;
+  	for (int ord=0; ord<previous.length; ord++) {
+  		targets[ord] = previous[ord] >= 0 ? remap.map(previous[ord]) : -1;
+  		if (targets[ord] == -1 ? (previous[ord] >= 0 || newSegments) : displaced.get(targets[ord])) {
+  			stale.set(ord);
+  			last = ord;
+  		}
+  	}
+  	if (last >= 0) {
+  		targets = resolveOrds(reader, fields, targets, stale, last);
+  	}
+  	return targets;
+  }
+  
+  /*
+   * Records how many identifiers were added (and how much memory they
+   * need) after one identifier field was read
+   */
+  private void countIdentifiers(Map<String, List<String>> field, int sizeBefore, long ramBefore) {
+  	long[] counts = new long[] {size() - sizeBefore, identifiers.ramBytesUsed() - ramBefore};
+  	synchronized (identifierFieldStats) {
+  		for (String type: FIELD_TYPES) {
+  			for (String f: field.get(type)) {
+  				identifierFieldStats.put(f, counts);
+  			}
+  		}
+  	}
+  }
+  
+  private static final String[] FIELD_TYPES = new String[] {"intFieldsMV", "textFieldsMV", "textFields", "intFields"};
+  
+  /*
+   * One map per field (in the order in which unInvertedTheDamnThing
+   * would read them)
+   */
+  private static List<Map<String, List<String>>> splitFields(Map<String, List<String>> fields) {
+  	List<Map<String, List<String>>> out = new ArrayList<Map<String, List<String>>>();
+  	for (String type: FIELD_TYPES) {
+  		for (String f: fields.get(type)) {
+  			Map<String, List<String>> single = emptyFields();
+  			single.get(type).add(f);
+  			out.add(single);
+  		}
+  	}
+  	return out;
+  }
+  
+  private static List<String> multiValuedFields(Map<String, List<String>> fields) {
+  	List<String> out = new ArrayList<String>(fields.get("intFieldsMV"));
+  	out.addAll(fields.get("textFieldsMV"));
+  	return out;
+  }
+  
+  private static Map<String, List<String>> singleValuedFields(Map<String, List<String>> fields) {
+  	Map<String, List<String>> out = emptyFields();
+  	out.get("textFields").addAll(fields.get("textFields"));
+  	out.get("intFields").addAll(fields.get("intFields"));
+  	return out;
+  }
+  
+  private static Map<String, List<String>> emptyFields() {
+  	HashMap<String, List<String>> out = new HashMap<String, List<String>>();
+  	for (String type: FIELD_TYPES) {
+  		out.put(type, new ArrayList<String>());
+  	}
+  	return out;
+  }
 
 	private Map<String, List<String>> getFields(SolrIndexSearcher searcher, String[] listOfFields) {
   	
@@ -629,27 +1665,17 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 	  
   }
 
-	/*
-   * Checks whether the cache needs to be rebuilt for this 
-   * document, eg. if the key points to a deleted document
-   * or if one of the values point at a deleted document
-   */
-  private boolean isModified(Bits liveDocs, Object cacheKey, Object cacheValue) {
-  	/*
-  	if (!liveDocs.get((Integer) get((K)cacheKey))) { // doc is deleted
-      return true;
-    }
-    
-    for (Integer luceneId: (Integer[]) cacheValue) {
-      if (!liveDocs.get(luceneId) || luceneId == -1) { // some of the linked docs was deleted or unrecognized
-        return true;
-      }
-    }
-    */
-    return false;
-  }
-
-  public void close() {
+  public synchronized void close() {
+  	if (pageRankExecutor != null) {
+  		pageRankExecutor.shutdownNow();
+  		pageRankExecutor = null;
+  	}
+  	if (segmentsExecutor != null) {
+  		segmentsExecutor.shutdownNow();
+  	}
+  	if (snapshotExecutor != null) {
+  		snapshotExecutor.shutdownNow();
+  	}
   }
   
   
@@ -666,6 +1692,16 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
    */
   private void unInvertedTheDamnThing(AtomicReader reader, Map<String, 
   		List<String>> fields, Bits liveDocs, KVSetter setter) throws IOException {
+  	unInvertedTheDamnThing(reader, fields, liveDocs, setter, true);
+  }
+  
+  /*
+   * When reading a segment, the field cache must not be purged; the entries
+   * are shared with the sorting and they are kept by lucene for as long as
+   * the segment exists
+   */
+  private void unInvertedTheDamnThing(AtomicReader reader, Map<String, 
+  		List<String>> fields, Bits liveDocs, KVSetter setter, boolean purgeFieldCache) throws IOException {
   	
   	if (liveDocs == null) {
   		liveDocs = reader.getLiveDocs();
@@ -761,7 +1797,7 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 			  }
 				i++;
 			}
-			if (purgeCache)
+			if (purgeCache && purgeFieldCache)
 				FieldCache.DEFAULT.purgeByCacheKey(reader.getCoreCacheKey());
 		}
 		for (String idField: fields.get("intFields")) {
@@ -874,15 +1910,63 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
   @SuppressWarnings({ "rawtypes", "unchecked" })
   public NamedList getStatistics() {
     NamedList lst = new SimpleOrderedMap();
-    synchronized (map) {
-      lst.add("lookups", lookups);
-      lst.add("hits", hits);
-      lst.add("hitratio", calcHitRatio(lookups,hits));
+    long allLookups = lookups.get();
+    long allHits = hits.get();
+    lst.add("lookups", allLookups);
+    lst.add("hits", allHits);
+    lst.add("hitratio", calcHitRatio(allLookups,allHits));
+    lock.readLock().lock();
+    try {
       lst.add("inserts", inserts);
       lst.add("evictions", evictions);
-      lst.add("size", map.size());
+      lst.add("size", identifiers.size());
+      lst.add("identifiersRamBytes", identifiers.ramBytesUsed());
+    }
+    finally {
+    	lock.readLock().unlock();
+    }
+    synchronized (identifierFieldStats) {
+    	for (Map.Entry<String, long[]> e: identifierFieldStats.entrySet()) {
+    		lst.add("identifiers." + e.getKey() + ".size", e.getValue()[0]);
+    		lst.add("identifiers." + e.getKey() + ".ramBytes", e.getValue()[1]);
+    	}
+    }
+    
+    // memory used by the relationships in both layouts (one of
+    // them is an estimate) so that the storage types can be compared
+    RelationshipsSnapshot rels = relationships;
+    lst.add("relationshipsStorage", storage);
+    lst.add("relationshipsBuildTime", relationshipsBuildTime);
+    lst.add("relationshipsRamBytesAsLists", rels.ramBytesUsedAsLists);
+    lst.add("relationshipsRamBytesAsCSR", rels.ramBytesUsedAsCSR);
+    lst.add("relationshipsCompression", compression);
+    if (!"none".equals(compression)) {
+    	lst.add("relationshipsRamBytesCompressed", rels.ramBytesUsedCompressed);
+    	lst.add("relationshipsBytesPerEdge", rels.numEdges == 0 ? 0f : (float) rels.ramBytesUsedCompressed / rels.numEdges);
     }
     lst.add("warmupTime", warmupTime);
+    if (snapshot) {
+    	lst.add("snapshotLoaded", snapshotLoaded);
+    }
+    if (incremental) {
+    	lst.add("segmentsReused", segmentsReused);
+    	lst.add("segmentsRead", segmentsRead);
+    }
+    CitationYearIndex years = yearIndex;
+    if (years != null) {
+    	lst.add("yearIndexRamBytes", years.ramBytesUsed());
+    }
+    if (pageRank) {
+    	CitationPageRank run = pageRankRun;
+    	lst.add("pageRankStatus", pageRankStatus);
+    	lst.add("pageRankStale", pageRankStale); // serving the ranks of the previous searcher
+    	if (run != null) {
+    		lst.add("pageRankIterations", run.iterations);
+    		lst.add("pageRankDelta", run.delta);
+    		lst.add("pageRankConverged", run.converged);
+    		lst.add("pageRankTime", run.time);
+    	}
+    }
     
     long clookups = stats.lookups.get();
     long chits = stats.hits.get();
@@ -932,6 +2016,59 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     }
   };
   
+  /**
+   * Iterator over the references (or citations) of one document; the
+   * values are returned in the order in which they are stored (which
+   * is ascending if the cache is compressed) and can contain -1 for
+   * the references that were not resolved.
+   */
+  public static abstract class RelationshipsCursor {
+  	int size = 0;
+  	int remaining = 0;
+  	
+  	public final int size() {
+  		return size;
+  	}
+  	
+  	public final boolean hasNext() {
+  		return remaining > 0;
+  	}
+  	
+  	public abstract int next();
+  	
+  	/*
+  	 * The value at the position n (0 <= n < size) of the row, without 
+  	 * reading the values before it; next() continues after it
+  	 */
+  	public abstract int get(int n);
+  }
+  
+  /* cursor over the uncompressed (lists or csr) storage */
+  static final class ArrayCursor extends RelationshipsCursor {
+  	private int[] values;
+  	private int start;
+  	private int pos;
+  	
+  	void reset(int[] values, int start, int end) {
+  		this.values = values;
+  		this.start = this.pos = start;
+  		this.size = this.remaining = end - start;
+  	}
+  	
+  	@Override
+  	public int next() {
+  		remaining--;
+  		return values[pos++];
+  	}
+  	
+  	@Override
+  	public int get(int n) {
+  		pos = start + n + 1;
+  		remaining = size - n - 1;
+  		return values[start + n];
+  	}
+  }
+  
   /**
    * Efficient resizable auto-expanding list holding <code>int</code> elements;
    * implemented with arrays.
@@ -1000,73 +2137,401 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
   
 
   
+  /**
+   * Growable pair of parallel <code>int</code> arrays holding (source, target)
+   * edges in the order they were added. It is used only while the cache is being
+   * built, afterwards the edges are turned into {@link CompressedSparseRows}
+   */
+  static final class EdgeBuffer {
+  	
+  	private int[] sources;
+  	private int[] targets;
+  	private int size = 0;
+  	
+  	public EdgeBuffer(int initialCapacity) {
+  		sources = new int[Math.max(initialCapacity, 1)];
+  		targets = new int[sources.length];
+  	}
+  	
+  	public void add(int source, int target) {
+  		if (size == sources.length) {
+  			sources = ArrayUtil.grow(sources, size + 1);
+  			targets = ArrayUtil.grow(targets, sources.length);
+  		}
+  		sources[size] = source;
+  		targets[size] = target;
+  		size++;
+  	}
+  	
+  	public void addAll(EdgeBuffer other) {
+  		if (size + other.size > sources.length) {
+  			sources = ArrayUtil.grow(sources, size + other.size);
+  			targets = ArrayUtil.grow(targets, sources.length);
+  		}
+  		System.arraycopy(other.sources, 0, sources, size, other.size);
+  		System.arraycopy(other.targets, 0, targets, size, other.size);
+  		size += other.size;
+  	}
+  	
+  	public int size() {
+  		return size;
+  	}
+  }
+  
+  /**
+   * Compressed sparse row (CSR) storage of one direction of the citation
+   * network: values of the row (document) <code>i</code> are stored in
+   * <code>edges[offsets[i]...offsets[i+1]-1]</code>, in the order in which 
+   * they were added. Compared to one {@link ArrayIntList} per document,
+   * this needs only two <code>int[]</code> arrays.
+   */
+  static final class CompressedSparseRows {
+  	
+  	final int[] offsets;
+  	final int[] edges;
+  	
+  	CompressedSparseRows(int[] offsets, int[] edges) {
+  		this.offsets = offsets;
+  		this.edges = edges;
+  	}
+  	
+  	/*
+  	 * Counting sort of the buffered edges by their source; the relative
+  	 * order of the edges inside one row is preserved
+  	 */
+  	public static CompressedSparseRows build(EdgeBuffer buffer, int numRows) {
+  		int[] offsets = new int[numRows+1];
+  		int[] sources = buffer.sources;
+  		int[] targets = buffer.targets;
+  		int size = buffer.size;
+  		
+  		for (int i=0; i<size; i++) {
+  			offsets[sources[i]]++;
+  		}
+  		for (int i=1; i<numRows; i++) {
+  			offsets[i] += offsets[i-1];
+  		}
+  		offsets[numRows] = size;
+  		
+  		// offsets[i] points behind the row i; we fill it backwards so that 
+  		// at the end it points to the start of the row
+  		int[] edges = new int[size];
+  		for (int i=size-1; i>=0; i--) {
+  			edges[--offsets[sources[i]]] = targets[i];
+  		}
+  		return new CompressedSparseRows(offsets, edges);
+  	}
+  	
+  	/*
+  	 * Returns the inverse relationship (ie. citations from references);
+  	 * unresolved values (-1) are skipped
+  	 */
+  	public CompressedSparseRows transpose() {
+  		int numRows = numRows();
+  		int[] newOffsets = new int[numRows+1];
+  		int size = 0;
+  		for (int target: edges) {
+  			if (target < 0 || target >= numRows)
+  				continue;
+  			newOffsets[target]++;
+  			size++;
+  		}
+  		for (int i=1; i<numRows; i++) {
+  			newOffsets[i] += newOffsets[i-1];
+  		}
+  		newOffsets[numRows] = size;
+  		
+  		int[] newEdges = new int[size];
+  		for (int row=numRows-1; row>=0; row--) {
+  			for (int j=offsets[row+1]-1; j>=offsets[row]; j--) {
+  				int target = edges[j];
+  				if (target < 0 || target >= numRows)
+  					continue;
+  				newEdges[--newOffsets[target]] = row;
+  			}
+  		}
+  		return new CompressedSparseRows(newOffsets, newEdges);
+  	}
+  	
+  	/*
+  	 * Copies the lists into the CSR layout (null stays null)
+  	 */
+  	public static CompressedSparseRows fromLists(List<ArrayIntList> rows) {
+  		int[] offsets = new int[rows.size()+1];
+  		for (int i=0; i<rows.size(); i++) {
+  			ArrayIntList row = rows.get(i);
+  			offsets[i+1] = offsets[i] + (row == null ? 0 : row.size());
+  		}
+  		int[] edges = new int[offsets[rows.size()]];
+  		for (int i=0; i<rows.size(); i++) {
+  			ArrayIntList row = rows.get(i);
+  			if (row != null) {
+  				System.arraycopy(row.elements, 0, edges, offsets[i], row.size());
+  			}
+  		}
+  		return new CompressedSparseRows(offsets, edges);
+  	}
+  	
+  	/*
+  	 * The opposite of fromLists(), empty rows become null
+  	 */
+  	public List<ArrayIntList> toLists() {
+  		int numRows = numRows();
+  		List<ArrayIntList> rows = new ArrayList<ArrayIntList>(numRows);
+  		for (int i=0; i<numRows; i++) {
+  			int s = size(i);
+  			if (s == 0) {
+  				rows.add(null);
+  				continue;
+  			}
+  			ArrayIntList row = new ArrayIntList(s);
+  			for (int j=offsets[i]; j<offsets[i+1]; j++) {
+  				row.add(edges[j]);
+  			}
+  			rows.add(row);
+  		}
+  		return rows;
+  	}
+  	
+  	public int numRows() {
+  		return offsets.length - 1;
+  	}
+  	
+  	public int size(int row) {
+  		return offsets[row+1] - offsets[row];
+  	}
+  	
+  	/* position of the first value of the row (see edge()) */
+  	public int start(int row) {
+  		return offsets[row];
+  	}
+  	
+  	/* position behind the last value of the row */
+  	public int end(int row) {
+  		return offsets[row+1];
+  	}
+  	
+  	public int edge(int position) {
+  		return edges[position];
+  	}
+  	
+  	/*
+  	 * Returns a copy of the row or null if the row is empty (the
+  	 * same as what the lists return for a missing element)
+  	 */
+  	public int[] get(int row) {
+  		if (row >= numRows() || offsets[row] == offsets[row+1])
+  			return null;
+  		return Arrays.copyOfRange(edges, offsets[row], offsets[row+1]);
+  	}
+  	
+  	public long ramBytesUsed() {
+  		return RamUsageEstimator.sizeOf(offsets) + RamUsageEstimator.sizeOf(edges);
+  	}
+  	
+  	/*
+  	 * Estimate of how much memory the same data would need when 
+  	 * stored as one ArrayIntList per document
+  	 */
+  	public long ramBytesUsedAsLists() {
+  		int numRows = numRows();
+  		long bytes = ramBytesUsedByListOfRows(numRows);
+  		for (int i=0; i<numRows; i++) {
+  			int s = size(i);
+  			if (s > 0) {
+  				bytes += ramBytesUsedByRow(s);
+  			}
+  		}
+  		return bytes;
+  	}
+  	
+  	/*
+  	 * Memory used by the lists (as they are now) and the estimate
+  	 * for the CSR storage of the same data; out[0]=lists, out[1]=csr,
+  	 * out[2]=number of values
+  	 */
+  	public static long[] ramBytesUsed(List<ArrayIntList> rows) {
+  		long lists = ramBytesUsedByListOfRows(rows.size());
+  		long numEdges = 0;
+  		for (ArrayIntList row: rows) {
+  			if (row != null) {
+  				lists += ramBytesUsedByRow(row.elements.length);
+  				numEdges += row.size();
+  			}
+  		}
+  		long csr = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER 
+  				+ (long) RamUsageEstimator.NUM_BYTES_INT * (rows.size() + 1))
+  				+ RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER 
+  				+ RamUsageEstimator.NUM_BYTES_INT * numEdges);
+  		return new long[]{lists, csr, numEdges};
+  	}
+  	
+  	private static long ramBytesUsedByListOfRows(int numRows) {
+  		return RamUsageEstimator.shallowSizeOfInstance(ArrayList.class) 
+  				+ RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER 
+  						+ (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * numRows);
+  	}
+  	
+  	private static long ramBytesUsedByRow(int capacity) {
+  		return RamUsageEstimator.shallowSizeOfInstance(ArrayIntList.class) 
+  				+ RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER 
+  						+ (long) RamUsageEstimator.NUM_BYTES_INT * capacity);
+  	}
+  }
+
+  
+  /**
+   * What the incremental warmup remembers about one index segment: the
+   * ordinals of the terms of the multi-valued reference/citation fields
+   * (per document, deleted documents are included) and the docids that
+   * the ordinals resolved to (-1 = unknown). The identifiers are not kept,
+   * the next cache copies them from this one.
+   */
+  static final class SegmentData {
+  	final int docBase;
+  	final int maxDoc;
+  	final CompressedSparseRows referenceOrds;
+  	final int[] referenceTargets;
+  	final CompressedSparseRows citationOrds;
+  	final int[] citationTargets;
+  	
+  	SegmentData(int docBase, int maxDoc, 
+  			CompressedSparseRows referenceOrds, int[] referenceTargets,
+  			CompressedSparseRows citationOrds, int[] citationTargets) {
+  		this.docBase = docBase;
+  		this.maxDoc = maxDoc;
+  		this.referenceOrds = referenceOrds;
+  		this.referenceTargets = referenceTargets;
+  		this.citationOrds = citationOrds;
+  		this.citationTargets = citationTargets;
+  	}
+  }
+  
+  /* one segment as read by the warmup; the identifiers are used only once */
+  private static final class SegmentRead {
+  	final Object[][] idValues;
+  	final int[][] idDocs;
+  	final CompressedSparseRows referenceOrds;
+  	final CompressedSparseRows citationOrds;
+  	
+  	SegmentRead(Object[][] idValues, int[][] idDocs, 
+  			CompressedSparseRows referenceOrds, CompressedSparseRows citationOrds) {
+  		this.idValues = idValues;
+  		this.idDocs = idDocs;
+  		this.referenceOrds = referenceOrds;
+  		this.citationOrds = citationOrds;
+  	}
+  }
+  
   /*
-   * Until I implement dynamic loading of data, this cache 
-   * will always grow to the maxdoc size, so that no 
-   * evictions happen
+   * Translates the docids of the previous searcher to the current one:
+   * -1 if the segment of the document is gone or the document is deleted
    */
-	@SuppressWarnings("hiding")
-  public class RelationshipLinkedHashMap<K,V> extends LinkedHashMap<K,V> {
-    private static final long serialVersionUID = -356203002886265188L;
-		int slimit;
+  private static final class DocRemap {
+  	private final int[] oldBases; // sorted
+  	private final int[] oldEnds;
+  	private final int[] newBases; // -1 = the segment is gone
+  	private final Bits[] liveDocs;
+  	
+  	DocRemap(Map<Object, SegmentData> previous, List<AtomicReaderContext> leaves) {
+  		Map<Object, AtomicReaderContext> current = new HashMap<Object, AtomicReaderContext>();
+  		for (AtomicReaderContext leaf: leaves) {
+  			current.put(leaf.reader().getCoreCacheKey(), leaf);
+  		}
+  		List<Map.Entry<Object, SegmentData>> entries = new ArrayList<Map.Entry<Object, SegmentData>>(previous.entrySet());
+  		Collections.sort(entries, new java.util.Comparator<Map.Entry<Object, SegmentData>>() {
+  			public int compare(Map.Entry<Object, SegmentData> a, Map.Entry<Object, SegmentData> b) {
+  				return a.getValue().docBase - b.getValue().docBase;
+  			}
+  		});
+  		int n = entries.size();
+  		oldBases = new int[n];
+  		oldEnds = new int[n];
+  		newBases = new int[n];
+  		liveDocs = new Bits[n];
+  		for (int i=0; i<n; i++) {
+  			SegmentData sd = entries.get(i).getValue();
+  			oldBases[i] = sd.docBase;
+  			oldEnds[i] = sd.docBase + sd.maxDoc;
+  			AtomicReaderContext leaf = current.get(entries.get(i).getKey());
+  			newBases[i] = leaf == null ? -1 : leaf.docBase;
+  			liveDocs[i] = leaf == null ? null : leaf.reader().getLiveDocs();
+  		}
+  	}
+  	
+  	int map(int oldDocid) {
+  		int i = Arrays.binarySearch(oldBases, oldDocid);
+  		i = i >= 0 ? i : -i - 2;
+  		if (i < 0 || oldDocid >= oldEnds[i] || newBases[i] == -1) {
+  			return -1;
+  		}
+  		int local = oldDocid - oldBases[i];
+  		if (liveDocs[i] != null && !liveDocs[i].get(local)) {
+  			return -1;
+  		}
+  		return newBases[i] + local;
+  	}
+  }
+  
+  /*
+   * Counter of the lookups, incremented by many threads on every query;
+   * the threads add into different (padded) cells, so they do not fight
+   * over one cache line as with an AtomicLong. The sum is read only for
+   * the statistics. (Java 7 has no LongAdder.)
+   */
+  static final class StripedCounter {
+  	private static final int STRIPES = Integer.highestOneBit(
+  			Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 2;
+  	private static final int PADDING = 8; // longs per cache line
+  	
+  	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+  	
+  	void increment() {
+  		long id = Thread.currentThread().getId();
+  		cells.incrementAndGet(((int) (id ^ (id >>> 32)) & (STRIPES - 1)) * PADDING);
+  	}
+  	
+  	long get() {
+  		long sum = 0;
+  		for (int i=0; i<STRIPES; i++) {
+  			sum += cells.get(i * PADDING);
+  		}
+  		return sum;
+  	}
+  }
+  
+  /*
+   * Collects the references/citations during the warmup; the values are
+   * translated into lucene docids using the identifiers of the cache
+   */
+  public class RelationshipsBuilder {
 		List<ArrayIntList> references;
 		List<ArrayIntList> citations;
+		
+		// used instead of the lists when the storage is 'csr'; the buffers exist
+		// only while the cache is being built (until freeze() gets called)
+		boolean csr;
+		int numRows = 0;
+		EdgeBuffer referencesBuffer;
+		EdgeBuffer citationsBuffer;
+		CompressedSparseRows referenceRows;
+		CompressedSparseRows citationRows;
   	
-		public RelationshipLinkedHashMap (int initialSize, float ratio, boolean accessOrder, 
-				int limit, Float sizeInPercent) {
-			super(initialSize, ratio, accessOrder);
-			slimit = limit;
+		public RelationshipsBuilder (boolean csr) {
+			this.csr = csr;
 			references = new ArrayList<ArrayIntList>(0); // just to prevent NPE - normally, is
     	citations = new ArrayList<ArrayIntList>(0);  // initialized in initializeCitationCache 
 		}
 		
 		
-    @SuppressWarnings("rawtypes")
-    @Override
-    protected boolean removeEldestEntry(Map.Entry eldest) {
-    	return false;
-    	/*
-      if (size() > slimit) {
-        // increment evictions regardless of state.
-        // this doesn't need to be synchronized because it will
-        // only be called in the context of a higher level synchronized block.
-      	evictions++;
-      	stats.evictions.incrementAndGet();
-        return true;
-      }
-      return false;
-      */
-    }
-    
-    
-    public int[] getReferences(int docid) {
-    	if (docid < references.size() && references.get(docid) != null) {
-    		ArrayIntList c = references.get(docid);
-    		if (c != null)
-    			return c.getElements();
-    	}
-    	return null;
-    }
-    
-    
-    public Iterator<int[][]> getRelationshipsIterator() {
-    	return new CitationDataIterator();
-    }
-    
-    public int relationshipsDataSize() {
-    	return citations.size();
-    }
-    
-    public int[] getCitations(int docid) {
-    	if (docid < citations.size() && citations.get(docid) != null) {
-    		ArrayIntList c = citations.get(docid);
-    		if (c != null)
-    			return c.getElements();
-    	}
-    	return null;
-    }
-    
     public void initializeCitationCache(int maxDocSize) {
+    	numRows = maxDocSize;
+    	if (csr) {
+    		referencesBuffer = new EdgeBuffer(maxDocSize);
+    		citationsBuffer = new EdgeBuffer(maxDocSize);
+    		return;
+    	}
+    	
     	references = new ArrayList<ArrayIntList>(maxDocSize);
     	citations = new ArrayList<ArrayIntList>(maxDocSize);
     	
@@ -1081,29 +2546,48 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     
     public void addReference(int sourceDocid, Object value) {
     	//System.out.println("addReference(" + sourceDocid + ", " + value + ")");
-    	if (this.containsKey(value)) {
-    		addReference(sourceDocid, (Integer) this.get(value));
-    	}
-    	else {
-    		addReference(sourceDocid, -1);
-    	}
+    	addReference(sourceDocid, identifiers.get(value));
     }
-    public void addReference(int sourceDocid, Integer targetDocid) {
+    public void addReference(int sourceDocid, int targetDocid) {
+    	if (csr) {
+    		referencesBuffer.add(sourceDocid, targetDocid);
+    		return;
+    	}
     	_add(references, sourceDocid, targetDocid);
     }
 
     public void addCitation(int sourceDocid, Object value) {
     	//System.out.println("addCitation(" + sourceDocid + ", " + value + ")");
-    	if (this.containsKey(value)) {
-    		addCitation(sourceDocid, (Integer) this.get(value));
+    	addCitation(sourceDocid, identifiers.get(value));
+    }
+    
+    /* adds all edges of the buffer (ie. references) */
+    public void addReferences(EdgeBuffer buffer) {
+    	if (csr) {
+    		referencesBuffer.addAll(buffer);
+    		return;
     	}
-    	else {
-    		addCitation(sourceDocid, -1);
+    	for (int i=0; i<buffer.size(); i++) {
+    		_add(references, buffer.sources[i], buffer.targets[i]);
     	}
     }
     
-    public void addCitation(int sourceDocid, Integer targetDocid) {
+    public void addCitations(EdgeBuffer buffer) {
+    	if (csr) {
+    		citationsBuffer.addAll(buffer);
+    		return;
+    	}
+    	for (int i=0; i<buffer.size(); i++) {
+    		_add(citations, buffer.sources[i], buffer.targets[i]);
+    	}
+    }
+    
+    public void addCitation(int sourceDocid, int targetDocid) {
     	//System.out.println("addCitation(" + sourceDocid + "," + targetDocid+")");
+    	if (csr) {
+    		citationsBuffer.add(sourceDocid, targetDocid);
+    		return;
+    	}
     	_add(citations, sourceDocid, targetDocid);
     }
         
@@ -1122,6 +2606,12 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     }
     
     public void inferCitationsFromReferences() {
+    	if (csr) {
+    		referenceRows = CompressedSparseRows.build(referencesBuffer, numRows);
+    		citationRows = referenceRows.transpose();
+    		referencesBuffer = citationsBuffer = null;
+    		return;
+    	}
     	int i = -1;
     	for (ArrayIntList refs : references) {
     		i += 1;
@@ -1137,6 +2627,12 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     }
     
     public void inferReferencesFromCitations() {
+    	if (csr) {
+    		citationRows = CompressedSparseRows.build(citationsBuffer, numRows);
+    		referenceRows = citationRows.transpose();
+    		referencesBuffer = citationsBuffer = null;
+    		return;
+    	}
     	int i = -1;
     	for (ArrayIntList refs : citations) {
     		i += 1;
@@ -1151,24 +2647,255 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
     	}
     }
     
+    /*
+     * Called when all relationships were added; for the 'csr' storage
+     * the buffered edges are sorted into their final arrays. Returns
+     * the (immutable) data, this object is then free to build a new
+     * citation network
+     */
+    public RelationshipsSnapshot freeze() {
+    	RelationshipsSnapshot snapshot;
+    	if (csr) {
+    		if (referencesBuffer != null) {
+    			referenceRows = CompressedSparseRows.build(referencesBuffer, numRows);
+    		}
+    		if (citationsBuffer != null) {
+    			citationRows = CompressedSparseRows.build(citationsBuffer, numRows);
+    		}
+    	}
+    	
+    	if (!"none".equals(compression)) {
+    		if (!csr) {
+    			referenceRows = CompressedSparseRows.fromLists(references);
+    			references = null;
+    			citationRows = CompressedSparseRows.fromLists(citations);
+    			citations = null;
+    		}
+    		CitationCompressedRows compressedReferences = CitationCompressedRows.compress(referenceRows, compression);
+    		referenceRows = null;
+    		snapshot = new RelationshipsSnapshot(compressedReferences, 
+    				CitationCompressedRows.compress(citationRows, compression));
+    	}
+    	else if (csr) {
+    		snapshot = new RelationshipsSnapshot(referenceRows, citationRows);
+    	}
+    	else {
+    		snapshot = new RelationshipsSnapshot(references, citations);
+    	}
+    	
+    	referencesBuffer = citationsBuffer = null;
+    	referenceRows = citationRows = null;
+    	references = new ArrayList<ArrayIntList>(0);
+    	citations = new ArrayList<ArrayIntList>(0);
+    	return snapshot;
+    }
+  };
+  
+  
+  /**
+   * Immutable view of the citation network. It is created at the end of
+   * the warmup and published through a volatile field; since it is never
+   * modified afterwards, it can be read by many threads without locking.
+   */
+  static final class RelationshipsSnapshot {
+  	
+  	static final RelationshipsSnapshot EMPTY = new RelationshipsSnapshot(
+  			new ArrayList<ArrayIntList>(0), new ArrayList<ArrayIntList>(0));
+  	
+  	// only one pair is used, depending on the storage type
+  	private final List<ArrayIntList> references;
+  	private final List<ArrayIntList> citations;
+  	private final CompressedSparseRows referenceRows;
+  	private final CompressedSparseRows citationRows;
+  	private final CitationCompressedRows referencesCompressed;
+  	private final CitationCompressedRows citationsCompressed;
+  	
+  	final long ramBytesUsedAsLists;
+  	final long ramBytesUsedAsCSR;
+  	final long ramBytesUsedCompressed;
+  	final long numEdges;
+  	
+  	// number of resolved (!= -1) citations/references of every document
+  	final int[] citationCounts;
+  	final int[] referenceCounts;
+  	
+  	RelationshipsSnapshot(List<ArrayIntList> references, List<ArrayIntList> citations) {
+  		this.references = references;
+  		this.citations = citations;
+  		this.referenceRows = null;
+  		this.citationRows = null;
+  		this.referencesCompressed = null;
+  		this.citationsCompressed = null;
+  		
+  		long[] r = CompressedSparseRows.ramBytesUsed(references);
+  		long[] c = CompressedSparseRows.ramBytesUsed(citations);
+  		ramBytesUsedAsLists = r[0] + c[0];
+  		ramBytesUsedAsCSR = r[1] + c[1];
+  		ramBytesUsedCompressed = 0;
+  		numEdges = r[2] + c[2];
+  		citationCounts = countResolved(false);
+  		referenceCounts = countResolved(true);
+  	}
+  	
+  	RelationshipsSnapshot(CompressedSparseRows referenceRows, CompressedSparseRows citationRows) {
+  		this.references = null;
+  		this.citations = null;
+  		this.referenceRows = referenceRows;
+  		this.citationRows = citationRows;
+  		this.referencesCompressed = null;
+  		this.citationsCompressed = null;
+  		
+  		ramBytesUsedAsCSR = referenceRows.ramBytesUsed() + citationRows.ramBytesUsed();
+  		ramBytesUsedAsLists = referenceRows.ramBytesUsedAsLists() + citationRows.ramBytesUsedAsLists();
+  		ramBytesUsedCompressed = 0;
+  		numEdges = referenceRows.edges.length + citationRows.edges.length;
+  		citationCounts = countResolved(false);
+  		referenceCounts = countResolved(true);
+  	}
+  	
+  	RelationshipsSnapshot(CitationCompressedRows references, CitationCompressedRows citations) {
+  		this.references = null;
+  		this.citations = null;
+  		this.referenceRows = null;
+  		this.citationRows = null;
+  		this.referencesCompressed = references;
+  		this.citationsCompressed = citations;
+  		
+  		numEdges = references.numEdges() + citations.numEdges();
+  		ramBytesUsedCompressed = references.ramBytesUsed() + citations.ramBytesUsed();
+  		long numRows = references.numRows();
+  		ramBytesUsedAsCSR = 2 * (RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER 
+  				+ RamUsageEstimator.NUM_BYTES_INT * (numRows + 1)) + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER)
+  				+ RamUsageEstimator.NUM_BYTES_INT * numEdges;
+  		long lists = 0;
+  		for (int i=0; i<numRows; i++) {
+  			lists += rowAsListRamBytes(references.size(i)) + rowAsListRamBytes(citations.size(i));
+  		}
+  		ramBytesUsedAsLists = lists;
+  		citationCounts = countResolved(false);
+  		referenceCounts = countResolved(true);
+  	}
+  	
+  	private int[] countResolved(boolean ofReferences) {
+  		int[] counts = new int[size()];
+  		RelationshipsCursor cursor = null;
+  		for (int docid=0; docid<counts.length; docid++) {
+  			cursor = ofReferences ? getReferences(docid, cursor) : getCitations(docid, cursor);
+  			int count = 0;
+  			while (cursor.hasNext()) {
+  				if (cursor.next() >= 0) {
+  					count++;
+  				}
+  			}
+  			counts[docid] = count;
+  		}
+  		return counts;
+  	}
+  	
+  	private static long rowAsListRamBytes(int size) {
+  		return size == 0 ? 0 : RamUsageEstimator.shallowSizeOfInstance(ArrayIntList.class) 
+  				+ RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER 
+  						+ (long) RamUsageEstimator.NUM_BYTES_INT * size);
+  	}
+  	
+  	public int[] getReferences(int docid) {
+  		if (referenceRows != null) {
+  			return referenceRows.get(docid);
+  		}
+  		if (referencesCompressed != null) {
+  			return referencesCompressed.get(docid);
+  		}
+  		return getElements(references, docid);
+  	}
+  	
+  	public int[] getCitations(int docid) {
+  		if (citationRows != null) {
+  			return citationRows.get(docid);
+  		}
+  		if (citationsCompressed != null) {
+  			return citationsCompressed.get(docid);
+  		}
+  		return getElements(citations, docid);
+  	}
+  	
+  	public RelationshipsCursor getReferences(int docid, RelationshipsCursor reuse) {
+  		if (referencesCompressed != null) {
+  			return referencesCompressed.cursor(docid, reuse);
+  		}
+  		return cursor(references, referenceRows, docid, reuse);
+  	}
+  	
+  	public RelationshipsCursor getCitations(int docid, RelationshipsCursor reuse) {
+  		if (citationsCompressed != null) {
+  			return citationsCompressed.cursor(docid, reuse);
+  		}
+  		return cursor(citations, citationRows, docid, reuse);
+  	}
+  	
+  	private static RelationshipsCursor cursor(List<ArrayIntList> lists, CompressedSparseRows rows, 
+  			int docid, RelationshipsCursor reuse) {
+  		ArrayCursor cursor = reuse instanceof ArrayCursor ? (ArrayCursor) reuse : new ArrayCursor();
+  		if (rows != null) {
+  			if (docid < rows.numRows()) {
+  				cursor.reset(rows.edges, rows.start(docid), rows.end(docid));
+  			}
+  			else {
+  				cursor.reset(rows.edges, 0, 0);
+  			}
+  		}
+  		else {
+  			ArrayIntList row = docid < lists.size() ? lists.get(docid) : null;
+  			if (row != null) {
+  				cursor.reset(row.elements, 0, row.size());
+  			}
+  			else {
+  				cursor.reset(null, 0, 0);
+  			}
+  		}
+  		return cursor;
+  	}
+  	
+  	private static int[] getElements(List<ArrayIntList> rows, int docid) {
+  		if (docid < rows.size()) {
+  			ArrayIntList c = rows.get(docid);
+  			if (c != null)
+  				return c.getElements();
+  		}
+  		return null;
+  	}
+  	
+  	public int size() {
+  		if (citationRows != null) {
+  			return citationRows.numRows();
+  		}
+  		if (citationsCompressed != null) {
+  			return citationsCompressed.numRows();
+  		}
+  		return citations.size();
+  	}
+  	
+  	public Iterator<int[][]> iterator() {
+  		return new CitationDataIterator();
+  	}
+  	
     private class CitationDataIterator implements Iterator<int[][]> {
 	    int cursor = 0;       // index of next element to return
 	    
 	    public boolean hasNext() {
-        return cursor != citations.size();
+        return cursor != size();
 	    }
 	    
 	    public int[][] next() {
 	        int i = cursor;
-	        if (i >= citations.size())
+	        if (i >= size())
 	            throw new NoSuchElementException();
 	        int[][] out = new int[2][];
 	        
-	        ArrayIntList v1 = references.get(cursor);
-	        ArrayIntList v2 = citations.get(cursor);
+	        int[] v1 = getReferences(cursor);
+	        int[] v2 = getCitations(cursor);
 	        
-	        out[0] = v1 != null ? v1.getElements() : new int[0];
-	        out[1] = v2 != null ? v2.getElements() : new int[0];
+	        out[0] = v1 != null ? v1 : new int[0];
+	        out[1] = v2 != null ? v2 : new int[0];
 	        
 	        cursor = i + 1;
 	        return out;
@@ -1179,5 +2906,5 @@ public class CitationLRUCache<K,V> extends SolrCacheBase implements SolrCache<K,
 	    }
 	
     }
-  };
+  }
 }
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+import org.apache.solr.search.CitationLRUCache.RelationshipsSnapshot;
+
+/**
+ * PageRank of the papers computed over the citation network of the
+ * {@link CitationLRUCache} (a paper passes its rank to the papers it
+ * cites). It is the usual power iteration:
+ *
+ * <pre>
+ *   pr'(v) = (1-d)/N + d * (dangling/N + sum(pr(u)/out(u)) for u citing v)
+ * </pre>
+ *
+ * where 'dangling' is the rank of the papers without (resolved) references.
+ * The iteration stops when the L1 distance of two iterations is smaller
+ * than the tolerance (or after maxIterations). Every iteration runs on
+ * 'threads' threads, each of them computes one range of documents.
+ *
+ * The result is scaled so that the highest rank is 1.0 (the same range
+ * as cite_read_boost has).
+ */
+final class CitationPageRank {
+
+	private final RelationshipsSnapshot relationships;
+	private final float damping;
+	private final double tolerance;
+	private final int maxIterations;
+	private final int threads;
+
+	// progress, read by the cache statistics
+	volatile int iterations = 0;
+	volatile double delta = Double.NaN;
+	volatile boolean converged = false;
+	volatile long time = 0;
+
+	CitationPageRank(RelationshipsSnapshot relationships, float damping, double tolerance,
+			int maxIterations, int threads) {
+		this.relationships = relationships;
+		this.damping = damping;
+		this.tolerance = tolerance;
+		this.maxIterations = maxIterations;
+		this.threads = Math.max(1, threads);
+	}
+
+	/*
+	 * Throws InterruptedException when the thread was interrupted
+	 * (ie. the cache was closed before the computation finished)
+	 */
+	float[] compute() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		final int numDocs = relationships.size();
+		if (numDocs == 0) {
+			converged = true;
+			return new float[0];
+		}
+
+		final int[] outDegree = relationships.referenceCounts;
+		final float[] rank = new float[numDocs];
+		final float[] next = new float[numDocs];
+		final float[] contribution = new float[numDocs];
+		Arrays.fill(rank, 1.0f / numDocs);
+
+		// ranges of documents; more of them than threads so that
+		// the threads that finished early can help the others
+		int numRanges = threads == 1 ? 1 : threads * 4;
+		int rangeSize = (numDocs + numRanges - 1) / numRanges;
+		final List<int[]> ranges = new ArrayList<int[]>();
+		for (int from=0; from<numDocs; from+=rangeSize) {
+			ranges.add(new int[]{from, Math.min(numDocs, from + rangeSize)});
+		}
+
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		try {
+			while (iterations < maxIterations) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException();
+				}
+
+				// what every paper gives to each of its references
+				List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(ranges.size());
+				for (final int[] range: ranges) {
+					tasks.add(new Callable<Double>() {
+						public Double call() {
+							double dangling = 0.0d;
+							for (int u=range[0]; u<range[1]; u++) {
+								if (u < outDegree.length && outDegree[u] > 0) {
+									contribution[u] = rank[u] / outDegree[u];
+								}
+								else {
+									contribution[u] = 0.0f;
+									dangling += rank[u];
+								}
+							}
+							return dangling;
+						}
+					});
+				}
+				double dangling = sum(pool, tasks);
+				final float base = (float) ((1.0d - damping) / numDocs + damping * dangling / numDocs);
+
+				// collect from the citing papers
+				tasks.clear();
+				for (final int[] range: ranges) {
+					tasks.add(new Callable<Double>() {
+						public Double call() {
+							RelationshipsCursor cursor = null;
+							double diff = 0.0d;
+							for (int v=range[0]; v<range[1]; v++) {
+								cursor = relationships.getCitations(v, cursor);
+								double sum = 0.0d;
+								while (cursor.hasNext()) {
+									int u = cursor.next();
+									if (u >= 0 && u < numDocs) {
+										sum += contribution[u];
+									}
+								}
+								next[v] = base + (float) (damping * sum);
+								diff += Math.abs(next[v] - rank[v]);
+							}
+							return diff;
+						}
+					});
+				}
+				delta = sum(pool, tasks);
+				System.arraycopy(next, 0, rank, 0, numDocs);
+				iterations++;
+
+				if (delta < tolerance) {
+					converged = true;
+					break;
+				}
+			}
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+
+		float max = 0.0f;
+		for (float r: rank) {
+			if (r > max) {
+				max = r;
+			}
+		}
+		if (max > 0.0f) {
+			for (int i=0; i<numDocs; i++) {
+				rank[i] = rank[i] / max;
+			}
+		}
+		time = System.currentTimeMillis() - start;
+		return rank;
+	}
+
+	private static double sum(ForkJoinPool pool, List<Callable<Double>> tasks) throws InterruptedException {
+		double out = 0.0d;
+		try {
+			if (pool == null) {
+				for (Callable<Double> task: tasks) {
+					out += task.call();
+				}
+			}
+			else {
+				for (Future<Double> f: pool.invokeAll(tasks)) {
+					out += f.get();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw e;
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.schema.TrieTypes;
+import org.apache.solr.search.CitationLRUCache.ArrayCursor;
+import org.apache.solr.search.CitationLRUCache.CompressedSparseRows;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+import org.apache.solr.search.CitationLRUCache.RelationshipsSnapshot;
+
+/**
+ * The citations of every paper of the {@link CitationLRUCache} ordered
+ * by the year of the citing paper (then by docid), so that the citations
+ * received in a range of years are one contiguous slice of the row; it is
+ * found by two binary searches over the years of the row (kept next to
+ * the edges). Only the resolved citations of the papers with a year are
+ * kept.
+ *
+ * The year is read from an int field or from the first four characters
+ * of a string field (eg. 2014 from '2014-05'), segment by segment. The
+ * index is immutable, it is built after the relationships (at every
+ * warmup) with two passes of a cursor over the citations, whatever the
+ * storage of the relationships is.
+ */
+final class CitationYearIndex {
+
+	static final int MISSING = Integer.MIN_VALUE;
+	
+	static final CitationYearIndex EMPTY = new CitationYearIndex(
+			new CompressedSparseRows(new int[1], new int[0]), new int[0], new int[0]);
+
+	private final CompressedSparseRows rows;
+	private final int[] edgeYears; // parallel to rows.edges
+	private final int[] years; // by docid
+
+	private CitationYearIndex(CompressedSparseRows rows, int[] edgeYears, int[] years) {
+		this.rows = rows;
+		this.edgeYears = edgeYears;
+		this.years = years;
+	}
+
+	static CitationYearIndex build(RelationshipsSnapshot relationships, List<AtomicReaderContext> leaves,
+			int maxDoc, String field, FieldType type) throws IOException {
+		int[] years = new int[maxDoc];
+		Arrays.fill(years, MISSING);
+		for (AtomicReaderContext leaf: leaves) {
+			readYears(leaf.reader(), field, type, years, leaf.docBase);
+		}
+		int numRows = relationships.size();
+
+		RelationshipsCursor cursor = null;
+		int numEdges = 0;
+		for (int r=0; r<numRows; r++) {
+			cursor = relationships.getCitations(r, cursor);
+			while (cursor.hasNext()) {
+				int e = cursor.next();
+				if (e >= 0 && e < years.length && years[e] != MISSING)
+					numEdges++;
+			}
+		}
+
+		// (year, docid) packed into one long sorts by the year first
+		int[] offsets = new int[numRows+1];
+		int[] edges = new int[numEdges];
+		int[] edgeYears = new int[numEdges];
+		long[] row = new long[16];
+		int pos = 0;
+		for (int r=0; r<numRows; r++) {
+			offsets[r] = pos;
+			int n = 0;
+			cursor = relationships.getCitations(r, cursor);
+			while (cursor.hasNext()) {
+				int e = cursor.next();
+				if (e < 0 || e >= years.length || years[e] == MISSING)
+					continue;
+				if (n == row.length)
+					row = Arrays.copyOf(row, n * 2);
+				row[n++] = ((long) years[e] << 32) | e;
+			}
+			Arrays.sort(row, 0, n);
+			for (int i=0; i<n; i++) {
+				edges[pos] = (int) row[i];
+				edgeYears[pos] = (int) (row[i] >> 32);
+				pos++;
+			}
+		}
+		offsets[numRows] = pos;
+		return new CitationYearIndex(new CompressedSparseRows(offsets, edges), edgeYears, years);
+	}
+
+	/* the years of one segment, into years[docBase...] (uses the per-segment FieldCache) */
+	private static void readYears(AtomicReader reader, String field, FieldType type,
+			int[] years, int docBase) throws IOException {
+		if (reader.getFieldInfos().fieldInfo(field) == null) {
+			return;
+		}
+		int maxDoc = reader.maxDoc();
+
+		if (type instanceof TrieField && ((TrieField) type).getType() == TrieTypes.INTEGER) {
+			FieldCache.Ints values = FieldCache.DEFAULT.getInts(reader, field, true);
+			Bits hasValue = FieldCache.DEFAULT.getDocsWithField(reader, field);
+			for (int docid=0; docid<maxDoc; docid++) {
+				if (hasValue.get(docid))
+					years[docBase+docid] = values.get(docid);
+			}
+			return;
+		}
+
+		SortedSetDocValues values = FieldCache.DEFAULT.getDocTermOrds(reader, field);
+		int[] ordYears = new int[(int) values.getValueCount()];
+		BytesRef term = new BytesRef();
+		for (int ord=0; ord<ordYears.length; ord++) {
+			values.lookupOrd(ord, term);
+			ordYears[ord] = parseYear(type.indexedToReadable(term.utf8ToString()));
+		}
+		for (int docid=0; docid<maxDoc; docid++) {
+			values.setDocument(docid);
+			long ord = values.nextOrd();
+			if (ord != SortedSetDocValues.NO_MORE_ORDS)
+				years[docBase+docid] = ordYears[(int) ord];
+		}
+	}
+
+	private static int parseYear(String value) {
+		try {
+			return Integer.parseInt(value.length() > 4 ? value.substring(0, 4) : value);
+		}
+		catch (NumberFormatException e) {
+			return MISSING;
+		}
+	}
+
+	/* the year of the paper, or MISSING */
+	int getYear(int docid) {
+		return docid >= 0 && docid < years.length ? years[docid] : MISSING;
+	}
+
+	/* the citations of the paper from the papers of the years fromYear...toYear (inclusive) */
+	RelationshipsCursor getCitations(int docid, int fromYear, int toYear, RelationshipsCursor reuse) {
+		ArrayCursor cursor = reuse instanceof ArrayCursor ? (ArrayCursor) reuse : new ArrayCursor();
+		if (docid < 0 || docid >= rows.numRows() || fromYear > toYear) {
+			cursor.reset(rows.edges, 0, 0);
+			return cursor;
+		}
+		int start = rows.start(docid);
+		int end = rows.end(docid);
+		cursor.reset(rows.edges, firstAtLeast(start, end, fromYear), firstAbove(start, end, toYear));
+		return cursor;
+	}
+
+	int countCitations(int docid, int fromYear, int toYear) {
+		if (docid < 0 || docid >= rows.numRows() || fromYear > toYear) {
+			return 0;
+		}
+		int start = rows.start(docid);
+		int end = rows.end(docid);
+		return firstAbove(start, end, toYear) - firstAtLeast(start, end, fromYear);
+	}
+
+	/* the first position of the row with the year >= year */
+	private int firstAtLeast(int low, int high, int year) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (edgeYears[mid] < year)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/* the first position of the row with the year > year */
+	private int firstAbove(int low, int high, int year) {
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (edgeYears[mid] <= year)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	long ramBytesUsed() {
+		return rows.ramBytesUsed() + RamUsageEstimator.sizeOf(edgeYears) + RamUsageEstimator.sizeOf(years);
+	}
+}
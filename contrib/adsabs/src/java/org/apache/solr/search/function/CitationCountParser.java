@@ -0,0 +1,58 @@
+package org.apache.solr.search.function;
+
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.ValueSourceParser;
+
+/**
+ * Registers the functions citation_count_live() and reference_count_live(),
+ * eg.
+ * 
+ * <pre>
+ *  &lt;valueSourceParser name="citation_count_live" class="...CitationCountParser"&gt;
+ *    &lt;str name="cache-name"&gt;citations-cache&lt;/str&gt;
+ *    &lt;str name="relationship"&gt;citations&lt;/str&gt;
+ *  &lt;/valueSourceParser&gt;
+ * </pre>
+ * 
+ * 'relationship' is either 'citations' or 'references'
+ */
+public class CitationCountParser extends ValueSourceParser {
+
+	private String name;
+	private String cacheName;
+	private boolean countReferences;
+
+	@Override
+	public void init(NamedList args) {
+		cacheName = (String) args.get("cache-name");
+		String relationship = (String) args.get("relationship");
+		if (cacheName == null) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Missing parameter: cache-name");
+		}
+		if (relationship == null || relationship.equals("citations")) {
+			countReferences = false;
+		}
+		else if (relationship.equals("references")) {
+			countReferences = true;
+		}
+		else {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown relationship: " + relationship 
+					+ " (use 'citations' or 'references')");
+		}
+		name = countReferences ? "reference_count_live" : "citation_count_live";
+	}
+
+	@Override
+	public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+		if (!(fp.getReq().getSearcher().getCache(cacheName) instanceof CitationLRUCache)) {
+			throw new SyntaxError(name + "() needs the citation cache: " + cacheName);
+		}
+		return new CitationCountValueSource(name, cacheName, countReferences);
+	}
+}
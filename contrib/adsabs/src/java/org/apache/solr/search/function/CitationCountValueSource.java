@@ -0,0 +1,95 @@
+package org.apache.solr.search.function;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.IntDocValues;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Number of resolved citations (or references) of a document as
+ * computed by the {@link CitationLRUCache}; the values are read
+ * from the degree arrays of the cache, no stored field is needed.
+ * 
+ * The cache is looked up from the searcher that executes the query
+ * (and not from the one that parsed it) so that the values are 
+ * always those of the current index.
+ */
+public class CitationCountValueSource extends ValueSource {
+
+	private final String name;
+	private final String cacheName;
+	private final boolean countReferences;
+
+	public CitationCountValueSource(String name, String cacheName, boolean countReferences) {
+		this.name = name;
+		this.cacheName = cacheName;
+		this.countReferences = countReferences;
+	}
+
+	@Override
+	public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
+		final int[] counts = getCounts(context);
+		final int docBase = readerContext.docBase;
+		return new IntDocValues(this) {
+			@Override
+			public int intVal(int doc) {
+				int docid = doc + docBase;
+				return docid < counts.length ? counts[docid] : 0;
+			}
+		};
+	}
+
+	private int[] getCounts(Map context) {
+		CitationLRUCache cache = getCache(context, cacheName, name);
+		return countReferences ? cache.getReferenceCounts() : cache.getCitationCounts();
+	}
+
+	/*
+	 * The citation cache of the searcher which runs the query
+	 */
+	static CitationLRUCache getCache(Map context, String cacheName, String name) {
+		Object searcher = context.get("searcher");
+		if (!(searcher instanceof SolrIndexSearcher)) {
+			SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+			if (info != null) {
+				searcher = info.getReq().getSearcher();
+			}
+		}
+		if (!(searcher instanceof SolrIndexSearcher)) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, name + "() can be used only inside solr");
+		}
+		SolrCache cache = ((SolrIndexSearcher) searcher).getCache(cacheName);
+		if (!(cache instanceof CitationLRUCache)) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Cannot find cache: " + cacheName);
+		}
+		return (CitationLRUCache) cache;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CitationCountValueSource))
+			return false;
+		CitationCountValueSource other = (CitationCountValueSource) o;
+		return name.equals(other.name) && cacheName.equals(other.cacheName) 
+				&& countReferences == other.countReferences;
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode() ^ cacheName.hashCode() ^ (countReferences ? 1 : 0);
+	}
+
+	@Override
+	public String description() {
+		return name + "()";
+	}
+}
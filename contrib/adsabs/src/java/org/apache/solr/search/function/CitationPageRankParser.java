@@ -0,0 +1,50 @@
+package org.apache.solr.search.function;
+
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.ValueSourceParser;
+
+/**
+ * Registers the function pagerank(), eg.
+ * 
+ * <pre>
+ *  &lt;valueSourceParser name="pagerank" class="...CitationPageRankParser"&gt;
+ *    &lt;str name="cache-name"&gt;citations-cache&lt;/str&gt;
+ *  &lt;/valueSourceParser&gt;
+ * </pre>
+ * 
+ * The cache must be configured with pageRank="true"
+ */
+public class CitationPageRankParser extends ValueSourceParser {
+
+	private final String name = "pagerank";
+	private String cacheName;
+
+	@Override
+	public void init(NamedList args) {
+		cacheName = (String) args.get("cache-name");
+		if (cacheName == null) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Missing parameter: cache-name");
+		}
+	}
+
+	@Override
+	public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+		SolrCache cache = fp.getReq().getSearcher().getCache(cacheName);
+		if (!(cache instanceof CitationLRUCache)) {
+			throw new SyntaxError(name + "() needs the citation cache: " + cacheName);
+		}
+		// the generation first: the cache sets the scores before it, so the
+		// scores are of this generation or (rarely) already of the next one
+		CitationLRUCache citationCache = (CitationLRUCache) cache;
+		long generation = citationCache.getPageRankGeneration();
+		float[] scores = citationCache.getPageRank();
+		return new CitationPageRankValueSource(name, cacheName, generation, scores);
+	}
+}
@@ -0,0 +1,67 @@
+package org.apache.solr.search.function;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.solr.search.CitationLRUCache;
+
+/**
+ * PageRank of a document (0...1) computed over the citation network
+ * by the {@link CitationLRUCache} in the background; until the computation
+ * (after every commit) finishes, the ranks of the previous searcher are
+ * used - the new documents get 0, as do all of them after a restart.
+ * The ranks and their generation are taken when the query is parsed, so
+ * all the segments are scored with the same values; the generation is 
+ * part of the equality, the queries over the previous ranks are not 
+ * served from queryResultCache once the new ranks are there.
+ */
+public class CitationPageRankValueSource extends ValueSource {
+
+	private final String name;
+	private final String cacheName;
+	private final long generation;
+	private final float[] scores;
+
+	/* the scores (may be null) are used for all the segments */
+	public CitationPageRankValueSource(String name, String cacheName, long generation, float[] scores) {
+		this.name = name;
+		this.cacheName = cacheName;
+		this.generation = generation;
+		this.scores = scores != null ? scores : new float[0];
+	}
+
+	@Override
+	public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
+		final int docBase = readerContext.docBase;
+		return new FloatDocValues(this) {
+			@Override
+			public float floatVal(int doc) {
+				int docid = doc + docBase;
+				return docid < scores.length ? scores[docid] : 0.0f;
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CitationPageRankValueSource))
+			return false;
+		CitationPageRankValueSource other = (CitationPageRankValueSource) o;
+		return name.equals(other.name) && cacheName.equals(other.cacheName) 
+				&& generation == other.generation;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * name.hashCode() ^ cacheName.hashCode() ^ (int) (generation ^ (generation >>> 32));
+	}
+
+	@Override
+	public String description() {
+		return name + "()";
+	}
+}
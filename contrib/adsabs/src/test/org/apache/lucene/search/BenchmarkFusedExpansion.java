@@ -0,0 +1,145 @@
+package org.apache.lucene.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import monty.solr.util.MontySolrAbstractTestCase;
+import monty.solr.util.MontySolrSetup;
+
+import org.apache.lucene.index.Term;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.junit.BeforeClass;
+
+/**
+ * Latency (p50/p99) of useful() and reviews() executed as the nested
+ * chain of second-order queries (classic_relevance, topn, references or
+ * citations) against the same chain fused by {@link SecondOrderPlanner}
+ * into one {@link SecondOrderCollectorFusedExpansion}. The citation
+ * graph is random, with a skewed distribution of the citations (a few
+ * papers are cited very often); the first-order queries are disjunctions
+ * of random bibcodes. The result cache is cleared before every query.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class BenchmarkFusedExpansion extends MontySolrAbstractTestCase {
+
+  private int numDocs = 50000;
+  private int avgReferences = 20;
+  private int seedsPerQuery = 2000;
+  private int topN = 200;
+  private int queries = 50;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    makeResourcesVisible(Thread.currentThread().getContextClassLoader(), new String[] {
+        MontySolrSetup.getMontySolrHome() + "/contrib/examples/adsabs/solr/collection1/conf",
+        MontySolrSetup.getSolrHome() + "/example/solr/collection1/conf"
+    });
+
+    System.setProperty("solr.allow.unsafe.resourceloading", "true");
+    schemaString = MontySolrSetup.getMontySolrHome()
+        + "/contrib/adsabs/src/test-files/solr/collection1/conf/"
+        + "schema-citations-transformer.xml";
+
+    configString = MontySolrSetup.getMontySolrHome()
+        + "/contrib/adsabs/src/test-files/solr/collection1/conf/"
+        + "citation-cache-solrconfig.xml";
+
+    initCore(configString, schemaString, MontySolrSetup.getSolrHome()
+        + "/example/solr");
+  }
+
+  public void test() throws Exception {
+    Random random = random();
+    assertU(delQ("*:*"));
+    for (int i = 0; i < numDocs; i++) {
+      List<String> doc = new ArrayList<String>();
+      doc.add("id");
+      doc.add(String.valueOf(i));
+      doc.add("bibcode");
+      doc.add("b" + i);
+      int howMany = random.nextInt(2 * avgReferences + 1);
+      for (int j = 0; j < howMany; j++) {
+        doc.add("reference");
+        doc.add("b" + (int) (numDocs * Math.pow(random.nextDouble(), 3)));
+      }
+      assertU(adoc(doc.toArray(new String[doc.size()])));
+      if (i % 10000 == 9999) {
+        assertU(commit());
+      }
+    }
+    assertU(commit("waitSearcher", "true"));
+
+    Query[] seeds = new Query[queries];
+    for (int q = 0; q < queries; q++) {
+      BooleanQuery seed = new BooleanQuery();
+      for (int i = 0; i < seedsPerQuery; i++) {
+        TermQuery tq = new TermQuery(new Term("bibcode", "b" + random.nextInt(numDocs)));
+        tq.setBoost(1.0f + random.nextInt(5));
+        seed.add(tq, BooleanClause.Occur.SHOULD);
+      }
+      seeds[q] = seed;
+    }
+
+    SolrQueryRequest req = req("test");
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+      SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+      LuceneCacheWrapper<FieldCache.Floats> boost = LuceneCacheWrapper.getFloatCache("boost", new FieldCache.Floats() {
+        @Override
+        public float get(int docID) {
+          return (docID % 13) / 13.0f;
+        }
+      });
+
+      SolrCacheWrapper[] wrappers = new SolrCacheWrapper[] {
+          new SolrCacheWrapper.ReferencesCache(cache), new SolrCacheWrapper.CitationsCache(cache)};
+      // warm up both executions (jit), then measure
+      for (int round = 0; round < 2; round++) {
+        boolean report = round == 1;
+        for (SolrCacheWrapper wrapper : wrappers) {
+          String name = wrapper instanceof SolrCacheWrapper.CitationsCache ? "reviews" : "useful";
+          run(name + "/nested", searcher, resultCache, seeds, wrapper, boost, false, report);
+          run(name + "/fused", searcher, resultCache, seeds, wrapper, boost, true, report);
+        }
+      }
+    }
+    finally {
+      req.close();
+    }
+    assertU(delQ("*:*"));
+    assertU(commit());
+  }
+
+  private void run(String name, SolrIndexSearcher searcher, SolrCache resultCache, Query[] seeds,
+      SolrCacheWrapper wrapper, LuceneCacheWrapper<FieldCache.Floats> boost, boolean fused,
+      boolean report) throws Exception {
+    long[] nanos = new long[queries];
+    long checksum = 0;
+    for (int q = 0; q < queries; q++) {
+      SecondOrderQuery chain = new SecondOrderQuery(
+          new SecondOrderQuery(
+              new SecondOrderQuery(seeds[q], new SecondOrderCollectorAdsClassicScoringFormula(wrapper, boost, 0.5f)),
+              new SecondOrderCollectorTopN(topN)),
+          wrapper instanceof SolrCacheWrapper.CitationsCache ? new SecondOrderCollectorCitedBy(wrapper)
+              : new SecondOrderCollectorCitesRAM(wrapper));
+      resultCache.clear();
+      long start = System.nanoTime();
+      // the weight of the unrewritten query executes the nested levels
+      TopDocs hits = fused ? searcher.search(chain, 10) : searcher.search(chain.createWeight(searcher), null, 10);
+      nanos[q] = System.nanoTime() - start;
+      checksum += hits.totalHits;
+    }
+
+    if (report) {
+      Arrays.sort(nanos);
+      System.out.println(String.format("%-15s p50=%6.1f ms, p99=%6.1f ms (checksum=%d)", name,
+          nanos[queries / 2] / 1e6, nanos[(int) Math.ceil(queries * 0.99) - 1] / 1e6, checksum));
+    }
+  }
+}
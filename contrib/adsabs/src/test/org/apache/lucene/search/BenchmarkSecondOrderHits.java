@@ -0,0 +1,126 @@
+package org.apache.lucene.search;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Allocation (bytes/query) and latency (p50/p99) of collecting and
+ * organizing second-order hits; the parallel arrays of SecondOrderHits
+ * are compared against one object per edge in an ArrayList (the way
+ * the collectors used to work). Every query simulates citations(Q):
+ * it visits the edges of the random first-order hits.
+ */
+public class BenchmarkSecondOrderHits extends LuceneTestCase {
+
+  private int numDocs = 1000000;
+  private int firstOrderHits = 20000;
+  private int avgCitations = 20;
+  private int queries = 50;
+
+  public void test() throws Exception {
+    Random random = random();
+    int[][] queryEdges = new int[queries][];
+    for (int q = 0; q < queries; q++) {
+      int[] edges = new int[firstOrderHits * avgCitations];
+      for (int i = 0; i < edges.length; i++) {
+        edges[i] = (int) (numDocs * Math.pow(random.nextDouble(), 3));
+      }
+      queryEdges[q] = edges;
+    }
+
+    // warm up both implementations (jit), then measure
+    for (int round = 0; round < 2; round++) {
+      boolean report = round == 1;
+      run("objects", queryEdges, false, report);
+      run("arrays", queryEdges, true, report);
+    }
+  }
+
+  private void run(String name, int[][] queryEdges, boolean arrays, boolean report) throws IOException {
+    AbstractSecondOrderCollector collector = new AbstractSecondOrderCollector() {
+      @Override
+      public void collect(int doc) {}
+      @Override
+      public void setNextReader(AtomicReaderContext context) {}
+      @Override
+      public boolean acceptsDocsOutOfOrder() {
+        return true;
+      }
+    };
+
+    long[] nanos = new long[queries];
+    long allocated = 0;
+    long checksum = 0;
+    for (int q = 0; q < queries; q++) {
+      int[] edges = queryEdges[q];
+      long bytesBefore = allocatedBytes();
+      long start = System.nanoTime();
+      if (arrays) {
+        collector.reset();
+        for (int i = 0; i < edges.length; i++) {
+          collector.hits.add(edges[i], 1.0f, 1.0f);
+        }
+        SecondOrderHits results = collector.getSubReaderResults(0, numDocs);
+        for (int i = 0; i < results.size(); i++) {
+          checksum += results.doc(i);
+        }
+      }
+      else {
+        for (ScoreDoc d : collectAsObjects(edges)) {
+          checksum += d.doc;
+        }
+      }
+      nanos[q] = System.nanoTime() - start;
+      allocated += allocatedBytes() - bytesBefore;
+    }
+
+    if (report) {
+      Arrays.sort(nanos);
+      System.out.println(String.format("%-8s %8.1f MB/query, p50=%6.1f ms, p99=%6.1f ms (checksum=%d)", name,
+          (double) allocated / queries / (1024 * 1024), nanos[queries / 2] / 1e6,
+          nanos[(int) Math.ceil(queries * 0.99) - 1] / 1e6, checksum));
+    }
+  }
+
+  /* one object per edge, sorted and compacted into a new list */
+  private List<ScoreDoc> collectAsObjects(int[] edges) {
+    ArrayList<ScoreDoc> hits = new ArrayList<ScoreDoc>();
+    for (int i = 0; i < edges.length; i++) {
+      hits.add(new ScoreDoc(edges[i], 1.0f));
+    }
+    Collections.sort(hits, new Comparator<ScoreDoc>() {
+      public int compare(ScoreDoc o1, ScoreDoc o2) {
+        return o1.doc - o2.doc;
+      }
+    });
+    ArrayList<ScoreDoc> compacted = new ArrayList<ScoreDoc>((int) (hits.size() * 0.75f));
+    ScoreDoc current = null;
+    for (ScoreDoc d : hits) {
+      if (current != null && current.doc == d.doc) {
+        current.score = Math.max(current.score, d.score);
+        continue;
+      }
+      compacted.add(d);
+      current = d;
+    }
+    return compacted;
+  }
+
+  /* bytes allocated by this thread (-1 when the jvm cannot tell) */
+  private long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -17,12 +17,17 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
 import org.apache.lucene.search.join.JoinUtil;
 import org.apache.lucene.search.join.ScoreMode;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.junit.BeforeClass;
 
@@ -275,6 +280,704 @@ public class TestCitationsSearch extends MontySolrAbstractTestCase {
 		
 	}
 	
+	public void testCitationsK() throws Exception {
+		assertU(delQ("*:*"));
+		HashMap<Integer, int[]> references = createRandomDocs(0, 300);
+		assertU(commit("waitSearcher", "true"));
+		HashMap<Integer, int[]> citations = invert(references);
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCacheWrapper[] citationsWrapper = new SolrCacheWrapper[]{new SolrCacheWrapper.CitationsCache(cache)};
+		SolrCacheWrapper[] referencesWrapper = new SolrCacheWrapper[]{new SolrCacheWrapper.ReferencesCache(cache)};
+		
+		for (int i=0; i<50; i++) {
+			BytesRef br = new BytesRef();
+			NumericUtils.intToPrefixCoded(i, 0, br);
+			TermQuery seed = new TermQuery(new Term("id", br.utf8ToString()));
+			for (int depth=1; depth<=3; depth++) {
+				ScoreDoc[] hits = searcher.search(new SecondOrderQuery(seed, null, 
+						new SecondOrderCollectorCitationsK(citationsWrapper, depth, "citations")), 1000).scoreDocs;
+				assertEquals("citations_k(id:" + i + ", " + depth + ")", 
+						expand(i, depth, citations, references), toIds(searcher, hits));
+				
+				hits = searcher.search(new SecondOrderQuery(seed, null, 
+						new SecondOrderCollectorCitationsK(referencesWrapper, depth, "references")), 1000).scoreDocs;
+				assertEquals("citations_k(id:" + i + ", " + depth + ", references)", 
+						expand(i, depth, references, references), toIds(searcher, hits));
+			}
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	public void testSharedNeighbours() throws Exception {
+		assertU(delQ("*:*"));
+		HashMap<Integer, int[]> references = createRandomDocs(0, 300);
+		assertU(commit("waitSearcher", "true"));
+		HashMap<Integer, int[]> citations = invert(references);
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCacheWrapper citationsWrapper = new SolrCacheWrapper.CitationsCache(cache);
+		SolrCacheWrapper referencesWrapper = new SolrCacheWrapper.ReferencesCache(cache);
+		
+		for (int i=0; i<50; i++) {
+			BytesRef br = new BytesRef();
+			NumericUtils.intToPrefixCoded(i, 0, br);
+			TermQuery seed = new TermQuery(new Term("id", br.utf8ToString()));
+			
+			// cited together: references(citations(seed)) - seed
+			ScoreDoc[] hits = searcher.search(new SecondOrderQuery(seed, null, 
+					new SecondOrderCollectorSharedNeighbours("cocitation", citationsWrapper, referencesWrapper, false, 100000)), 1000).scoreDocs;
+			assertEquals("cocitation(id:" + i + ")", twoHops(i, citations, references), toRawIds(searcher, hits));
+			for (ScoreDoc d: hits) {
+				assertTrue(d.score >= 1.0f); // the number of the citing papers
+			}
+			
+			// sharing references: citations(references(seed)) - seed
+			hits = searcher.search(new SecondOrderQuery(seed, null, 
+					new SecondOrderCollectorSharedNeighbours("coupling", referencesWrapper, citationsWrapper, true, 100000)), 1000).scoreDocs;
+			assertEquals("coupling(id:" + i + ")", twoHops(i, references, citations), toRawIds(searcher, hits));
+			for (ScoreDoc d: hits) {
+				assertTrue(d.score > 0.0f);
+			}
+			
+			// the hubs are skipped, the rest is the same
+			hits = searcher.search(new SecondOrderQuery(seed, null, 
+					new SecondOrderCollectorSharedNeighbours("cocitation", citationsWrapper, referencesWrapper, false, 2)), 1000).scoreDocs;
+			assertTrue(twoHops(i, citations, references).containsAll(toRawIds(searcher, hits)));
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	public void testRandomWalk() throws Exception {
+		assertU(delQ("*:*"));
+		HashMap<Integer, int[]> references = createRandomDocs(0, 300);
+		assertU(commit("waitSearcher", "true"));
+		HashMap<Integer, int[]> citations = invert(references);
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCacheWrapper citationsWrapper = new SolrCacheWrapper.CitationsCache(cache);
+		SolrCacheWrapper referencesWrapper = new SolrCacheWrapper.ReferencesCache(cache);
+		
+		for (int i=0; i<50; i++) {
+			BytesRef br = new BytesRef();
+			NumericUtils.intToPrefixCoded(i, 0, br);
+			TermQuery seed = new TermQuery(new Term("id", br.utf8ToString()));
+			
+			ScoreDoc[] hits = searcher.search(new SecondOrderQuery(seed, null, 
+					new SecondOrderCollectorRandomWalk(citationsWrapper, referencesWrapper, 2000, 0.3f, 42)), 1000).scoreDocs;
+			
+			// the same seed, the same walk
+			ScoreDoc[] again = searcher.search(new SecondOrderQuery(seed, null, 
+					new SecondOrderCollectorRandomWalk(citationsWrapper, referencesWrapper, 2000, 0.3f, 42)), 1000).scoreDocs;
+			assertEquals(hits.length, again.length);
+			for (int j=0; j<hits.length; j++) {
+				assertEquals(hits[j].doc, again[j].doc);
+				assertEquals(hits[j].score, again[j].score, 0.0f);
+			}
+			
+			List<Integer> ids = toRawIds(searcher, hits);
+			assertFalse(ids.contains(i));
+			boolean isolated = (!references.containsKey(i) || references.get(i).length == 0)
+					&& (!citations.containsKey(i) || citations.get(i).length == 0);
+			if (isolated) {
+				assertEquals(0, hits.length);
+			}
+			
+			// the scores are the shares of the steps
+			float sum = 0.0f;
+			for (ScoreDoc d: hits) {
+				assertTrue(d.score > 0.0f);
+				sum += d.score;
+			}
+			assertTrue(sum <= 1.0f + 0.0001f);
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	/* the papers two hops away (first, then second relation), without the seed */
+	private List<Integer> twoHops(int seed, HashMap<Integer, int[]> first, HashMap<Integer, int[]> second) {
+		java.util.TreeSet<Integer> result = new java.util.TreeSet<Integer>();
+		if (first.containsKey(seed)) {
+			for (int neighbour: first.get(seed)) {
+				if (!second.containsKey(neighbour))
+					continue;
+				for (int related: second.get(neighbour)) {
+					result.add(related);
+				}
+			}
+		}
+		result.remove(seed);
+		return new ArrayList<Integer>(result);
+	}
+	
+	private List<Integer> toRawIds(SolrIndexSearcher searcher, ScoreDoc[] hits) throws IOException {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (ScoreDoc d: hits) {
+			ids.add(Integer.valueOf(searcher.doc(d.doc).get("id")));
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+	
+	public void testResultCache() throws Exception {
+		assertU(delQ("*:*"));
+		createRandomDocs(0, 200);
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		assertNotNull(resultCache);
+		
+		Query seed = new TermRangeQuery("bibcode", new BytesRef("b1"), new BytesRef("b3"), true, true);
+		ScoreDoc[] first = searcher.search(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), 1000).scoreDocs;
+		long lookups = (Long) resultCache.getStatistics().get("lookups");
+		long hits = (Long) resultCache.getStatistics().get("hits");
+		
+		// equal query, new collector instance: served from the cache
+		ScoreDoc[] second = searcher.search(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), 1000).scoreDocs;
+		assertEquals(lookups + 1, resultCache.getStatistics().get("lookups"));
+		assertEquals(hits + 1, resultCache.getStatistics().get("hits"));
+		assertEquals(first.length, second.length);
+		for (int i=0; i<first.length; i++) {
+			assertEquals(first[i].doc, second[i].doc);
+			assertEquals(first[i].score, second[i].score, 0.0f);
+		}
+		
+		// other operator (or value type) is a miss
+		searcher.search(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache))), 1000);
+		assertEquals(hits + 1, resultCache.getStatistics().get("hits"));
+		SecondOrderQuery q = new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)));
+		q.setFinalValueType(FinalValueType.ABS_COUNT);
+		searcher.search(q, 1000);
+		assertEquals(hits + 1, resultCache.getStatistics().get("hits"));
+		
+		// the same collector over the other direction of the same cache (the
+		// wrappers print the direction) is a different operator
+		SecondOrderQuery overCitations = new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)));
+		SecondOrderQuery overReferences = new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.ReferencesCache(cache)));
+		assertFalse(overCitations.toString().equals(overReferences.toString()));
+		assertFalse(overCitations.equals(overReferences));
+		searcher.search(overReferences, 1000);
+		assertEquals(hits + 1, resultCache.getStatistics().get("hits"));
+		
+		// nested: the key describes the inner query, it does not keep it
+		// (nor the hits of its collector)
+		SecondOrderQuery nested = new SecondOrderQuery(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), null,
+				new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache)));
+		searcher.search(nested, 1000);
+		SecondOrderQuery nestedAgain = new SecondOrderQuery(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), null,
+				new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache)));
+		searcher.search(nestedAgain, 1000);
+		assertEquals(hits + 3, resultCache.getStatistics().get("hits"));
+		SecondOrderQuery.ResultKey key = new SecondOrderQuery.ResultKey(nested, 1);
+		assertEquals(key, new SecondOrderQuery.ResultKey(nestedAgain, 1));
+		assertFalse(key.toString(), key.toString().contains("SecondOrderQuery("));
+		
+		// the cached results normalize the enclosing query as the executed 
+		// ones (the sibling clauses get the same queryNorm)
+		resultCache.clear();
+		Query boosted = new TermQuery(new Term("bibcode", "b2"));
+		boosted.setBoost(3.0f);
+		ScoreDoc[] cold = searcher.search(mixedQuery(boosted, cache), 1000).scoreDocs;
+		hits = (Long) resultCache.getStatistics().get("hits");
+		ScoreDoc[] warm = searcher.search(mixedQuery(boosted, cache), 1000).scoreDocs;
+		assertEquals(hits + 1, resultCache.getStatistics().get("hits"));
+		assertEquals(cold.length, warm.length);
+		for (int i=0; i<cold.length; i++) {
+			assertEquals(cold[i].doc, warm[i].doc);
+			assertEquals(cold[i].score, warm[i].score, 0.0f);
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	private Query mixedQuery(Query seed, CitationLRUCache cache) {
+		BooleanQuery bq = new BooleanQuery();
+		bq.add(new MatchAllDocsQuery(), BooleanClause.Occur.SHOULD);
+		bq.add(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), 
+				BooleanClause.Occur.SHOULD);
+		return bq;
+	}
+	
+	/*
+	 * Solr autowarms queryResultCache by running the old query objects
+	 * against the new searcher; the hits collected for the old searcher
+	 * must not be returned (nor cached) for the new one
+	 */
+	public void testResultCacheAfterCommit() throws Exception {
+		assertU(delQ("*:*"));
+		createRandomDocs(0, 200);
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		Query seed = new TermRangeQuery("bibcode", new BytesRef("b1"), new BytesRef("b3"), true, true);
+		SecondOrderQuery q = new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)));
+		searcher.search(q, 1000);
+		tempReq.close();
+		
+		// the docids change: the old documents are deleted and added again
+		assertU(delQ("id:[0 TO 99]"));
+		createRandomDocs(0, 100);
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		searcher = tempReq.getSearcher();
+		cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		
+		// the autowarming (the same object, the new searcher)
+		searcher.search(q, 1000);
+		
+		// a new query is collected from the new searcher, nothing was cached for it
+		long hits = (Long) resultCache.getStatistics().get("hits");
+		ScoreDoc[] fresh = searcher.search(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), 1000).scoreDocs;
+		assertEquals(hits, resultCache.getStatistics().get("hits"));
+		resultCache.clear();
+		ScoreDoc[] expected = searcher.search(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), 1000).scoreDocs;
+		assertEquals(expected.length, fresh.length);
+		for (int i=0; i<expected.length; i++) {
+			assertEquals(expected[i].doc, fresh[i].doc);
+			assertEquals(expected[i].score, fresh[i].score, 0.0f);
+		}
+		
+		// and the cached hits are these
+		ScoreDoc[] cached = searcher.search(new SecondOrderQuery(seed, null, 
+				new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache))), 1000).scoreDocs;
+		assertEquals(hits + 1, resultCache.getStatistics().get("hits"));
+		assertEquals(expected.length, cached.length);
+		for (int i=0; i<expected.length; i++) {
+			assertEquals(expected[i].doc, cached[i].doc);
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	/*
+	 * SecondOrderCollectorCites reads the (deduplicated) term ordinals of
+	 * the document: a reference repeated in the field counts once, unlike
+	 * the stored values the collector used to read
+	 */
+	public void testCitesDuplicateReferences() throws Exception {
+		assertU(delQ("*:*"));
+		assertU(adoc("id", "1", "bibcode", "b1"));
+		assertU(adoc("id", "2", "bibcode", "b2"));
+		assertU(adoc("id", "3", "bibcode", "x", "reference", "b1", "reference", "b1", "reference", "b2"));
+		assertU(adoc("id", "4", "bibcode", "y", "reference", "b1", "reference", "b2"));
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		
+		for (FinalValueType type: new FinalValueType[] {FinalValueType.ABS_COUNT, FinalValueType.ARITHM_MEAN}) {
+			ScoreDoc[][] results = new ScoreDoc[2][];
+			String[] seeds = new String[] {"x", "y"};
+			for (int i=0; i<seeds.length; i++) {
+				resultCache.clear();
+				SecondOrderCollector c = new SecondOrderCollectorCites(
+						new SolrCacheWrapper.ReferencesCache(cache), new String[] {"reference"});
+				c.setFinalValueType(type);
+				results[i] = searcher.search(new SecondOrderQuery(
+						new TermQuery(new Term("bibcode", seeds[i])), null, c), 10).scoreDocs;
+			}
+			assertEquals(2, results[0].length);
+			assertEquals(Arrays.asList(1, 2), toRawIds(searcher, results[0]));
+			assertEquals(results[1].length, results[0].length);
+			for (int i=0; i<results[0].length; i++) {
+				assertEquals(results[1][i].doc, results[0][i].doc);
+				assertEquals(type.toString(), results[1][i].score, results[0][i].score, 0.0001f);
+			}
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	public void testThreaded() throws Exception {
+		assertU(delQ("*:*"));
+		// several segments, so that there is work for several threads
+		for (int i=0; i<4; i++) {
+			createRandomDocs(i * 100, (i+1) * 100);
+			assertU(commit());
+		}
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		assertTrue(searcher.getIndexReader().leaves().size() > 1);
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		
+		Query[] seeds = new Query[] {
+				new MatchAllDocsQuery(),
+				new TermRangeQuery("bibcode", new BytesRef("b1"), new BytesRef("b3"), true, true)
+		};
+		for (Query seed: seeds) {
+			for (int maxThreads: new int[] {0, 2, 3}) {
+				SecondOrderCollector[] serial = new SecondOrderCollector[] {
+						new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)),
+						new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache)),
+						new SecondOrderCollectorCites(new SolrCacheWrapper.ReferencesCache(cache), new String[] {"reference"})
+				};
+				SecondOrderCollector[] threaded = new SecondOrderCollector[] {
+						new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)),
+						new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache)),
+						new SecondOrderCollectorCites(new SolrCacheWrapper.ReferencesCache(cache), new String[] {"reference"})
+				};
+				for (int i=0; i<serial.length; i++) {
+					resultCache.clear();
+					ScoreDoc[] r1 = searcher.search(new SecondOrderQuery(seed, null, serial[i], false), 1000).scoreDocs;
+					resultCache.clear();
+					SecondOrderQuery q = new SecondOrderQuery(seed, null, threaded[i], true);
+					q.setMaxThreads(maxThreads);
+					ScoreDoc[] r2 = searcher.search(q, 1000).scoreDocs;
+					
+					assertEquals(serial[i].toString(), r1.length, r2.length);
+					for (int j=0; j<r1.length; j++) {
+						assertEquals(r1[j].doc, r2[j].doc);
+						assertEquals(r1[j].score, r2[j].score, 0.0001f);
+					}
+				}
+			}
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	public void testFusedExpansion() throws Exception {
+		assertU(delQ("*:*"));
+		createRandomDocs(0, 150);
+		assertU(commit());
+		createRandomDocs(150, 300);
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		LuceneCacheWrapper<FieldCache.Floats> boost = LuceneCacheWrapper.getFloatCache("boost", new FieldCache.Floats() {
+			@Override
+			public float get(int docID) {
+				return (docID % 13) / 13.0f;
+			}
+		});
+		
+		// papers with different lucene scores
+		BooleanQuery seed = new BooleanQuery();
+		for (int i=0; i<100; i++) {
+			TermQuery tq = new TermQuery(new Term("bibcode", "b" + (i * 3)));
+			tq.setBoost(1.0f + (i % 5));
+			seed.add(tq, BooleanClause.Occur.SHOULD);
+		}
+		
+		SolrCacheWrapper[] wrappers = new SolrCacheWrapper[] {
+				new SolrCacheWrapper.ReferencesCache(cache), new SolrCacheWrapper.CitationsCache(cache)};
+		for (SolrCacheWrapper wrapper: wrappers) {
+			for (FinalValueType type: new FinalValueType[] {FinalValueType.ABS_COUNT_NORM, FinalValueType.ABS_COUNT, FinalValueType.ARITHM_MEAN}) {
+				SecondOrderQuery chain = new SecondOrderQuery(
+						new SecondOrderQuery(
+								new SecondOrderQuery(seed, new SecondOrderCollectorAdsClassicScoringFormula(wrapper, boost, 0.4f)), 
+								new SecondOrderCollectorTopN(10)),
+						wrapper instanceof SolrCacheWrapper.CitationsCache ? new SecondOrderCollectorCitedBy(wrapper) 
+								: new SecondOrderCollectorCitesRAM(wrapper));
+				chain.getcollector().setFinalValueType(type);
+				
+				Query rewritten = searcher.rewrite(chain);
+				assertTrue(rewritten instanceof SecondOrderQuery);
+				assertTrue(((SecondOrderQuery) rewritten).getcollector() instanceof SecondOrderCollectorFusedExpansion);
+				
+				// the nested queries (the weight of the unrewritten query)
+				resultCache.clear();
+				ScoreDoc[] r1 = searcher.search(chain.createWeight(searcher), null, 1000).scoreDocs;
+				resultCache.clear();
+				ScoreDoc[] r2 = searcher.search(chain, 1000).scoreDocs;
+				
+				assertTrue(r1.length > 0);
+				assertEquals(r1.length, r2.length);
+				for (int i=0; i<r1.length; i++) {
+					assertEquals(r1[i].doc, r2[i].doc);
+					assertEquals(r1[i].score, r2[i].score, 0.0001f);
+				}
+			}
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	public void testTargetFilter() throws Exception {
+		assertU(delQ("*:*"));
+		createRandomDocs(0, 150);
+		assertU(commit());
+		createRandomDocs(150, 300);
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		int maxDoc = searcher.getIndexReader().maxDoc();
+		
+		Query seed = new TermRangeQuery("bibcode", new BytesRef("b1"), new BytesRef("b3"), true, true);
+		Query target = new TermRangeQuery("bibcode", new BytesRef("b2"), new BytesRef("b5"), true, true);
+		DocSet targetDocs = searcher.getDocSet(target);
+		
+		for (FinalValueType type: new FinalValueType[] {FinalValueType.MAX_VALUE, FinalValueType.ARITHM_MEAN, FinalValueType.ABS_COUNT_NORM}) {
+			SecondOrderCollector[] plain = new SecondOrderCollector[] {
+					new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)),
+					new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache)),
+					new SecondOrderCollectorCites(new SolrCacheWrapper.ReferencesCache(cache), new String[] {"reference"})
+			};
+			SecondOrderCollector[] filtered = new SecondOrderCollector[] {
+					new SecondOrderCollectorCitedBy(new SolrCacheWrapper.CitationsCache(cache)),
+					new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache)),
+					new SecondOrderCollectorCites(new SolrCacheWrapper.ReferencesCache(cache), new String[] {"reference"})
+			};
+			for (int i=0; i<plain.length; i++) {
+				plain[i].setFinalValueType(type);
+				filtered[i].setFinalValueType(type);
+				
+				resultCache.clear();
+				ScoreDoc[] r1 = searcher.search(new SecondOrderQuery(seed, null, plain[i]), 
+						new QueryWrapperFilter(target), 1000).scoreDocs;
+				
+				resultCache.clear();
+				SecondOrderQuery q = new SecondOrderQuery(seed, null, filtered[i]);
+				assertTrue(q.setTargetFilters(Arrays.asList(target)));
+				assertFalse(q.equals(new SecondOrderQuery(seed, null, plain[i])));
+				ScoreDoc[] r2 = searcher.search(q, new QueryWrapperFilter(target), 1000).scoreDocs;
+				
+				assertTrue(r1.length > 0);
+				assertEquals(filtered[i].toString(), r1.length, r2.length);
+				for (int j=0; j<r1.length; j++) {
+					assertEquals(r1[j].doc, r2[j].doc);
+					assertEquals(r1[j].score, r2[j].score, 0.0001f);
+				}
+				
+				// the other documents were not even collected (unless the scores are normalized)
+				if (type != FinalValueType.ABS_COUNT_NORM) {
+					SecondOrderHits hits = filtered[i].getSubReaderResults(0, maxDoc);
+					for (int j=0; j<hits.size(); j++) {
+						assertTrue(targetDocs.exists(hits.doc(j)));
+					}
+				}
+			}
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	public void testBudget() throws Exception {
+		assertU(delQ("*:*"));
+		createRandomDocs(0, 150);
+		assertU(commit());
+		createRandomDocs(150, 300);
+		assertU(commit("waitSearcher", "true"));
+		
+		tempReq = req("test");
+		SolrIndexSearcher searcher = tempReq.getSearcher();
+		CitationLRUCache cache = (CitationLRUCache) searcher.getCache("citations-cache-from-references");
+		SolrCache resultCache = searcher.getCache(SecondOrderQuery.RESULT_CACHE);
+		
+		resultCache.clear();
+		ScoreDoc[] all = searcher.search(budgetQuery(cache, null), 1000).scoreDocs;
+		
+		// plenty of everything
+		resultCache.clear();
+		SecondOrderQuery q = budgetQuery(cache, 
+				new SecondOrderBudget(System.currentTimeMillis() + 60000, 1000000, 1024 * 1024 * 1024, false));
+		ScoreDoc[] r = searcher.search(q, 1000).scoreDocs;
+		assertFalse(q.isPartialResults());
+		assertEquals(all.length, r.length);
+		assertEquals(sumScores(all), sumScores(r), 0.0001f);
+		
+		// a realistic memory limit: what the hits need plus 5% (the scores
+		// are the counts, ie. the number of the collected edges)
+		resultCache.clear();
+		int edges = Math.round(sumScores(all));
+		long needed = (long) edges * SecondOrderHits.BYTES_PER_HIT
+				+ SecondOrderAccumulator.ramBytesUsed(searcher.maxDoc(), edges);
+		q = budgetQuery(cache, new SecondOrderBudget(0, 0, needed + needed / 20, true));
+		r = searcher.search(q, 1000).scoreDocs;
+		assertFalse(q.isPartialResults());
+		assertEquals(all.length, r.length);
+		assertEquals(sumScores(all), sumScores(r), 0.0001f);
+		
+		// the edges: stops at the second segment at the latest
+		resultCache.clear();
+		q = budgetQuery(cache, new SecondOrderBudget(0, 10, 0, true));
+		r = searcher.search(q, 1000).scoreDocs;
+		assertTrue(q.isPartialResults());
+		assertTrue(sumScores(r) < sumScores(all));
+		assertTrue(q.equals(budgetQuery(cache, null)));
+		assertEquals(q.hashCode(), budgetQuery(cache, null).hashCode());
+		assertEquals(0, resultCache.size());
+		
+		// the memory: not even the first segment
+		q = budgetQuery(cache, new SecondOrderBudget(0, 0, 1, true));
+		r = searcher.search(q, 1000).scoreDocs;
+		assertTrue(q.isPartialResults());
+		assertEquals(0, r.length);
+		
+		// the lazy expansions are limited too
+		SolrCacheWrapper citations = new SolrCacheWrapper.CitationsCache(cache);
+		SolrCacheWrapper references = new SolrCacheWrapper.ReferencesCache(cache);
+		SecondOrderCollector[] lazy = new SecondOrderCollector[] {
+				new SecondOrderCollectorCitationsK(new SolrCacheWrapper[]{citations}, 3, "citations"),
+				new SecondOrderCollectorSharedNeighbours("cocitation", citations, references, false, 100000),
+				new SecondOrderCollectorRandomWalk(citations, references, 100000, 0.15f, 42),
+				new SecondOrderCollectorFusedExpansion(references, LuceneCacheWrapper.getFloatCache("boost", 
+						new FieldCache.Floats() {
+							@Override
+							public float get(int docID) {
+								return 0.5f;
+							}
+						}), 0.5f, 0.5f, 100, false)
+		};
+		for (SecondOrderCollector c: lazy) {
+			ScoreDoc[] unlimited = searcher.search(new SecondOrderQuery(new MatchAllDocsQuery(), c), 1000).scoreDocs;
+			c.reset();
+			q = new SecondOrderQuery(new MatchAllDocsQuery(), c);
+			q.setBudget(new SecondOrderBudget(0, 10, 0, true));
+			r = searcher.search(q, 1000).scoreDocs;
+			assertTrue(c.toString(), q.isPartialResults());
+			assertTrue(c.toString(), r.length < unlimited.length || sumScores(r) != sumScores(unlimited));
+			c.reset();
+		}
+		
+		// the nested levels share the totals: each level alone is within the
+		// limit, the chain is not
+		resultCache.clear();
+		SecondOrderBudget shared = new SecondOrderBudget(0, edges, 0, true);
+		q = budgetQuery(cache, shared);
+		searcher.search(q, 1000);
+		assertFalse(q.isPartialResults());
+		resultCache.clear();
+		SecondOrderCollector outer = new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache));
+		outer.setFinalValueType(FinalValueType.ABS_COUNT);
+		SecondOrderQuery chain = new SecondOrderQuery(budgetQuery(cache, shared), outer);
+		chain.setBudget(shared);
+		ScoreDoc[] unlimitedChain = searcher.search(new SecondOrderQuery(budgetQuery(cache, null), 
+				new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache))), 1000).scoreDocs;
+		assertTrue(unlimitedChain.length > 0);
+		resultCache.clear();
+		searcher.search(chain, 1000);
+		assertTrue(chain.isPartialResults());
+		
+		// or fail
+		q = budgetQuery(cache, new SecondOrderBudget(0, 10, 0, false));
+		try {
+			searcher.search(q, 1000);
+			fail("The budget was exceeded");
+		} catch (SolrException e) {
+			assertEquals(ErrorCode.BAD_REQUEST.code, e.code());
+		}
+		
+		tempReq.close();
+		tempReq = null;
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+	
+	/* citations(*:*) scored by the number of the citing papers */
+	private SecondOrderQuery budgetQuery(CitationLRUCache cache, SecondOrderBudget budget) {
+		SecondOrderCollector collector = new SecondOrderCollectorCitesRAM(new SolrCacheWrapper.ReferencesCache(cache));
+		collector.setFinalValueType(FinalValueType.ABS_COUNT);
+		SecondOrderQuery q = new SecondOrderQuery(new MatchAllDocsQuery(), collector);
+		q.setBudget(budget);
+		return q;
+	}
+	
+	private float sumScores(ScoreDoc[] hits) {
+		float sum = 0.0f;
+		for (ScoreDoc d: hits) {
+			sum += d.score;
+		}
+		return sum;
+	}
+	
+	/* the papers reachable in 1...depth hops (only existing papers) */
+	private List<Integer> expand(int seed, int depth, HashMap<Integer, int[]> graph, HashMap<Integer, int[]> existing) {
+		java.util.TreeSet<Integer> result = new java.util.TreeSet<Integer>();
+		java.util.TreeSet<Integer> frontier = new java.util.TreeSet<Integer>();
+		frontier.add(seed);
+		for (int level=0; level<depth; level++) {
+			java.util.TreeSet<Integer> next = new java.util.TreeSet<Integer>();
+			for (Integer paper: frontier) {
+				if (!graph.containsKey(paper))
+					continue;
+				for (int related: graph.get(paper)) {
+					if (existing.containsKey(related) && result.add(related)) {
+						next.add(related);
+					}
+				}
+			}
+			frontier = next;
+		}
+		return new ArrayList<Integer>(result);
+	}
+	
+	private List<Integer> toIds(SolrIndexSearcher searcher, ScoreDoc[] hits) throws IOException {
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (ScoreDoc d: hits) {
+			ids.add(Integer.valueOf(searcher.doc(d.doc).get("id")));
+			assertTrue(d.score > 0.0f && d.score <= 1.0f);
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+	
 	private void compareCitations(Query query, SecondOrderCollector collector) throws IOException {
 		SolrQueryRequest r = req("test");
 		SolrIndexSearcher searcher = r.getSearcher();
@@ -0,0 +1,122 @@
+package org.apache.lucene.search;
+
+import java.util.Arrays;
+
+import org.apache.lucene.search.FieldCache.Floats;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestClassicRelevanceQueue extends LuceneTestCase {
+
+  public void testExact() {
+    for (int iter = 0; iter < atLeast(20); iter++) {
+      int numHits = 1 + random().nextInt(2000);
+      int topN = 1 + random().nextInt(300);
+      float[] luceneScores = scores(numHits);
+      final float[] boosts = scores(numHits);
+
+      ClassicRelevanceQueue queue = new ClassicRelevanceQueue(topN, 0.5f, 0.5f, boosts(boosts));
+      float highest = 0.0f;
+      for (float s : luceneScores) {
+        highest = Math.max(highest, s);
+      }
+      queue.setHighestScore(highest);
+      for (int doc = 0; doc < numHits; doc++) {
+        queue.add(doc, luceneScores[doc]);
+      }
+
+      assertEquals(expected(luceneScores, boosts, highest, topN), result(queue));
+    }
+  }
+
+  public void testBounded() {
+    for (int iter = 0; iter < atLeast(20); iter++) {
+      int numHits = 1 + random().nextInt(2000);
+      int topN = 1 + random().nextInt(300);
+      float[] luceneScores = scores(numHits);
+      final float[] boosts = scores(numHits);
+
+      // the highest lucene score comes first: the result is exact
+      int maxDoc = random().nextInt(numHits);
+      luceneScores[maxDoc] = 2.0f;
+      ClassicRelevanceQueue queue = new ClassicRelevanceQueue(topN, 0.5f, 0.5f, boosts(boosts));
+      queue.add(maxDoc, luceneScores[maxDoc]);
+      for (int doc = 0; doc < numHits; doc++) {
+        if (doc != maxDoc) {
+          queue.add(doc, luceneScores[doc]);
+        }
+      }
+      assertEquals(expected(luceneScores, boosts, 2.0f, topN), result(queue));
+
+      // any order: the size is bounded and the final scores are right
+      queue.clear();
+      for (int doc = 0; doc < numHits; doc++) {
+        queue.add(doc, luceneScores[doc]);
+      }
+      assertEquals(2.0f, queue.getHighestScore(), 0.0f);
+      assertEquals(Math.min(topN, numHits), queue.size());
+      SecondOrderHits hits = new SecondOrderHits();
+      queue.emit(hits);
+      for (int i = 0; i < hits.size(); i++) {
+        int doc = hits.doc(i);
+        assertEquals(0.5f * luceneScores[doc] / 2.0f + 0.5f * boosts[doc], hits.score(i), 0.0f);
+      }
+    }
+  }
+
+  private float[] scores(int size) {
+    float[] scores = new float[size];
+    for (int i = 0; i < size; i++) {
+      // some of them equal, ties are broken by the docid
+      scores[i] = random().nextInt(50) / 50.0f;
+    }
+    return scores;
+  }
+
+  private LuceneCacheWrapper<Floats> boosts(final float[] boosts) {
+    return LuceneCacheWrapper.getFloatCache("boost", new Floats() {
+      @Override
+      public float get(int docID) {
+        return boosts[docID];
+      }
+    });
+  }
+
+  /* "doc:score" of the best N (by score, then the lower docid) */
+  private String expected(float[] luceneScores, float[] boosts, float highest, int topN) {
+    ScoreDoc[] all = new ScoreDoc[luceneScores.length];
+    for (int doc = 0; doc < all.length; doc++) {
+      all[doc] = new ScoreDoc(doc, 0.5f * luceneScores[doc] / highest + 0.5f * boosts[doc]);
+    }
+    Arrays.sort(all, new java.util.Comparator<ScoreDoc>() {
+      public int compare(ScoreDoc a, ScoreDoc b) {
+        return a.score == b.score ? a.doc - b.doc : (a.score > b.score ? -1 : 1);
+      }
+    });
+    ScoreDoc[] best = Arrays.copyOf(all, Math.min(topN, all.length));
+    return toString(best);
+  }
+
+  private String result(ClassicRelevanceQueue queue) {
+    SecondOrderHits hits = new SecondOrderHits();
+    queue.emit(hits);
+    ScoreDoc[] best = new ScoreDoc[hits.size()];
+    for (int i = 0; i < hits.size(); i++) {
+      best[i] = new ScoreDoc(hits.doc(i), hits.score(i));
+    }
+    return toString(best);
+  }
+
+  /* sorted by docid, so that the order of the queue does not matter */
+  private String toString(ScoreDoc[] docs) {
+    Arrays.sort(docs, new java.util.Comparator<ScoreDoc>() {
+      public int compare(ScoreDoc a, ScoreDoc b) {
+        return a.doc - b.doc;
+      }
+    });
+    StringBuilder out = new StringBuilder();
+    for (ScoreDoc d : docs) {
+      out.append(d.doc).append(':').append(d.score).append(' ');
+    }
+    return out.toString();
+  }
+}
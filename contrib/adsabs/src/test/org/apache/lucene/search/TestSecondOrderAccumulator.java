@@ -0,0 +1,66 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.search.SecondOrderCollector.FinalValueType;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestSecondOrderAccumulator extends LuceneTestCase {
+
+  public void testDenseEqualsSparse() {
+    int maxDoc = atLeast(1000);
+    for (FinalValueType type : FinalValueType.values()) {
+      SecondOrderAccumulator dense = new SecondOrderAccumulator.Dense(type, maxDoc);
+      SecondOrderAccumulator sparse = new SecondOrderAccumulator.Sparse(type, random().nextInt(50));
+
+      // the accumulators must be empty after every round
+      for (int round = 0; round < 3; round++) {
+        int numHits = random().nextInt(maxDoc * 3);
+        for (int i = 0; i < numHits; i++) {
+          int doc = random().nextInt(maxDoc);
+          float score = random().nextFloat() + 0.1f;
+          dense.add(doc, score);
+          sparse.add(doc, score);
+        }
+
+        SecondOrderHits a = new SecondOrderHits();
+        SecondOrderHits b = new SecondOrderHits();
+        dense.emit(a);
+        sparse.emit(b);
+
+        assertEquals(type.toString(), a.size(), b.size());
+        int total = 0;
+        for (int i = 0; i < a.size(); i++) {
+          if (i > 0) {
+            assertTrue(a.doc(i - 1) < a.doc(i));
+          }
+          assertEquals(a.doc(i), b.doc(i));
+          assertEquals(a.score(i), b.score(i), 0.0001f);
+          assertEquals(a.freq(i), b.freq(i), 0.0f);
+          total += (int) a.freq(i);
+        }
+        assertEquals(numHits, total);
+      }
+    }
+  }
+
+  public void testValues() {
+    float[] scores = new float[] {1.0f, 1.0f, 0.01f};
+    assertValue(FinalValueType.MAX_VALUE, scores, 1.0f);
+    assertValue(FinalValueType.MIN_VALUE, scores, 0.01f);
+    assertValue(FinalValueType.ARITHM_MEAN, scores, 0.67f);
+    assertValue(FinalValueType.GEOM_MEAN, scores, 0.2154f);
+    assertValue(FinalValueType.ABS_COUNT, scores, 3.0f);
+  }
+
+  private void assertValue(FinalValueType type, float[] scores, float expected) {
+    SecondOrderAccumulator acc = SecondOrderAccumulator.create(type, 10, scores.length);
+    for (float s : scores) {
+      acc.add(5, s);
+    }
+    SecondOrderHits hits = new SecondOrderHits();
+    acc.emit(hits);
+    assertEquals(1, hits.size());
+    assertEquals(5, hits.doc(0));
+    assertEquals(expected, hits.score(0), 0.0001f);
+    assertEquals(scores.length, hits.freq(0), 0.0f);
+  }
+}
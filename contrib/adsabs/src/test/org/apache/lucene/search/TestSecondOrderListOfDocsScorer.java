@@ -0,0 +1,71 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestSecondOrderListOfDocsScorer extends LuceneTestCase {
+
+  public void testAdvance() throws Exception {
+    for (int iter = 0; iter < atLeast(50); iter++) {
+      int docBase = random().nextInt(100);
+      int maxDoc = 1 + random().nextInt(5000);
+
+      // hits of the whole index, the scorer sees one segment of them
+      SecondOrderHits all = new SecondOrderHits();
+      int numHits = random().nextInt(maxDoc);
+      for (int i = 0; i < numHits; i++) {
+        all.add(random().nextInt(docBase + maxDoc + 100), random().nextFloat());
+      }
+      all.sortByDoc();
+      SecondOrderHits hits = all.slice(docBase, docBase + maxDoc);
+      if (hits == null) {
+        continue;
+      }
+
+      FixedBitSet acceptDocs = null;
+      if (random().nextBoolean()) {
+        acceptDocs = new FixedBitSet(maxDoc);
+        for (int i = 0; i < maxDoc; i++) {
+          if (random().nextInt(3) > 0) {
+            acceptDocs.set(i);
+          }
+        }
+      }
+
+      SecondOrderListOfDocsScorer scorer = new SecondOrderListOfDocsScorer(null, hits, docBase, acceptDocs);
+      assertEquals(hits.size(), scorer.cost());
+      assertEquals(-1, scorer.docID());
+
+      int pos = -1; // position of the expected doc in 'hits'
+      while (true) {
+        int doc;
+        if (random().nextBoolean()) {
+          doc = scorer.nextDoc();
+          pos = next(hits, pos + 1, docBase, acceptDocs, -1);
+        }
+        else {
+          int target = (scorer.docID() == -1 ? 0 : scorer.docID() + 1) + random().nextInt(maxDoc / 10 + 1);
+          doc = scorer.advance(target);
+          pos = next(hits, pos + 1, docBase, acceptDocs, target);
+        }
+        if (pos == hits.size()) {
+          assertEquals(DocIdSetIterator.NO_MORE_DOCS, doc);
+          break;
+        }
+        assertEquals(hits.doc(pos) - docBase, doc);
+        assertEquals(hits.score(pos), scorer.score(), 0.0f);
+      }
+    }
+  }
+
+  /* linear scan for the next accepted hit at or after 'target' */
+  private int next(SecondOrderHits hits, int pos, int docBase, FixedBitSet acceptDocs, int target) {
+    for (; pos < hits.size(); pos++) {
+      int doc = hits.doc(pos) - docBase;
+      if (doc >= target && (acceptDocs == null || acceptDocs.get(doc))) {
+        break;
+      }
+    }
+    return pos;
+  }
+}
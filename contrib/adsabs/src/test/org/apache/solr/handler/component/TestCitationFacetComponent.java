@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import monty.solr.util.MontySolrAbstractTestCase;
+import monty.solr.util.MontySolrSetup;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCitationFacetComponent extends MontySolrAbstractTestCase {
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		
+		makeResourcesVisible(Thread.currentThread().getContextClassLoader(), new String[] {
+			    MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf",
+		      MontySolrSetup.getSolrHome() + "/example/solr/collection1/conf"
+		    });
+				
+		System.setProperty("solr.allow.unsafe.resourceloading", "true");
+		schemaString = MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf/"
+				  +	"schema-citations-transformer.xml";
+		
+		configString = MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf/" 
+					+ "solrconfig-citation-metrics.xml";
+		
+		initCore(configString, schemaString, MontySolrSetup.getSolrHome()
+			    + "/example/solr");
+	}
+	
+
+	public void createIndex() {
+		assertU(adoc("id","1", "bibcode","p1", "xauthor","smith", "xauthor","jones", "xyear","2000"));
+		assertU(adoc("id","2", "bibcode","p2", "xauthor","smith", "xyear","2002"));
+		assertU(adoc("id","3", "bibcode","p3", "xauthor","smith", "xauthor","brown", "xyear","2002"));
+		assertU(commit("waitSearcher", "true"));
+		
+		assertU(adoc("id","11", "bibcode","c1", "xauthor","jones", "xyear","2005", 
+				"reference","p1", "reference","p2", "reference","p3"));
+		assertU(adoc("id","12", "bibcode","c2", "xauthor","white", "xyear","2005",
+				"reference","p1", "reference","p2"));
+		assertU(adoc("id","13", "bibcode","c3", "xauthor","green", "xyear","2006",
+				"reference","p1"));
+		assertU(adoc("id","14", "bibcode","c4", "xauthor","brown", "xyear","2006",
+				"reference","p1", "reference","p3"));
+		assertU(commit("waitSearcher", "true"));
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		createIndex();
+	}
+
+	@Test
+	public void test() throws Exception {
+		
+		// citations: p1=4, p2=2, p3=2, the rest 0
+		assertQ(req("q", "*:*", "rows", "0", "citation_facet", "true"),
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='0']='4'",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='1-9']='3'",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='10-99']='0'",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='10000+']='0'",
+				"//lst[@name='citation_facet']/lst[@name='cited_by_results']/int[@name='1-9']='3'",
+				"//lst[@name='citation_facet']/long[@name='citations_within_results']='8'"
+		);
+		
+		// only c1 of the citing papers is in the results
+		assertQ(req("q", "bibcode:p1 OR bibcode:p2 OR bibcode:p3 OR bibcode:c1", "citation_facet", "true"),
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='0']='1'",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='1-9']='3'",
+				"//lst[@name='citation_facet']/lst[@name='cited_by_results']/int[@name='0']='1'",
+				"//lst[@name='citation_facet']/lst[@name='cited_by_results']/int[@name='1-9']='3'",
+				"//lst[@name='citation_facet']/long[@name='citations_within_results']='3'"
+		);
+		
+		// custom bins, 0 is added
+		assertQ(req("q", "*:*", "citation_facet", "true", "citation_facet.bins", "3,1,3"),
+				"count(//lst[@name='citation_facet']/lst[@name='citations']/int)=3",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='0']='4'",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='1-2']='2'",
+				"//lst[@name='citation_facet']/lst[@name='citations']/int[@name='3+']='1'"
+		);
+		
+		assertQEx("Wrong bins", req("q", "*:*", "citation_facet", "true", "citation_facet.bins", "0,x"), 400);
+		
+		// disabled by default
+		assertQ(req("q", "*:*"),
+				"not(//lst[@name='citation_facet'])"
+		);
+	}
+}
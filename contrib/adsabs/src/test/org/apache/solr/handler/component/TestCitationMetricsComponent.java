@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import monty.solr.util.MontySolrAbstractTestCase;
+import monty.solr.util.MontySolrSetup;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCitationMetricsComponent extends MontySolrAbstractTestCase {
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		
+		makeResourcesVisible(Thread.currentThread().getContextClassLoader(), new String[] {
+			    MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf",
+		      MontySolrSetup.getSolrHome() + "/example/solr/collection1/conf"
+		    });
+				
+		System.setProperty("solr.allow.unsafe.resourceloading", "true");
+		schemaString = MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf/"
+				  +	"schema-citations-transformer.xml";
+		
+		configString = MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf/" 
+					+ "solrconfig-citation-metrics.xml";
+		
+		initCore(configString, schemaString, MontySolrSetup.getSolrHome()
+			    + "/example/solr");
+	}
+	
+
+	public void createIndex() {
+		assertU(adoc("id","1", "bibcode","p1", "xauthor","smith", "xauthor","jones", "xyear","2000"));
+		assertU(adoc("id","2", "bibcode","p2", "xauthor","smith", "xyear","2002"));
+		assertU(adoc("id","3", "bibcode","p3", "xauthor","smith", "xauthor","brown", "xyear","2002"));
+		assertU(commit("waitSearcher", "true"));
+		
+		assertU(adoc("id","11", "bibcode","c1", "xauthor","jones", "xyear","2005", 
+				"reference","p1", "reference","p2", "reference","p3"));
+		assertU(adoc("id","12", "bibcode","c2", "xauthor","white", "xyear","2005",
+				"reference","p1", "reference","p2"));
+		assertU(adoc("id","13", "bibcode","c3", "xauthor","green", "xyear","2006",
+				"reference","p1"));
+		assertU(adoc("id","14", "bibcode","c4", "xauthor","brown", "xyear","2006",
+				"reference","p1", "reference","p3"));
+		assertU(commit("waitSearcher", "true"));
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		createIndex();
+	}
+
+	@Test
+	public void test() throws Exception {
+		
+		// citations: p1=4, p2=2, p3=2; (non-self: p1=3, p2=2, p3=1)
+		assertQ(req("q", "xauthor:smith", "rows", "1", "metrics", "true", 
+				"metrics.author_field", "xauthor", "metrics.year_field", "xyear"),
+				"//result[@numFound='3']",
+				"//lst[@name='metrics']/int[@name='papers']='3'",
+				"//lst[@name='metrics']/long[@name='citations']='8'",
+				"//lst[@name='metrics']/int[@name='h']='2'",
+				"//lst[@name='metrics']/int[@name='g']='2'",
+				"//lst[@name='metrics']/int[@name='i10']='0'",
+				"//lst[@name='metrics']/float[@name='tori'][. > 2.416 and . < 2.417]",
+				"//lst[@name='metrics']/int[@name='riq']='518'",
+				"not(//lst[@name='metrics']/lst[@name='nonself'])",
+				"not(//lst[@name='metrics']/lst[@name='histograms'])"
+		);
+		
+		assertQ(req("q", "xauthor:smith", "metrics", "true", "metrics.self", "true", "metrics.histograms", "true",
+				"metrics.author_field", "xauthor", "metrics.year_field", "xyear"),
+				"//lst[@name='metrics']/long[@name='citations']='8'",
+				"//lst[@name='metrics']/lst[@name='nonself']/long[@name='citations']='6'",
+				"//lst[@name='metrics']/lst[@name='nonself']/int[@name='h']='2'",
+				"//lst[@name='metrics']/lst[@name='nonself']/int[@name='g']='2'",
+				"//lst[@name='metrics']/lst[@name='nonself']/float[@name='tori'][. > 1.999 and . < 2.001]",
+				"//lst[@name='metrics']/lst[@name='nonself']/int[@name='riq']='471'",
+				"//lst[@name='histograms']/lst[@name='2000']/int[@name='papers']='1'",
+				"//lst[@name='histograms']/lst[@name='2000']/int[@name='citations']='4'",
+				"//lst[@name='histograms']/lst[@name='2000']/int[@name='nonself_citations']='3'",
+				"//lst[@name='histograms']/lst[@name='2002']/int[@name='papers']='2'",
+				"//lst[@name='histograms']/lst[@name='2002']/int[@name='citations']='4'",
+				"//lst[@name='histograms']/lst[@name='2002']/int[@name='nonself_citations']='3'"
+		);
+		
+		// disabled by default
+		assertQ(req("q", "xauthor:smith"),
+				"not(//lst[@name='metrics'])"
+		);
+	}
+}
@@ -1,8 +1,14 @@
 package org.apache.solr.response.transform;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import monty.solr.util.MontySolrSetup;
 
+import org.apache.solr.search.CitationLRUCache;
+import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 
 public class TestCitationsTransformer extends AbstractSolrTestCase {
@@ -117,5 +123,81 @@ public class TestCitationsTransformer extends AbstractSolrTestCase {
         "//doc/lst[@name='[citations]']/int[@name='num_references'][.='0']"
         );
 		
+		// the same counts as function queries
+		assertQ(req("q", "*:*", "sort", "citation_count_live() desc", "rows", "3", "fl", "id"), 
+				"//*[@numFound='12']",
+				"//doc[1]/int[@name='id'][.='2']",
+				"//doc[2]/int[@name='id'][.='4']",
+				"//doc[3]/int[@name='id'][.='3']"
+		);
+		assertQ(req("q", "{!frange l=10}citation_count_live()"), 
+				"//*[@numFound='3']"
+		);
+		assertQ(req("q", "{!frange u=0}reference_count_live()"), 
+				"//*[@numFound='1']",
+				"//doc/int[@name='id'][.='11']"
+		);
+		assertQ(req("q", "bibcode:b3", "fl", "id,refs:reference_count_live(),cits:citation_count_live()"), 
+				"//doc/int[@name='refs'][.='3']",
+				"//doc/int[@name='cits'][.='10']"
+		);
+		
+	}
+	
+	public void testPageRank() throws Exception {
+		
+		RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+		try {
+			CitationLRUCache cache = (CitationLRUCache) searcher.get().getCache("citations-cache");
+			assertTrue("pagerank was not computed", cache.waitForPageRank(30000));
+			assertEquals("done", cache.getStatistics().get("pageRankStatus"));
+			assertEquals(true, cache.getStatistics().get("pageRankConverged"));
+			assertEquals(false, cache.getStatistics().get("pageRankStale"));
+			
+			// the next cache serves the ranks of the previous one until its own are computed
+			CitationLRUCache next = new CitationLRUCache();
+			Map<String, String> args = new HashMap<String, String>();
+			args.put("name", "citations-cache");
+			args.put("identifierFields", "bibcode,alternate_bibcode");
+			args.put("referenceFields", "reference");
+			args.put("pageRank", "true");
+			args.put("pageRankTolerance", "1e-8");
+			next.init(args, null, null);
+			next.warm(searcher.get(), cache);
+			try {
+				long generation = next.getPageRankGeneration();
+				float[] ranks = next.getPageRank();
+				assertNotNull(ranks); // carried over, or already computed
+				int b2 = next.getDocId("b2");
+				assertEquals(cache.getPageRank()[b2], ranks[b2], 1e-6f);
+				assertTrue(generation != cache.getPageRankGeneration());
+				assertTrue(next.waitForPageRank(30000));
+				assertEquals(false, next.getStatistics().get("pageRankStale"));
+				// the queries over the previous ranks are not equal to the new ones
+				if (ranks != next.getPageRank()) {
+					assertTrue(generation != next.getPageRankGeneration());
+				}
+			}
+			finally {
+				next.close();
+			}
+		}
+		finally {
+			searcher.decref();
+		}
+		
+		// b2, b4, b3 are cited by everybody (b2 twice by b8)
+		assertQ(req("q", "*:*", "sort", "pagerank() desc", "rows", "3", "fl", "id"), 
+				"//*[@numFound='12']",
+				"//doc[1]/int[@name='id'][.='2']",
+				"//doc[2]/int[@name='id'][.='4']",
+				"//doc[3]/int[@name='id'][.='3']"
+		);
+		assertQ(req("q", "bibcode:b2", "fl", "id,pr:pagerank()"), 
+				"//doc/float[@name='pr'][.='1.0']"
+		);
+		assertQ(req("q", "{!frange u=0.1}pagerank()"), 
+				"//*[@numFound='9']"
+		);
 	}
 }
@@ -0,0 +1,94 @@
+package org.apache.solr.search;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.search.CitationLRUCache.CompressedSparseRows;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+/**
+ * Reports memory (bytes/edge) and decoding speed of the compressed
+ * storage of the citation network. The graph is synthetic: the number
+ * of references follows a power law and few papers get most of the
+ * citations (as in the ADS data).
+ */
+public class BenchmarkCitationCompression extends LuceneTestCase {
+
+  private int numDocs = 1000000;
+  private int avgReferences = 20;
+  private int rounds = 5;
+
+  public void test() {
+    Random random = random();
+    CompressedSparseRows references = generate(random);
+    CompressedSparseRows citations = references.transpose();
+    System.out.println("docs=" + numDocs + " edges=" + references.edges.length);
+
+    for (CompressedSparseRows rows : new CompressedSparseRows[] {references, citations}) {
+      System.out.println(rows == references ? "references:" : "citations:");
+      measureCSR(rows);
+      for (String compression : new String[] {"vbyte", "for"}) {
+        measure(rows, compression);
+      }
+    }
+  }
+
+  private CompressedSparseRows generate(Random random) {
+    int[] offsets = new int[numDocs + 1];
+    int[] edges = new int[numDocs * avgReferences];
+    int numEdges = 0;
+    for (int doc = 0; doc < numDocs; doc++) {
+      int size = (int) Math.min(2000, avgReferences / 2 * Math.pow(random.nextDouble(), -0.5)) - avgReferences / 2;
+      for (int i = 0; i < size; i++) {
+        if (numEdges == edges.length) {
+          edges = Arrays.copyOf(edges, edges.length * 2);
+        }
+        // papers cite mostly older (smaller docid) and popular papers
+        edges[numEdges++] = random.nextInt(20) == 0 ? -1 : (int) (doc * Math.pow(random.nextDouble(), 3));
+      }
+      offsets[doc + 1] = numEdges;
+    }
+    return new CompressedSparseRows(offsets, Arrays.copyOf(edges, numEdges));
+  }
+
+  private void measureCSR(CompressedSparseRows rows) {
+    long checksum = 0;
+    long start = System.nanoTime();
+    for (int r = 0; r < rounds; r++) {
+      for (int doc = 0; doc < rows.numRows(); doc++) {
+        for (int i = rows.start(doc); i < rows.end(doc); i++) {
+          checksum += rows.edges[i];
+        }
+      }
+    }
+    report("none (csr)", rows.ramBytesUsed(), rows.edges.length, System.nanoTime() - start, checksum);
+    System.out.println(String.format("  %-12s %6.2f bytes/edge", "none (lists)",
+        (double) rows.ramBytesUsedAsLists() / rows.edges.length));
+  }
+
+  private void measure(CompressedSparseRows rows, String compression) {
+    long start = System.nanoTime();
+    CitationCompressedRows compressed = CitationCompressedRows.compress(rows, compression);
+    long compressTime = System.nanoTime() - start;
+
+    long checksum = 0;
+    RelationshipsCursor cursor = null;
+    start = System.nanoTime();
+    for (int r = 0; r < rounds; r++) {
+      for (int doc = 0; doc < compressed.numRows(); doc++) {
+        cursor = compressed.cursor(doc, cursor);
+        while (cursor.hasNext()) {
+          checksum += cursor.next();
+        }
+      }
+    }
+    report(compression, compressed.ramBytesUsed(), rows.edges.length, System.nanoTime() - start, checksum);
+    System.out.println(String.format("  %-12s compressed in %d ms", "", compressTime / 1000000));
+  }
+
+  private void report(String name, long bytes, long numEdges, long nanos, long checksum) {
+    System.out.println(String.format("  %-12s %6.2f bytes/edge, %8.1f M edges/s (checksum=%d)", name,
+        (double) bytes / numEdges, (double) numEdges * rounds / nanos * 1000, checksum));
+  }
+}
@@ -0,0 +1,136 @@
+package org.apache.solr.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import monty.solr.util.MontySolrAbstractTestCase;
+import monty.solr.util.MontySolrSetup;
+
+import org.apache.solr.request.SolrQueryRequest;
+import org.junit.BeforeClass;
+
+/**
+ * Throughput of the citation cache read by many threads at the same
+ * time: the lookups by lucene docid (references, citations - as used by
+ * the second-order collectors) and by identifier (bibcode to docid). The
+ * number of threads doubles up to the number of cores; the lookups do
+ * not block each other, so the throughput should grow with the threads
+ * (the speedup is reported against one thread).
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class BenchmarkConcurrentLookups extends MontySolrAbstractTestCase {
+
+  private int numDocs = 100000;
+  private int avgReferences = 20;
+  private int lookupsPerThread = 2000000;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty("solr.allow.unsafe.resourceloading", "true");
+    schemaString = MontySolrSetup.getMontySolrHome()
+        + "/contrib/adsabs/src/test-files/solr/collection1/conf/"
+        + "schema-citations-transformer.xml";
+
+    configString = MontySolrSetup.getMontySolrHome()
+        + "/contrib/adsabs/src/test-files/solr/collection1/conf/"
+        + "citation-cache-solrconfig.xml";
+
+    initCore(configString, schemaString, MontySolrSetup.getSolrHome()
+        + "/example/solr");
+  }
+
+  public void test() throws Exception {
+    Random random = random();
+    assertU(delQ("*:*"));
+    for (int i = 0; i < numDocs; i++) {
+      List<String> doc = new ArrayList<String>();
+      doc.add("id");
+      doc.add(String.valueOf(i));
+      doc.add("bibcode");
+      doc.add("b" + i);
+      int howMany = random.nextInt(2 * avgReferences + 1);
+      for (int j = 0; j < howMany; j++) {
+        doc.add("reference");
+        doc.add("b" + (int) (numDocs * Math.pow(random.nextDouble(), 3)));
+      }
+      assertU(adoc(doc.toArray(new String[doc.size()])));
+      if (i % 20000 == 19999) {
+        assertU(commit());
+      }
+    }
+    assertU(commit("waitSearcher", "true"));
+
+    SolrQueryRequest req = req("test");
+    try {
+      CitationLRUCache cache = (CitationLRUCache) req.getSearcher().getCache("citations-cache-from-references");
+      int cores = Runtime.getRuntime().availableProcessors();
+      System.out.println("cores=" + cores + " docs=" + cache.getCitationsIteratorSize());
+      // warm up (jit), then measure
+      for (int round = 0; round < 2; round++) {
+        for (boolean byDocid : new boolean[] {true, false}) {
+          double single = 0;
+          for (int numThreads = 1; numThreads <= Math.max(cores, 2); numThreads *= 2) {
+            double perMs = run(cache, numThreads, byDocid);
+            if (numThreads == 1) {
+              single = perMs;
+            }
+            if (round == 1) {
+              System.out.println(String.format("%-10s threads=%3d %10.0f lookups/ms (speedup %.2fx)",
+                  byDocid ? "docid" : "identifier", numThreads, perMs, perMs / single));
+            }
+          }
+        }
+      }
+    }
+    finally {
+      req.close();
+    }
+    assertU(delQ("*:*"));
+    assertU(commit());
+  }
+
+  private double run(final CitationLRUCache cache, int numThreads, final boolean byDocid) throws Exception {
+    final int maxDoc = cache.getCitationsIteratorSize();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    final AtomicLong checksum = new AtomicLong();
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final long seed = random().nextLong();
+      threads[t] = new Thread() {
+        public void run() {
+          Random random = new Random(seed);
+          long sum = 0;
+          try {
+            startSignal.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < lookupsPerThread; i++) {
+            int docid = random.nextInt(maxDoc);
+            if (byDocid) {
+              int[] refs = cache.getReferences(docid);
+              int[] cits = cache.getCitations(docid);
+              sum += (refs == null ? 0 : refs.length) + (cits == null ? 0 : cits.length);
+            }
+            else {
+              sum += cache.getDocId("b" + docid);
+            }
+          }
+          checksum.addAndGet(sum);
+        }
+      };
+    }
+
+    for (Thread t : threads) t.start();
+    long start = System.nanoTime();
+    startSignal.countDown();
+    for (Thread t : threads) t.join();
+    long took = Math.max(System.nanoTime() - start, 1);
+    assertTrue(checksum.get() != 0);
+    return (double) lookupsPerThread * numThreads * 1000000 / took;
+  }
+}
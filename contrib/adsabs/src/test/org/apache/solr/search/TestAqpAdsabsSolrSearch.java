@@ -377,7 +377,7 @@ public class TestAqpAdsabsSolrSearch extends MontySolrQueryTestCase {
 		
 		// added ability to interactively tweak queries
 		assertQueryEquals(req("defType", "aqp", "q", "tweak(collector_final_value=ARITHM_MEAN, citations(author:foo))"), 
-        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache))", 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache:citations))", 
         SecondOrderQuery.class);
     
 		
@@ -573,64 +573,87 @@ public class TestAqpAdsabsSolrSearch extends MontySolrQueryTestCase {
     
     // references()
     assertQueryEquals(req("defType", "aqp", "q", "references(author:foo)"), 
-        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache))", SecondOrderQuery.class);
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache:references))", SecondOrderQuery.class);
     
     
     // various searches
     assertQueryEquals(req("defType", "aqp", "q", "all:x OR all:z references(author:foo OR title:body)"), 
-        "+(all:x all:z) +SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache))", BooleanQuery.class);
+        "+(all:x all:z) +SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache:references))", BooleanQuery.class);
     assertQueryEquals(req("defType", "aqp", "q", "citations((title:(lectures physics) and author:Feynman))"),
-        "SecondOrderQuery(+(+title:lectures +title:physics) +(author:feynman, author:feynman,*), filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache))", 
+        "SecondOrderQuery(+(+title:lectures +title:physics) +(author:feynman, author:feynman,*), filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache:citations))", 
         SecondOrderQuery.class);
     
     
     
     // citations()
     assertQueryEquals(req("defType", "aqp", "q", "citations(author:foo)"), 
-        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache))", SecondOrderQuery.class);
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache:citations))", SecondOrderQuery.class);
+    assertQueryEquals(req("defType", "aqp", "q", "citations(author:foo, 2010, 2014)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache:citations, years=2010-2014))", SecondOrderQuery.class);
     
     
+    // citations_k()
+    assertQueryEquals(req("defType", "aqp", "q", "citations_k(author:foo, 2)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitationsK(cache=citations-cache:citations, depth=2, direction=citations))", SecondOrderQuery.class);
+    assertQueryEquals(req("defType", "aqp", "q", "citations_k(author:foo, 3, both)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitationsK(cache=citations-cache:citations, depth=3, direction=both))", SecondOrderQuery.class);
+    
+    // cocitation(), coupling()
+    assertQueryEquals(req("defType", "aqp", "q", "cocitation(author:foo)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorSharedNeighbours(cocitation, cache=citations-cache:citations, maxFanout=1000))", SecondOrderQuery.class);
+    assertQueryEquals(req("defType", "aqp", "q", "coupling(author:foo, normalized, 50)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorSharedNeighbours(coupling, cache=citations-cache:references, normalized, maxFanout=50))", SecondOrderQuery.class);
+    
+    // similar_graph()
+    assertQueryEquals(req("defType", "aqp", "q", "similar_graph(author:foo)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorRandomWalk(cache=citations-cache:citations, steps=10000, restart=0.15, seed=0))", SecondOrderQuery.class);
+    assertQueryEquals(req("defType", "aqp", "q", "similar_graph(author:foo, 500, 0.3, 7)"), 
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorRandomWalk(cache=citations-cache:citations, steps=500, restart=0.3, seed=7))", SecondOrderQuery.class);
+    
     // useful() - ads classic implementation 
     assertQueryEquals(req("defType", "aqp", "q", "useful(author:foo)"), 
-        "SecondOrderQuery(SecondOrderQuery(SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache))", 
+        "SecondOrderQuery(SecondOrderQuery(SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:references, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache:references))", 
         SecondOrderQuery.class);
     
     assertQueryEquals(req("defType", "aqp", "q", "all:(x OR z) useful(author:foo OR title:body)"), 
-        "+(all:x all:z) +SecondOrderQuery(SecondOrderQuery(SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache))", 
+        "+(all:x all:z) +SecondOrderQuery(SecondOrderQuery(SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:references, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitesRAM(cache:citations-cache:references))", 
         BooleanQuery.class);
     
     
     // useful2() - original implementation 
     assertQueryEquals(req("defType", "aqp", "q", "useful2(author:foo)"), 
-        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorOperatorExpertsCiting(cache=citations-cache, boost=float[] cite_read_boost))", SecondOrderQuery.class);
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorOperatorExpertsCiting(cache=citations-cache:citations, boost=float[] cite_read_boost))", SecondOrderQuery.class);
     
     assertQueryEquals(req("defType", "aqp", "q", "all:(x OR z) useful2(author:foo OR title:body)"), 
-        "+(all:x all:z) +SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorOperatorExpertsCiting(cache=citations-cache, boost=float[] cite_read_boost))", BooleanQuery.class);
+        "+(all:x all:z) +SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorOperatorExpertsCiting(cache=citations-cache:citations, boost=float[] cite_read_boost))", BooleanQuery.class);
     
     
     // reviews() - ADS classic impl
     assertQueryEquals(req("defType", "aqp", "q", "reviews(author:foo)"), 
-        "SecondOrderQuery(SecondOrderQuery(SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache))", 
+        "SecondOrderQuery(SecondOrderQuery(SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:citations, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache:citations))", 
         SecondOrderQuery.class);
     
     assertQueryEquals(req("defType", "aqp", "q", "all:(x OR z) reviews(author:foo OR title:body)"), 
-        "+(all:x all:z) +SecondOrderQuery(SecondOrderQuery(SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache))", 
+        "+(all:x all:z) +SecondOrderQuery(SecondOrderQuery(SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:citations, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5)), filter=null, collector=SecondOrderCollectorTopN(200, outOfOrder=false)), filter=null, collector=SecondOrderCollectorCitedBy(cache:citations-cache:citations))", 
         BooleanQuery.class);
     
     // reviews2() - original impl 
     assertQueryEquals(req("defType", "aqp", "q", "reviews2(author:foo)"), 
-        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitingTheMostCited(cache=citations-cache, boost=float[] cite_read_boost))", SecondOrderQuery.class);
+        "SecondOrderQuery(author:foo, author:foo,*, filter=null, collector=SecondOrderCollectorCitingTheMostCited(cache=citations-cache:citations, boost=float[] cite_read_boost))", SecondOrderQuery.class);
     
     assertQueryEquals(req("defType", "aqp", "q", "all:(x OR z) reviews2(author:foo OR title:body)"), 
-        "+(all:x all:z) +SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorCitingTheMostCited(cache=citations-cache, boost=float[] cite_read_boost))", BooleanQuery.class);
+        "+(all:x all:z) +SecondOrderQuery((author:foo, author:foo,*) title:body, filter=null, collector=SecondOrderCollectorCitingTheMostCited(cache=citations-cache:citations, boost=float[] cite_read_boost))", BooleanQuery.class);
     
     // classic_relevance() - cr()
     assertQueryEquals(req("defType", "aqp", "q", "classic_relevance(title:foo)"), 
-        "SecondOrderQuery(title:foo, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5))", SecondOrderQuery.class);
+        "SecondOrderQuery(title:foo, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:citations, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5))", SecondOrderQuery.class);
     assertQueryEquals(req("defType", "aqp", "q", "cr(title:foo)"), 
-        "SecondOrderQuery(title:foo, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5))", SecondOrderQuery.class);
+        "SecondOrderQuery(title:foo, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:citations, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.5, adsPart=0.5))", SecondOrderQuery.class);
     assertQueryEquals(req("defType", "aqp", "q", "cr(title:foo, 0.4)"), 
-        "SecondOrderQuery(title:foo, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.4, adsPart=0.6))", SecondOrderQuery.class);
+        "SecondOrderQuery(title:foo, filter=null, collector=SecondOrderCollectorAdsClassicScoringFormula(cache=citations-cache:citations, boost=float[] cite_read_boost, outOfOrder=false, lucene=0.4, adsPart=0.6))", SecondOrderQuery.class);
+    // pagerank is not computed by this cache
+    assertQueryParseException(req("defType", "aqp", "q", "cr(title:foo, 0.4, pagerank)"));
+    assertQueryParseException(req("defType", "aqp", "q", "cr(title:foo, 0.4, foo)"));
     
 	}
 	
@@ -16,11 +16,16 @@
  */
 package org.apache.solr.search;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import monty.solr.util.MontySolrAbstractTestCase;
 import monty.solr.util.MontySolrSetup;
@@ -36,6 +41,14 @@ public class TestCitationCacheSolr extends MontySolrAbstractTestCase {
 	public static void beforeClass() throws Exception {
 		
 		System.setProperty("solr.allow.unsafe.resourceloading", "true");
+		
+		// both storage types must give the same results
+		System.setProperty("tests.citationCache.storage", random().nextBoolean() ? "csr" : "lists");
+		System.setProperty("tests.citationCache.incremental", random().nextBoolean() ? "true" : "false");
+		System.setProperty("tests.citationCache.snapshot", random().nextBoolean() ? "true" : "false");
+		System.setProperty("tests.citationCache.buildThreads", Integer.toString(1 + random().nextInt(4)));
+		System.setProperty("tests.citationCache.compression", new String[]{"none", "vbyte", "for"}[random().nextInt(3)]);
+		
 		schemaString = MontySolrSetup.getMontySolrHome() + "/contrib/adsabs/src/test-files/solr/collection1/conf/" + 
 			"schema-citations-transformer.xml";
 		
@@ -62,27 +75,31 @@ public class TestCitationCacheSolr extends MontySolrAbstractTestCase {
 			10 refs: [2, 3, 4] cits: []
 		 */
 		
-		assertU(adoc("id", "0", "bibcode", "b0", 
+		// the tests run in random order, some of them change the index
+		assertU(delQ("*:*"));
+		assertU(commit());
+		
+		assertU(adoc("id", "0", "bibcode", "b0", "xyear", "2000", 
 				"reference", "x2", "reference", "b3", "reference", "b4"
 		));
-		assertU(adoc("id", "1", "bibcode", "b1", 
+		assertU(adoc("id", "1", "bibcode", "b1", "xyear", "2001", 
 				"reference", "b2", "reference", "b3", "reference", "b4"
 		));
-		assertU(adoc("id", "2", "bibcode", "b2", "alternate_bibcode", "x2", "alternate_bibcode", "x22",
+		assertU(adoc("id", "2", "bibcode", "b2", "xyear", "2002", "alternate_bibcode", "x2", "alternate_bibcode", "x22",
 				"reference", "b2", "reference", "b3", "reference", "b4"
 				, "citation", "b0", "citation", "b1", "citation", "x2"
 				, "citation", "b3", "citation", "b4", "citation", "b5"
 				, "citation", "b6", "citation", "b7", "citation", "b8", "citation", "x8"
 				, "citation", "b9", "citation", "b10"
 		));
-		assertU(adoc("id", "3", "bibcode", "b3", 
+		assertU(adoc("id", "3", "bibcode", "b3", "xyear", "2003", 
 				"reference", "b2", "reference", "b3", "reference", "b4"
 				, "citation", "b0", "citation", "b1", "citation", "x2"
 				, "citation", "b3", "citation", "b4", "citation", "b5"
 				, "citation", "b6", "citation", "b7"
 				, "citation", "b9", "citation", "b10"
 				));
-		assertU(adoc("id", "4", "bibcode", "b4", 
+		assertU(adoc("id", "4", "bibcode", "b4", "xyear", "2000", 
 				"reference", "b2", "reference", "b3", "reference", "b4"
 				, "citation", "b0", "citation", "b1", "citation", "x2"
 				, "citation", "b3", "citation", "b4", "citation", "b5"
@@ -92,21 +109,21 @@ public class TestCitationCacheSolr extends MontySolrAbstractTestCase {
 		
 		assertU(commit("waitSearcher", "true")); // closes the writer, create a new segment
 		
-		assertU(adoc("id", "5", "bibcode", "b5", "alternate_bibcode", "x5",
+		assertU(adoc("id", "5", "bibcode", "b5", "xyear", "2001", "alternate_bibcode", "x5",
 				"reference", "x22", "reference", "b3", "reference", "b4"));
-		assertU(adoc("id", "6", "bibcode", "b6", 
+		assertU(adoc("id", "6", "bibcode", "b6", "xyear", "2002", 
 				"reference", "b2", "reference", "b3", "reference", "b4"));
-		assertU(adoc("id", "7", "bibcode", "b7", 
+		assertU(adoc("id", "7", "bibcode", "b7", "xyear", "2003", 
 				"reference", "b2", "reference", "b3", "reference", "b4"));
-		assertU(adoc("id", "8", "bibcode", "b8", "alternate_bibcode", "x8",
+		assertU(adoc("id", "8", "bibcode", "b8", "xyear", "2000", "alternate_bibcode", "x8",
 				"reference", "x2", "reference", "x22", "reference", "b4"));
 
 		assertU(commit("waitSearcher", "true")); // closes the writer, create a new segment
 		
 
-		assertU(adoc("id", "9", "bibcode", "b9",
+		assertU(adoc("id", "9", "bibcode", "b9", "xyear", "2001",
 				"reference", "b2", "reference", "b3", "reference", "b4"));
-		assertU(adoc("id", "10", "bibcode", "b10",
+		assertU(adoc("id", "10", "bibcode", "b10", "xyear", "2002",
 				"reference", "b2", "reference", "b3", "reference", "b4"));
 		
 		
@@ -267,6 +284,73 @@ public class TestCitationCacheSolr extends MontySolrAbstractTestCase {
 			assertTrue( cache.equals(cache2));
 			assertTrue( cache2 == cache2 );
 			
+			assertEquals(System.getProperty("tests.citationCache.storage"), 
+					cache.getStatistics().get("relationshipsStorage"));
+			if (!Boolean.TRUE.equals(cache.getStatistics().get("snapshotLoaded"))) {
+				assertNotNull(cache.getStatistics().get("identifiers.bibcode.ramBytes"));
+			}
+			if (Boolean.getBoolean("tests.citationCache.snapshot")) {
+				assertTrue(cache.waitForSnapshot(30000)); // written in the background
+				File[] snapshots = new File(h.getCore().getDataDir(), "citation-cache").listFiles();
+				assertTrue(snapshots != null && snapshots.length > 0);
+				
+				// the same index version; the cache must be loaded from the snapshot
+				CitationLRUCache fromSnapshot = new CitationLRUCache();
+				fromSnapshot.init(snapshotCacheArgs(cacheName), null, null);
+				fromSnapshot.warm(searcher, null);
+				assertEquals(true, fromSnapshot.getStatistics().get("snapshotLoaded"));
+				assertEquals(cache.get("b2"), fromSnapshot.get("b2"));
+				assertEquals(cache.get("x22"), fromSnapshot.get("x22"));
+				for (int i=0; i<searcher.maxDoc(); i++) {
+					compare("References", cache.getReferences(i), fromSnapshot.getReferences(i));
+					compare("Citations", cache.getCitations(i), fromSnapshot.getCitations(i));
+				}
+				
+				// a corrupted snapshot (negative number of the offsets) is dropped, the cache rebuilt
+				File corrupted = null;
+				for (File f: snapshots) {
+					if (f.getName().startsWith(cacheName.replaceAll("[^a-zA-Z0-9_\\-]", "_") + "_")
+							&& f.getName().endsWith(".snapshot")) {
+						corrupted = f;
+					}
+				}
+				assertNotNull(corrupted);
+				RandomAccessFile raf = new RandomAccessFile(corrupted, "rw");
+				try {
+					raf.seek(40); // behind the header
+					assertEquals(1, raf.readInt()); // the references are there
+					raf.writeInt(-5);
+				}
+				finally {
+					raf.close();
+				}
+				CitationLRUCache rebuilt = new CitationLRUCache();
+				rebuilt.init(snapshotCacheArgs(cacheName), null, null);
+				rebuilt.warm(searcher, null);
+				assertEquals(false, rebuilt.getStatistics().get("snapshotLoaded"));
+				assertEquals(cache.get("x22"), rebuilt.get("x22"));
+				for (int i=0; i<searcher.maxDoc(); i++) {
+					compare("References", cache.getReferences(i), rebuilt.getReferences(i));
+				}
+				assertTrue(rebuilt.waitForSnapshot(30000)); // and written again
+				assertTrue(corrupted.isFile());
+				
+				// a truncated body (the header is fine) fails the checksum
+				raf = new RandomAccessFile(corrupted, "rw");
+				try {
+					raf.setLength(raf.length() - 12);
+				}
+				finally {
+					raf.close();
+				}
+				CitationLRUCache truncated = new CitationLRUCache();
+				truncated.init(snapshotCacheArgs(cacheName), null, null);
+				truncated.warm(searcher, null);
+				assertEquals(false, truncated.getStatistics().get("snapshotLoaded"));
+				assertEquals(cache.get("x22"), truncated.get("x22"));
+				assertTrue(truncated.waitForSnapshot(30000));
+			}
+			
 			//printCache(cache);
 			// test ID mapping function
 			assertTrue( cache.get("b0").equals(0));
@@ -668,6 +752,219 @@ public class TestCitationCacheSolr extends MontySolrAbstractTestCase {
 		
 	}
 
+  /*
+   * The citations limited to a range of years (the year of the doc 
+   * 'bN' is 2000 + N % 4) must be the same as the filtered citations
+   */
+  @Test
+  public void testYearIndex() throws Exception {
+  	SolrQueryRequest r = req("test");
+  	try {
+  		CitationLRUCache cache = (CitationLRUCache) r.getSearcher().getCache("citations-cache-from-references");
+  		assertTrue(cache.hasYearIndex());
+  		assertNotNull(cache.getStatistics().get("yearIndexRamBytes"));
+  		assertFalse(((CitationLRUCache) r.getSearcher().getCache("citations-cache-from-both")).hasYearIndex());
+  		
+  		int[][] ranges = new int[][] {{2000, 2003}, {2000, 2000}, {2001, 2002}, {2003, 2010}, {1990, 1999}, {2002, 2001}};
+  		for (int docid=0; docid<cache.getCitationsIteratorSize(); docid++) {
+  			int[] all = cache.getCitations(docid);
+  			for (int[] range: ranges) {
+  				int from = range[0];
+  				int to = range[1];
+  				int[] expected = new int[all == null ? 0 : all.length];
+  				int n = 0;
+  				for (int i=0; all != null && i<all.length; i++) {
+  					int year = 2000 + all[i] % 4;
+  					if (all[i] >= 0 && year >= from && year <= to)
+  						expected[n++] = all[i];
+  				}
+  				expected = Arrays.copyOf(expected, n);
+  				
+  				CitationLRUCache.RelationshipsCursor cursor = cache.getCitations(docid, from, to, null);
+  				int[] result = new int[cursor.size()];
+  				int previousYear = Integer.MIN_VALUE;
+  				for (int i=0; i<result.length; i++) {
+  					result[i] = cursor.next();
+  					int year = 2000 + result[i] % 4;
+  					assertTrue(year >= previousYear); // ordered by the year
+  					previousYear = year;
+  				}
+  				compare("doc " + docid + ", years " + from + "-" + to, expected, result);
+  				assertEquals(n, cache.countCitations(docid, from, to));
+  			}
+  		}
+  	}
+  	finally {
+  		r.close();
+  	}
+  }
+  
+  /*
+   * Many threads reading the citation network at the same time; the
+   * lookups don't block each other and all of them see the same data
+   * (the throughput is measured by BenchmarkConcurrentLookups)
+   */
+  @Test
+  public void testConcurrentLookups() throws Exception {
+  	SolrQueryRequest r = req("test");
+  	try {
+  		final CitationLRUCache cache = (CitationLRUCache) r.getSearcher().getCache("citations-cache-from-references");
+  		final int maxDoc = cache.getCitationsIteratorSize();
+  		final int[][][] expected = getCache(cache);
+  		final int iterations = 20000;
+  		
+  		int cores = Runtime.getRuntime().availableProcessors();
+  		for (int numThreads = 1; numThreads <= Math.max(cores, 2); numThreads *= 2) {
+  			final AtomicInteger errors = new AtomicInteger();
+  			Thread[] threads = new Thread[numThreads];
+  			for (int t=0; t<numThreads; t++) {
+  				threads[t] = new Thread() {
+  					public void run() {
+  						for (int i=0; i<iterations; i++) {
+  							int docid = i % maxDoc;
+  							int[] refs = cache.getReferences(docid);
+  							int[] cits = cache.getCitations(docid);
+  							if (!Arrays.equals(expected[docid][0], refs == null ? new int[0] : refs)
+  									|| !Arrays.equals(expected[docid][1], cits == null ? new int[0] : cits)) {
+  								errors.incrementAndGet();
+  							}
+  						}
+  					}
+  				};
+  			}
+  			
+  			for (Thread t: threads) t.start();
+  			for (Thread t: threads) t.join();
+  			assertEquals(0, errors.get());
+  		}
+  	}
+  	finally {
+  		r.close();
+  	}
+  }
+  
+  /*
+   * A written snapshot replaces only the snapshots of the older commits;
+   * a newer one (written by the cache of a newer searcher) must stay
+   */
+  @Test
+  public void testSnapshotGenerations() throws Exception {
+  	SolrQueryRequest r = req("test");
+  	try {
+  		SolrIndexSearcher searcher = r.getSearcher();
+  		long generation = searcher.getIndexReader().getIndexCommit().getGeneration();
+  		String cacheName = "citations-cache-from-references";
+  		File dir = new File(h.getCore().getDataDir(), "citation-cache");
+  		dir.mkdirs();
+  		File current = CitationCacheSnapshot.getFile(dir, cacheName, generation);
+  		File older = CitationCacheSnapshot.getFile(dir, cacheName, generation - 1);
+  		File newer = CitationCacheSnapshot.getFile(dir, cacheName, generation + 1);
+  		File otherCache = CitationCacheSnapshot.getFile(dir, cacheName + "_x", generation - 1);
+  		current.delete(); // the cache must be built and written
+  		assertTrue(older.createNewFile());
+  		assertTrue(newer.createNewFile());
+  		assertTrue(otherCache.createNewFile());
+  		
+  		CitationLRUCache cache = new CitationLRUCache();
+  		cache.init(snapshotCacheArgs(cacheName), null, null);
+  		cache.warm(searcher, null);
+  		assertEquals(false, cache.getStatistics().get("snapshotLoaded"));
+  		assertTrue(cache.waitForSnapshot(30000));
+  		cache.close();
+  		
+  		assertTrue(current.isFile());
+  		assertFalse(older.exists());
+  		assertTrue(newer.exists());
+  		assertTrue(otherCache.exists());
+  		newer.delete();
+  		otherCache.delete();
+  	}
+  	finally {
+  		r.close();
+  	}
+  }
+  
+  /*
+   * The cache warmed incrementally (from the cache of the previous
+   * searcher) after several commits with deletes and updates must be
+   * the same as the cache built from scratch: the same docid for every
+   * identifier (also when two documents share it, or when the winner
+   * was deleted) and the same references/citations
+   */
+  @Test
+  public void testIncrementalWarmup() throws Exception {
+  	String[] identifiers = new String[] {"b0", "b1", "b2", "b3", "b4", "b5", "b6", "b7", "b8", "b9", 
+  			"b10", "b11", "b12", "x2", "x22", "x5", "x8", "x9"};
+  	CitationLRUCache previous = null;
+  	try {
+  		for (int round=0; round<5; round++) {
+  			switch (round) {
+  			case 1:
+  				// a bibcode that is an alternate_bibcode of a doc in an old segment
+  				assertU(adoc("id", "11", "bibcode", "x5", "xyear", "2003",
+  						"reference", "b5", "reference", "x22", "citation", "x5"));
+  				assertU(adoc("id", "12", "bibcode", "b12", "xyear", "2000", "alternate_bibcode", "x22",
+  						"reference", "x2", "reference", "x5"));
+  				break;
+  			case 2:
+  				// the winner is deleted, the identifiers fall back to the other docs
+  				assertU(delQ("id:2"));
+  				break;
+  			case 3:
+  				// updated: the docs are deleted in the old segments, added into the new one
+  				assertU(adoc("id", "5", "bibcode", "b5", "xyear", "2001",
+  						"reference", "b12", "reference", "x22"));
+  				assertU(adoc("id", "8", "bibcode", "b8", "xyear", "2000", "alternate_bibcode", "x9",
+  						"reference", "x5", "citation", "b9"));
+  				assertU(delQ("id:12"));
+  				break;
+  			case 4:
+  				assertU(optimize());
+  				break;
+  			}
+  			assertU(commit("waitSearcher", "true"));
+  		
+  			SolrQueryRequest r = req("test");
+  			try {
+  				SolrIndexSearcher searcher = r.getSearcher();
+  				CitationLRUCache incremental = new CitationLRUCache();
+  				incremental.init(incrementalCacheArgs(true), null, null);
+  				incremental.warm(searcher, previous);
+  				CitationLRUCache rebuilt = new CitationLRUCache();
+  				rebuilt.init(incrementalCacheArgs(false), null, null);
+  				rebuilt.warm(searcher, null);
+  			
+  				assertEquals(rebuilt.size(), incremental.size());
+  				for (String id: identifiers) {
+  					assertEquals("round " + round + ", " + id, rebuilt.getDocId(id), incremental.getDocId(id));
+  				}
+  				assertEquals(rebuilt.getCitationsIteratorSize(), incremental.getCitationsIteratorSize());
+  				for (int i=0; i<searcher.maxDoc(); i++) {
+  					compare("round " + round + ", references of " + i, rebuilt.getReferences(i), incremental.getReferences(i));
+  					compare("round " + round + ", citations of " + i, rebuilt.getCitations(i), incremental.getCitations(i));
+  				}
+  				if (round == 2) { // only deletions, no new segments
+  					assertTrue(((Number) incremental.getStatistics().get("segmentsReused")).intValue() > 0);
+  				}
+  				rebuilt.close();
+  				if (previous != null) {
+  					previous.close();
+  				}
+  				previous = incremental;
+  			}
+  			finally {
+  				r.close();
+  			}
+  		}
+  		previous.close();
+  	}
+  	finally {
+  		// the documents of the other tests were changed
+  		assertU(delQ("*:*"));
+  		assertU(commit());
+  	}
+  }
+  
   private int[][][] getCache(CitationLRUCache cache) {
   	int[][][] results = new int[cache.getCitationsIteratorSize()][2][];
 		Iterator<int[][]> it = cache.getCitationsIterator();
@@ -681,6 +978,34 @@ public class TestCitationCacheSolr extends MontySolrAbstractTestCase {
 		return results;
   }
 
+	/* the same configuration as in citation-cache-solrconfig.xml */
+	private Map<String, String> snapshotCacheArgs(String cacheName) {
+		Map<String, String> args = new HashMap<String, String>();
+		args.put("name", cacheName);
+		args.put("identifierFields", "bibcode,alternate_bibcode");
+		if (cacheName.endsWith("-from-references")) {
+			args.put("referenceFields", "reference");
+		}
+		else {
+			args.put("citationFields", "citation");
+		}
+		args.put("storage", System.getProperty("tests.citationCache.storage"));
+		args.put("snapshot", "true");
+		return args;
+	}
+	
+	/* references and citations from both fields, as citations-cache-from-both */
+	private Map<String, String> incrementalCacheArgs(boolean incremental) {
+		Map<String, String> args = new HashMap<String, String>();
+		args.put("name", "citations-cache-incremental");
+		args.put("identifierFields", "bibcode,alternate_bibcode");
+		args.put("referenceFields", "reference");
+		args.put("citationFields", "citation");
+		args.put("storage", System.getProperty("tests.citationCache.storage"));
+		args.put("incremental", Boolean.toString(incremental));
+		return args;
+	}
+	
 	private void compare(String msg, int[] exp, int[] res) {
   	if (exp != null)
 	  	Arrays.sort(exp);
@@ -0,0 +1,77 @@
+package org.apache.solr.search;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.search.CitationLRUCache.CompressedSparseRows;
+import org.apache.solr.search.CitationLRUCache.RelationshipsCursor;
+
+public class TestCitationCompressedRows extends LuceneTestCase {
+
+  public void testRoundTrip() {
+    int numRows = atLeast(500);
+    int[] offsets = new int[numRows + 1];
+    int[] edges = new int[numRows * 20];
+    int numEdges = 0;
+    for (int row = 0; row < numRows; row++) {
+      // few rows are big (more than one FOR block), some are empty
+      int size = random().nextInt(20) == 0 ? random().nextInt(1000) : random().nextInt(10);
+      for (int i = 0; i < size; i++) {
+        if (numEdges == edges.length) {
+          edges = Arrays.copyOf(edges, edges.length * 2);
+        }
+        edges[numEdges++] = random().nextInt(10) == 0 ? -1 : random().nextInt(random().nextBoolean() ? numRows : Integer.MAX_VALUE - 1);
+      }
+      offsets[row + 1] = numEdges;
+    }
+    CompressedSparseRows rows = new CompressedSparseRows(offsets, Arrays.copyOf(edges, numEdges));
+
+    for (String compression : new String[] {"vbyte", "for"}) {
+      CitationCompressedRows compressed = CitationCompressedRows.compress(rows, compression);
+      assertEquals(numRows, compressed.numRows());
+      assertEquals(numEdges, compressed.numEdges());
+
+      CompressedSparseRows decoded = compressed.toCSR();
+      RelationshipsCursor cursor = null;
+      for (int row = 0; row < numRows; row++) {
+        int[] expected = rows.get(row);
+        if (expected != null) {
+          Arrays.sort(expected);
+        }
+        assertEquals(expected == null ? 0 : expected.length, compressed.size(row));
+        assertTrue(Arrays.equals(expected, compressed.get(row)));
+        assertTrue(Arrays.equals(expected, decoded.get(row)));
+
+        cursor = compressed.cursor(row, cursor);
+        assertEquals(compressed.size(row), cursor.size());
+        for (int i = 0; i < cursor.size(); i++) {
+          assertTrue(cursor.hasNext());
+          assertEquals(expected[i], cursor.next());
+        }
+        assertFalse(cursor.hasNext());
+
+        // random access, the cursor continues after the value
+        for (int k = 0; k < 5 && cursor.size() > 0; k++) {
+          int n = random().nextInt(cursor.size());
+          assertEquals(expected[n], cursor.get(n));
+          for (int i = n + 1; i < cursor.size(); i++) {
+            assertEquals(expected[i], cursor.next());
+          }
+          assertFalse(cursor.hasNext());
+        }
+      }
+      assertEquals(0, compressed.size(numRows + 1));
+      assertTrue(compressed.ramBytesUsed() > 0);
+    }
+
+    CitationLRUCache.ArrayCursor cursor = new CitationLRUCache.ArrayCursor();
+    for (int row = 0; row < numRows; row++) {
+      cursor.reset(rows.edges, rows.start(row), rows.end(row));
+      for (int k = 0; k < 5 && cursor.size() > 0; k++) {
+        int n = random().nextInt(cursor.size());
+        assertEquals(rows.edges[rows.start(row) + n], cursor.get(n));
+        assertEquals(cursor.size() - n - 1 > 0, cursor.hasNext());
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.apache.solr.search;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+
+public class TestCitationIdentifierMap extends LuceneTestCase {
+
+  public void testAgainstHashMap() {
+    CitationIdentifierMap map = new CitationIdentifierMap(random().nextInt(100));
+    Map<Object, Integer> expected = new HashMap<Object, Integer>();
+
+    int numKeys = atLeast(5000);
+    for (int i = 0; i < numKeys; i++) {
+      Object key;
+      if (random().nextInt(4) == 0) {
+        key = random().nextInt(numKeys) - numKeys / 2;
+      }
+      else {
+        key = TestUtil.randomUnicodeString(random(), 20);
+      }
+      int docid = random().nextInt(Integer.MAX_VALUE);
+      Integer previous = expected.put(key, docid);
+      assertEquals(previous == null ? -1 : previous.intValue(), map.put(key, docid));
+    }
+
+    assertEquals(expected.size(), map.size());
+    for (Map.Entry<Object, Integer> e : expected.entrySet()) {
+      assertEquals(e.getValue().intValue(), map.get(e.getKey()));
+    }
+    assertEquals(-1, map.get("this is not there"));
+    assertEquals(-1, map.get(numKeys * 10));
+
+    // keys and docids are returned in the same order
+    Object[] keys = map.getKeys();
+    int[] docids = map.getDocIds();
+    assertEquals(expected.size(), keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(expected.get(keys[i]).intValue(), docids[i]);
+    }
+
+    assertTrue(map.ramBytesUsed() > 0);
+    map.clear();
+    assertEquals(0, map.size());
+    assertEquals(-1, map.get(keys[0]));
+  }
+  
+  public void testNegativeDocid() {
+    CitationIdentifierMap map = new CitationIdentifierMap(0);
+    map.put(5, 1);
+    for (Object key : new Object[] {5, 21, "b5"}) {
+      try {
+        map.put(key, -1);
+        fail("-1 would mark the slot as empty");
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    assertEquals(1, map.size());
+    assertEquals(1, map.get(5));
+    assertEquals(-1, map.get(21));
+  }
+}
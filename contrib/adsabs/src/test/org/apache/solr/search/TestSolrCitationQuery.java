@@ -108,6 +108,45 @@ public class TestSolrCitationQuery extends MontySolrAbstractTestCase {
 
 	}
 
+	/*
+	 * The tagged filters are not pushed down into the second-order queries,
+	 * the facets which exclude them count over the results of q
+	 */
+	public void testFacetExcludingFilter() throws Exception {
+		assertU(delQ("*:*"));
+		assertU(adoc("id", "0", "bibcode", "A", 
+				"reference", "B", "reference", "C", "reference", "D"));
+		assertU(adoc("id", "1", "bibcode", "B"));
+		assertU(adoc("id", "2", "bibcode", "C"));
+		assertU(adoc("id", "3", "bibcode", "D"));
+		assertU(commit("waitSearcher", "true"));
+		
+		assertQ(req("q", "references(bibcode:A)", "fq", "id:1"),
+				"//*[@numFound='1']",
+				"//result/doc/str[@name='bibcode']='B'"
+		);
+		
+		assertQ(req("q", "references(bibcode:A)", "fq", "{!tag=ids}id:1",
+				"facet", "true", "facet.field", "{!ex=ids}id"),
+				"//*[@numFound='1']",
+				"//result/doc/str[@name='bibcode']='B'",
+				"//lst[@name='facet_fields']/lst[@name='id']/int[@name='1'][.='1']",
+				"//lst[@name='facet_fields']/lst[@name='id']/int[@name='2'][.='1']",
+				"//lst[@name='facet_fields']/lst[@name='id']/int[@name='3'][.='1']"
+		);
+		
+		// the same with the filter that would be pushed down, if it were not tagged
+		assertQ(req("q", "references(bibcode:A)", "fq", "{!tag=ids}id:1", "fq", "id:[0 TO 3]",
+				"facet", "true", "facet.field", "{!ex=ids}id"),
+				"//*[@numFound='1']",
+				"//lst[@name='facet_fields']/lst[@name='id']/int[@name='2'][.='1']",
+				"//lst[@name='facet_fields']/lst[@name='id']/int[@name='3'][.='1']"
+		);
+		
+		assertU(delQ("*:*"));
+		assertU(commit());
+	}
+
 	// Uniquely for Junit 3
 	public static junit.framework.Test suite() {
 		return new junit.framework.JUnit4TestAdapter(TestSolrCitationQuery.class);